@@ -0,0 +1,104 @@
+package com.example.bletest;
+
+import java.util.Locale;
+
+/**
+ * Suppresses repeats of an advertisement: a fingerprint from {@link AdParser#fingerprint}
+ * passes once per window, and advertisements that change, like a new reading or a new name,
+ * pass at once. The old scan API reports every advertising event, several per second per
+ * device, while listeners only need to hear about a device now and then.
+ *
+ * Fingerprints live in an open addressing table of fixed size. Entries older than the window
+ * are tombstones: a lookup probes past them, since a live copy of the fingerprint may sit
+ * further along, and a new fingerprint takes the first of them. When the probe run is all
+ * live entries the oldest one is replaced, which at worst lets a repeat through.
+ */
+public class AdFilter {
+    public static final long DEFAULT_WINDOW = 1000;
+    public static final int DEFAULT_CAPACITY = 256;
+    // Probed slots before replacing one
+    private static final int MAX_PROBE = 8;
+
+    private final long window;
+    private final long[] fingerprints;
+    private final long[] times;
+    private final int mask;
+
+    private long passed = 0;
+    private long suppressed = 0;
+
+    public AdFilter() {
+        this(DEFAULT_WINDOW, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Table size, rounded up to a power of 2; a few times the number of devices
+     *                 in range.
+     */
+    public AdFilter(long windowMillis, int capacity) {
+        int size = Integer.highestOneBit(Math.max(MAX_PROBE, capacity - 1)) << 1;
+        window = windowMillis;
+        fingerprints = new long[size];
+        times = new long[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            times[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * @return True if the advertisement passed within the window, false if it is new and was
+     * recorded.
+     */
+    public synchronized boolean isDuplicate(long fingerprint, long now) {
+        int start = (int) (fingerprint ^ fingerprint >>> 32) & mask;
+        int free = -1;
+        int oldest = start;
+        for (int k = 0; k < MAX_PROBE; k++) {
+            int i = (start + k) & mask;
+            boolean live = times[i] != Long.MIN_VALUE && now - times[i] < window;
+            if (!live) {
+                if (free < 0) {
+                    free = i;
+                }
+                if (times[i] == Long.MIN_VALUE) {
+                    // Never used, so nothing was inserted past it.
+                    break;
+                }
+                continue;
+            }
+            if (fingerprints[i] == fingerprint) {
+                suppressed++;
+                return true;
+            }
+            if (times[i] < times[oldest]) {
+                oldest = i;
+            }
+        }
+        int victim = free >= 0 ? free : oldest;
+        fingerprints[victim] = fingerprint;
+        times[victim] = now;
+        passed++;
+        return false;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < times.length; i++) {
+            times[i] = Long.MIN_VALUE;
+        }
+    }
+
+    public synchronized long getPassedCount() {
+        return passed;
+    }
+
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    public synchronized String report() {
+        long total = passed + suppressed;
+        return String.format(Locale.US, "advertisements %d, passed %d, suppressed %d (%.1f%%)",
+                total, passed, suppressed, total > 0 ? suppressed * 100.0 / total : 0);
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.bletest;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Reads the AD structures of a scan record in place: {@link #parse} walks the record once and
+ * keeps offsets into it for the flags, local name and service UUID lists, so a scan callback
+ * can look at an advertisement without copying it or asking the system for the device name.
+ * Accessors are valid until the next parse() and read the caller's array, which must not
+ * change meanwhile. One instance per scanning thread; it is not thread safe.
+ *
+ * Each AD structure is a length byte, a type byte and length - 1 data bytes. The record ends
+ * at the first zero length; records from the old scan API are padded with zeros to 62 bytes.
+ */
+public class AdParser {
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16 = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32 = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128 = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_NAME = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /**
+     * Characteristic UUID under which scan records are written to a {@link PacketCapture}, so
+     * scan traces can be recorded next to notifications. The pipeline ignores it on replay.
+     */
+    public static final UUID CAPTURE_UUID = new UUID(0, 0xAD);
+
+    // Bluetooth base UUID, for 16 and 32 bit UUIDs
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private byte[] record;
+    // End of the significant part
+    private int length;
+    private boolean valid;
+    private int flags;
+    private int nameOffset;
+    private int nameLength;
+    private boolean nameComplete;
+    // Service UUID lists, indexed by UUID size: 0 for 16, 1 for 32, 2 for 128 bits
+    private final int[] uuidOffsets = new int[3];
+    private final int[] uuidLengths = new int[3];
+    private int dataLength;
+
+    /**
+     * Walks the AD structures of the record. A structure running past the end of the record
+     * ends the walk; what came before it is still available.
+     *
+     * @return False if the record is null or malformed.
+     */
+    public boolean parse(byte[] record) {
+        this.record = record;
+        length = 0;
+        flags = -1;
+        nameOffset = -1;
+        nameLength = 0;
+        nameComplete = false;
+        for (int k = 0; k < 3; k++) {
+            uuidOffsets[k] = -1;
+            uuidLengths[k] = 0;
+        }
+        if (record == null) {
+            valid = false;
+            return false;
+        }
+        valid = true;
+        int i = 0;
+        while (i < record.length) {
+            int len = record[i] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+            if (i + 1 + len > record.length) {
+                valid = false;
+                break;
+            }
+            int data = i + 2;
+            int dataLen = len - 1;
+            switch (record[i + 1] & 0xFF) {
+                case TYPE_FLAGS:
+                    if (dataLen > 0) {
+                        flags = record[data] & 0xFF;
+                    }
+                    break;
+                case TYPE_NAME:
+                    nameOffset = data;
+                    nameLength = dataLen;
+                    nameComplete = true;
+                    break;
+                case TYPE_SHORT_NAME:
+                    // The complete name wins if both are present.
+                    if (!nameComplete) {
+                        nameOffset = data;
+                        nameLength = dataLen;
+                    }
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                    setUuids(0, data, dataLen);
+                    break;
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                    setUuids(1, data, dataLen);
+                    break;
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    setUuids(2, data, dataLen);
+                    break;
+                default:
+                    break;
+            }
+            i += 1 + len;
+        }
+        length = i;
+        return valid;
+    }
+
+    private void setUuids(int size, int offset, int len) {
+        // Only the first list of each size is kept; pods send one.
+        if (uuidOffsets[size] < 0) {
+            uuidOffsets[size] = offset;
+            uuidLengths[size] = len;
+        }
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return Length of the significant part of the record, without the zero padding.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The flags byte, or -1 if the record has none.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasName() {
+        return nameOffset >= 0;
+    }
+
+    /**
+     * Compares the local name with the given one without decoding it; names outside ASCII are
+     * decoded to compare.
+     */
+    public boolean nameEquals(String name) {
+        if (nameOffset < 0 || name == null) {
+            return false;
+        }
+        if (name.length() != nameLength) {
+            // Same byte and char count for ASCII; otherwise decode.
+            return !isAscii(name) && name.equals(getName());
+        }
+        for (int k = 0; k < nameLength; k++) {
+            int b = record[nameOffset + k];
+            if (b < 0) {
+                return name.equals(getName());
+            }
+            if (b != name.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String s) {
+        for (int k = 0; k < s.length(); k++) {
+            if (s.charAt(k) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The local name, complete or shortened, or null. Allocates.
+     */
+    public String getName() {
+        return nameOffset >= 0 ? new String(record, nameOffset, nameLength, UTF_8) : null;
+    }
+
+    /**
+     * @return True if one of the service UUID lists has the UUID, 16 and 32 bit ones included.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (lsb == BASE_UUID_LSB && (msb & 0xFFFFFFFFL) == BASE_UUID_MSB) {
+            long shortUuid = msb >>> 32;
+            if (shortUuid <= 0xFFFF && contains(0, 2, shortUuid)) {
+                return true;
+            }
+            if (contains(1, 4, shortUuid)) {
+                return true;
+            }
+        }
+        int offset = uuidOffsets[2];
+        for (int k = 0; offset >= 0 && k + 16 <= uuidLengths[2]; k += 16) {
+            // Little endian: the least significant byte comes first.
+            if (readLong(offset + k) == lsb && readLong(offset + k + 8) == msb) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean contains(int size, int width, long value) {
+        int offset = uuidOffsets[size];
+        for (int k = 0; offset >= 0 && k + width <= uuidLengths[size]; k += width) {
+            long v = 0;
+            for (int b = width - 1; b >= 0; b--) {
+                v = v << 8 | (record[offset + k + b] & 0xFF);
+            }
+            if (v == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long readLong(int offset) {
+        long v = 0;
+        for (int b = 7; b >= 0; b--) {
+            v = v << 8 | (record[offset + b] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * @return Offset of the manufacturer specific data after the company id, or -1 if the
+     * record has none from that company. The data length is then in {@link #getDataLength()}.
+     */
+    public int findManufacturerData(int companyId) {
+        dataLength = 0;
+        int i = 0;
+        while (i + 1 < length) {
+            int len = record[i] & 0xFF;
+            if ((record[i + 1] & 0xFF) == TYPE_MANUFACTURER_DATA && len >= 3) {
+                int company = (record[i + 2] & 0xFF) | (record[i + 3] & 0xFF) << 8;
+                if (company == companyId) {
+                    dataLength = len - 3;
+                    return i + 4;
+                }
+            }
+            i += 1 + len;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Length of the data found by the last findManufacturerData().
+     */
+    public int getDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * @return A 64 bit FNV-1a hash of the device address and the significant part of the
+     * record: equal for repeats of the same advertisement, which {@link AdFilter} suppresses.
+     */
+    public long fingerprint(String address) {
+        long h = FNV_OFFSET;
+        if (address != null) {
+            // String caches its hash.
+            h = (h ^ address.hashCode()) * FNV_PRIME;
+        }
+        for (int k = 0; k < length; k++) {
+            h = (h ^ (record[k] & 0xFF)) * FNV_PRIME;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.bletest;
+
+/**
+ * Chooses the sensor period from the recent behaviour of the filtered pressure signal.
+ *
+ * While the signal is stable the period is doubled step by step up to {@link #MAX_PERIOD},
+ * which cuts the number of notifications the radio has to carry. As soon as a sample leaves
+ * the recent band (an event) the period drops straight back to {@link #MIN_PERIOD} so the
+ * change is recorded at full resolution.
+ */
+public class AdaptiveRateController {
+    /** Fastest period in ms, the rate the app always used before. */
+    public static final int MIN_PERIOD = 100;
+    /** Slowest period in ms; the period register is one unsigned byte. */
+    public static final int MAX_PERIOD = 1600;
+
+    /** Estimated radio time of one notification connection event, in ms. */
+    public static final double NOTIFY_AIRTIME_MS = 2.5;
+
+    private static final int WINDOW_SIZE = 16;
+    private static final int STABLE_SAMPLES = 32;
+
+    private final double stableStdDev;
+    private final double eventDelta;
+
+    private final double[] window = new double[WINDOW_SIZE];
+    private int windowIndex = 0;
+    private int windowCount = 0;
+    private int stableRun = 0;
+    private int period = MIN_PERIOD;
+
+    private long firstSampleTime = -1;
+    private long lastSampleTime = -1;
+    private long sampleCount = 0;
+    private long periodWrites = 0;
+
+    public AdaptiveRateController() {
+        this(0.05, 0.5);
+    }
+
+    /**
+     * @param stableStdDev Standard deviation of the filtered value below which the signal
+     *                     counts as stable.
+     * @param eventDelta   Distance from the window mean that counts as an event.
+     */
+    public AdaptiveRateController(double stableStdDev, double eventDelta) {
+        this.stableStdDev = stableStdDev;
+        this.eventDelta = eventDelta;
+    }
+
+    /**
+     * Feeds one filtered sample.
+     *
+     * @return true if the period changed and has to be written to the sensor.
+     */
+    public boolean onSample(double value, long timeMillis) {
+        if (firstSampleTime < 0) {
+            firstSampleTime = timeMillis;
+        }
+        lastSampleTime = timeMillis;
+        sampleCount++;
+
+        int newPeriod = period;
+        if (windowCount > 0 && Math.abs(value - mean()) > eventDelta) {
+            newPeriod = MIN_PERIOD;
+            stableRun = 0;
+        } else if (windowCount == WINDOW_SIZE && stdDev() < stableStdDev) {
+            stableRun++;
+            if (stableRun >= STABLE_SAMPLES) {
+                newPeriod = Math.min(period * 2, MAX_PERIOD);
+                stableRun = 0;
+            }
+        } else {
+            stableRun = 0;
+        }
+
+        window[windowIndex] = value;
+        windowIndex = (windowIndex + 1) % WINDOW_SIZE;
+        if (windowCount < WINDOW_SIZE) {
+            windowCount++;
+        }
+
+        if (newPeriod != period) {
+            period = newPeriod;
+            periodWrites++;
+            return true;
+        }
+        return false;
+    }
+
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return Samples per second seen since the first sample.
+     */
+    public double getEffectiveSampleRate() {
+        if (sampleCount < 2 || lastSampleTime <= firstSampleTime) {
+            return 0;
+        }
+        return (sampleCount - 1) * 1000.0 / (lastSampleTime - firstSampleTime);
+    }
+
+    /**
+     * @return Estimated radio-on time in ms spent on notifications and period writes.
+     */
+    public double getRadioOnMillis() {
+        return (sampleCount + periodWrites) * NOTIFY_AIRTIME_MS;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public String report() {
+        return String.format("period: %dms, samples: %d, rate: %.2f/s, radio-on: %.0fms",
+                period, sampleCount, getEffectiveSampleRate(), getRadioOnMillis());
+    }
+
+    /**
+     * Converts a period in ms into the value of the period characteristic.
+     */
+    public static byte periodToRegister(int periodMs) {
+        return (byte) ((periodMs / 10) + 10);
+    }
+
+    private double mean() {
+        double sum = 0;
+        for (int i = 0; i < windowCount; i++) {
+            sum += window[i];
+        }
+        return sum / windowCount;
+    }
+
+    private double stdDev() {
+        double m = mean();
+        double sum = 0;
+        for (int i = 0; i < windowCount; i++) {
+            double d = window[i] - m;
+            sum += d * d;
+        }
+        return Math.sqrt(sum / windowCount);
+    }
+}
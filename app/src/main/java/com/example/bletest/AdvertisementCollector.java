@@ -0,0 +1,162 @@
+package com.example.bletest;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Collects readings from pod advertisements, without connecting: any number of pods in range
+ * report at once, at the cost of the advertising interval as sample period.
+ *
+ * Pods in broadcast mode put their latest data characteristic value in the manufacturer
+ * specific data (AD type 0xFF) of their advertisements:
+ *
+ * <pre>
+ * company id (2, little endian) | format (1) | sequence (1) | characteristic value
+ * </pre>
+ *
+ * The format selects the pipeline decoder ({@link #FORMAT_PRESSURE}: the 6 byte pressure
+ * frame of the accelerometer service). A pod repeats an advertisement until it has a new
+ * reading, so only advertisements with a sequence number newer than the last one of the pod
+ * are passed on; the value is then decoded and logged like a notification.
+ *
+ * Readings go through the pipeline on the scan callback thread, so the pipeline must have no
+ * other source meanwhile: {@link BluetoothLE#startBroadcast} refuses while a pod is connected.
+ */
+public class AdvertisementCollector implements BleScanner.ScanListener {
+    // Texas Instruments, the vendor of the pod radio
+    public static final int COMPANY_ID = 0x000D;
+    public static final int FORMAT_PRESSURE = 1;
+
+    // Format and sequence bytes before the characteristic value
+    private static final int HEADER = 2;
+    // A pod without a new reading for this long starts over, whatever its sequence number,
+    // e.g. after a reboot reset it to a lower one.
+    private static final long RESYNC_TIME = 30000;
+
+    private static class Pod {
+        int sequence;
+        // Time of the last accepted reading; repeats do not count.
+        long lastSeen;
+        long accepted;
+        long missed;
+    }
+
+    private final SensorPipeline pipeline;
+    private final int[] decoders = new int[256];
+    private final AdParser parser = new AdParser();
+    private final HashMap<String, Pod> pods = new HashMap<String, Pod>();
+    private HashSet<String> addresses;
+    // Frame handed to the pipeline, which does not keep it; pods of one format share a length.
+    private byte[] frame = new byte[0];
+
+    private long seen = 0;
+    private long foreign = 0;
+    private long duplicates = 0;
+    private long accepted = 0;
+    private long missed = 0;
+    private long startTime = 0;
+    private long lastTime = 0;
+
+    public AdvertisementCollector(SensorPipeline pipeline) {
+        this.pipeline = pipeline;
+        for (int i = 0; i < decoders.length; i++) {
+            decoders[i] = SensorPipeline.DECODER_NONE;
+        }
+        decoders[FORMAT_PRESSURE] = SensorPipeline.DECODER_PRESSURE;
+    }
+
+    /**
+     * Decodes advertisements of the format with the pipeline decoder of the given index.
+     */
+    public synchronized void setFormat(int format, int decoder) {
+        decoders[format & 0xFF] = decoder;
+    }
+
+    /**
+     * Only takes readings from these pods, or from every pod if null.
+     */
+    public synchronized void setAddresses(Collection<String> addresses) {
+        this.addresses = addresses != null ? new HashSet<String>(addresses) : null;
+    }
+
+    @Override
+    public void onScanResult(String address, String name, int rssi, byte[] scanRecord) {
+        onAdvertisement(address, rssi, scanRecord, System.currentTimeMillis());
+    }
+
+    /**
+     * @return True if the advertisement carried a new reading.
+     */
+    public synchronized boolean onAdvertisement(String address, int rssi, byte[] record, long now) {
+        seen++;
+        if (startTime == 0) {
+            startTime = now;
+        }
+        lastTime = now;
+        if (addresses != null && !addresses.contains(address)) {
+            foreign++;
+            return false;
+        }
+        parser.parse(record);
+        int offset = parser.findManufacturerData(COMPANY_ID);
+        if (offset < 0) {
+            foreign++;
+            return false;
+        }
+        int frameLength = parser.getDataLength() - HEADER;
+        int decoder = frameLength > 0 ? decoders[record[offset] & 0xFF]
+                : SensorPipeline.DECODER_NONE;
+        if (decoder == SensorPipeline.DECODER_NONE) {
+            foreign++;
+            return false;
+        }
+
+        int sequence = record[offset + 1] & 0xFF;
+        Pod pod = pods.get(address);
+        if (pod == null) {
+            pod = new Pod();
+            pods.put(address, pod);
+        } else {
+            int ahead = (sequence - pod.sequence) & 0xFF;
+            if (now - pod.lastSeen < RESYNC_TIME && (ahead == 0 || ahead >= 128)) {
+                // Repeat of the last reading, or an older one arriving late. A rebooted pod
+                // looks like this too until RESYNC_TIME after its last accepted reading.
+                duplicates++;
+                return false;
+            }
+            if (now - pod.lastSeen < RESYNC_TIME) {
+                pod.missed += ahead - 1;
+                missed += ahead - 1;
+            }
+        }
+        pod.sequence = sequence;
+        pod.lastSeen = now;
+        pod.accepted++;
+        accepted++;
+
+        if (frame.length != frameLength) {
+            frame = new byte[frameLength];
+        }
+        System.arraycopy(record, offset + HEADER, frame, 0, frameLength);
+        pipeline.process(address, decoder, frame, now);
+        return true;
+    }
+
+    public synchronized int getPodCount() {
+        return pods.size();
+    }
+
+    public synchronized long getAcceptedCount() {
+        return accepted;
+    }
+
+    public synchronized String report() {
+        long elapsed = lastTime - startTime;
+        return String.format(Locale.US,
+                "pods %d, advertisements %d, readings %d (%.1f/s), duplicates %d, missed %d, other %d",
+                pods.size(), seen, accepted, elapsed > 0 ? accepted * 1000.0 / elapsed : 0,
+                duplicates, missed, foreign);
+    }
+}
@@ -22,12 +22,10 @@ public class BleNewScanner extends BleScanner {
     private BluetoothAdapter mBluetoothAdapter;
     private ScanSettings settings;
     private List<ScanFilter> filters;
-    private BluetoothLE bluetoothLE;
 
 
     @SuppressLint("NewApi")
-    public BleNewScanner(BluetoothLE bluetoothLE, BluetoothAdapter mBluetoothAdapter){
-        this.bluetoothLE = bluetoothLE;
+    public BleNewScanner(BluetoothAdapter mBluetoothAdapter){
         this.mBluetoothAdapter = mBluetoothAdapter;
         this.mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
         this.settings = new ScanSettings.Builder()
@@ -40,20 +38,28 @@ public class BleNewScanner extends BleScanner {
     private ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            Log.i("callbackType", String.valueOf(callbackType));
-            Log.i("result", result.toString());
             final int rssi = result.getRssi();
-            Log.i("rssi", "name=" + result.getDevice().getName());
-            Log.i("rssi", "add=" + result.getDevice().getAddress());
-            Log.i("rssi", "rssi=" + rssi);
-            if (bluetoothLE.getDeviceScanned())
+            BluetoothDevice btDevice = result.getDevice();
+            String address = btDevice.getAddress();
+            Trace.event(Trace.EV_SCAN_RESULT, Trace.address(address), rssi, callbackType);
+            byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+            if (!accept(address, scanRecord)) {
+                return;
+            }
+            ScanListener listener = scanListener;
+            if (listener != null) {
+                listener.onScanResult(address, parser.getName(), rssi, scanRecord);
+                return;
+            }
+            BluetoothLE bluetoothLE = BleNewScanner.this.bluetoothLE;
+            if (bluetoothLE == null || bluetoothLE.getDeviceScanned())
                 return;
 
-            BluetoothDevice btDevice = result.getDevice();
-            if (bluetoothLE.getDeviceName().equals(btDevice.getName())) {
-                Log.i("rssi", "inin");
+            String target = bluetoothLE.getDeviceName();
+            if (parser.hasName() ? parser.nameEquals(target) : target.equals(btDevice.getName())) {
+                Trace.event(Trace.EV_SCAN_MATCH, Trace.address(address), rssi);
 
-                bluetoothLE.setDeviceAddress(btDevice.getAddress());
+                bluetoothLE.setDeviceAddress(address);
                 bluetoothLE.setDeviceScanned(true);
 
                 //Intent gattServiceIntent = new Intent(activity, BluetoothLeService.class);
@@ -66,9 +72,7 @@ public class BleNewScanner extends BleScanner {
 
         @Override
         public void onBatchScanResults(List<ScanResult> results) {
-            for (ScanResult sr : results) {
-                Log.i("ScanResult - Results", sr.toString());
-            }
+            Trace.event(Trace.EV_SCAN_BATCH, results.size());
         }
 
         @Override
@@ -79,6 +83,7 @@ public class BleNewScanner extends BleScanner {
 
     @SuppressLint("NewApi")
     public void startScan(){
+        filter.clear();
         mLEScanner.startScan(filters, settings, mScanCallback);
     }
 
@@ -3,7 +3,6 @@ package com.example.bletest;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.util.Log;
 
 /**
  * Created by youchuangwen on 11/05/2017.
@@ -12,10 +11,8 @@ import android.util.Log;
 public class BleOldScanner extends BleScanner {
     private static final String TAG = "BleOldScanner";
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLE bluetoothLE;
 
-    public BleOldScanner(BluetoothLE bluetoothLE, BluetoothAdapter mBluetoothAdapter){
-        this.bluetoothLE = bluetoothLE;
+    public BleOldScanner(BluetoothAdapter mBluetoothAdapter){
         this.mBluetoothAdapter = mBluetoothAdapter;
     }
 
@@ -23,15 +20,29 @@ public class BleOldScanner extends BleScanner {
             new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+                    String address = device.getAddress();
+                    Trace.event(Trace.EV_SCAN_RESULT, Trace.address(address), rssi, 0);
+                    if (!accept(address, scanRecord)) {
+                        return;
+                    }
+                    ScanListener listener = scanListener;
+                    if (listener != null) {
+                        listener.onScanResult(address, parser.getName(), rssi, scanRecord);
+                        return;
+                    }
+
                     // Do nothing if target device is scanned
-                    if(bluetoothLE.getDeviceScanned())
+                    BluetoothLE bluetoothLE = BleOldScanner.this.bluetoothLE;
+                    if(bluetoothLE == null || bluetoothLE.getDeviceScanned())
                         return;
 
-                    Log.d(TAG, "device="+device.getName()+" add="+device.getAddress());
-                    String tmpName = device.getName();
-                    if(bluetoothLE.getDeviceName().equals(device.getName())){
-                        bluetoothLE.setDeviceAddress(device.getAddress());
+                    // The name is in the scan response part of the record; device.getName()
+                    // asks the system, so it is only the fallback for records without one.
+                    String target = bluetoothLE.getDeviceName();
+                    if(parser.hasName() ? parser.nameEquals(target) : target.equals(device.getName())){
+                        bluetoothLE.setDeviceAddress(address);
                         bluetoothLE.setDeviceScanned(true);
+                        Trace.event(Trace.EV_SCAN_MATCH, Trace.address(address), rssi);
 
                         bluetoothLE.scanFound();
                         /*Intent gattServiceIntent = new Intent(activity, BluetoothLeService.class);
@@ -49,6 +60,7 @@ public class BleOldScanner extends BleScanner {
 
     @SuppressLint("NewApi")
     public void startScan(){
+        filter.clear();
         mBluetoothAdapter.startLeScan(mLeScanCallback);
     }
 
@@ -1,10 +1,81 @@
 package com.example.bletest;
 
+import android.util.Log;
+
+import java.io.IOException;
+
 /**
  * Created by youchuangwen on 11/05/2017.
  */
 
 public abstract class BleScanner {
+    private static final String TAG = "BleScanner";
+
+    /**
+     * Receives every advertisement seen while scanning, except repeats within the
+     * {@link AdFilter} window. While a listener is set it owns the scan results and the
+     * scanner does not look for the BluetoothLE target name.
+     */
+    public interface ScanListener {
+        /**
+         * @param name Local name in the advertisement, or null if it has none.
+         */
+        void onScanResult(String address, String name, int rssi, byte[] scanRecord);
+    }
+
+    protected volatile ScanListener scanListener;
+    // Target name and where a match goes while no listener is set; null ignores results.
+    protected volatile BluetoothLE bluetoothLE;
+    private volatile PacketCapture capture;
+
+    // Used from the scan callback only, which the system calls on one thread.
+    protected final AdParser parser = new AdParser();
+    protected final AdFilter filter = new AdFilter();
+
+    public void setScanListener(ScanListener listener) {
+        scanListener = listener;
+    }
+
+    /**
+     * Sets the BluetoothLE that looks for its target name, e.g. once a scanner made by
+     * {@link BluetoothLE#warmUp} is handed over.
+     */
+    public void setBluetoothLE(BluetoothLE bluetoothLE) {
+        this.bluetoothLE = bluetoothLE;
+    }
+
+    /**
+     * Records every scan record, repeats included, to the capture as {@link
+     * AdParser#CAPTURE_UUID} packets; null stops.
+     */
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    public AdFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Parses the scan record into {@link #parser} and drops repeats.
+     *
+     * @return False if the advertisement is a repeat within the filter window.
+     */
+    protected boolean accept(String address, byte[] scanRecord) {
+        long now = System.currentTimeMillis();
+        PacketCapture c = capture;
+        if (c != null && scanRecord != null) {
+            try {
+                c.append(now, AdParser.CAPTURE_UUID, address, scanRecord);
+            } catch (IOException e) {
+                Log.e(TAG, "Scan capture failed, stopping capture", e);
+                capture = null;
+            }
+        }
+        parser.parse(scanRecord);
+        return !filter.isDuplicate(parser.fingerprint(address), now);
+    }
+
     public abstract void startScan();
     public abstract void stopScan();
 }
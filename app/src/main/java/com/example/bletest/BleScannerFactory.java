@@ -8,12 +8,15 @@ import android.bluetooth.BluetoothAdapter;
 
 public class BleScannerFactory{
 
-    public static BleScanner getBleScanner(BluetoothLE bluetoothLE, BluetoothAdapter bluetoothAdapter) {
+    /**
+     * A scanner not looking for a device yet; see {@link BleScanner#setBluetoothLE}.
+     */
+    public static BleScanner getBleScanner(BluetoothAdapter bluetoothAdapter) {
 
         if (android.os.Build.VERSION.SDK_INT >= 21) {
-            return new BleNewScanner(bluetoothLE, bluetoothAdapter);
+            return new BleNewScanner(bluetoothAdapter);
         }else{
-            return new BleOldScanner(bluetoothLE, bluetoothAdapter);
+            return new BleOldScanner(bluetoothAdapter);
         }
 
     }
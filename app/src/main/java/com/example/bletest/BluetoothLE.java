@@ -4,7 +4,6 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -14,12 +13,18 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
 
-import java.util.List;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 @SuppressLint("NewApi")
@@ -28,15 +33,20 @@ public class BluetoothLE {
 
     // Write UUID
     public static final UUID UUID_MOV_SERV = UUID.fromString("f000aa80-0451-4000-b000-000000000000");
-    public static final UUID UUID_MOV_DATA = UUID.fromString("f000aa81-0451-4000-b000-000000000000");
+    public static final UUID UUID_MOV_DATA = DecoderRegistry.UUID_MOV_DATA;
     public static final UUID UUID_MOV_CONF = UUID.fromString("f000aa82-0451-4000-b000-000000000000"); // 0: disable, bit 0: enable x, bit 1: enable y, bit 2: enable z
     public static final UUID UUID_MOV_PERI = UUID.fromString("f000aa83-0451-4000-b000-000000000000");
 
     public static final UUID UUID_ACC_SERV = UUID.fromString("f000aa10-0451-4000-b000-000000000000");
-    public static final UUID UUID_ACC_DATA = UUID.fromString("f000aa11-0451-4000-b000-000000000000");
+    public static final UUID UUID_ACC_DATA = DecoderRegistry.UUID_ACC_DATA;
     public static final UUID UUID_ACC_CONF = UUID.fromString("f000aa12-0451-4000-b000-000000000000");
     public static final UUID UUID_ACC_PERI = UUID.fromString("f000aa13-0451-4000-b000-000000000000");
     
+    // Threads sample batches can be delivered on
+    public static final int DELIVERY_CALLBACK = 0;   // GATT callback thread, no hop
+    public static final int DELIVERY_MAIN = 1;       // main thread
+    public static final int DELIVERY_BACKGROUND = 2; // dedicated background thread
+
 	// Intent request codes
     private static final int REQUEST_ENABLE_BT = 2;
 	
@@ -70,6 +80,119 @@ public class BluetoothLE {
 
     private int testCount = 0;
 
+    // Stretch the sensor period while the pressure signal is stable.
+    private boolean adaptiveRate = true;
+
+    // Fixed sensor period in ms instead of the adaptive rate, 0 for none; see reconfigure().
+    private int sensorPeriod = 0;
+    private int filterSize = PressureFilter.DEFAULT_MAX_SIZE;
+    private int filterSkip = PressureFilter.DEFAULT_SKIP_NUM;
+
+    // Record raw notifications to a capture file for later replay.
+    private boolean capturePackets = false;
+
+    private int sampleDelivery = DELIVERY_MAIN;
+    private int sampleBatchSize = 16;
+    private static final long SAMPLE_MAX_DELAY = 500;
+    private SampleBatcher sampleBatcher;
+    private HandlerThread sampleThread;
+
+    // Visits a list of pods in turn; the service holds one GATT connection at a time.
+    private FleetScheduler fleetScheduler;
+    private static final long FLEET_TICK = 250;
+
+    // Readings from advertisements instead of a connection; see startBroadcast().
+    private boolean broadcastMode = false;
+    private Collection<String> broadcastAddresses;
+    private AdvertisementCollector advertisementCollector;
+    // Android stops scans that run for more than 30 min, so they are restarted before.
+    private static final long BROADCAST_RESTART = 5 * 60 * 1000;
+
+    // Prepared by warmUp() at app start; the scanner goes to the first BluetoothLE.
+    private static volatile BluetoothAdapter sWarmAdapter;
+    private static BleScanner sWarmScanner;
+    private static ServiceConnection sWarmConnection;
+
+    // Subscribers stay subscribed across the reconnects of the recovery; bleDisconnect()
+    // completes them and replaces the publisher and its pool.
+    private ExecutorService publisherExecutor = Executors.newCachedThreadPool();
+    private SamplePublisher samplePublisher = new SamplePublisher(publisherExecutor);
+
+
+    /**
+     * Prepares Bluetooth at app start, before a connection is asked for: gets the adapter and
+     * creates the scanner on a background thread, binds BluetoothLeService and initializes it
+     * and preloads the stored GATT layouts and calibrations on another. The service stays bound until coolDown(), so
+     * the first connection finds it created and ready. Call after MainStorage.setActivity().
+     */
+    public static void warmUp(Activity activity) {
+        if (sWarmConnection != null) {
+            return;
+        }
+        final Context context = activity.getApplicationContext();
+        sWarmConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName componentName, IBinder binder) {
+                StartupTimer.mark(StartupTimer.SERVICE_BOUND);
+                final BluetoothLeService service = ((BluetoothLeService.LocalBinder) binder).getService();
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (service.initialize()) {
+                            service.preload();
+                        }
+                    }
+                }, "BleWarmUp").start();
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName componentName) {
+            }
+        };
+        context.bindService(new Intent(context, BluetoothLeService.class), sWarmConnection,
+                Context.BIND_AUTO_CREATE);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothManager manager =
+                        (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+                if (manager != null) {
+                    BluetoothAdapter adapter = manager.getAdapter();
+                    if (adapter != null) {
+                        BleScanner scanner = BleScannerFactory.getBleScanner(adapter);
+                        synchronized (BluetoothLE.class) {
+                            sWarmScanner = scanner;
+                        }
+                    }
+                    sWarmAdapter = adapter;
+                }
+                // Load the decoder tables off the main thread too.
+                DecoderRegistry.getDefault();
+                StartupTimer.mark(StartupTimer.ADAPTER_READY);
+            }
+        }, "BleWarmUp").start();
+    }
+
+    /**
+     * Releases the binding made by warmUp().
+     */
+    public static void coolDown(Activity activity) {
+        if (sWarmConnection != null) {
+            activity.getApplicationContext().unbindService(sWarmConnection);
+            sWarmConnection = null;
+        }
+        synchronized (BluetoothLE.class) {
+            sWarmScanner = null;
+        }
+    }
+
+    // The scanner warmUp() made for the adapter, once; null if not ready or taken.
+    private static synchronized BleScanner takeWarmScanner(BluetoothAdapter adapter) {
+        BleScanner scanner = adapter == sWarmAdapter ? sWarmScanner : null;
+        sWarmScanner = null;
+        return scanner;
+    }
 
     public BluetoothLE(Activity activity, String mDeviceName) {
         mHandler = new Handler();
@@ -86,9 +209,12 @@ public class BluetoothLE {
 
         // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
         // BluetoothAdapter through BluetoothManager.
-        final BluetoothManager bluetoothManager =
-                (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
-        mBluetoothAdapter = bluetoothManager.getAdapter();
+        mBluetoothAdapter = sWarmAdapter;
+        if (mBluetoothAdapter == null) {
+            final BluetoothManager bluetoothManager =
+                    (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
+            mBluetoothAdapter = bluetoothManager.getAdapter();
+        }
 
         // Checks if Bluetooth is supported on the device.
         if (mBluetoothAdapter == null) {
@@ -105,7 +231,11 @@ public class BluetoothLE {
                     .build();
             filters = new ArrayList<ScanFilter>();
         }*/
-        bleScanner = BleScannerFactory.getBleScanner(this, mBluetoothAdapter);
+        bleScanner = takeWarmScanner(mBluetoothAdapter);
+        if (bleScanner == null) {
+            bleScanner = BleScannerFactory.getBleScanner(mBluetoothAdapter);
+        }
+        bleScanner.setBluetoothLE(this);
     }
      
 	// Code to manage Service lifecycle.
@@ -117,6 +247,30 @@ public class BluetoothLE {
 	            Log.e(TAG, "Unable to initialize Bluetooth");
 //	            activity.finish();
 	        }
+	        if (capturePackets) {
+	            mBluetoothLeService.startCapture();
+	            // Scan records of the fleet, broadcast and recovery scans go to the same file.
+	            bleScanner.setCapture(mBluetoothLeService.getCapture());
+	        }
+	        // The fleet scheduler moves on to the next pod instead of recovering.
+	        mBluetoothLeService.setAutoRecovery(fleetScheduler == null && !broadcastMode);
+	        mBluetoothLeService.setExpectedCharacteristics(
+	                Arrays.asList(UUID_ACC_DATA, UUID_ACC_CONF, UUID_ACC_PERI));
+	        sampleBatcher = new SampleBatcher((BluetoothListener) activity,
+	                getSampleExecutor(), sampleBatchSize, SAMPLE_MAX_DELAY);
+	        SensorPipeline.Editor edit = mBluetoothLeService.getPipeline().edit()
+	                .setFilter(filterSize, filterSkip)
+	                .addSink(sampleBatcher)
+	                .addSink(samplePublisher);
+	        if (fleetScheduler != null) {
+	            edit.addSink(fleetScheduler);
+	        }
+	        edit.apply();
+	        mHandler.postDelayed(batchTick, SAMPLE_MAX_DELAY);
+	        if (broadcastMode) {
+	            attachCollector();
+	            return;
+	        }
 	        // Automatically connects to the device upon successful start-up initialization.
 	        mBluetoothLeService.connect(mDeviceAddress);
 	    }
@@ -132,8 +286,6 @@ public class BluetoothLE {
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            List<BluetoothGattService> serviceList;
-
             final String action = intent.getAction();
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 Log.i("rssi", "mConnected = true");
@@ -146,6 +298,9 @@ public class BluetoothLE {
                     mLEScanner.stopScan(mScanCallback);
                 }*/
                 bleScanner.stopScan();
+                if (fleetScheduler != null) {
+                    fleetScheduler.onConnected(addressOf(intent), System.currentTimeMillis());
+                }
 
                 ((BluetoothListener) activity).bleConnected();
 
@@ -153,57 +308,46 @@ public class BluetoothLE {
             } else if (BluetoothLeService.ACTION_GATT_DISCONNECTED.equals(action)) {
                 Log.i("rssi", "mConnected = false");
                 mConnected = false;
-                ((BluetoothListener) activity).bleDisconnected();
-                unbindBleService();
+                if (sampleBatcher != null) {
+                    sampleBatcher.flush();
+                }
+                if (fleetScheduler != null) {
+                    // Part of the fleet round, not the end of the session: the service stays
+                    // bound and connects the next pod.
+                    fleetScheduler.onDisconnected(addressOf(intent), System.currentTimeMillis());
+                } else {
+                    ((BluetoothListener) activity).bleDisconnected();
+                    unbindBleService();
+                }
 
 //                Toast.makeText(activity, "BLE disconnected!", Toast.LENGTH_SHORT).show();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
 
-                // Show all the supported services and characteristics on the user interface.
-                serviceList = mBluetoothLeService.getSupportedGattServices();
-                Log.i(TAG, " FIND SERVICE : " +  serviceList.size());
-                if (serviceList.size() > 0) {
-                    for (int ii = 0; ii < serviceList.size(); ii++) {
-                        BluetoothGattService s = serviceList.get(ii);
-                        Log.i(TAG, " service with uuid : " + s.getUuid().toString());
-
-                        /*if(s.getUuid().toString().equals( UUID_MOV_SERV.toString()))
-                        {
-                            Log.i(TAG,"Motion1 !");
-
-                            List<BluetoothGattCharacteristic> characteristics = s.getCharacteristics();
-
-                            for (BluetoothGattCharacteristic c : characteristics) {
-                                if (c.getUuid().toString().equals(UUID_MOV_DATA.toString())) {
-                                    dataC = c;
-                                }
-                                if (c.getUuid().toString().equals(UUID_MOV_CONF.toString())) {
-                                    configC = c;
-                                }
-                                if (c.getUuid().toString().equals(UUID_MOV_PERI.toString())) {
-                                    periodC = c;
-                                }
-                            }
-                        }*/
-                        if(s.getUuid().toString().equals( UUID_ACC_SERV.toString()))
-                        {
-                            Log.i(TAG,"ACCELEROMETER !");
-
-                            List<BluetoothGattCharacteristic> characteristics = s.getCharacteristics();
-
-                            for (BluetoothGattCharacteristic c : characteristics) {
-                                if (c.getUuid().toString().equals(UUID_ACC_DATA.toString())) {
-                                    dataC = c;
-                                }
-                                if (c.getUuid().toString().equals(UUID_ACC_CONF.toString())) {
-                                    configC = c;
-                                }
-                                if (c.getUuid().toString().equals(UUID_ACC_PERI.toString())) {
-                                    periodC = c;
-                                }
-                            }
-                        }
+                // Resolved once per device by the service, no need to walk the tree here.
+                GattRegistry.DeviceLayout layout = mBluetoothLeService != null
+                        ? mBluetoothLeService.getDeviceLayout() : null;
+                if (layout == null) {
+                    // Closed, or the device changed its services, since the broadcast was
+                    // sent; the next discovery broadcasts again.
+                    Log.w(TAG, "Services discovered but no layout, ignored");
+                    return;
+                }
+                Log.i(TAG, " FIND CHARACTERISTICS : " + layout.size());
+
+                /*dataC = layout.get(UUID_MOV_DATA);
+                configC = layout.get(UUID_MOV_CONF);
+                periodC = layout.get(UUID_MOV_PERI);*/
+                dataC = layout.get(UUID_ACC_DATA);
+                configC = layout.get(UUID_ACC_CONF);
+                periodC = layout.get(UUID_ACC_PERI);
+                if (dataC == null || configC == null || periodC == null) {
+                    // Without recovery (fleet and broadcast mode) an incomplete discovery is
+                    // still broadcast. The fleet moves on to the next pod.
+                    Log.w(TAG, "Accelerometer characteristics missing on " + addressOf(intent));
+                    if (fleetScheduler != null) {
+                        mBluetoothLeService.disconnect();
                     }
+                    return;
                 }
 
                 /*byte b[] = new byte[] {0x7F,0x00};
@@ -223,13 +367,30 @@ public class BluetoothLE {
                 mBluetoothLeService.writeDescriptor(dataC, true);
                 Log.i(TAG,"Found Accelerometer !");
 
-                int period = 100;
+                int period = sensorPeriod > 0 ? sensorPeriod : AdaptiveRateController.MIN_PERIOD;
                 byte[] p = new byte[1];
-                p[0] = (byte)((period / 10) + 10);
+                p[0] = AdaptiveRateController.periodToRegister(period);
                 mBluetoothLeService.writeCharacteristic(periodC, p);
-
+                // The service keeps the characteristic also without a controller, for
+                // reconfigure().
+                mBluetoothLeService.setRateController(periodC, adaptiveRate && sensorPeriod == 0
+                        ? new AdaptiveRateController() : null);
+
+            } else if (BluetoothLeService.ACTION_SENSOR_ANOMALY.equals(action)) {
+                ((BluetoothListener) activity).bleSensorAnomaly(
+                        intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS),
+                        intent.getDoubleExtra(BluetoothLeService.EXTRA_SCORE, 0),
+                        intent.getStringExtra(BluetoothLeService.EXTRA_REASON));
+            } else if (BluetoothLeService.ACTION_SENSOR_RECOVERED.equals(action)) {
+                ((BluetoothListener) activity).bleSensorRecovered(
+                        intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS));
+            } else if (BluetoothLeService.ACTION_GATT_RECOVERING.equals(action)) {
+                Log.i(TAG, "Recovering connection: "
+                        + intent.getStringExtra(BluetoothLeService.EXTRA_REASON));
+            } else if (BluetoothLeService.ACTION_GATT_RESCAN.equals(action)) {
+                rescan(intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS));
             } else if(BluetoothLeService.ACTION_DATA_NOTIFY.equals(action)) {
-                Log.i(TAG,"NOTIFY !");
+                // Traced by the service as EV_NOTIFY.
             }
 
             else if (BluetoothLeService.ACTION_DATA_WRITE_SUCCESS.equals(action)) {
@@ -288,7 +449,6 @@ public class BluetoothLE {
 //                    color_sensor0[i] = data[(i*2)+1]<<8 + data[i*2];
 //                    color_sensor1[i] = data[(i*2)+9]<<8 + data[i*2+8];
 
-                Log.i(TAG,"DATA_AVAILABLE !");
 
             }
             else{
@@ -299,9 +459,37 @@ public class BluetoothLE {
         }
     };
 
+    // The pod a connection broadcast is about; mDeviceAddress may already name the next one.
+    private String addressOf(Intent intent) {
+        String address = intent.getStringExtra(BluetoothLeService.EXTRA_ADDRESS);
+        return address != null ? address : mDeviceAddress;
+    }
+
     private void unbindBleService() {
+        mHandler.removeCallbacks(batchTick);
+        if (sampleBatcher != null) {
+            if (mBluetoothLeService != null) {
+                mBluetoothLeService.getPipeline().removeSink(sampleBatcher);
+                mBluetoothLeService.getPipeline().removeSink(samplePublisher);
+                if (fleetScheduler != null) {
+                    mBluetoothLeService.getPipeline().removeSink(fleetScheduler);
+                }
+            }
+            sampleBatcher.flush();
+            sampleBatcher = null;
+        }
+        if (sampleThread != null) {
+            sampleThread.quitSafely();
+            sampleThread = null;
+        }
+        bleScanner.setCapture(null);
+        if (mBluetoothLeService != null) {
+            // The warm-up binding keeps the service bound, so onUnbind() would not close it.
+            mBluetoothLeService.close();
+        }
         activity.unbindService(mServiceConnection);
         activity.unregisterReceiver(mGattUpdateReceiver);
+        mBluetoothLeService = null;
         deviceScanned = false;
     }
 
@@ -329,8 +517,314 @@ public class BluetoothLE {
         return mDeviceAddress;
     }
 
+    public void setAdaptiveRate(boolean enabled){
+        adaptiveRate = enabled;
+    }
+
+    public boolean getAdaptiveRate(){
+        return adaptiveRate;
+    }
+
+    /**
+     * Switches to a fixed sensor period and another pressure filter window; on a live session
+     * at once, without reconnecting or losing samples, otherwise from the next connection.
+     * The filter switch is immediate, the period follows when the sensor acknowledges the
+     * write; the service reports both latencies in dumpMetrics().
+     *
+     * @param period Sensor period in ms, or 0 for the adaptive rate (if enabled).
+     * @param filterSize Values in the trimmed mean filter window, at most
+     *                   SensorPipeline.MAX_FILTER_SIZE.
+     * @param filterSkip Values of the window dropped, half lowest and half highest.
+     */
+    public void reconfigure(int period, int filterSize, int filterSkip) {
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.getPipeline().edit().setFilter(filterSize, filterSkip).apply();
+            if (period > 0 || adaptiveRate) {
+                mBluetoothLeService.setSensorPeriod(period);
+            }
+        }
+        sensorPeriod = period;
+        this.filterSize = filterSize;
+        this.filterSkip = filterSkip;
+    }
+
+    public void setCapturePackets(boolean enabled){
+        capturePackets = enabled;
+    }
+
+    public boolean getCapturePackets(){
+        return capturePackets;
+    }
+
+    /**
+     * Selects where BluetoothListener.blePressureSamples() and bleMotionSamples() are called.
+     * Takes effect on the next connection.
+     *
+     * @param delivery One of DELIVERY_CALLBACK, DELIVERY_MAIN or DELIVERY_BACKGROUND.
+     * @param batchSize Number of samples per batch.
+     */
+    public void setSampleDelivery(int delivery, int batchSize){
+        sampleDelivery = delivery;
+        sampleBatchSize = batchSize;
+    }
+
+    /**
+     * Pressure samples of the current connection, reconnects included, with back-pressure.
+     * Subscriptions complete on bleDisconnect(); subscribe again afterwards, to the publisher
+     * returned then.
+     * Subscribers are drained on their own pool threads and never block the GATT callback;
+     * combine with SampleStream.window() and SampleStream.sample() for slower consumers.
+     */
+    public SamplePublisher getSamplePublisher(){
+        return samplePublisher;
+    }
+
+    /**
+     * Collects briefly from each of the given pods instead of connecting to the device name:
+     * scans, connects to the stalest pod in range, collects for a few seconds, disconnects and
+     * moves on. Runs until stopFleet() or bleDisconnect().
+     */
+    public void startFleet(Collection<String> addresses) {
+        // Connections and the advertisement collector must not feed the pipeline together.
+        stopBroadcast();
+        stopFleet();
+        fleetScheduler = new FleetScheduler(fleetRadio, 1);
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setAutoRecovery(false);
+        }
+        fleetScheduler.setTargets(addresses);
+        bleScanner.setScanListener(new BleScanner.ScanListener() {
+            @Override
+            public void onScanResult(String address, String name, int rssi, byte[] scanRecord) {
+                FleetScheduler scheduler = fleetScheduler;
+                if (scheduler != null) {
+                    scheduler.onScanResult(address, rssi, System.currentTimeMillis());
+                }
+            }
+        });
+        fleetScheduler.start(System.currentTimeMillis());
+        mHandler.postDelayed(fleetTick, FLEET_TICK);
+    }
+
+    public void stopFleet() {
+        if (fleetScheduler == null) {
+            return;
+        }
+        mHandler.removeCallbacks(fleetTick);
+        fleetScheduler.stop(System.currentTimeMillis());
+        Log.i(TAG, "Fleet: " + fleetScheduler.report());
+        bleScanner.setScanListener(null);
+        fleetScheduler = null;
+    }
+
+    /**
+     * Collects readings from the advertisements of the given pods, or of every pod in range if
+     * null, without connecting to any. Runs until stopBroadcast() or bleDisconnect().
+     *
+     * The collector feeds the service pipeline from the scan callback thread, which must not
+     * race the notifications of a connection, so this is refused while a pod is connected or
+     * being connected; call bleDisconnect() first.
+     *
+     * @return False if refused.
+     */
+    public boolean startBroadcast(Collection<String> addresses) {
+        // Bound outside broadcast mode means a connection, or a fleet round, is under way.
+        if (mConnected || (mBluetoothLeService != null && !broadcastMode)) {
+            Log.w(TAG, "Broadcast refused while connected");
+            return false;
+        }
+        stopFleet();
+        stopBroadcast();
+        broadcastMode = true;
+        broadcastAddresses = addresses;
+        if (mBluetoothLeService != null) {
+            attachCollector();
+        } else {
+            // The samples still go through the service pipeline, so bind it first.
+            Intent gattServiceIntent = new Intent(activity, BluetoothLeService.class);
+            activity.bindService(gattServiceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
+            activity.registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        }
+        return true;
+    }
+
+    public void stopBroadcast() {
+        if (!broadcastMode) {
+            return;
+        }
+        broadcastMode = false;
+        mHandler.removeCallbacks(broadcastRestart);
+        if (advertisementCollector != null) {
+            bleScanner.setScanListener(null);
+            bleScanner.stopScan();
+            Log.i(TAG, "Broadcast: " + advertisementCollector.report());
+            advertisementCollector = null;
+        }
+        if (mBluetoothLeService != null) {
+            unbindBleService();
+        }
+    }
+
+    private void attachCollector() {
+        advertisementCollector = new AdvertisementCollector(mBluetoothLeService.getPipeline());
+        advertisementCollector.setAddresses(broadcastAddresses);
+        bleScanner.setScanListener(advertisementCollector);
+        bleScanner.startScan();
+        mHandler.postDelayed(broadcastRestart, BROADCAST_RESTART);
+    }
+
+    private final Runnable broadcastRestart = new Runnable() {
+        @Override
+        public void run() {
+            if (advertisementCollector != null) {
+                Log.i(TAG, "Broadcast: " + advertisementCollector.report());
+                bleScanner.stopScan();
+                bleScanner.startScan();
+                mHandler.postDelayed(this, BROADCAST_RESTART);
+            }
+        }
+    };
+
+    public AdvertisementCollector getAdvertisementCollector() {
+        return advertisementCollector;
+    }
+
+    // Scans until the device being recovered shows up again, then lets the service connect.
+    private void rescan(final String address) {
+        if (address == null || fleetScheduler != null) {
+            return;
+        }
+        bleScanner.setScanListener(new BleScanner.ScanListener() {
+            @Override
+            public void onScanResult(String found, String name, int rssi, byte[] scanRecord) {
+                if (!address.equals(found)) {
+                    return;
+                }
+                bleScanner.setScanListener(null);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        bleScanner.stopScan();
+                        if (mBluetoothLeService != null) {
+                            mBluetoothLeService.onDeviceFound(address);
+                        }
+                    }
+                });
+            }
+        });
+        bleScanner.startScan();
+    }
+
+    /**
+     * @return Recent samples of every device, or null while the service is not bound.
+     */
+    public SampleHistory getSampleHistory() {
+        return mBluetoothLeService != null ? mBluetoothLeService.getSampleHistory() : null;
+    }
+
+    public FleetScheduler getFleetScheduler() {
+        return fleetScheduler;
+    }
+
+    /**
+     * Records the given pods into one session, see BluetoothLeService.startSession().
+     *
+     * @param offsets Clock offset in ms of each pod, or null for none.
+     * @return Return true if the session was started; false while the service is not bound.
+     */
+    public boolean startSession(String name, Collection<String> devices, Map<String, Long> offsets,
+                                TimeAligner.Listener listener) {
+        return mBluetoothLeService != null
+                && mBluetoothLeService.startSession(name, devices, offsets, listener);
+    }
+
+    public void stopSession() {
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.stopSession();
+        }
+    }
+
+    // Delivers the batch of a pod that went quiet once it is SAMPLE_MAX_DELAY old.
+    private final Runnable batchTick = new Runnable() {
+        @Override
+        public void run() {
+            if (sampleBatcher != null) {
+                sampleBatcher.flushStale(System.currentTimeMillis());
+                mHandler.postDelayed(this, SAMPLE_MAX_DELAY);
+            }
+        }
+    };
+
+    private final Runnable fleetTick = new Runnable() {
+        @Override
+        public void run() {
+            if (fleetScheduler != null) {
+                fleetScheduler.tick(System.currentTimeMillis());
+                mHandler.postDelayed(this, FLEET_TICK);
+            }
+        }
+    };
+
+    private final FleetScheduler.Radio fleetRadio = new FleetScheduler.Radio() {
+        @Override
+        public void startScan() {
+            bleScanner.startScan();
+        }
+
+        @Override
+        public void stopScan() {
+            bleScanner.stopScan();
+        }
+
+        @Override
+        public void connect(String address) {
+            mDeviceAddress = address;
+            deviceScanned = true;
+            if (mBluetoothLeService != null) {
+                // Still bound from the previous pod.
+                mBluetoothLeService.connect(address);
+            } else {
+                scanFound();
+            }
+        }
+
+        @Override
+        public void disconnect(String address) {
+            if (mBluetoothLeService != null) {
+                mBluetoothLeService.disconnect();
+            }
+        }
+    };
+
+    private Executor getSampleExecutor() {
+        final Handler handler;
+        switch (sampleDelivery) {
+            case DELIVERY_MAIN:
+                handler = mHandler;
+                break;
+            case DELIVERY_BACKGROUND:
+                sampleThread = new HandlerThread("BleSamples");
+                sampleThread.start();
+                handler = new Handler(sampleThread.getLooper());
+                break;
+            default:
+                return null;
+        }
+        return new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                handler.post(r);
+            }
+        };
+    }
+
 	
 	public void bleConnect() {
+        if (broadcastMode) {
+            // The pipeline is fed by the advertisements; see startBroadcast().
+            Log.w(TAG, "Connect refused in broadcast mode");
+            return;
+        }
 		
 		// Ensures Bluetooth is enabled on the device.  If Bluetooth is not currently enabled,
         // fire an intent to display a dialog asking the user to grant permission to enable it.
@@ -348,6 +842,8 @@ public class BluetoothLE {
 	}
 
     public void bleDisconnect() {
+        stopFleet();
+        stopBroadcast();
         if(mBluetoothLeService != null) {
             mBluetoothLeService.disconnect();
         }
@@ -362,7 +858,26 @@ public class BluetoothLE {
         } else {
             mLEScanner.stopScan(mScanCallback);
         }*/
+        // Also ends a rescan of the recovery.
+        bleScanner.setScanListener(null);
         bleScanner.stopScan();
+        replaceSamplePublisher();
+    }
+
+    private void replaceSamplePublisher() {
+        SamplePublisher done = samplePublisher;
+        done.complete();
+        // The drains already scheduled still deliver onComplete, then the threads end.
+        publisherExecutor.shutdown();
+        publisherExecutor = Executors.newCachedThreadPool();
+        samplePublisher = new SamplePublisher(publisherExecutor);
+        if (mBluetoothLeService != null) {
+            SensorPipeline.Editor edit = mBluetoothLeService.getPipeline().edit().removeSink(done);
+            if (sampleBatcher != null) {
+                edit.addSink(samplePublisher);
+            }
+            edit.apply();
+        }
     }
 
     public void bleWriteState(byte state) {
@@ -375,6 +890,7 @@ public class BluetoothLE {
     }
 
     private void bleScan() {
+        StartupTimer.mark(StartupTimer.SCAN_STARTED);
         mHandler.postDelayed(mRunnable = new Runnable() {
             @Override
             public void run() {
@@ -405,6 +921,10 @@ public class BluetoothLE {
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_AVAILABLE);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_WRITE_SUCCESS);
         intentFilter.addAction(BluetoothLeService.ACTION_DATA_WRITE_FAIL);
+        intentFilter.addAction(BluetoothLeService.ACTION_SENSOR_ANOMALY);
+        intentFilter.addAction(BluetoothLeService.ACTION_SENSOR_RECOVERED);
+        intentFilter.addAction(BluetoothLeService.ACTION_GATT_RECOVERING);
+        intentFilter.addAction(BluetoothLeService.ACTION_GATT_RESCAN);
         return intentFilter;
     }
 
@@ -478,6 +998,7 @@ public class BluetoothLE {
     };*/
 
     public void scanFound() {
+        StartupTimer.mark(StartupTimer.DEVICE_FOUND);
         Intent gattServiceIntent = new Intent(activity, BluetoothLeService.class);
 
         activity.bindService(gattServiceIntent, mServiceConnection, Context.BIND_AUTO_CREATE);
@@ -30,19 +30,25 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.lang.reflect.Method;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -52,11 +58,6 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class BluetoothLeService extends Service {
     private final static String TAG = "BluetoothLeService";
 
-    int MAX_SIZE = 12;
-    int SKIP_NUM = 4;
-    int currentI = 0;
-    double [] buffer = new double[MAX_SIZE];
-
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
@@ -87,6 +88,19 @@ public class BluetoothLeService extends Service {
     public final static String EXTRA_UUID = "com.example.bluetooth.le.EXTRA_UUID";
     public final static String EXTRA_STATUS = "com.example.bluetooth.le.EXTRA_STATUS";
     public final static String EXTRA_ADDRESS = "com.example.bluetooth.le.EXTRA_ADDRESS";
+    public final static String EXTRA_SCORE = "com.example.bluetooth.le.EXTRA_SCORE";
+    public final static String EXTRA_REASON = "com.example.bluetooth.le.EXTRA_REASON";
+
+    public final static String ACTION_SENSOR_ANOMALY =
+            "com.example.bluetooth.le.ACTION_SENSOR_ANOMALY";
+    public final static String ACTION_SENSOR_RECOVERED =
+            "com.example.bluetooth.le.ACTION_SENSOR_RECOVERED";
+    // The connection failed and is being recovered; EXTRA_STATUS and EXTRA_REASON say why.
+    public final static String ACTION_GATT_RECOVERING =
+            "com.example.bluetooth.le.ACTION_GATT_RECOVERING";
+    // Recovery needs a fresh scan; call onDeviceFound() when EXTRA_ADDRESS is seen again.
+    public final static String ACTION_GATT_RESCAN =
+            "com.example.bluetooth.le.ACTION_GATT_RESCAN";
 
 
     public static String HEART_RATE_MEASUREMENT = "00002a37-0000-1000-8000-00805f9b34fb";
@@ -94,43 +108,184 @@ public class BluetoothLeService extends Service {
     public final static UUID UUID_HEART_RATE_MEASUREMENT = UUID.fromString(HEART_RATE_MEASUREMENT);
 
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-    public static final UUID UUID_MOV_DATA = UUID.fromString("f000aa81-0451-4000-b000-000000000000");
-    public static final UUID UUID_ACC_DATA = UUID.fromString("f000aa11-0451-4000-b000-000000000000");
+    public static final UUID UUID_MOV_DATA = SensorPipeline.UUID_MOV_DATA;
+    public static final UUID UUID_ACC_DATA = SensorPipeline.UUID_ACC_DATA;
 
     private static final Queue<Object> sWriteQueue = new ConcurrentLinkedQueue<Object>();
     private static boolean sIsWriting = false;
 
+    private AdaptiveRateController mRateController;
+    private BluetoothGattCharacteristic mPeriodCharacteristic;
+    // Period set by setSensorPeriod() in place of the controller, or 0
+    private int mFixedPeriod = 0;
+    // System.nanoTime() of a setSensorPeriod() not yet acknowledged, or 0, and its register value
+    private long mPeriodRequestedAt = 0;
+    private byte mPeriodRequested;
+    // Register value of the period write on the air; the characteristic may hold a newer one.
+    private byte mPeriodInFlight;
+    private long mPeriodSwitches = 0;
+    private long mPeriodLatencyNanos = 0;
+    private long mMaxPeriodLatencyNanos = 0;
+
+    private PacketCapture mCapture;
+    private RecordingSession mSession;
+    private SampleLog mSampleLog;
+    // Set and cleared on mJournalExecutor; read by writeToFile on the binder thread
+    private volatile SampleJournal mJournal;
+    private boolean mJournalRequested = false;
+    // Opens and closes the journal: replay, zero fill and checkpoint syncs stay off the main thread.
+    private final ExecutorService mJournalExecutor = Executors.newSingleThreadExecutor();
+    private CalibrationStore mCalibrationStore;
+    private GattRegistry mGattRegistry;
+    private GattRegistry.DeviceLayout mLayout;
+    private PressureSketches mSketches;
+
+    private static final long RECOVERY_TICK = 250;
+    private final Handler mHandler = new Handler();
+    private boolean mAutoRecovery = true;
+    private final HashSet<UUID> mExpected = new HashSet<UUID>();
+
+    // Recovery acts on the current device through these.
+    private final GattRecovery.Transport mRecoveryTransport = new GattRecovery.Transport() {
+        @Override
+        public void connect(boolean recreate) {
+            if (recreate || mBluetoothGatt == null) {
+                closeGatt();
+                connectGatt(mBluetoothDeviceAddress);
+            } else {
+                mBluetoothGatt.connect();
+                mConnectionState = STATE_CONNECTING;
+            }
+        }
+
+        @Override
+        public boolean refreshCache() {
+            if (mGattRegistry != null) {
+                mGattRegistry.invalidate(mBluetoothDeviceAddress);
+            }
+            BluetoothGatt gatt = mBluetoothGatt;
+            if (gatt == null) {
+                return false;
+            }
+            // Hidden API: clears the service cache of the stack for this device.
+            try {
+                Method refresh = gatt.getClass().getMethod("refresh");
+                return (Boolean) refresh.invoke(gatt);
+            } catch (Exception e) {
+                Log.w(TAG, "BluetoothGatt.refresh() unavailable", e);
+                return false;
+            }
+        }
+
+        @Override
+        public void discoverServices() {
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.discoverServices();
+            }
+        }
+
+        @Override
+        public void rescan() {
+            closeGatt();
+            final Intent intent = new Intent(ACTION_GATT_RESCAN);
+            intent.putExtra(EXTRA_ADDRESS, mBluetoothDeviceAddress);
+            sendBroadcast(intent);
+        }
+
+        @Override
+        public void giveUp(int failureClass, int status) {
+            Log.w(TAG, "Recovery gave up after " + GattRecovery.className(failureClass)
+                    + ", status " + status + "\n" + mRecovery.report());
+            closeGatt();
+            final Intent intent = new Intent(ACTION_GATT_DISCONNECTED);
+            intent.putExtra(EXTRA_ADDRESS, mBluetoothDeviceAddress);
+            intent.putExtra(EXTRA_STATUS, status);
+            sendBroadcast(intent);
+        }
+    };
+
+    private final GattRecovery mRecovery = new GattRecovery(mRecoveryTransport);
+
+    private final Runnable mRecoveryTick = new Runnable() {
+        @Override
+        public void run() {
+            mRecovery.tick(System.currentTimeMillis());
+            if (mRecovery.isBusy()) {
+                mHandler.postDelayed(this, RECOVERY_TICK);
+            }
+        }
+    };
+
     // Implements callback methods for GATT events that the app cares about.  For example,
     // connection change and services discovered.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             String intentAction;
+            if (mBluetoothGatt != null && gatt != mBluetoothGatt) {
+                // Late callback of a BluetoothGatt closed by the recovery.
+                return;
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 intentAction = ACTION_GATT_CONNECTED;
                 mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
+                StartupTimer.mark(StartupTimer.CONNECTED);
+                broadcastUpdate(intentAction, gatt.getDevice().getAddress());
                 Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
+                if (mAutoRecovery) {
+                    // Starts service discovery.
+                    mRecovery.onConnectionStateChange(status, true, System.currentTimeMillis());
+                } else {
+                    // Attempts to discover services after successful connection.
+                    Log.i(TAG, "Attempting to start service discovery:" +
+                            mBluetoothGatt.discoverServices());
+                }
 
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 intentAction = ACTION_GATT_DISCONNECTED;
                 mConnectionState = STATE_DISCONNECTED;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                clearWrites();
+                Log.i(TAG, "Disconnected from GATT server, status " + status);
+                if (mAutoRecovery
+                        && mRecovery.onConnectionStateChange(status, false, System.currentTimeMillis())) {
+                    // Recovering, or given up and already reported.
+                    onRecoveryEvent(status, false);
+                    return;
+                }
+                Log.i(TAG, dumpMetrics());
+                broadcastUpdate(intentAction, gatt.getDevice().getAddress());
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            if (mBluetoothGatt != null && gatt != mBluetoothGatt) {
+                return;
+            }
+            boolean complete = false;
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                Log.i(TAG, "GATT services discovered.");
+                if (mGattRegistry != null) {
+                    mLayout = mGattRegistry.resolve(mBluetoothDeviceAddress, gatt);
+                    Log.i(TAG, "Resolved " + mLayout.size() + " characteristics"
+                            + (mLayout.fromCache ? " from cache" : ""));
+                }
+                complete = hasExpectedCharacteristics();
+                subscribeServiceChanged(gatt);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
             }
+            if (mAutoRecovery) {
+                mRecovery.onServicesDiscovered(status, complete, System.currentTimeMillis());
+                if (!complete) {
+                    onRecoveryEvent(status, true);
+                    return;
+                }
+            } else if (status != BluetoothGatt.GATT_SUCCESS) {
+                return;
+            }
+            StartupTimer.mark(StartupTimer.SERVICES_DISCOVERED);
+            broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED, gatt.getDevice().getAddress());
+            Log.i(TAG, "GATT services discovered.");
         }
 
         @Override
@@ -147,20 +302,30 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicChanged(BluetoothGatt gatt,
                                             BluetoothGattCharacteristic characteristic) {
             broadcastUpdate(ACTION_DATA_NOTIFY, characteristic);
-            Log.i(TAG, "Characteristic Changed Callback");
         }
 
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (characteristic == mPeriodCharacteristic) {
+                    onPeriodWritten();
+                }
                 broadcastUpdate(ACTION_DATA_WRITE_SUCCESS, characteristic);
-                Log.i(TAG, "Characteristic Write Callback");
+                Trace.event(Trace.EV_WRITE_DONE, shortUuid(characteristic.getUuid()), status);
                 sIsWriting = false;
                 nextWrite();
             }
             else {
                 broadcastUpdate(ACTION_DATA_WRITE_FAIL, characteristic);
+                Trace.event(Trace.EV_WRITE_DONE, shortUuid(characteristic.getUuid()), status);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mHealth.onRssi(mBluetoothDeviceAddress, rssi);
             }
         }
 
@@ -173,139 +338,216 @@ public class BluetoothLeService extends Service {
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt,
                                       BluetoothGattDescriptor descriptor, int status) {
-            Log.i(TAG, "Descriptor Write Callback");
+            Trace.event(Trace.EV_WRITE_DONE, shortUuid(descriptor.getUuid()), status);
             sIsWriting = false;
             nextWrite();
         }
     };
 
+    // Asks for Service Changed indications, so a firmware update of the device drops the
+    // stored layout. Devices without a Generic Attribute service simply never send one.
+    private void subscribeServiceChanged(BluetoothGatt gatt) {
+        BluetoothGattCharacteristic c = mLayout != null ? mLayout.get(GattRegistry.UUID_SERVICE_CHANGED) : null;
+        if (c == null) {
+            BluetoothGattService s = gatt.getService(GattRegistry.UUID_GENERIC_ATTRIBUTE);
+            c = s != null ? s.getCharacteristic(GattRegistry.UUID_SERVICE_CHANGED) : null;
+        }
+        if (c == null) {
+            return;
+        }
+        BluetoothGattDescriptor clientConfig = c.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (clientConfig == null || !gatt.setCharacteristicNotification(c, true)) {
+            return;
+        }
+        clientConfig.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        write(clientConfig);
+    }
+
     private void broadcastUpdate(final String action) {
     	
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
     }
 
+    // Connection changes name their device, which may no longer be the current one.
+    private void broadcastUpdate(final String action, String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_ADDRESS, address);
+        sendBroadcast(intent);
+    }
+
     private void broadcastUpdate(final String action,
                                  final BluetoothGattCharacteristic characteristic) {
         final Intent intent = new Intent(action);
 
-        // This is special handling for the Heart Rate Measurement profile.  Data parsing is
-        // carried out as per profile specifications:
-        // http://developer.bluetooth.org/gatt/characteristics/Pages/CharacteristicViewer.aspx?u=org.bluetooth.characteristic.heart_rate_measurement.xml
-        if (UUID_MOV_DATA.equals(characteristic.getUuid()))
-        {
-            byte[] raw_value = characteristic.getValue();
-            Point3D v;
-
-            //ACC
-            float SCALE = (float) 4096.0;
-            int x = (raw_value[7]<<8) + raw_value[6];
-            int y = (raw_value[9]<<8) + raw_value[8];
-            int z = (raw_value[11]<<8) + raw_value[10];
-            v = new Point3D(((x / SCALE) * -1), y / SCALE, ((z / SCALE)*-1));
-            Log.i( TAG, String.format("X:%.2fG, Y:%.2fG, Z:%.2fG", v.x, v.y, v.z));
-
-            //GYRO
-            SCALE = (float) 128.0;
-            x = (raw_value[1]<<8) + raw_value[0];
-            y = (raw_value[3]<<8) + raw_value[2];
-            z = (raw_value[5]<<8) + raw_value[4];
-            v = new Point3D(x / SCALE, y / SCALE, z / SCALE);
-            Log.i( TAG, String.format("X:%.2f°/s, Y:%.2f°/s, Z:%.2f°/s", v.x, v.y, v.z));
-
-            //MAG
-            SCALE = (float) (32768 / 4912);
-            if (raw_value.length >= 18) {
-                x = (raw_value[13]<<8) + raw_value[12];
-                y = (raw_value[15]<<8) + raw_value[14];
-                z = (raw_value[17]<<8) + raw_value[16];
-                v = new Point3D(x / SCALE, y / SCALE, z / SCALE);
+        final int decoder = mLayout != null ? mLayout.decoderFor(characteristic)
+                : SensorPipeline.decoderFor(characteristic.getUuid());
+        if (decoder == SensorPipeline.DECODER_NONE
+                && GattRegistry.UUID_SERVICE_CHANGED.equals(characteristic.getUuid())) {
+            // The device changed its attribute table, so the stored layout is stale.
+            Log.i(TAG, "Service changed, discovering services again");
+            mLayout = null;
+            if (mGattRegistry != null) {
+                mGattRegistry.invalidate(mBluetoothDeviceAddress);
+            }
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.discoverServices();
             }
-            else
-                v =  new Point3D(0,0,0);
-            Log.i( TAG, String.format("X:%.2fuT, Y:%.2fuT, Z:%.2fuT", v.x, v.y, v.z));
         }
 
-        if (UUID_ACC_DATA.equals(characteristic.getUuid()))
-        {
-            byte[] raw_value = characteristic.getValue();
-            Log.i( TAG, "size: " + raw_value.length);
-            Log.i( TAG, "raw_value[0]: " + raw_value[0] + ",raw_value[1] "+raw_value[1] + ",raw_value[2] " +raw_value[2] );
-            Log.i( TAG, "raw_value[3]: " + raw_value[3] + ",raw_value[4] "+raw_value[4] + ",raw_value[5] " +raw_value[5] );
+        final byte[] raw_value = characteristic.getValue();
+        final long now = System.currentTimeMillis();
+        Trace.event(Trace.EV_NOTIFY, Trace.address(mBluetoothDeviceAddress), decoder, raw_value.length);
+        if (mCapture != null) {
+            try {
+                mCapture.append(now, characteristic.getUuid(), mBluetoothDeviceAddress, raw_value);
+            } catch (IOException e) {
+                Log.e(TAG, "Packet capture failed, stopping capture", e);
+                stopCapture();
+            }
+        }
+        mPipeline.process(mBluetoothDeviceAddress, decoder, raw_value, now);
 
-            float pressure_mbar = -1;
-            if(raw_value[2] == -1 && raw_value[4] == -1 && raw_value[5] ==-1)
-            {
+        // RSSI feeds the link trend of the health monitor.
+        if (now - mLastRssiRequest > RSSI_INTERVAL && mBluetoothGatt != null) {
+            mLastRssiRequest = now;
+            mBluetoothGatt.readRemoteRssi();
+        }
 
+        sendBroadcast(intent);
+    }
+
+    private final SensorPipeline.Sink mPipelineSink = new SensorPipeline.Sink() {
+        @Override
+        public void onPressure(String address, long timestamp, int raw, float mbar) {
+            if (!mFirstSample) {
+                mFirstSample = true;
+                StartupTimer.mark(StartupTimer.FIRST_SAMPLE);
+                Log.i(TAG, StartupTimer.report());
             }
-            else {
-                //Integer x = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT8, 0);
-                //Integer y = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT8, 1);
-                //Integer z = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_SINT8, 2) * -1;
-                int pressure = 0;
-                int convert_H = ((int) raw_value[5]) << 16;
-                int convert_L = ((int) raw_value[4]) << 8;
-                int convert_XL = ((int) raw_value[2]);
-
-                //if ((convert_XL & (int) 0x00000080) != 0) {
-                //    convert_XL &= 0x0000007F;
-                //}
-
-                convert_H = convert_H & 0x00FF0000;
-                convert_L = convert_L & 0x0000FF00;
-                convert_XL = convert_XL & 0x000000FF;
-
-                pressure = convert_H  | convert_L | convert_XL;
-                Log.i(TAG, "5: " + raw_value[5] + ", convert: " + convert_H);
-                Log.i(TAG, "4: " + raw_value[4] + ", convert: " + convert_L);
-                Log.i(TAG, "2: " + raw_value[2] + ", convert: " + convert_XL);
-
-
-                //convert the 2's complement 24 bit to 2's complement 32 bit
-                if ((pressure & (int) 0x00800000) != 0) {
-                    pressure |= 0xFF000000;
-                }
+            Trace.event(Trace.EV_PRESSURE, Trace.address(address), raw, Trace.floatBits(mbar));
+            writeToFile(address, timestamp, raw, mbar);
+
+            if (mRateController != null && mPeriodCharacteristic != null && mFixedPeriod == 0
+                    && mRateController.onSample(mbar, timestamp)) {
+                writePeriod(mRateController.getPeriod());
+                Trace.event(Trace.EV_RATE_CHANGE, mRateController.getPeriod());
+                Log.i(TAG, "Adaptive rate: " + mRateController.report());
+            }
+        }
 
-                Log.i("pre_raw", "pressure: " + pressure);
-                writeToFile(String.valueOf(pressure));
-                buffer[currentI] = (double) pressure;
-                currentI = (currentI + 1) % MAX_SIZE;
-
-                double total_amount = 0;
-                double min_value = 5000000.0, max_value = 0;
-                int minI = 0, maxI= 0;
-                int preMinI = 0, preMaxI = 0;
-                for(int i=0;i<MAX_SIZE;i++) {
-                    total_amount = total_amount + buffer[i];
-                    if(buffer[i] < min_value) {
-                        preMinI = minI;
-                        minI = i;
-                        min_value = buffer[i];
-                    }
-                    if(buffer[i] > max_value) {
-                        preMaxI = maxI;
-                        maxI = i;
-                        max_value = buffer[i];
-                    }
-                }
+        @Override
+        public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+            Trace.event(Trace.EV_INVALID_FRAME, Trace.address(address));
+        }
 
-                total_amount = total_amount - buffer[minI] - buffer[maxI] - buffer[preMinI] - buffer[preMaxI];
+        @Override
+        public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+            if (Trace.isEnabled(Trace.EV_ACC)) {
+                Trace.event(Trace.EV_ACC, Trace.floatBits(acc.x), Trace.floatBits(acc.y), Trace.floatBits(acc.z));
+                Trace.event(Trace.EV_GYRO, Trace.floatBits(gyro.x), Trace.floatBits(gyro.y), Trace.floatBits(gyro.z));
+                Trace.event(Trace.EV_MAG, Trace.floatBits(mag.x), Trace.floatBits(mag.y), Trace.floatBits(mag.z));
+            }
+        }
+    };
 
-                Log.i("pre_raw_avg", "avg: " + (total_amount/ (MAX_SIZE-SKIP_NUM)));
+    private final SensorPipeline mPipeline = new SensorPipeline(mPipelineSink);
+    private final FusionStage mFusion = new FusionStage();
+    private final HealthMonitor mHealth = new HealthMonitor();
+    private final SampleHistory mHistory = new SampleHistory();
+    private long mLastRssiRequest = 0;
+    private boolean mFirstSample = false;
+    private static final long RSSI_INTERVAL = 5000;
+
+    {
+        mPipeline.addSink(mFusion);
+        mPipeline.addSink(mHealth);
+        mPipeline.addSink(mHistory);
+        mHealth.setListener(new HealthMonitor.Listener() {
+            @Override
+            public void onAnomaly(DeviceHealth health) {
+                Log.w(TAG, "Sensor anomaly: " + health);
+                final Intent intent = new Intent(ACTION_SENSOR_ANOMALY);
+                intent.putExtra(EXTRA_ADDRESS, health.address);
+                intent.putExtra(EXTRA_SCORE, health.score);
+                intent.putExtra(EXTRA_REASON, health.reason);
+                sendBroadcast(intent);
+            }
 
-                //Calculate Pressure in mbar
-                pressure_mbar = (float) total_amount / 4096.0f;
+            @Override
+            public void onRecovered(DeviceHealth health) {
+                Log.i(TAG, "Sensor recovered: " + health);
+                final Intent intent = new Intent(ACTION_SENSOR_RECOVERED);
+                intent.putExtra(EXTRA_ADDRESS, health.address);
+                intent.putExtra(EXTRA_SCORE, health.score);
+                sendBroadcast(intent);
             }
-            Log.i( TAG, "pressure_mbar: " + pressure_mbar);
+        });
+    }
+
+    /**
+     * @return The pipeline every notification goes through; add sinks to receive samples.
+     */
+    public SensorPipeline getPipeline() {
+        return mPipeline;
+    }
 
-            //double scaledX = x / 64.0;
-            //double scaledY = y / 64.0;
-            //double scaledZ = z / 64.0;
+    public HealthMonitor getHealthMonitor() {
+        return mHealth;
+    }
 
-            //Log.i( TAG, String.format("11 X:%.2fuT, Y:%.2fuT, Z:%.2fuT", scaledX, scaledY, scaledZ));
+    /**
+     * @return Recent pressure samples of every device; read them through a cursor of the
+     * device's ring.
+     */
+    public SampleHistory getSampleHistory() {
+        return mHistory;
+    }
+
+    /**
+     * @return Hourly pressure distributions per device, null before {@link #initialize()}.
+     */
+    public PressureSketches getPressureSketches() {
+        return mSketches;
+    }
+
+    /**
+     * @return Text report of the adaptive rate, fusion, per-device health, recovery and
+     * reconfiguration statistics.
+     */
+    public String dumpMetrics() {
+        StringBuilder sb = new StringBuilder("Metrics\n");
+        if (mFixedPeriod > 0) {
+            sb.append("Fixed period: ").append(mFixedPeriod).append("ms\n");
+        } else if (mRateController != null) {
+            sb.append("Adaptive rate: ").append(mRateController.report()).append('\n');
         }
+        sb.append("Fusion:\n").append(mFusion.report());
+        sb.append("Health:\n").append(mHealth.report());
+        sb.append("Recovery: ").append(mRecovery.report());
+        sb.append("\nPipeline: ").append(mPipeline.report());
+        synchronized (this) {
+            sb.append(String.format(Locale.US,
+                    "\nPeriod switches: %d, acknowledged after %.1f ms avg, %.1f ms max",
+                    mPeriodSwitches,
+                    mPeriodSwitches > 0 ? mPeriodLatencyNanos / 1e6 / mPeriodSwitches : 0.0,
+                    mMaxPeriodLatencyNanos / 1e6));
+        }
+        if (mSketches != null) {
+            sb.append("\nPressure sketches stored: ").append(mSketches.getWrittenCount());
+        }
+        SampleJournal journal = mJournal;
+        if (journal != null) {
+            sb.append("\nSample journal: ").append(journal.report());
+        }
+        return sb.toString();
+    }
 
-        sendBroadcast(intent);
+    /**
+     * @return Attitude, linear acceleration and heading estimated from the motion stream.
+     */
+    public FusionStage getFusionStage() {
+        return mFusion;
     }
 
     public class LocalBinder extends Binder {
@@ -325,9 +567,25 @@ public class BluetoothLeService extends Service {
         // such that resources are cleaned up properly.  In this particular example, close() is
         // invoked when the UI is disconnected from the Service.
         close();
+        // Sessions span reconnects and devices, so they only end with the UI.
+        stopSession();
         return super.onUnbind(intent);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mSketches != null) {
+            mSketches.close();
+        }
+        if (mJournalRequested) {
+            mJournalRequested = false;
+            mJournalExecutor.execute(mCloseJournal);
+        }
+        // Runs the close already queued, then the thread ends.
+        mJournalExecutor.shutdown();
+    }
+
     private final IBinder mBinder = new LocalBinder();
 
     /**
@@ -335,7 +593,7 @@ public class BluetoothLeService extends Service {
      *
      * @return Return true if the initialization is successful.
      */
-    public boolean initialize() {
+    public synchronized boolean initialize() {
         // For API level 18 and above, get a reference to BluetoothAdapter through
         // BluetoothManager.
         if (mBluetoothManager == null) {
@@ -352,9 +610,46 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        if (mCalibrationStore == null) {
+            mCalibrationStore = new CalibrationStore(MainStorage.getMainStorageDirectory());
+            mPipeline.setCalibrationStore(mCalibrationStore);
+        }
+        if (mGattRegistry == null) {
+            mGattRegistry = new GattRegistry(MainStorage.getMainStorageDirectory());
+        }
+        if (mSketches == null) {
+            mSketches = new PressureSketches(MainStorage.getMainStorageDirectory());
+            mPipeline.addSink(mSketches);
+        }
+        if (!mJournalRequested) {
+            mJournalRequested = true;
+            mJournalExecutor.execute(mOpenJournal);
+        }
+
+        StartupTimer.mark(StartupTimer.SERVICE_INITIALIZED);
         return true;
     }
 
+    /**
+     * Reads the stored GATT layouts and the calibration of every known device ahead of the
+     * first connection. Call after {@link #initialize()}; safe on a background thread.
+     */
+    public void preload() {
+        GattRegistry registry;
+        CalibrationStore calibrations;
+        synchronized (this) {
+            registry = mGattRegistry;
+            calibrations = mCalibrationStore;
+        }
+        if (registry == null || calibrations == null) {
+            return;
+        }
+        registry.preload();
+        StartupTimer.mark(StartupTimer.LAYOUTS_PRELOADED);
+        calibrations.preload(registry.getKnownAddresses());
+        StartupTimer.mark(StartupTimer.CALIBRATION_PRELOADED);
+    }
+
     /**
      * Connects to the GATT server hosted on the Bluetooth LE device.
      *
@@ -377,17 +672,31 @@ public class BluetoothLeService extends Service {
             Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
             if (mBluetoothGatt.connect()) {
                 mConnectionState = STATE_CONNECTING;
+                startRecovery();
                 return true;
             } else {
                 return false;
             }
         }
 
+        if (!connectGatt(address)) {
+            return false;
+        }
+        startRecovery();
+        return true;
+    }
+
+    private boolean connectGatt(String address) {
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
         if (device == null) {
             Log.w(TAG, "Device not found.  Unable to connect.");
             return false;
         }
+        // A client still open for another device would keep its link, and its callbacks would
+        // be taken for the new device's.
+        if (mBluetoothGatt != null && !address.equals(mBluetoothDeviceAddress)) {
+            closeGatt();
+        }
         // We want to directly connect to the device, so we are setting the autoConnect
         // parameter to false.
 
@@ -399,6 +708,86 @@ public class BluetoothLeService extends Service {
         return true;
     }
 
+    // Watches the new connection attempt so a failure or a hang is recovered.
+    private void startRecovery() {
+        if (mAutoRecovery) {
+            mRecovery.onConnectRequested(System.currentTimeMillis());
+            mHandler.removeCallbacks(mRecoveryTick);
+            mHandler.postDelayed(mRecoveryTick, RECOVERY_TICK);
+        }
+    }
+
+    // Tells the app and keeps the recovery actions running.
+    private void onRecoveryEvent(int status, boolean discovery) {
+        if (!mRecovery.isRecovering()) {
+            return;
+        }
+        Log.w(TAG, "Recovering from " + GattRecovery.className(GattRecovery.classify(status, discovery))
+                + ", status " + status);
+        final Intent intent = new Intent(ACTION_GATT_RECOVERING);
+        intent.putExtra(EXTRA_ADDRESS, mBluetoothDeviceAddress);
+        intent.putExtra(EXTRA_STATUS, status);
+        intent.putExtra(EXTRA_REASON, GattRecovery.className(GattRecovery.classify(status, discovery)));
+        sendBroadcast(intent);
+        mHandler.removeCallbacks(mRecoveryTick);
+        mHandler.post(mRecoveryTick);
+    }
+
+    /**
+     * Reports the device seen again after {@link #ACTION_GATT_RESCAN}.
+     */
+    public void onDeviceFound(String address) {
+        if (address != null && address.equals(mBluetoothDeviceAddress)) {
+            mRecovery.onDeviceFound(System.currentTimeMillis());
+            mHandler.removeCallbacks(mRecoveryTick);
+            mHandler.post(mRecoveryTick);
+        }
+    }
+
+    /**
+     * Turns recovery from connection errors on or off. Off for callers that handle failed
+     * connections themselves, e.g. the fleet scheduler; every disconnect is then reported.
+     */
+    public void setAutoRecovery(boolean enabled) {
+        mAutoRecovery = enabled;
+        if (!enabled) {
+            mRecovery.reset(System.currentTimeMillis());
+            mHandler.removeCallbacks(mRecoveryTick);
+        }
+    }
+
+    /**
+     * Characteristics the app needs. A discovery that does not find all of them is treated as a
+     * stale service cache and recovered.
+     */
+    public void setExpectedCharacteristics(Collection<UUID> uuids) {
+        synchronized (mExpected) {
+            mExpected.clear();
+            mExpected.addAll(uuids);
+        }
+    }
+
+    private boolean hasExpectedCharacteristics() {
+        synchronized (mExpected) {
+            if (mExpected.isEmpty()) {
+                return true;
+            }
+            if (mLayout == null) {
+                return false;
+            }
+            for (UUID uuid : mExpected) {
+                if (mLayout.get(uuid) == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public GattRecovery getGattRecovery() {
+        return mRecovery;
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
@@ -410,6 +799,7 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        mRecovery.onDisconnectRequested(System.currentTimeMillis());
         mBluetoothGatt.disconnect();
     }
 
@@ -418,11 +808,65 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
+        stopCapture();
+        if (mSketches != null) {
+            mSketches.flush();
+        }
+        if (mJournalRequested) {
+            mJournalRequested = false;
+            mJournalExecutor.execute(mCloseJournal);
+        }
+        mRecovery.reset(System.currentTimeMillis());
+        mHandler.removeCallbacks(mRecoveryTick);
+        closeGatt();
+    }
+
+    // Until the journal is open, and after it is closed, samples go to the logs line by line.
+    private final Runnable mOpenJournal = new Runnable() {
+        @Override
+        public void run() {
+            if (mJournal != null) {
+                return;
+            }
+            try {
+                SampleJournal journal = new SampleJournal(MainStorage.getMainStorageDirectory());
+                if (journal.getRecoveredCount() > 0) {
+                    Log.i(TAG, "Sample journal: " + journal.report());
+                }
+                mJournal = journal;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the sample journal", e);
+            }
+        }
+    };
+
+    private final Runnable mCloseJournal = new Runnable() {
+        @Override
+        public void run() {
+            SampleJournal journal = mJournal;
+            if (journal != null) {
+                // Commits what it took; the samples it refuses meanwhile go to the logs.
+                journal.close();
+            }
+            mJournal = null;
+        }
+    };
+
+    private void closeGatt() {
         if (mBluetoothGatt == null) {
             return;
         }
         mBluetoothGatt.close();
         mBluetoothGatt = null;
+        mLayout = null;
+        mConnectionState = STATE_DISCONNECTED;
+        clearWrites();
+    }
+
+    // A write in flight when the link went down never completes.
+    private synchronized void clearWrites() {
+        sWriteQueue.clear();
+        sIsWriting = false;
     }
 
     /**
@@ -473,6 +917,102 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    /**
+     * Stores a new calibration profile for the device and applies it from the next sample on.
+     *
+     * @return Return true if the profile was saved.
+     */
+    public boolean setCalibration(String address, CalibrationProfile profile) {
+        if (mCalibrationStore == null) {
+            Log.w(TAG, "Calibration store not initialized");
+            return false;
+        }
+        try {
+            mCalibrationStore.put(address, profile);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save calibration of " + address, e);
+            return false;
+        }
+        mPipeline.reloadCalibration();
+        return true;
+    }
+
+    /**
+     * Applies the temperature compensation of the device's calibration for the given
+     * temperature, in degree C, from the next sample on.
+     */
+    public void setTemperature(String address, double temperature) {
+        mPipeline.setTemperature(address, temperature);
+    }
+
+    /**
+     * Lets the given controller drive the sensor period from the filtered pressure values.
+     * Period changes are written through the same queue as every other GATT write.
+     *
+     * @param periodCharacteristic The period characteristic of the data service.
+     * @param controller The controller to feed, or null to keep the current period.
+     */
+    public synchronized void setRateController(BluetoothGattCharacteristic periodCharacteristic,
+                                               AdaptiveRateController controller) {
+        mPeriodCharacteristic = periodCharacteristic;
+        mRateController = controller;
+        mFixedPeriod = 0;
+        mPeriodRequestedAt = 0;
+    }
+
+    public AdaptiveRateController getRateController() {
+        return mRateController;
+    }
+
+    /**
+     * Writes a fixed sensor period on the live connection; the adaptive rate controller is
+     * suspended until a period of 0 hands the period back to it. Set the characteristic with
+     * {@link #setRateController} first.
+     *
+     * @param period Period in ms, between AdaptiveRateController.MIN_PERIOD and MAX_PERIOD, or
+     *               0 for the adaptive rate, with a new controller if none was set.
+     */
+    public synchronized void setSensorPeriod(int period) {
+        if (mPeriodCharacteristic == null) {
+            Log.w(TAG, "No period characteristic to write");
+            return;
+        }
+        if (period > 0) {
+            mFixedPeriod = Math.max(AdaptiveRateController.MIN_PERIOD,
+                    Math.min(AdaptiveRateController.MAX_PERIOD, period));
+            period = mFixedPeriod;
+        } else {
+            if (mRateController == null) {
+                mRateController = new AdaptiveRateController();
+            }
+            mFixedPeriod = 0;
+            period = mRateController.getPeriod();
+        }
+        mPeriodRequested = AdaptiveRateController.periodToRegister(period);
+        mPeriodRequestedAt = System.nanoTime();
+        writePeriod(period);
+    }
+
+    private synchronized void onPeriodWritten() {
+        // The ack of an earlier write still on the air does not count for the request.
+        if (mPeriodRequestedAt == 0 || mPeriodInFlight != mPeriodRequested) {
+            return;
+        }
+        long latency = System.nanoTime() - mPeriodRequestedAt;
+        mPeriodRequestedAt = 0;
+        mPeriodSwitches++;
+        mPeriodLatencyNanos += latency;
+        mMaxPeriodLatencyNanos = Math.max(mMaxPeriodLatencyNanos, latency);
+    }
+
+    private synchronized void writePeriod(int period) {
+        mPeriodCharacteristic.setValue(new byte[]{AdaptiveRateController.periodToRegister(period)});
+        // A period write still waiting in the queue picks up the new value, no need for another.
+        if (!sWriteQueue.contains(mPeriodCharacteristic)) {
+            write(mPeriodCharacteristic);
+        }
+    }
+
     /**
      * Enables or disables notification on a give characteristic.
      *
@@ -488,6 +1028,16 @@ public class BluetoothLeService extends Service {
         Log.i(TAG, "set Characteristic Notification");
     }
 
+    /**
+     * Characteristics of the connected device by UUID. Valid after
+     * {@code BluetoothGatt#discoverServices()} completes successfully.
+     *
+     * @return The layout, or null before discovery.
+     */
+    public GattRegistry.DeviceLayout getDeviceLayout() {
+        return mLayout;
+    }
+
     /**
      * Retrieves a list of supported GATT services on the connected device. This should be
      * invoked only after {@code BluetoothGatt#discoverServices()} completes successfully.
@@ -523,18 +1073,25 @@ public class BluetoothLeService extends Service {
 
     private synchronized void doWrite(Object o)
     {
+        if (mBluetoothGatt == null) {
+            // Closed for recovery; the app writes its setup again after rediscovery.
+            return;
+        }
         if(o instanceof BluetoothGattCharacteristic)
         {
+            if (o == mPeriodCharacteristic) {
+                mPeriodInFlight = mPeriodCharacteristic.getValue()[0];
+            }
             sIsWriting = true;
             mBluetoothGatt.writeCharacteristic(
                     (BluetoothGattCharacteristic)o);
-            Log.i(TAG, "writeCharacteristic");
+            Trace.event(Trace.EV_WRITE, shortUuid(((BluetoothGattCharacteristic) o).getUuid()), 0);
         }
         else if(o instanceof BluetoothGattDescriptor)
         {
             sIsWriting = true;
             mBluetoothGatt.writeDescriptor((BluetoothGattDescriptor) o);
-            Log.i(TAG, "writeDescriptor");
+            Trace.event(Trace.EV_WRITE, shortUuid(((BluetoothGattDescriptor) o).getUuid()), 1);
         }
         else
         {
@@ -542,32 +1099,122 @@ public class BluetoothLeService extends Service {
         }
     }
 
-    private void writeToFile(String logMsg) {
-        // Write to files
-        File mainStorage = MainStorage.getMainStorageDirectory();
+    /**
+     * Starts recording raw notifications to a capture_yyyy-MM-dd_HHmmss.bin file in the main
+     * storage directory. Captures can be fed back through the pipeline with {@link PacketReplay}.
+     *
+     * @return Return true if the capture file was opened.
+     */
+    public boolean startCapture() {
+        if (mCapture != null) {
+            return true;
+        }
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HHmmss");
+        File file = new File(MainStorage.getMainStorageDirectory(),
+                "capture_" + df.format(Calendar.getInstance().getTime()) + ".bin");
         try {
-            Calendar cal = Calendar.getInstance();
-            cal.setTimeInMillis(System.currentTimeMillis());
-            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            String calString = df.format(cal.getTime());
+            mCapture = new PacketCapture(file);
+            Log.i(TAG, "Capturing packets to " + file.getAbsolutePath());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open capture file", e);
+            return false;
+        }
+    }
 
-            SimpleDateFormat nameDF = new SimpleDateFormat("yyyy-MM-dd");
+    /**
+     * @return The open capture, or null if not capturing.
+     */
+    public PacketCapture getCapture() {
+        return mCapture;
+    }
 
-            String fileName = "log_state_change_" + nameDF.format(cal.getTime()) + ".txt";
-            File logFile = new File(mainStorage, fileName);
-            FileOutputStream fOut = new FileOutputStream(new File(logFile.getAbsolutePath().toString()), true);
+    public void stopCapture() {
+        if (mCapture == null) {
+            return;
+        }
+        try {
+            mCapture.close();
+            Log.i(TAG, "Captured " + mCapture.getRecordCount() + " packets, dropped "
+                    + mCapture.getDroppedCount());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close capture file", e);
+        }
+        mCapture = null;
+    }
 
-            OutputStreamWriter osw = new OutputStreamWriter(fOut);
-            osw.write(calString + ", "
-                    + System.currentTimeMillis() + ", "
-                    + logMsg
-                    + "\n");
-            osw.flush();
-            osw.close();
+    /**
+     * Starts recording the pressure samples of the given devices into a
+     * session_&lt;name&gt; directory in the main storage directory, see {@link RecordingSession}.
+     *
+     * @param name     Session name, or null for the current date and time.
+     * @param devices  Addresses of the devices measuring the same rig.
+     * @param offsets  Clock offset in ms of each device, subtracted from its arrival times
+     *                 (e.g. measured with a common tap on all pods), or null for none.
+     * @param listener Receives the samples of all devices merged on one timeline while
+     *                 recording, or null.
+     * @return Return true if the session was started.
+     */
+    public boolean startSession(String name, Collection<String> devices, Map<String, Long> offsets,
+                                TimeAligner.Listener listener) {
+        stopSession();
+        if (name == null) {
+            name = new SimpleDateFormat("yyyy-MM-dd_HHmmss").format(Calendar.getInstance().getTime());
+        }
+        RecordingSession session = new RecordingSession(
+                new File(MainStorage.getMainStorageDirectory(), "session_" + name), name, devices);
+        if (offsets != null) {
+            for (Map.Entry<String, Long> e : offsets.entrySet()) {
+                session.setClockOffset(e.getKey(), e.getValue());
+            }
+        }
+        if (listener != null) {
+            session.setAligner(new TimeAligner(devices, SessionMerger.DEFAULT_LATENESS, listener));
+        }
+        try {
+            session.start(System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start session " + name, e);
+            return false;
+        }
+        mSession = session;
+        mPipeline.addSink(session);
+        Log.i(TAG, "Recording session to " + session.getDirectory().getAbsolutePath());
+        return true;
+    }
 
+    public void stopSession() {
+        if (mSession == null) {
+            return;
+        }
+        mPipeline.removeSink(mSession);
+        try {
+            mSession.stop(System.currentTimeMillis());
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(TAG, "Unable to close session", e);
+        }
+        mSession = null;
+    }
+
+    public RecordingSession getSession() {
+        return mSession;
+    }
+
+    // Leading 32 bits of the UUID, e.g. f000aa12 or 00002902, enough to tell them apart.
+    private static long shortUuid(UUID uuid) {
+        return uuid.getMostSignificantBits() >>> 32;
+    }
+
+    private void writeToFile(String address, long timeMillis, int raw, float mbar) {
+        SampleJournal journal = mJournal;
+        if (journal != null && journal.write(timeMillis, address, raw, mbar)) {
+            return;
+        }
+        // Write to files
+        if (mSampleLog == null) {
+            mSampleLog = new SampleLog(MainStorage.getMainStorageDirectory());
         }
+        mSampleLog.write(timeMillis, address, raw, mbar);
     }
 
 
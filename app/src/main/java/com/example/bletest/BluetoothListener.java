@@ -41,4 +41,20 @@ public interface BluetoothListener {
 
     /* Color sensor readings */
     void bleColorReadings(byte[] colorReadings);
+
+    /* Batch of pressure samples, delivered on the thread chosen with
+    BluetoothLE.setSampleDelivery(). The batch is reused after this call returns.
+     */
+    void blePressureSamples(PressureBatch batch);
+
+    /* Batch of IMU samples, same delivery rules as blePressureSamples() */
+    void bleMotionSamples(MotionBatch batch);
+
+    /* Sensor health score crossed the alarm threshold,
+    reason: one of the DeviceHealth.REASON_* strings
+     */
+    void bleSensorAnomaly(String address, double score, String reason);
+
+    /* Sensor health score is back below the clear threshold */
+    void bleSensorRecovered(String address);
 }
@@ -0,0 +1,165 @@
+package com.example.bletest;
+
+import java.util.Arrays;
+
+/**
+ * Converts the filtered raw pressure value of one device into mbar.
+ *
+ * A profile is either a polynomial in the filtered value or a lookup table with linear
+ * interpolation between its points. Temperature compensation (an offset and a relative gain
+ * per degree away from the reference temperature) is folded into the coefficients by
+ * {@link #atTemperature(double)}, so converting a sample only costs a few multiply-adds. The
+ * pods do not report temperature; {@link SensorPipeline#setTemperature(String, double)} takes
+ * it from the app.
+ *
+ * Profiles are immutable and shared between devices; the methods that change one return a
+ * copy.
+ */
+public abstract class CalibrationProfile {
+    /* The fixed conversion the app always used: filtered value / 4096 */
+    public static final CalibrationProfile DEFAULT = polynomial(0, 1 / 4096.0);
+
+    // Only set on fresh copies, before they are handed out.
+    double referenceTemperature = 25;
+    double offsetPerDegree = 0;
+    double gainPerDegree = 0;
+
+    /* Applied on top of the curve: mbar = gain * curve(x) + offset */
+    double gain = 1;
+    double offset = 0;
+
+    public static CalibrationProfile polynomial(double... coefficients) {
+        return new Polynomial(coefficients);
+    }
+
+    /**
+     * @param x Filtered values, strictly increasing.
+     * @param y Pressure in mbar at each x.
+     */
+    public static CalibrationProfile table(double[] x, double[] y) {
+        return new Table(x, y);
+    }
+
+    public abstract float apply(double x);
+
+    /**
+     * Converts count filtered values in a block, e.g. to re-apply a new calibration to stored
+     * data.
+     */
+    public void apply(double[] x, int offset, int count, float[] out) {
+        for (int i = 0; i < count; i++) {
+            out[i] = apply(x[offset + i]);
+        }
+    }
+
+    /**
+     * @return A copy of this profile with the given temperature compensation.
+     */
+    public CalibrationProfile withTemperatureCompensation(double referenceTemperature,
+                                                          double offsetPerDegree,
+                                                          double gainPerDegree) {
+        CalibrationProfile p = copy();
+        p.referenceTemperature = referenceTemperature;
+        p.offsetPerDegree = offsetPerDegree;
+        p.gainPerDegree = gainPerDegree;
+        return p;
+    }
+
+    /**
+     * @return A copy of this profile with the temperature compensation for t (in degree C)
+     *         folded in.
+     */
+    public CalibrationProfile atTemperature(double t) {
+        CalibrationProfile p = copy();
+        double dt = t - referenceTemperature;
+        p.gain = gain * (1 + gainPerDegree * dt);
+        p.offset = offset * (1 + gainPerDegree * dt) + offsetPerDegree * dt;
+        return p;
+    }
+
+    abstract CalibrationProfile copy();
+
+    CalibrationProfile copyCompensation(CalibrationProfile p) {
+        p.referenceTemperature = referenceTemperature;
+        p.offsetPerDegree = offsetPerDegree;
+        p.gainPerDegree = gainPerDegree;
+        p.gain = gain;
+        p.offset = offset;
+        return p;
+    }
+
+    static class Polynomial extends CalibrationProfile {
+        final double[] coefficients;
+
+        Polynomial(double[] coefficients) {
+            this.coefficients = coefficients.clone();
+        }
+
+        @Override
+        public float apply(double x) {
+            // Horner's scheme, highest order first.
+            double y = 0;
+            for (int i = coefficients.length - 1; i >= 0; i--) {
+                y = y * x + coefficients[i];
+            }
+            return (float) (gain * y + offset);
+        }
+
+        @Override
+        CalibrationProfile copy() {
+            return copyCompensation(new Polynomial(coefficients));
+        }
+
+        @Override
+        public String toString() {
+            return "polynomial " + Arrays.toString(coefficients);
+        }
+    }
+
+    static class Table extends CalibrationProfile {
+        final double[] x;
+        final double[] y;
+        // slope[i] of the segment between point i and i + 1
+        final double[] slope;
+
+        Table(double[] x, double[] y) {
+            if (x.length != y.length || x.length < 2) {
+                throw new IllegalArgumentException("Calibration table needs at least two points");
+            }
+            this.x = x.clone();
+            this.y = y.clone();
+            slope = new double[x.length - 1];
+            for (int i = 0; i < slope.length; i++) {
+                if (x[i + 1] <= x[i]) {
+                    throw new IllegalArgumentException("Calibration table x must be increasing");
+                }
+                slope[i] = (y[i + 1] - y[i]) / (x[i + 1] - x[i]);
+            }
+        }
+
+        @Override
+        public float apply(double value) {
+            // Values outside the table extrapolate along the first or last segment.
+            int i = Arrays.binarySearch(x, value);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            if (i < 0) {
+                i = 0;
+            } else if (i >= slope.length) {
+                i = slope.length - 1;
+            }
+            return (float) (gain * (y[i] + slope[i] * (value - x[i])) + offset);
+        }
+
+        @Override
+        CalibrationProfile copy() {
+            return copyCompensation(new Table(x, y));
+        }
+
+        @Override
+        public String toString() {
+            return "table of " + x.length + " points";
+        }
+    }
+}
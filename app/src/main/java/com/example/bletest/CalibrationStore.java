@@ -0,0 +1,143 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads calibration profiles from calibration_AABBCCDDEEFF.properties files and caches them
+ * by device address. Devices without a file use {@link CalibrationProfile#DEFAULT}.
+ *
+ * File keys:
+ * <pre>
+ * type=polynomial            (or table)
+ * coefficients=0,0.000244    (polynomial, lowest order first)
+ * x=...  y=...               (table, comma separated, x increasing)
+ * temp_ref=25  temp_offset=0  temp_gain=0
+ * </pre>
+ */
+public class CalibrationStore {
+    private final File directory;
+    private final ConcurrentHashMap<String, CalibrationProfile> cache =
+            new ConcurrentHashMap<String, CalibrationProfile>();
+
+    public CalibrationStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The profile of the device, loading it on first use.
+     */
+    public CalibrationProfile get(String address) {
+        if (address == null) {
+            return CalibrationProfile.DEFAULT;
+        }
+        CalibrationProfile profile = cache.get(address);
+        if (profile == null) {
+            profile = load(address);
+            cache.put(address, profile);
+        }
+        return profile;
+    }
+
+    /**
+     * Loads the profiles of all given devices ahead of their first sample.
+     */
+    public void preload(Iterable<String> addresses) {
+        for (String address : addresses) {
+            get(address);
+        }
+    }
+
+    /**
+     * Stores the profile for the device and replaces the cached one.
+     */
+    public void put(String address, CalibrationProfile profile) throws IOException {
+        Properties p = new Properties();
+        if (profile instanceof CalibrationProfile.Table) {
+            CalibrationProfile.Table t = (CalibrationProfile.Table) profile;
+            p.setProperty("type", "table");
+            p.setProperty("x", join(t.x));
+            p.setProperty("y", join(t.y));
+        } else {
+            p.setProperty("type", "polynomial");
+            p.setProperty("coefficients", join(((CalibrationProfile.Polynomial) profile).coefficients));
+        }
+        p.setProperty("temp_ref", String.valueOf(profile.referenceTemperature));
+        p.setProperty("temp_offset", String.valueOf(profile.offsetPerDegree));
+        p.setProperty("temp_gain", String.valueOf(profile.gainPerDegree));
+
+        OutputStream out = new FileOutputStream(fileFor(address));
+        try {
+            p.store(out, "Calibration of " + address);
+        } finally {
+            out.close();
+        }
+        cache.put(address, profile);
+    }
+
+    public void invalidate(String address) {
+        cache.remove(address);
+    }
+
+    File fileFor(String address) {
+        return new File(directory, "calibration_" + address.replace(":", "") + ".properties");
+    }
+
+    private CalibrationProfile load(String address) {
+        File file = fileFor(address);
+        if (!file.exists()) {
+            return CalibrationProfile.DEFAULT;
+        }
+        try {
+            Properties p = new Properties();
+            InputStream in = new FileInputStream(file);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            CalibrationProfile profile;
+            if ("table".equals(p.getProperty("type"))) {
+                profile = CalibrationProfile.table(parse(p.getProperty("x")), parse(p.getProperty("y")));
+            } else {
+                profile = CalibrationProfile.polynomial(parse(p.getProperty("coefficients")));
+            }
+            return profile.withTemperatureCompensation(
+                    Double.parseDouble(p.getProperty("temp_ref", "25")),
+                    Double.parseDouble(p.getProperty("temp_offset", "0")),
+                    Double.parseDouble(p.getProperty("temp_gain", "0")));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Malformed numbers or tables: fall back rather than break the sample path.
+            e.printStackTrace();
+        }
+        return CalibrationProfile.DEFAULT;
+    }
+
+    private static double[] parse(String list) {
+        String[] parts = list.split(",");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static String join(double[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+}
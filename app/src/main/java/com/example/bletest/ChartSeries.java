@@ -0,0 +1,186 @@
+package com.example.bletest;
+
+/**
+ * One device's line on {@link PressureChartView}, kept independent of Android so its cost can
+ * be measured on the JVM by the ChartBenchmark test tool.
+ *
+ * The chart sweeps: time t is drawn at x = (t mod window) scaled to the width, so new samples
+ * only add segments to the right of the last ones and nothing already drawn moves. New samples
+ * are read from the device's {@link SampleRing} and collected until they span a few pixels,
+ * then that stretch is reduced with {@link Lttb} to about one point per pixel column and
+ * emitted as line segments into a float buffer reused for every call.
+ */
+public class ChartSeries {
+    // Samples read from the ring per update() call
+    static final int CHUNK = 256;
+    // Samples further apart than this are not joined, e.g. across a reconnect. A few sample
+    // periods at the slowest rate the adaptive rate control sets.
+    private static final long MAX_GAP = 3 * AdaptiveRateController.MAX_PERIOD;
+
+    /**
+     * Maps time and pressure to view coordinates.
+     */
+    public static class Scale {
+        public long window = PressureChartView.DEFAULT_WINDOW;
+        public float left;
+        public float top;
+        public float width;
+        public float height;
+        public float yMin;
+        public float yMax;
+        // Pixels a stretch of samples spans before it is decimated and emitted
+        public float span = 2;
+
+        public float x(long t) {
+            return left + (float) (t % window) * width / window;
+        }
+
+        public float y(float value) {
+            return top + height - (value - yMin) * height / (yMax - yMin);
+        }
+    }
+
+    public final String address;
+    private final SampleRing ring;
+    private SampleRing.Cursor cursor;
+
+    private final long[] times = new long[CHUNK];
+    private final int[] raws = new int[CHUNK];
+    private final float[] values = new float[CHUNK];
+
+    // Samples not emitted yet; the first is the end of the last emitted segment, if any.
+    private final float[] pendingX = new float[CHUNK + 1];
+    private final float[] pendingY = new float[CHUNK + 1];
+    private int pending = 0;
+    private long lastTime = Long.MIN_VALUE;
+
+    private final float[] outX = new float[CHUNK + 1];
+    private final float[] outY = new float[CHUNK + 1];
+    // x0, y0, x1, y1 per segment, as Canvas.drawLines() takes them
+    private final float[] lines = new float[(CHUNK + 2) * 4];
+    private int lineCount = 0;
+
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+    private long samples = 0;
+    private long points = 0;
+
+    public ChartSeries(String address, SampleRing ring) {
+        this.address = address;
+        this.ring = ring;
+        cursor = ring.newCursor();
+    }
+
+    /**
+     * Starts over from the samples since the given time, e.g. after the scale changed and the
+     * chart was cleared.
+     */
+    public void reset(long sinceMillis) {
+        cursor = ring.newCursorSince(sinceMillis);
+        pending = 0;
+        lastTime = Long.MIN_VALUE;
+        min = Float.POSITIVE_INFINITY;
+        max = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Reads up to CHUNK new samples and leaves the segments ready to draw in {@link
+     * #getLines()}. Call until it returns 0 to catch up.
+     *
+     * @return Number of samples read.
+     */
+    public int update(Scale scale) {
+        lineCount = 0;
+        int n = cursor.poll(times, raws, values, 0, CHUNK);
+        for (int i = 0; i < n; i++) {
+            long t = times[i];
+            float v = values[i];
+            if (v < min) {
+                min = v;
+            }
+            if (v > max) {
+                max = v;
+            }
+            float x = scale.x(t);
+            if (pending > 0 && (x < pendingX[pending - 1] || t - lastTime > MAX_GAP)) {
+                // Wrapped around to the left edge, or a gap: end the line here.
+                flush(scale);
+                pending = 0;
+            }
+            pendingX[pending] = x;
+            pendingY[pending] = scale.y(v);
+            pending++;
+            lastTime = t;
+            if (pendingX[pending - 1] - pendingX[0] >= scale.span || pending == pendingX.length) {
+                flush(scale);
+            }
+        }
+        samples += n;
+        return n;
+    }
+
+    private void flush(Scale scale) {
+        if (pending < 2) {
+            return;
+        }
+        int threshold = (int) (pendingX[pending - 1] - pendingX[0]) + 1;
+        int m = Lttb.downsample(pendingX, pendingY, pending, Math.max(2, threshold), outX, outY);
+        for (int i = 0; i + 1 < m; i++) {
+            int k = lineCount * 4;
+            lines[k] = outX[i];
+            lines[k + 1] = outY[i];
+            lines[k + 2] = outX[i + 1];
+            lines[k + 3] = outY[i + 1];
+            lineCount++;
+        }
+        points += m - 1;
+        // The last point starts the next stretch.
+        pendingX[0] = pendingX[pending - 1];
+        pendingY[0] = pendingY[pending - 1];
+        pending = 1;
+    }
+
+    /**
+     * @return Samples written to the device's ring so far; unchanged means nothing new to draw.
+     */
+    public long getSequence() {
+        return ring.getSequence();
+    }
+
+    /**
+     * @return Segments of the last update(), valid until the next call.
+     */
+    public float[] getLines() {
+        return lines;
+    }
+
+    /**
+     * @return Number of floats (4 per segment) in {@link #getLines()}.
+     */
+    public int getLineCount() {
+        return lineCount * 4;
+    }
+
+    /* Smallest value read since reset(), +infinity if none */
+    public float getMin() {
+        return min;
+    }
+
+    /* Largest value read since reset(), -infinity if none */
+    public float getMax() {
+        return max;
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /* Points drawn; compared with getSampleCount() this is the decimation ratio. */
+    public long getPointCount() {
+        return points;
+    }
+
+    public long getMissed() {
+        return cursor.getMissed();
+    }
+}
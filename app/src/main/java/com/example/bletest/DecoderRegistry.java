@@ -0,0 +1,90 @@
+package com.example.bletest;
+
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Decoders by characteristic UUID. Registering a decoder assigns it the next index; the
+ * pipeline resolves the index once per characteristic and then dispatches by array lookup.
+ *
+ * The default registry holds the built-in layouts: TI motion (index 0) and the accelerometer
+ * service pressure frame (index 1).
+ */
+public class DecoderRegistry {
+    public static final UUID UUID_MOV_DATA = UUID.fromString("f000aa81-0451-4000-b000-000000000000");
+    public static final UUID UUID_ACC_DATA = UUID.fromString("f000aa11-0451-4000-b000-000000000000");
+
+    /* TI motion: gyro, acc, mag as little endian int16; acc x and z are inverted */
+    public static final SensorDecoder MOTION = new PayloadLayout(UUID_MOV_DATA, SensorDecoder.KIND_MOTION)
+            .field("acc_x", 6, 2, ByteOrder.LITTLE_ENDIAN, true, -1 / 4096.0)
+            .field("acc_y", 8, 2, ByteOrder.LITTLE_ENDIAN, true, 1 / 4096.0)
+            .field("acc_z", 10, 2, ByteOrder.LITTLE_ENDIAN, true, -1 / 4096.0)
+            .field("gyro_x", 0, 2, ByteOrder.LITTLE_ENDIAN, true, 1 / 128.0)
+            .field("gyro_y", 2, 2, ByteOrder.LITTLE_ENDIAN, true, 1 / 128.0)
+            .field("gyro_z", 4, 2, ByteOrder.LITTLE_ENDIAN, true, 1 / 128.0)
+            .field("mag_x", 12, 2, ByteOrder.LITTLE_ENDIAN, true, 4912 / 32768.0)
+            .field("mag_y", 14, 2, ByteOrder.LITTLE_ENDIAN, true, 4912 / 32768.0)
+            .field("mag_z", 16, 2, ByteOrder.LITTLE_ENDIAN, true, 4912 / 32768.0)
+            .compile();
+
+    /* Pressure: signed 24 bit value in bytes 5 (high), 4 and 2 (low); all 0xFF means no reading */
+    public static final SensorDecoder PRESSURE = new PayloadLayout(UUID_ACC_DATA, SensorDecoder.KIND_PRESSURE)
+            .field("pressure", new int[]{2, 4, 5}, true, 1)
+            .invalidWhenAll(new int[]{2, 4, 5}, (byte) 0xFF)
+            .compile();
+
+    private static final DecoderRegistry DEFAULT = new DecoderRegistry();
+
+    static {
+        DEFAULT.register(MOTION);
+        DEFAULT.register(PRESSURE);
+    }
+
+    public static DecoderRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    private final HashMap<UUID, Integer> indexByUuid = new HashMap<UUID, Integer>();
+    private volatile SensorDecoder[] decoders = new SensorDecoder[0];
+    private volatile int maxChannels = 0;
+
+    /**
+     * @return The index the pipeline dispatches the decoder by.
+     */
+    public synchronized int register(SensorDecoder decoder) {
+        Integer existing = indexByUuid.get(decoder.getUuid());
+        SensorDecoder[] next;
+        int index;
+        if (existing != null) {
+            index = existing;
+            next = decoders.clone();
+        } else {
+            index = decoders.length;
+            next = new SensorDecoder[index + 1];
+            System.arraycopy(decoders, 0, next, 0, index);
+            indexByUuid.put(decoder.getUuid(), index);
+        }
+        next[index] = decoder;
+        maxChannels = Math.max(maxChannels, decoder.getChannels().length);
+        decoders = next;
+        return index;
+    }
+
+    /**
+     * @return The decoder index for the characteristic, or SensorPipeline.DECODER_NONE.
+     */
+    public synchronized int indexOf(UUID uuid) {
+        Integer index = indexByUuid.get(uuid);
+        return index != null ? index : SensorPipeline.DECODER_NONE;
+    }
+
+    public SensorDecoder get(int index) {
+        SensorDecoder[] d = decoders;
+        return index >= 0 && index < d.length ? d[index] : null;
+    }
+
+    public int getMaxChannels() {
+        return maxChannels;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.bletest;
+
+/**
+ * Health statistics of one device as kept by {@link HealthMonitor}. All updates are O(1):
+ * rates come from a fixed ring of recent frame flags, everything else from exponentially
+ * weighted averages.
+ */
+public class DeviceHealth {
+    public static final String REASON_NONE = "none";
+    public static final String REASON_INVALID = "invalid frames";
+    public static final String REASON_SATURATED = "saturated";
+    public static final String REASON_STUCK = "stuck value";
+    public static final String REASON_NOISE = "noise";
+    public static final String REASON_JITTER = "interval jitter";
+    public static final String REASON_RSSI = "rssi dropping";
+
+    /* Number of recent frames the invalid and saturated rates are computed over */
+    static final int WINDOW = 64;
+
+    private static final int FLAG_INVALID = 1;
+    private static final int FLAG_SATURATED = 2;
+    private static final int RAW_MAX = 0x7FFFFF;
+    private static final int RAW_MIN = -0x800000;
+
+    // Smoothing factors of the fast and slow averages
+    private static final double FAST = 0.1;
+    private static final double SLOW = 0.01;
+    private static final int WARMUP_FRAMES = 200;
+
+    public final String address;
+
+    public long frames = 0;
+    public long invalidFrames = 0;
+    public double invalidRate = 0;
+    public double saturatedRate = 0;
+    public int stuckRun = 0;
+    public int maxStuckRun = 0;
+    /* Smoothed absolute change between consecutive raw values, short and long term */
+    public double noise = 0;
+    public double noiseFloor = 0;
+    /* Smoothed notification interval and its standard deviation, ms */
+    public double intervalMean = 0;
+    public double intervalJitter = 0;
+    /* Smoothed RSSI in dBm and its short term minus long term trend in dB */
+    public double rssi = 0;
+    public double rssiTrend = 0;
+
+    /* 0 (healthy) to 1 (certainly broken), the worst of the component scores */
+    public double score = 0;
+    public String reason = REASON_NONE;
+
+    // Set by HealthMonitor while an anomaly is being reported
+    boolean alarmed = false;
+
+    private final byte[] flags = new byte[WINDOW];
+    private int flagIndex = 0;
+    private int flagCount = 0;
+    private int invalidInWindow = 0;
+    private int saturatedInWindow = 0;
+
+    private boolean hasRaw = false;
+    private int lastRaw;
+    private long lastTimestamp = -1;
+    private double intervalVariance = 0;
+    private double rssiSlow = 0;
+    private boolean hasRssi = false;
+
+    DeviceHealth(String address) {
+        this.address = address;
+    }
+
+    void onFrame(long timestamp, boolean invalid, int raw) {
+        frames++;
+        if (lastTimestamp >= 0) {
+            double interval = timestamp - lastTimestamp;
+            if (intervalMean == 0) {
+                intervalMean = interval;
+            }
+            double d = interval - intervalMean;
+            intervalMean += FAST * d;
+            intervalVariance = (1 - FAST) * (intervalVariance + FAST * d * d);
+            intervalJitter = Math.sqrt(intervalVariance);
+        }
+        lastTimestamp = timestamp;
+
+        int flag = 0;
+        if (invalid) {
+            invalidFrames++;
+            flag = FLAG_INVALID;
+        } else {
+            if (raw >= RAW_MAX || raw <= RAW_MIN) {
+                flag = FLAG_SATURATED;
+            }
+            if (hasRaw) {
+                int delta = Math.abs(raw - lastRaw);
+                if (delta == 0) {
+                    stuckRun++;
+                    maxStuckRun = Math.max(maxStuckRun, stuckRun);
+                } else {
+                    stuckRun = 0;
+                }
+                noise += FAST * (delta - noise);
+                noiseFloor = noiseFloor == 0 ? noise : noiseFloor + SLOW * (delta - noiseFloor);
+            }
+            lastRaw = raw;
+            hasRaw = true;
+        }
+
+        if (flagCount == WINDOW) {
+            byte old = flags[flagIndex];
+            if ((old & FLAG_INVALID) != 0) invalidInWindow--;
+            if ((old & FLAG_SATURATED) != 0) saturatedInWindow--;
+        } else {
+            flagCount++;
+        }
+        flags[flagIndex] = (byte) flag;
+        flagIndex = (flagIndex + 1) % WINDOW;
+        if ((flag & FLAG_INVALID) != 0) invalidInWindow++;
+        if ((flag & FLAG_SATURATED) != 0) saturatedInWindow++;
+        invalidRate = (double) invalidInWindow / flagCount;
+        saturatedRate = (double) saturatedInWindow / flagCount;
+
+        updateScore();
+    }
+
+    void onRssi(int value) {
+        if (!hasRssi) {
+            rssi = rssiSlow = value;
+            hasRssi = true;
+        } else {
+            rssi += FAST * 5 * (value - rssi);
+            rssiSlow += SLOW * 5 * (value - rssiSlow);
+        }
+        rssiTrend = rssi - rssiSlow;
+        updateScore();
+    }
+
+    private void updateScore() {
+        score = 0;
+        reason = REASON_NONE;
+        // 20% invalid frames, any saturation or 50 identical readings in a row count as broken.
+        check(invalidRate / 0.2, REASON_INVALID);
+        check(saturatedRate / 0.05, REASON_SATURATED);
+        check(stuckRun / 50.0, REASON_STUCK);
+        // Noise at three times its long term floor, once the floor has settled
+        if (noiseFloor > 0 && frames > WARMUP_FRAMES) {
+            check((noise / noiseFloor - 1) / 2, REASON_NOISE);
+        }
+        // Jitter as large as the interval itself
+        if (intervalMean > 0 && frames > WINDOW) {
+            check(intervalJitter / intervalMean, REASON_JITTER);
+        }
+        // RSSI 10 dB below its long term average
+        check(-rssiTrend / 10, REASON_RSSI);
+    }
+
+    private void check(double component, String why) {
+        if (component > score) {
+            score = Math.min(1, component);
+            reason = why;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: score %.2f (%s), frames %d, invalid %.0f%%, saturated %.0f%%, "
+                        + "stuck %d (max %d), noise %.1f/%.1f, interval %.0fms +-%.0f, rssi %.0f (%+.1f)",
+                address, score, reason, frames, invalidRate * 100, saturatedRate * 100,
+                stuckRun, maxStuckRun, noise, noiseFloor, intervalMean, intervalJitter, rssi, rssiTrend);
+    }
+}
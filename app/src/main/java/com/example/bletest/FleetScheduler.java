@@ -0,0 +1,394 @@
+package com.example.bletest;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Collects briefly from each pod of a target list: interleaves scan windows with short
+ * connect, collect, disconnect sessions.
+ *
+ * Candidates are pods seen in a recent scan with a usable RSSI. The next one to connect is the
+ * one with the best mix of staleness (time since it was last serviced) and signal strength, at
+ * most maxConnections at a time. Scans only run while no connection is being set up, since
+ * both compete for the radio.
+ *
+ * The scheduler has no timers or Android dependencies: it is driven by {@link #tick(long)} and
+ * the event methods, all with an explicit time, and talks to the radio through {@link Radio},
+ * so the same code runs on the device and in the FleetSimulation test tool.
+ */
+public class FleetScheduler implements SensorPipeline.Sink {
+    public static final long DEFAULT_SCAN_WINDOW = 2000;
+    // Radio rest after a scan that found nothing to connect to.
+    public static final long DEFAULT_SCAN_IDLE = 3000;
+    public static final long DEFAULT_COLLECT_TIME = 3000;
+    public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+    public static final long DEFAULT_DISCONNECT_TIMEOUT = 2000;
+    // Scan results older than this are not connected to.
+    public static final long DEFAULT_SEEN_TTL = 10000;
+    // A pod is not visited again sooner than this after being serviced.
+    public static final long DEFAULT_REVISIT_TIME = 60000;
+    public static final int DEFAULT_MIN_RSSI = -90;
+
+    // Staleness counts fully up to this age.
+    private static final long MAX_STALENESS = 10 * 60 * 1000;
+    private static final double RSSI_WEIGHT = 0.3;
+    private static final long FAILURE_BACKOFF = 5000;
+
+    public interface Radio {
+        void startScan();
+
+        void stopScan();
+
+        /* Connects and starts notifications; answered with onConnected or onDisconnected */
+        void connect(String address);
+
+        /* Answered with onDisconnected */
+        void disconnect(String address);
+    }
+
+    private static final int IDLE = 0;
+    private static final int CONNECTING = 1;
+    private static final int COLLECTING = 2;
+    private static final int DISCONNECTING = 3;
+
+    private static class Target {
+        final String address;
+        int state = IDLE;
+        long lastSeen = Long.MIN_VALUE;
+        double rssi;
+        long lastServiced = Long.MIN_VALUE;
+        long stateSince;
+        long samples;
+        int failures;
+        long lastFailure;
+        int serviceCount;
+
+        Target(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Radio radio;
+    private final int maxConnections;
+    private final LinkedHashMap<String, Target> targets = new LinkedHashMap<String, Target>();
+
+    private long scanWindow = DEFAULT_SCAN_WINDOW;
+    private long scanIdle = DEFAULT_SCAN_IDLE;
+    private long collectTime = DEFAULT_COLLECT_TIME;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long seenTtl = DEFAULT_SEEN_TTL;
+    private long revisitTime = DEFAULT_REVISIT_TIME;
+    private int minRssi = DEFAULT_MIN_RSSI;
+
+    private boolean running = false;
+    private boolean scanning = false;
+    private long scanStart;
+    private long nextScan = Long.MIN_VALUE;
+    private int active = 0;
+
+    // Statistics
+    private long startTime;
+    private long lastTick;
+    private long scanMillis = 0;
+    private long busyMillis = 0;
+    private long linkMillis = 0;
+    private long serviced = 0;
+    private long failed = 0;
+    private long collectedSamples = 0;
+
+    public FleetScheduler(Radio radio, int maxConnections) {
+        this.radio = radio;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    public synchronized void setTargets(Collection<String> addresses) {
+        for (String address : addresses) {
+            if (!targets.containsKey(address)) {
+                targets.put(address, new Target(address));
+            }
+        }
+    }
+
+    public synchronized void setTimes(long scanWindow, long scanIdle, long collectTime,
+                                      long connectTimeout) {
+        this.scanWindow = scanWindow;
+        this.scanIdle = scanIdle;
+        this.collectTime = collectTime;
+        this.connectTimeout = connectTimeout;
+    }
+
+    public synchronized void setRevisitTime(long revisitTime) {
+        this.revisitTime = revisitTime;
+    }
+
+    public synchronized void setMinRssi(int minRssi) {
+        this.minRssi = minRssi;
+    }
+
+    public synchronized void start(long now) {
+        if (running) {
+            return;
+        }
+        running = true;
+        startTime = lastTick = now;
+        tick(now);
+    }
+
+    /**
+     * Stops scanning and disconnects every pod.
+     */
+    public synchronized void stop(long now) {
+        if (!running) {
+            return;
+        }
+        account(now);
+        running = false;
+        if (scanning) {
+            radio.stopScan();
+            scanning = false;
+        }
+        for (Target t : targets.values()) {
+            if (t.state != IDLE) {
+                radio.disconnect(t.address);
+                t.state = IDLE;
+            }
+        }
+        active = 0;
+    }
+
+    /**
+     * Advances timeouts and starts scans and connections. Call it a few times per second.
+     */
+    public synchronized void tick(long now) {
+        if (!running) {
+            return;
+        }
+        account(now);
+
+        for (Target t : targets.values()) {
+            long age = now - t.stateSince;
+            if (t.state == CONNECTING && age >= connectTimeout) {
+                fail(t, now);
+                setState(t, DISCONNECTING, now);
+                radio.disconnect(t.address);
+            } else if (t.state == COLLECTING && age >= collectTime) {
+                complete(t, now);
+                setState(t, DISCONNECTING, now);
+                radio.disconnect(t.address);
+            } else if (t.state == DISCONNECTING && age >= DEFAULT_DISCONNECT_TIMEOUT) {
+                // The stack never confirmed; reuse the slot anyway.
+                setState(t, IDLE, now);
+            }
+        }
+
+        if (scanning) {
+            if (now - scanStart < scanWindow) {
+                return;
+            }
+            radio.stopScan();
+            scanning = false;
+            if (bestCandidate(now) == null) {
+                nextScan = now + scanIdle;
+            }
+        }
+
+        while (active < maxConnections) {
+            Target best = bestCandidate(now);
+            if (best == null) {
+                break;
+            }
+            setState(best, CONNECTING, now);
+            best.samples = 0;
+            radio.connect(best.address);
+        }
+
+        if (active < maxConnections && !anyInState(CONNECTING) && now >= nextScan) {
+            radio.startScan();
+            scanning = true;
+            scanStart = now;
+        }
+    }
+
+    public synchronized void onScanResult(String address, int rssi, long now) {
+        Target t = targets.get(address);
+        if (t == null) {
+            return;
+        }
+        t.rssi = t.lastSeen == Long.MIN_VALUE ? rssi : 0.5 * t.rssi + 0.5 * rssi;
+        t.lastSeen = now;
+    }
+
+    public synchronized void onConnected(String address, long now) {
+        Target t = targets.get(address);
+        if (t != null && t.state == CONNECTING) {
+            setState(t, COLLECTING, now);
+        }
+    }
+
+    public synchronized void onDisconnected(String address, long now) {
+        Target t = targets.get(address);
+        if (t == null) {
+            return;
+        }
+        if (t.state == COLLECTING) {
+            // Dropped early: whatever arrived still counts.
+            if (t.samples > 0) {
+                complete(t, now);
+            } else {
+                fail(t, now);
+            }
+        } else if (t.state == CONNECTING) {
+            fail(t, now);
+        }
+        setState(t, IDLE, now);
+    }
+
+    private void setState(Target t, int state, long now) {
+        boolean wasActive = t.state != IDLE;
+        boolean isActive = state != IDLE;
+        if (wasActive != isActive) {
+            active += isActive ? 1 : -1;
+        }
+        t.state = state;
+        t.stateSince = now;
+    }
+
+    private void complete(Target t, long now) {
+        t.lastServiced = now;
+        t.failures = 0;
+        t.serviceCount++;
+        serviced++;
+        collectedSamples += t.samples;
+    }
+
+    private void fail(Target t, long now) {
+        t.failures++;
+        t.lastFailure = now;
+        failed++;
+    }
+
+    private boolean anyInState(int state) {
+        for (Target t : targets.values()) {
+            if (t.state == state) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Target bestCandidate(long now) {
+        Target best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (Target t : targets.values()) {
+            if (t.state != IDLE || t.lastSeen == Long.MIN_VALUE || now - t.lastSeen > seenTtl
+                    || t.rssi < minRssi) {
+                continue;
+            }
+            if (t.lastServiced != Long.MIN_VALUE && now - t.lastServiced < revisitTime) {
+                continue;
+            }
+            if (t.failures > 0
+                    && now - t.lastFailure < FAILURE_BACKOFF << Math.min(t.failures - 1, 6)) {
+                continue;
+            }
+            long staleness = t.lastServiced == Long.MIN_VALUE ? MAX_STALENESS
+                    : Math.min(MAX_STALENESS, now - t.lastServiced);
+            double score = (double) staleness / MAX_STALENESS
+                    + RSSI_WEIGHT * (t.rssi - minRssi) / (-30 - minRssi);
+            if (score > bestScore) {
+                bestScore = score;
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    private void account(long now) {
+        long dt = now - lastTick;
+        if (dt <= 0) {
+            return;
+        }
+        if (scanning) {
+            scanMillis += dt;
+        }
+        if (scanning || active > 0) {
+            busyMillis += dt;
+        }
+        linkMillis += dt * active;
+        lastTick = now;
+    }
+
+    @Override
+    public synchronized void onPressure(String address, long timestamp, int raw, float mbar) {
+        count(address);
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+    }
+
+    @Override
+    public synchronized void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+        count(address);
+    }
+
+    private void count(String address) {
+        Target t = targets.get(address);
+        if (t != null && t.state == COLLECTING) {
+            t.samples++;
+        }
+    }
+
+    public synchronized long getServicedCount() {
+        return serviced;
+    }
+
+    /**
+     * @return Pods serviced per minute since start.
+     */
+    public synchronized double getServicedPerMinute() {
+        long elapsed = lastTick - startTime;
+        return elapsed > 0 ? serviced * 60000.0 / elapsed : 0;
+    }
+
+    /**
+     * @return Fraction of time spent scanning.
+     */
+    public synchronized double getScanDutyCycle() {
+        long elapsed = lastTick - startTime;
+        return elapsed > 0 ? (double) scanMillis / elapsed : 0;
+    }
+
+    /**
+     * @return Fraction of time the radio was scanning or holding at least one connection.
+     */
+    public synchronized double getRadioDutyCycle() {
+        long elapsed = lastTick - startTime;
+        return elapsed > 0 ? (double) busyMillis / elapsed : 0;
+    }
+
+    /**
+     * @return Number of targets serviced at least once.
+     */
+    public synchronized int getCoverage() {
+        int n = 0;
+        for (Target t : targets.values()) {
+            if (t.serviceCount > 0) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public synchronized String report() {
+        long elapsed = lastTick - startTime;
+        return String.format(Locale.US,
+                "elapsed %ds, serviced %d (%d/%d pods, %.1f/min), failed %d, samples %d, "
+                        + "scan duty %.0f%%, radio duty %.0f%%, mean links %.2f",
+                elapsed / 1000, serviced, getCoverage(), targets.size(), getServicedPerMinute(),
+                failed, collectedSamples, getScanDutyCycle() * 100, getRadioDutyCycle() * 100,
+                elapsed > 0 ? (double) linkMillis / elapsed : 0);
+    }
+}
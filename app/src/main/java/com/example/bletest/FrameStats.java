@@ -0,0 +1,103 @@
+package com.example.bletest;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Frame timing of a view: the interval between frames as the display saw it, the time spent
+ * preparing each frame and the time spent drawing it, as histograms of 0.25 ms buckets.
+ */
+public class FrameStats {
+    public static final long FRAME_NANOS = 16666667;
+    // Frames later than this missed at least one vsync.
+    private static final long JANK_NANOS = FRAME_NANOS * 3 / 2;
+    private static final long BUCKET_NANOS = 250000;
+    private static final int BUCKETS = 400;
+
+    private final int[] intervals = new int[BUCKETS];
+    private final int[] updates = new int[BUCKETS];
+    private final int[] draws = new int[BUCKETS];
+    private long lastFrame = 0;
+    private long frames = 0;
+    private long janky = 0;
+    private long totalNanos = 0;
+    private long maxUpdate = 0;
+
+    /**
+     * @param frameTimeNanos Vsync time of the frame, as given to a Choreographer callback.
+     */
+    public synchronized void onFrame(long frameTimeNanos) {
+        if (lastFrame != 0) {
+            long interval = frameTimeNanos - lastFrame;
+            add(intervals, interval);
+            frames++;
+            totalNanos += interval;
+            if (interval > JANK_NANOS) {
+                janky++;
+            }
+        }
+        lastFrame = frameTimeNanos;
+    }
+
+    public synchronized void onUpdate(long nanos) {
+        add(updates, nanos);
+        maxUpdate = Math.max(maxUpdate, nanos);
+    }
+
+    public synchronized void onDraw(long nanos) {
+        add(draws, nanos);
+    }
+
+    /**
+     * Starts a new measurement, e.g. after the view was hidden for a while.
+     */
+    public synchronized void reset() {
+        Arrays.fill(intervals, 0);
+        Arrays.fill(updates, 0);
+        Arrays.fill(draws, 0);
+        lastFrame = 0;
+        frames = janky = totalNanos = maxUpdate = 0;
+    }
+
+    private static void add(int[] histogram, long nanos) {
+        histogram[(int) Math.min(BUCKETS - 1, Math.max(0, nanos / BUCKET_NANOS))]++;
+    }
+
+    // Upper edge of the bucket holding the q quantile, in ms
+    private static double quantile(int[] histogram, double q) {
+        long total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return (i + 1) * BUCKET_NANOS / 1e6;
+            }
+        }
+        return histogram.length * BUCKET_NANOS / 1e6;
+    }
+
+    public synchronized double getFps() {
+        return totalNanos > 0 ? frames * 1e9 / totalNanos : 0;
+    }
+
+    public synchronized long getJankyFrames() {
+        return janky;
+    }
+
+    public synchronized String report() {
+        return String.format(Locale.US,
+                "frames %d, %.1f fps, interval p50 %.2f p95 %.2f p99 %.2f ms, janky %d (%.1f%%), "
+                        + "update p50 %.2f p95 %.2f max %.2f ms, draw p50 %.2f p95 %.2f ms",
+                frames, getFps(), quantile(intervals, 0.5), quantile(intervals, 0.95),
+                quantile(intervals, 0.99), janky, frames > 0 ? janky * 100.0 / frames : 0,
+                quantile(updates, 0.5), quantile(updates, 0.95), maxUpdate / 1e6,
+                quantile(draws, 0.5), quantile(draws, 0.95));
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.bletest;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Pipeline sink that runs an {@link OrientationFilter} per device on the motion samples.
+ */
+public class FusionStage implements SensorPipeline.Sink {
+    /* Assumed sample interval for the first sample of a device, in ms */
+    private static final long DEFAULT_INTERVAL = 100;
+    private static final long MAX_INTERVAL = 1000;
+
+    public interface Listener {
+        /* Called after each update; read the filter fields before returning */
+        void onOrientation(String address, long timestamp, OrientationFilter filter);
+    }
+
+    private static class DeviceFusion {
+        final OrientationFilter filter;
+        long lastTimestamp = -1;
+
+        DeviceFusion(double beta) {
+            filter = new OrientationFilter(beta);
+        }
+    }
+
+    private final HashMap<String, DeviceFusion> devices = new HashMap<String, DeviceFusion>();
+    private final double beta;
+    private Listener listener;
+    private String lastAddress;
+    private DeviceFusion lastDevice;
+
+    public FusionStage() {
+        this(OrientationFilter.DEFAULT_BETA);
+    }
+
+    public FusionStage(double beta) {
+        this.beta = beta;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return The filter of the device, or null before its first motion sample.
+     */
+    public synchronized OrientationFilter getFilter(String address) {
+        DeviceFusion d = devices.get(address);
+        return d == null ? null : d.filter;
+    }
+
+    @Override
+    public synchronized void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+        DeviceFusion d;
+        if (address == lastAddress && lastDevice != null) {
+            d = lastDevice;
+        } else {
+            d = devices.get(address);
+            if (d == null) {
+                d = new DeviceFusion(beta);
+                devices.put(address, d);
+            }
+            lastAddress = address;
+            lastDevice = d;
+        }
+
+        long interval = d.lastTimestamp < 0 ? DEFAULT_INTERVAL : timestamp - d.lastTimestamp;
+        if (interval <= 0 || interval > MAX_INTERVAL) {
+            interval = DEFAULT_INTERVAL;
+        }
+        d.lastTimestamp = timestamp;
+
+        d.filter.update(acc.x, acc.y, acc.z, gyro.x, gyro.y, gyro.z, mag.x, mag.y, mag.z,
+                interval / 1000.0);
+        if (listener != null) {
+            listener.onOrientation(address, timestamp, d.filter);
+        }
+    }
+
+    @Override
+    public void onPressure(String address, long timestamp, int raw, float mbar) {
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+    }
+
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        for (String address : devices.keySet()) {
+            OrientationFilter f = devices.get(address).filter;
+            sb.append(String.format("%s: updates: %d, %.0f updates/s, heading: %.1f, roll: %.1f, pitch: %.1f\n",
+                    address, f.getUpdateCount(), f.getUpdatesPerSecond(), f.heading, f.roll, f.pitch));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.bletest;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Brings a GATT connection back after an error disconnect or a failed service discovery.
+ *
+ * Each failure is classified by its GATT status, and the class picks the first recovery
+ * action: a plain reconnect for link loss, a new BluetoothGatt for errors of the Android stack
+ * (status 133 and friends), a service cache refresh when discovery fails, a rescan when a
+ * connect gets no answer or nothing else worked. Failures that keep coming escalate to the
+ * next action; authentication errors and a failed rescan give up. The time from the first
+ * failure to the next completed service discovery is recorded as time to recover; the
+ * quantiles cover the last RECOVERY_WINDOW of them.
+ *
+ * Like {@link FleetScheduler} it has no timers or Android dependencies: it is driven by {@link
+ * #tick(long)} and the event methods, and acts through {@link Transport}, so recovery latency
+ * can be measured on the JVM by the GattFaultSimulation test tool.
+ */
+public class GattRecovery {
+    // Status codes of onConnectionStateChange and onServicesDiscovered, from the stack's gatt_api.h
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_INSUFFICIENT_AUTHENTICATION = 5;
+    public static final int GATT_CONN_TIMEOUT = 8;
+    public static final int GATT_INSUFFICIENT_ENCRYPTION = 15;
+    public static final int GATT_CONN_TERMINATE_PEER_USER = 19;
+    public static final int GATT_CONN_TERMINATE_LOCAL_HOST = 22;
+    public static final int GATT_CONN_LMP_TIMEOUT = 34;
+    public static final int GATT_CONN_FAIL_ESTABLISH = 62;
+    public static final int GATT_INTERNAL_ERROR = 129;
+    public static final int GATT_ERROR = 133;
+    public static final int GATT_FAILURE = 257;
+    // Not a stack status: the connect attempt got no answer within the attempt timeout.
+    public static final int STATUS_ATTEMPT_TIMEOUT = -1;
+    // Not a stack status: discovery succeeded but the expected characteristics are missing.
+    public static final int STATUS_INCOMPLETE_SERVICES = -2;
+
+    // Failure classes
+    public static final int CLASS_LINK_LOST = 0;
+    public static final int CLASS_STACK = 1;
+    public static final int CLASS_STALE_CACHE = 2;
+    public static final int CLASS_NOT_FOUND = 3;
+    public static final int CLASS_AUTH = 4;
+    private static final String[] CLASS_NAMES = {
+            "link lost", "stack error", "stale cache", "not found", "auth",
+    };
+
+    // Recovery actions, in escalation order
+    public static final int ACTION_RETRY = 0;
+    public static final int ACTION_RECREATE = 1;
+    public static final int ACTION_REFRESH = 2;
+    public static final int ACTION_RESCAN = 3;
+    private static final String[] ACTION_NAMES = {"retry", "recreate", "refresh", "rescan"};
+    // Attempts of each action before escalating to the next
+    private static final int[] ACTION_ATTEMPTS = {2, 2, 1, 2};
+    // Wait before each action; the stack needs a moment to release a closed BluetoothGatt.
+    private static final long[] ACTION_DELAYS = {100, 600, 600, 0};
+
+    public static final long DEFAULT_ATTEMPT_TIMEOUT = 10000;
+    public static final long DEFAULT_RESCAN_TIMEOUT = 20000;
+    // Recovery times kept for the quantiles
+    public static final int RECOVERY_WINDOW = 1024;
+
+    public interface Transport {
+        /* Connects, over a new BluetoothGatt if recreate; answered with onConnectionStateChange */
+        void connect(boolean recreate);
+
+        /* Drops the cached services of the device; return false if unsupported */
+        boolean refreshCache();
+
+        /* Answered with onServicesDiscovered */
+        void discoverServices();
+
+        /* Closes the connection and scans for the device; answered with onDeviceFound */
+        void rescan();
+
+        /* Recovery is over without a connection */
+        void giveUp(int failureClass, int status);
+    }
+
+    private static final int IDLE = 0;
+    private static final int CONNECTING = 1;
+    private static final int DISCOVERING = 2;
+    private static final int READY = 3;
+    private static final int WAITING = 4;
+    private static final int SCANNING = 5;
+    private static final int DISCONNECTING = 6;
+
+    private final Transport transport;
+    private long attemptTimeout = DEFAULT_ATTEMPT_TIMEOUT;
+    private long rescanTimeout = DEFAULT_RESCAN_TIMEOUT;
+
+    private int state = IDLE;
+    private long stateSince;
+    private boolean connected;
+    // Current episode: from the first failure until services are discovered or we give up
+    private boolean recovering;
+    private long episodeStart;
+    private int step;
+    private int stepAttempts;
+    private int pendingAction;
+    private long actionTime;
+    private int lastClass;
+    private int lastStatus;
+
+    // Statistics
+    private final long[] classCounts = new long[CLASS_NAMES.length];
+    private final long[] actionCounts = new long[ACTION_NAMES.length];
+    private final long[] recoveredBy = new long[ACTION_NAMES.length];
+    private long episodes = 0;
+    private long gaveUp = 0;
+    private final long[] recoverTimes = new long[RECOVERY_WINDOW];
+    private long recoverCount = 0;
+
+    public GattRecovery(Transport transport) {
+        this.transport = transport;
+    }
+
+    public synchronized void setTimeouts(long attemptTimeout, long rescanTimeout) {
+        this.attemptTimeout = attemptTimeout;
+        this.rescanTimeout = rescanTimeout;
+    }
+
+    /**
+     * @return The failure class of a status from onConnectionStateChange (discovery false) or
+     * onServicesDiscovered (discovery true).
+     */
+    public static int classify(int status, boolean discovery) {
+        switch (status) {
+            case GATT_INSUFFICIENT_AUTHENTICATION:
+            case GATT_INSUFFICIENT_ENCRYPTION:
+                return CLASS_AUTH;
+            case GATT_SUCCESS:
+                // On a disconnect: the peer closed the link without an error.
+                return discovery ? CLASS_STALE_CACHE : CLASS_LINK_LOST;
+            case GATT_CONN_TIMEOUT:
+            case GATT_CONN_TERMINATE_PEER_USER:
+            case GATT_CONN_LMP_TIMEOUT:
+            case GATT_CONN_FAIL_ESTABLISH:
+                return CLASS_LINK_LOST;
+            case GATT_INTERNAL_ERROR:
+            case STATUS_INCOMPLETE_SERVICES:
+                return CLASS_STALE_CACHE;
+            case STATUS_ATTEMPT_TIMEOUT:
+                // A connect nobody answers: the device is not advertising, or gone.
+                return discovery ? CLASS_STALE_CACHE : CLASS_NOT_FOUND;
+            case GATT_ERROR:
+            case GATT_FAILURE:
+            case GATT_CONN_TERMINATE_LOCAL_HOST:
+                return discovery ? CLASS_STALE_CACHE : CLASS_STACK;
+            default:
+                // Unknown codes: a failed discovery is most often a stale cache.
+                return discovery ? CLASS_STALE_CACHE : CLASS_STACK;
+        }
+    }
+
+    private static int firstAction(int failureClass) {
+        switch (failureClass) {
+            case CLASS_LINK_LOST:
+                return ACTION_RETRY;
+            case CLASS_STACK:
+                return ACTION_RECREATE;
+            case CLASS_NOT_FOUND:
+                return ACTION_RESCAN;
+            default:
+                return ACTION_REFRESH;
+        }
+    }
+
+    public static String className(int failureClass) {
+        return CLASS_NAMES[failureClass];
+    }
+
+    /**
+     * The app started a connection; call before {@code connectGatt}.
+     */
+    public synchronized void onConnectRequested(long now) {
+        setState(CONNECTING, now);
+    }
+
+    /**
+     * The app asked to disconnect: the next disconnect is not a failure.
+     */
+    public synchronized void onDisconnectRequested(long now) {
+        recovering = false;
+        setState(DISCONNECTING, now);
+    }
+
+    /**
+     * Stops watching the connection, e.g. when the BluetoothGatt is closed.
+     */
+    public synchronized void reset(long now) {
+        recovering = false;
+        connected = false;
+        setState(IDLE, now);
+    }
+
+    /**
+     * @return True while failures are being worked on; the app should not treat the
+     * disconnect as final.
+     */
+    public synchronized boolean isRecovering() {
+        return recovering;
+    }
+
+    /**
+     * @return True while a connect, discovery or recovery action is pending; keep calling
+     * {@link #tick(long)} until it returns false.
+     */
+    public synchronized boolean isBusy() {
+        return state != IDLE && state != READY && state != DISCONNECTING;
+    }
+
+    /**
+     * @return True if the disconnect is a failure being recovered, or given up and reported
+     * through {@link Transport#giveUp(int, int)}; false if it is a normal disconnect.
+     */
+    public synchronized boolean onConnectionStateChange(int status, boolean isConnected, long now) {
+        connected = isConnected;
+        if (isConnected) {
+            if (state == CONNECTING || state == WAITING || state == SCANNING) {
+                setState(DISCOVERING, now);
+                transport.discoverServices();
+            }
+            return false;
+        }
+        if (state == DISCONNECTING || state == IDLE) {
+            setState(IDLE, now);
+            return false;
+        }
+        if (state == WAITING || state == SCANNING) {
+            // The drop that started this action, or the old link going away.
+            return true;
+        }
+        if (status == GATT_SUCCESS) {
+            // A clean disconnect the app did not ask for, the peer went away.
+            status = GATT_CONN_TERMINATE_PEER_USER;
+        }
+        fail(status, false, now);
+        return true;
+    }
+
+    /**
+     * @param complete False if the expected characteristics are missing after a successful
+     *                 discovery.
+     */
+    public synchronized void onServicesDiscovered(int status, boolean complete, long now) {
+        if (state != DISCOVERING) {
+            return;
+        }
+        if (status == GATT_SUCCESS && complete) {
+            setState(READY, now);
+            if (recovering) {
+                recovering = false;
+                recordRecovery(now - episodeStart);
+                recoveredBy[step]++;
+            }
+            return;
+        }
+        fail(status == GATT_SUCCESS ? STATUS_INCOMPLETE_SERVICES : status, true, now);
+    }
+
+    /**
+     * The device was seen again by the scan started for {@link #ACTION_RESCAN}.
+     */
+    public synchronized void onDeviceFound(long now) {
+        if (state == SCANNING) {
+            setState(CONNECTING, now);
+            transport.connect(true);
+        }
+    }
+
+    /**
+     * Runs due actions and attempt timeouts. Call it a few times per second while {@link
+     * #isRecovering()}.
+     */
+    public synchronized void tick(long now) {
+        long age = now - stateSince;
+        if (state == WAITING && now >= actionTime) {
+            act(pendingAction, now);
+        } else if ((state == CONNECTING || state == DISCOVERING) && age >= attemptTimeout) {
+            fail(STATUS_ATTEMPT_TIMEOUT, state == DISCOVERING, now);
+        } else if (state == SCANNING && age >= rescanTimeout) {
+            fail(STATUS_ATTEMPT_TIMEOUT, false, now);
+        }
+    }
+
+    private void fail(int status, boolean discovery, long now) {
+        int failureClass = classify(status, discovery);
+        classCounts[failureClass]++;
+        lastClass = failureClass;
+        lastStatus = status;
+
+        if (failureClass == CLASS_AUTH) {
+            giveUp(now);
+            return;
+        }
+        if (!recovering) {
+            recovering = true;
+            episodes++;
+            episodeStart = now;
+            step = firstAction(failureClass);
+            stepAttempts = 0;
+        } else {
+            // A worse class than the one being worked on skips ahead, never back.
+            int first = firstAction(failureClass);
+            if (first > step) {
+                step = first;
+                stepAttempts = 0;
+            }
+        }
+        if (stepAttempts >= ACTION_ATTEMPTS[step]) {
+            step++;
+            stepAttempts = 0;
+        }
+        if (step > ACTION_RESCAN) {
+            giveUp(now);
+            return;
+        }
+        stepAttempts++;
+        pendingAction = step;
+        long delay = ACTION_DELAYS[step] << (stepAttempts - 1);
+        actionTime = now + delay;
+        setState(WAITING, now);
+        if (delay == 0) {
+            act(step, now);
+        }
+    }
+
+    private void act(int action, long now) {
+        actionCounts[action]++;
+        switch (action) {
+            case ACTION_RETRY:
+                setState(CONNECTING, now);
+                transport.connect(false);
+                break;
+            case ACTION_RECREATE:
+                setState(CONNECTING, now);
+                transport.connect(true);
+                break;
+            case ACTION_REFRESH:
+                transport.refreshCache();
+                if (connected) {
+                    setState(DISCOVERING, now);
+                    transport.discoverServices();
+                } else {
+                    setState(CONNECTING, now);
+                    transport.connect(true);
+                }
+                break;
+            default:
+                setState(SCANNING, now);
+                transport.rescan();
+                break;
+        }
+    }
+
+    private void giveUp(long now) {
+        if (recovering) {
+            recovering = false;
+        } else {
+            episodes++;
+        }
+        gaveUp++;
+        setState(IDLE, now);
+        transport.giveUp(lastClass, lastStatus);
+    }
+
+    private void setState(int state, long now) {
+        this.state = state;
+        stateSince = now;
+    }
+
+    private void recordRecovery(long millis) {
+        recoverTimes[(int) (recoverCount++ % RECOVERY_WINDOW)] = millis;
+    }
+
+    /**
+     * @return The q quantile (0..1) of the last RECOVERY_WINDOW recovery times in ms, or -1
+     * before any recovery.
+     */
+    public synchronized long getRecoveryTime(double q) {
+        if (recoverCount == 0) {
+            return -1;
+        }
+        int n = (int) Math.min(recoverCount, RECOVERY_WINDOW);
+        long[] sorted = new long[n];
+        System.arraycopy(recoverTimes, 0, sorted, 0, n);
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(n - 1, Math.floor(q * n))];
+    }
+
+    public synchronized long getRecoveredCount() {
+        return recoverCount;
+    }
+
+    public synchronized long getGaveUpCount() {
+        return gaveUp;
+    }
+
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "episodes %d, recovered %d, gave up %d, time to recover p50 %d ms, p95 %d ms, max %d ms",
+                episodes, recoverCount, gaveUp, getRecoveryTime(0.5), getRecoveryTime(0.95),
+                getRecoveryTime(1)));
+        sb.append("\n  failures:");
+        for (int i = 0; i < CLASS_NAMES.length; i++) {
+            sb.append(' ').append(CLASS_NAMES[i]).append(' ').append(classCounts[i]);
+        }
+        sb.append("\n  actions (recovered by):");
+        for (int i = 0; i < ACTION_NAMES.length; i++) {
+            sb.append(' ').append(ACTION_NAMES[i]).append(' ').append(actionCounts[i])
+                    .append(" (").append(recoveredBy[i]).append(')');
+        }
+        return sb.toString();
+    }
+}
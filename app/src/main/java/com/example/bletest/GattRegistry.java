@@ -0,0 +1,223 @@
+package com.example.bletest;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Characteristic lookup per device, built once after service discovery.
+ *
+ * The first connection walks the service tree and records which characteristics the device
+ * has in gatt_AABBCCDDEEFF.txt. Later connections resolve those directly by UUID, falling
+ * back to a walk if the device layout no longer matches. Each characteristic gets its
+ * pipeline decoder index up front so notifications are dispatched without comparing UUIDs.
+ * Android only hands out characteristics after discoverServices(), so the stored layout saves
+ * the tree walk and the decoder lookups, not the discovery itself.
+ */
+public class GattRegistry {
+    public static final UUID UUID_GENERIC_ATTRIBUTE = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
+    public static final UUID UUID_SERVICE_CHANGED = UUID.fromString("00002a05-0000-1000-8000-00805f9b34fb");
+
+    /**
+     * Resolved characteristics of one connected device.
+     */
+    public static class DeviceLayout {
+        private final HashMap<UUID, BluetoothGattCharacteristic> byUuid =
+                new HashMap<UUID, BluetoothGattCharacteristic>();
+        private final IdentityHashMap<BluetoothGattCharacteristic, Integer> decoders =
+                new IdentityHashMap<BluetoothGattCharacteristic, Integer>();
+        private final List<String> entries = new ArrayList<String>();
+        final boolean fromCache;
+
+        DeviceLayout(boolean fromCache) {
+            this.fromCache = fromCache;
+        }
+
+        void add(UUID service, BluetoothGattCharacteristic c) {
+            byUuid.put(c.getUuid(), c);
+            decoders.put(c, SensorPipeline.decoderFor(c.getUuid()));
+            entries.add(service + "/" + c.getUuid());
+        }
+
+        /**
+         * @return The characteristic with the UUID, or null if the device has none.
+         */
+        public BluetoothGattCharacteristic get(UUID uuid) {
+            return byUuid.get(uuid);
+        }
+
+        public int decoderFor(BluetoothGattCharacteristic c) {
+            Integer decoder = decoders.get(c);
+            return decoder != null ? decoder : SensorPipeline.decoderFor(c.getUuid());
+        }
+
+        public int size() {
+            return byUuid.size();
+        }
+    }
+
+    private static final String PREFIX = "gatt_";
+    private static final String SUFFIX = ".txt";
+
+    private final File directory;
+    // Stored layouts read so far, by address.
+    private final ConcurrentHashMap<String, List<String>> stored =
+            new ConcurrentHashMap<String, List<String>>();
+
+    public GattRegistry(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads every stored layout so the first connection does not wait for the disk.
+     */
+    public void preload() {
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                String hex = name.substring(PREFIX.length(), name.length() - SUFFIX.length());
+                if (hex.length() != 12) {
+                    continue;
+                }
+                StringBuilder address = new StringBuilder(17);
+                for (int i = 0; i < 12; i += 2) {
+                    if (i > 0) {
+                        address.append(':');
+                    }
+                    address.append(hex, i, i + 2);
+                }
+                load(address.toString());
+            }
+        }
+    }
+
+    /**
+     * @return Addresses of the devices with a stored layout read so far.
+     */
+    public Set<String> getKnownAddresses() {
+        return stored.keySet();
+    }
+
+    /**
+     * Builds the layout of the device. Call after service discovery completed successfully.
+     */
+    public DeviceLayout resolve(String address, BluetoothGatt gatt) {
+        List<String> known = load(address);
+        if (known != null) {
+            DeviceLayout layout = resolveKnown(gatt, known);
+            if (layout != null) {
+                return layout;
+            }
+        }
+
+        DeviceLayout layout = new DeviceLayout(false);
+        for (BluetoothGattService s : gatt.getServices()) {
+            for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
+                layout.add(s.getUuid(), c);
+            }
+        }
+        save(address, layout.entries);
+        return layout;
+    }
+
+    /**
+     * Forgets the stored layout, e.g. after the device signalled a service change.
+     */
+    public void invalidate(String address) {
+        if (address != null) {
+            stored.remove(address);
+            fileFor(address).delete();
+        }
+    }
+
+    private DeviceLayout resolveKnown(BluetoothGatt gatt, List<String> known) {
+        DeviceLayout layout = new DeviceLayout(true);
+        for (String entry : known) {
+            int slash = entry.indexOf('/');
+            try {
+                UUID serviceUuid = UUID.fromString(entry.substring(0, slash));
+                BluetoothGattService s = gatt.getService(serviceUuid);
+                BluetoothGattCharacteristic c = s == null ? null
+                        : s.getCharacteristic(UUID.fromString(entry.substring(slash + 1)));
+                if (c == null) {
+                    return null;
+                }
+                layout.add(serviceUuid, c);
+            } catch (RuntimeException e) {
+                // Malformed entry, treat the file as stale.
+                return null;
+            }
+        }
+        return layout;
+    }
+
+    private File fileFor(String address) {
+        return new File(directory, PREFIX + address.replace(":", "") + SUFFIX);
+    }
+
+    private List<String> load(String address) {
+        List<String> cached = stored.get(address);
+        if (cached != null) {
+            return cached;
+        }
+        File file = fileFor(address);
+        if (!file.exists()) {
+            return null;
+        }
+        List<String> entries = new ArrayList<String>();
+        try {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > 0) {
+                        entries.add(line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        stored.put(address, entries);
+        return entries;
+    }
+
+    private void save(String address, List<String> entries) {
+        stored.put(address, entries);
+        try {
+            FileWriter out = new FileWriter(fileFor(address));
+            try {
+                for (String entry : entries) {
+                    out.write(entry);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.bletest;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Pipeline sink that keeps a {@link DeviceHealth} per device and reports when a device's
+ * anomaly score crosses the alarm threshold, and again when it recovers.
+ */
+public class HealthMonitor implements SensorPipeline.Sink {
+    public static final double ALARM_SCORE = 0.8;
+    public static final double CLEAR_SCORE = 0.5;
+
+    public interface Listener {
+        void onAnomaly(DeviceHealth health);
+
+        void onRecovered(DeviceHealth health);
+    }
+
+    private final HashMap<String, DeviceHealth> devices = new HashMap<String, DeviceHealth>();
+    private Listener listener;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized DeviceHealth getHealth(String address) {
+        return devices.get(address);
+    }
+
+    @Override
+    public synchronized void onPressure(String address, long timestamp, int raw, float mbar) {
+        DeviceHealth h = healthFor(address);
+        h.onFrame(timestamp, false, raw);
+        check(h);
+    }
+
+    @Override
+    public synchronized void onInvalidFrame(String address, long timestamp, UUID uuid) {
+        DeviceHealth h = healthFor(address);
+        h.onFrame(timestamp, true, 0);
+        check(h);
+    }
+
+    @Override
+    public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+    }
+
+    public synchronized void onRssi(String address, int rssi) {
+        DeviceHealth h = healthFor(address);
+        h.onRssi(rssi);
+        check(h);
+    }
+
+    private DeviceHealth healthFor(String address) {
+        DeviceHealth h = devices.get(address);
+        if (h == null) {
+            h = new DeviceHealth(address);
+            devices.put(address, h);
+        }
+        return h;
+    }
+
+    private void check(DeviceHealth h) {
+        if (!h.alarmed && h.score >= ALARM_SCORE) {
+            h.alarmed = true;
+            if (listener != null) {
+                listener.onAnomaly(h);
+            }
+        } else if (h.alarmed && h.score < CLEAR_SCORE) {
+            h.alarmed = false;
+            if (listener != null) {
+                listener.onRecovered(h);
+            }
+        }
+    }
+
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        for (DeviceHealth h : devices.values()) {
+            sb.append(h).append('\n');
+        }
+        return sb.toString();
+    }
+}
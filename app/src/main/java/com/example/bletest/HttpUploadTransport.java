@@ -0,0 +1,62 @@
+package com.example.bletest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Posts upload batches to a collector: the body is the gzip data, the file name and the byte
+ * offset of the batch go in the X-Segment and X-Offset headers. Any 2xx answer accepts the
+ * batch; a collector that already has the bytes should accept them again.
+ */
+public class HttpUploadTransport implements UploadQueue.Transport {
+    private static final int TIMEOUT = 30 * 1000;
+
+    private final URL endpoint;
+    private final String deviceId;
+
+    /**
+     * @param deviceId Sent as X-Device so the collector can keep phones apart.
+     */
+    public HttpUploadTransport(URL endpoint, String deviceId) {
+        this.endpoint = endpoint;
+        this.deviceId = deviceId;
+    }
+
+    @Override
+    public boolean send(String segment, long offset, byte[] gzipBody) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(gzipBody.length);
+            connection.setRequestProperty("Content-Type", "text/plain");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Device", deviceId);
+            connection.setRequestProperty("X-Segment", segment);
+            connection.setRequestProperty("X-Offset", String.valueOf(offset));
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(gzipBody);
+            } finally {
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            // Drain the answer so the connection can be reused.
+            InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] skip = new byte[512];
+                while (in.read(skip) >= 0) {
+                }
+                in.close();
+            }
+            return code >= 200 && code < 300;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads one {@link SampleLog} line from a byte buffer without allocating:
+ * "yyyy-MM-dd HH:mm:ss, millis, raw[, mbar, address]". The date column is skipped, since
+ * millis has the same time. Lines of older files have no mbar and address; for them
+ * {@link #mbar} is NaN and {@link #hasAddress()} false.
+ *
+ * The fields are valid until the next parse(); the address stays in the buffer.
+ */
+public class LogLineParser {
+    private static final int READ_BUFFER = 64 * 1024;
+
+    public interface Handler {
+        /**
+         * Called for each sample line; the parser is reused for the next one.
+         *
+         * @return False to stop reading.
+         */
+        boolean onLine(LogLineParser line);
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15,
+            1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+
+    public long millis;
+    public int raw;
+    public double mbar;
+
+    private byte[] buffer;
+    private int addressOffset;
+    private int addressLength;
+
+    /**
+     * Parses the line in buffer[start, end), without the line break.
+     *
+     * @return False if the line is not a sample line.
+     */
+    public boolean parse(byte[] buffer, int start, int end) {
+        this.buffer = buffer;
+        addressLength = 0;
+        mbar = Double.NaN;
+        // Date
+        int p = next(buffer, start, end);
+        if (p < 0) {
+            return false;
+        }
+        // Millis
+        int column = next(buffer, p, end);
+        long t = parseLong(buffer, p, column < 0 ? end : column);
+        if (t == Long.MIN_VALUE || column < 0) {
+            return false;
+        }
+        millis = t;
+        // Raw
+        p = column;
+        column = next(buffer, p, end);
+        long r = parseLong(buffer, p, column < 0 ? end : column);
+        if (r == Long.MIN_VALUE) {
+            return false;
+        }
+        raw = (int) r;
+        if (column < 0) {
+            return true;
+        }
+        // Mbar
+        p = column;
+        column = next(buffer, p, end);
+        mbar = parseDouble(buffer, p, column < 0 ? end : column);
+        if (column < 0) {
+            return true;
+        }
+        // Address
+        p = column;
+        int e = end;
+        while (e > p && (buffer[e - 1] == ' ' || buffer[e - 1] == '\r')) {
+            e--;
+        }
+        addressOffset = p;
+        addressLength = e - p;
+        return true;
+    }
+
+    /**
+     * Reads the sample lines that start in the byte range [start, end) of a log file, so a
+     * file can be cut into ranges read in parallel: a line crossing the end is read in full
+     * by this range, and skipped by the next.
+     *
+     * @return Number of bytes read.
+     */
+    public static long scan(File file, long start, long end, Handler handler) throws IOException {
+        LogLineParser parser = new LogLineParser();
+        byte[] buffer = new byte[READ_BUFFER];
+        long bytes = 0;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            // Start on the line break before the range, or skip the line running into it.
+            long position = start > 0 ? start - 1 : 0;
+            in.seek(position);
+            boolean skip = start > 0;
+            boolean eof = false;
+            int filled = 0;
+            read:
+            while (!eof) {
+                int n = in.read(buffer, filled, buffer.length - filled);
+                if (n < 0) {
+                    if (filled == 0) {
+                        break;
+                    }
+                    // Last line without a line break
+                    eof = true;
+                    buffer[filled] = '\n';
+                    n = 1;
+                } else {
+                    bytes += n;
+                }
+                int limit = filled + n;
+                int lineStart = 0;
+                for (int i = filled; i < limit; i++) {
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    if (skip) {
+                        skip = false;
+                    } else if (position + lineStart >= end) {
+                        break read;
+                    } else if (parser.parse(buffer, lineStart, i) && !handler.onLine(parser)) {
+                        break read;
+                    }
+                    lineStart = i + 1;
+                }
+                if (lineStart == 0 && limit == buffer.length) {
+                    // A line longer than the buffer is no sample line: drop it.
+                    lineStart = limit;
+                    skip = true;
+                }
+                // Keep the partial line for the next read.
+                System.arraycopy(buffer, lineStart, buffer, 0, limit - lineStart);
+                position += lineStart;
+                filled = limit - lineStart;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    public boolean hasAddress() {
+        return addressLength > 0;
+    }
+
+    /**
+     * @param address ASCII bytes of the address, e.g. from String.getBytes().
+     */
+    public boolean addressEquals(byte[] address) {
+        if (address.length != addressLength) {
+            return false;
+        }
+        for (int i = 0; i < addressLength; i++) {
+            if (buffer[addressOffset + i] != address[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The address, or null for lines without one. Allocates.
+     */
+    public String getAddress() {
+        return addressLength > 0 ? new String(buffer, addressOffset, addressLength) : null;
+    }
+
+    // Start of the column after the next comma, past spaces, or -1 if none. Parsers are given
+    // the range up to there and ignore the trailing comma and spaces.
+    private static int next(byte[] b, int p, int end) {
+        while (p < end && b[p] != ',') {
+            p++;
+        }
+        return p < end ? skipSpaces(b, p + 1, end) : -1;
+    }
+
+    private static int skipSpaces(byte[] b, int p, int end) {
+        while (p < end && b[p] == ' ') {
+            p++;
+        }
+        return p;
+    }
+
+    // Decimal integer up to the comma or end, or Long.MIN_VALUE if malformed.
+    private static long parseLong(byte[] b, int p, int end) {
+        while (end > p && (b[end - 1] == ' ' || b[end - 1] == ',' || b[end - 1] == '\r')) {
+            end--;
+        }
+        boolean negative = p < end && b[p] == '-';
+        if (negative) {
+            p++;
+        }
+        if (p == end) {
+            return Long.MIN_VALUE;
+        }
+        long v = 0;
+        for (; p < end; p++) {
+            int d = b[p] - '0';
+            if (d < 0 || d > 9) {
+                return Long.MIN_VALUE;
+            }
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    // Float.toString() output: digits, an optional fraction and exponent. NaN if malformed.
+    private static double parseDouble(byte[] b, int p, int end) {
+        while (end > p && (b[end - 1] == ' ' || b[end - 1] == ',' || b[end - 1] == '\r')) {
+            end--;
+        }
+        boolean negative = p < end && b[p] == '-';
+        if (negative) {
+            p++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+        for (; p < end; p++) {
+            int c = b[p];
+            if (c == '.' && !fraction) {
+                fraction = true;
+            } else if (c >= '0' && c <= '9') {
+                // Float has fewer significant digits than this.
+                if (digits < 17) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if (fraction) {
+                        scale--;
+                    }
+                } else if (!fraction) {
+                    scale++;
+                }
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return Double.NaN;
+        }
+        if (p < end && (b[p] == 'E' || b[p] == 'e')) {
+            long exponent = parseLong(b, p + 1, end);
+            if (exponent == Long.MIN_VALUE) {
+                return Double.NaN;
+            }
+            scale += (int) exponent;
+        } else if (p < end) {
+            return Double.NaN;
+        }
+        int magnitude = Math.abs(scale);
+        double power = magnitude < POWERS_OF_TEN.length ? POWERS_OF_TEN[magnitude]
+                : Math.pow(10, magnitude);
+        double v = scale >= 0 ? mantissa * power : mantissa / power;
+        return negative ? -v : v;
+    }
+}
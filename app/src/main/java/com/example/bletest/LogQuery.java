@@ -0,0 +1,367 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Aggregates the pressure samples of the daily {@link SampleLog} files over a time range in
+ * buckets of a fixed length: count, min, max, mean and percentiles per bucket, for one device
+ * or all of them.
+ *
+ * The day files overlapping the range are cut into chunks of {@link #CHUNK_BYTES}, which are
+ * scanned in parallel on a thread pool with {@link LogLineParser#scan}, and the partial
+ * buckets are merged in chunk order. Percentiles come from a histogram with bins of
+ * {@link #setResolution} per bucket, so they are exact to half a bin. Run it off the main
+ * thread. Run on a JVM over pulled logs with {@link LogQueryTool}.
+ */
+public class LogQuery {
+    public static final int FIELD_MBAR = 0;
+    public static final int FIELD_RAW = 1;
+
+    static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    // Histogram size limit per bucket, 4 MB
+    private static final int MAX_BINS = 1 << 20;
+    // Lines come in arrival order, which may run a little behind the sample times.
+    private static final long ORDER_SLACK = 60000;
+    private static final String PREFIX = "log_state_change_";
+    private static final String SUFFIX = ".txt";
+
+    /**
+     * Aggregates of the samples in [start, start + bucket length).
+     */
+    public static class Bucket {
+        public final long start;
+        public long count = 0;
+        public double min = Double.POSITIVE_INFINITY;
+        public double max = Double.NEGATIVE_INFINITY;
+        public double sum = 0;
+
+        private final double resolution;
+        // Histogram bins from firstBin on, grown as values arrive
+        private int[] bins = new int[16];
+        private long firstBin = Long.MIN_VALUE;
+
+        Bucket(long start, double resolution) {
+            this.start = start;
+            this.resolution = resolution;
+        }
+
+        void add(double value) {
+            count++;
+            sum += value;
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+            addBin((long) Math.floor(value / resolution), 1);
+        }
+
+        private void addBin(long bin, int n) {
+            if (firstBin == Long.MIN_VALUE) {
+                firstBin = bin - bins.length / 2;
+            }
+            if (bin < firstBin || bin >= firstBin + bins.length) {
+                long first = Math.min(firstBin, bin);
+                long last = Math.max(firstBin + bins.length, bin + 1);
+                if (last - first > MAX_BINS) {
+                    // A stray value far off: count it in the edge bin, min and max stay exact.
+                    bins[bin < firstBin ? 0 : bins.length - 1] += n;
+                    return;
+                }
+                int size = bins.length;
+                while (size < last - first) {
+                    size *= 2;
+                }
+                // Leave room on the side that grew.
+                long newFirst = bin < firstBin ? last - size : first;
+                int[] grown = new int[size];
+                System.arraycopy(bins, 0, grown, (int) (firstBin - newFirst), bins.length);
+                bins = grown;
+                firstBin = newFirst;
+            }
+            bins[(int) (bin - firstBin)] += n;
+        }
+
+        void merge(Bucket other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            for (int i = 0; i < other.bins.length; i++) {
+                if (other.bins[i] != 0) {
+                    addBin(other.firstBin + i, other.bins[i]);
+                }
+            }
+        }
+
+        public double mean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        /**
+         * @return The value below which the fraction q of the samples lie, to half a bin.
+         */
+        public double quantile(double q) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < bins.length; i++) {
+                seen += bins[i];
+                if (seen >= rank) {
+                    double center = (firstBin + i + 0.5) * resolution;
+                    return Math.max(min, Math.min(max, center));
+                }
+            }
+            return max;
+        }
+    }
+
+    // A byte range of a day file; lines belong to the range they start in.
+    private static class Chunk {
+        final File file;
+        final long start;
+        final long end;
+
+        Chunk(File file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final File directory;
+    private byte[] device;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+    private long bucketLength = 60 * 60 * 1000;
+    private long origin = 0;
+    private int field = FIELD_MBAR;
+    private double resolution = 0.01;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private long lines = 0;
+    private long matched = 0;
+    private long bytes = 0;
+    private long elapsedMillis = 0;
+
+    public LogQuery(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Only samples of this device, or of all devices if null. Lines of older files have no
+     * address and only count for all devices.
+     */
+    public LogQuery setDevice(String address) {
+        device = address != null ? address.getBytes() : null;
+        return this;
+    }
+
+    /**
+     * Samples in [from, to); buckets start at from.
+     */
+    public LogQuery setRange(long fromMillis, long toMillis) {
+        from = fromMillis;
+        to = toMillis;
+        origin = fromMillis != Long.MIN_VALUE ? fromMillis : 0;
+        return this;
+    }
+
+    public LogQuery setBucket(long millis) {
+        bucketLength = millis;
+        return this;
+    }
+
+    /**
+     * Aggregates the filtered value in mbar (FIELD_MBAR, the default) or the raw sensor value
+     * (FIELD_RAW). Older files only have the raw value.
+     */
+    public LogQuery setField(int field) {
+        this.field = field;
+        return this;
+    }
+
+    /**
+     * Width of the percentile histogram bins, in the unit of the field.
+     */
+    public LogQuery setResolution(double resolution) {
+        this.resolution = resolution;
+        return this;
+    }
+
+    public LogQuery setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * @return Buckets with at least one sample, in time order.
+     */
+    public List<Bucket> run() throws IOException {
+        long startTime = System.currentTimeMillis();
+        synchronized (this) {
+            lines = matched = bytes = 0;
+        }
+        List<Chunk> chunks = split(listFiles());
+        TreeMap<Long, Bucket> buckets;
+        if (parallelism == 1 || chunks.size() < 2) {
+            buckets = new TreeMap<Long, Bucket>();
+            for (Chunk c : chunks) {
+                merge(buckets, scan(c));
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()));
+            try {
+                List<Future<TreeMap<Long, Bucket>>> scans = new ArrayList<Future<TreeMap<Long, Bucket>>>();
+                for (final Chunk c : chunks) {
+                    scans.add(pool.submit(new Callable<TreeMap<Long, Bucket>>() {
+                        @Override
+                        public TreeMap<Long, Bucket> call() throws IOException {
+                            return scan(c);
+                        }
+                    }));
+                }
+                buckets = new TreeMap<Long, Bucket>();
+                for (Future<TreeMap<Long, Bucket>> f : scans) {
+                    merge(buckets, f.get());
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        elapsedMillis = System.currentTimeMillis() - startTime;
+        return new ArrayList<Bucket>(buckets.values());
+    }
+
+    private static void merge(TreeMap<Long, Bucket> into, TreeMap<Long, Bucket> from) {
+        for (Map.Entry<Long, Bucket> e : from.entrySet()) {
+            Bucket b = into.get(e.getKey());
+            if (b == null) {
+                into.put(e.getKey(), e.getValue());
+            } else {
+                b.merge(e.getValue());
+            }
+        }
+    }
+
+    // Day files that may hold samples of the range, oldest first.
+    private List<File> listFiles() {
+        List<File> result = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files);
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        Calendar cal = Calendar.getInstance();
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                Date day = df.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                cal.setTime(day);
+                long dayStart = cal.getTimeInMillis();
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+                if (dayStart < to && cal.getTimeInMillis() > from) {
+                    result.add(f);
+                }
+            } catch (ParseException e) {
+                // Not a day file, e.g. a recalibrated copy.
+            }
+        }
+        return result;
+    }
+
+    private static List<Chunk> split(List<File> files) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        for (File f : files) {
+            long length = f.length();
+            for (long start = 0; start < length; start += CHUNK_BYTES) {
+                chunks.add(new Chunk(f, start, Math.min(length, start + CHUNK_BYTES)));
+            }
+        }
+        return chunks;
+    }
+
+    private TreeMap<Long, Bucket> scan(Chunk chunk) throws IOException {
+        ChunkScan scan = new ChunkScan();
+        long chunkBytes = LogLineParser.scan(chunk.file, chunk.start, chunk.end, scan);
+        synchronized (this) {
+            lines += scan.lines;
+            matched += scan.matched;
+            bytes += chunkBytes;
+        }
+        return scan.buckets;
+    }
+
+    private class ChunkScan implements LogLineParser.Handler {
+        final TreeMap<Long, Bucket> buckets = new TreeMap<Long, Bucket>();
+        Bucket bucket = null;
+        long lines = 0;
+        long matched = 0;
+
+        @Override
+        public boolean onLine(LogLineParser line) {
+            lines++;
+            long t = line.millis;
+            if (t - ORDER_SLACK > to) {
+                return false;
+            }
+            double value = field == FIELD_RAW ? line.raw : line.mbar;
+            if (t >= from && t < to && !Double.isNaN(value)
+                    && (device == null || line.addressEquals(device))) {
+                long start = origin + floorDiv(t - origin, bucketLength) * bucketLength;
+                if (bucket == null || bucket.start != start) {
+                    bucket = buckets.get(start);
+                    if (bucket == null) {
+                        bucket = new Bucket(start, resolution);
+                        buckets.put(start, bucket);
+                    }
+                }
+                bucket.add(value);
+                matched++;
+            }
+            return true;
+        }
+    }
+
+    private static long floorDiv(long a, long b) {
+        long q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    public synchronized String report() {
+        return String.format(Locale.US, "%d sample lines, %d matched, %.1f MB in %d ms (%.0f MB/s)",
+                lines, matched, bytes / 1e6, elapsedMillis,
+                elapsedMillis > 0 ? bytes / 1e3 / elapsedMillis : 0);
+    }
+}
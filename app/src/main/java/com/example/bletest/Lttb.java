@@ -0,0 +1,75 @@
+package com.example.bletest;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling: keeps the first and last point and, from each
+ * bucket in between, the point forming the largest triangle with the point kept before it and
+ * the average of the next bucket. Peaks and dips survive, unlike plain averaging or striding.
+ */
+public final class Lttb {
+    private Lttb() {
+    }
+
+    /**
+     * Picks at most threshold of the n points (x ascending). Allocates nothing.
+     *
+     * @return Number of points written to outX and outY.
+     */
+    public static int downsample(float[] x, float[] y, int n, int threshold,
+                                 float[] outX, float[] outY) {
+        if (threshold >= n || n < 3) {
+            System.arraycopy(x, 0, outX, 0, n);
+            System.arraycopy(y, 0, outY, 0, n);
+            return n;
+        }
+        if (threshold < 3) {
+            outX[0] = x[0];
+            outY[0] = y[0];
+            outX[1] = x[n - 1];
+            outY[1] = y[n - 1];
+            return 2;
+        }
+
+        // Buckets of the points between the first and the last one.
+        double every = (double) (n - 2) / (threshold - 2);
+        int a = 0;
+        int out = 0;
+        outX[out] = x[0];
+        outY[out++] = y[0];
+
+        for (int i = 0; i < threshold - 2; i++) {
+            int avgStart = (int) ((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) ((i + 2) * every) + 1, n);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += x[j];
+                avgY += y[j];
+            }
+            int avgCount = avgEnd - avgStart;
+            avgX /= avgCount;
+            avgY /= avgCount;
+
+            int from = (int) (i * every) + 1;
+            int to = (int) ((i + 1) * every) + 1;
+            double ax = x[a];
+            double ay = y[a];
+            double maxArea = -1;
+            int next = from;
+            for (int j = from; j < to; j++) {
+                // Twice the triangle area; only the comparison matters.
+                double area = Math.abs((ax - avgX) * (y[j] - ay) - (ax - x[j]) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            outX[out] = x[next];
+            outY[out++] = y[next];
+            a = next;
+        }
+
+        outX[out] = x[n - 1];
+        outY[out++] = y[n - 1];
+        return out;
+    }
+}
@@ -4,6 +4,7 @@ package com.example.bletest;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -11,6 +12,15 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
 
 public class MainActivity extends Activity implements BluetoothListener {
 
@@ -19,16 +29,27 @@ public class MainActivity extends Activity implements BluetoothListener {
 	private BluetoothLE ble = null;
     MainActivity mainActivity = this;
     private EditText et_device;
+    private PressureChartView chart;
+    private UploadQueue uploadQueue;
+
+    // Collector URL in the "upload" preferences; uploading is off while it is unset.
+    private static final String PREFS_UPLOAD = "upload";
+    private static final String PREF_ENDPOINT = "endpoint";
+    private static final String PREF_DEVICE_ID = "device_id";
+    // Traces of earlier launches kept next to the new one, each at most 2 * Trace.DEFAULT_MAX_BYTES
+    private static final int KEEP_TRACES = 3;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		StartupTimer.begin();
 		setContentView(R.layout.activity_main);
 
         
         Button buttonStart = (Button)findViewById(R.id.buttonStart);
         
         et_device = (EditText)findViewById(R.id.device_name);
+        chart = (PressureChartView)findViewById(R.id.pressure_chart);
         
         buttonStart.setOnClickListener(new View.OnClickListener() {
 
@@ -65,15 +86,76 @@ public class MainActivity extends Activity implements BluetoothListener {
         //setBluetooth(true);
 
         MainStorage.setActivity(this);
+        startTrace();
+        // Adapter, service and stored device data are ready before Start is pressed.
+        BluetoothLE.warmUp(this);
+        StartupTimer.mark(StartupTimer.ACTIVITY_CREATED);
 
+        startUpload();
 	}
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        Log.i(TAG, "Chart: " + chart.getFrameStats().report());
         if(ble != null) {
             ble.bleDisconnect();
         }
+        if (uploadQueue != null) {
+            uploadQueue.stop();
+        }
+        BluetoothLE.coolDown(this);
+        Trace.stop();
+    }
+
+    private void startTrace() {
+        File directory = MainStorage.getMainStorageDirectory();
+        // The names sort by date; delete all but the newest few, rotated parts included.
+        String[] names = directory.list();
+        if (names != null) {
+            Arrays.sort(names);
+            int traces = 0;
+            for (int i = names.length - 1; i >= 0; i--) {
+                if (names[i].startsWith("trace_") && names[i].endsWith(".bin") && ++traces > KEEP_TRACES) {
+                    new File(directory, names[i]).delete();
+                    new File(directory, names[i] + ".1").delete();
+                }
+            }
+        }
+        String stamp = new SimpleDateFormat("yyyy-MM-dd_HHmmss").format(new Date());
+        File file = new File(directory, "trace_" + stamp + ".bin");
+        try {
+            Trace.start(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to start trace", e);
+        }
+    }
+
+    private void startUpload() {
+        SharedPreferences prefs = getSharedPreferences(PREFS_UPLOAD, MODE_PRIVATE);
+        String endpoint = prefs.getString(PREF_ENDPOINT, null);
+        if (endpoint == null) {
+            return;
+        }
+        String deviceId = prefs.getString(PREF_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            // apply() is API 9; commit() writes the file, so not on the UI thread.
+            final SharedPreferences.Editor editor = prefs.edit().putString(PREF_DEVICE_ID, deviceId);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    editor.commit();
+                }
+            }).start();
+        }
+        try {
+            uploadQueue = new UploadQueue(MainStorage.getMainStorageDirectory(),
+                    new HttpUploadTransport(new URL(endpoint), deviceId), UploadQueue.DEFAULT_DISK_CAP);
+            uploadQueue.start();
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Invalid upload endpoint " + endpoint, e);
+        }
     }
 
 
@@ -134,6 +216,9 @@ public class MainActivity extends Activity implements BluetoothListener {
     public void bleConnected() {
     	Toast.makeText(this, "BLE connected", Toast.LENGTH_SHORT).show();
         Log.i(TAG, "BLE connected");
+        if(ble != null) {
+            chart.setHistory(ble.getSampleHistory());
+        }
     }
 
     @Override
@@ -180,4 +265,23 @@ public class MainActivity extends Activity implements BluetoothListener {
 		// TODO Auto-generated method stub
 		
 	}
+
+    @Override
+    public void blePressureSamples(PressureBatch batch) {
+    }
+
+    @Override
+    public void bleMotionSamples(MotionBatch batch) {
+    }
+
+    @Override
+    public void bleSensorAnomaly(String address, double score, String reason) {
+        Toast.makeText(this, "Sensor problem: " + reason, Toast.LENGTH_SHORT).show();
+        Log.w(TAG, "Sensor anomaly " + address + ": " + reason + " (" + score + ")");
+    }
+
+    @Override
+    public void bleSensorRecovered(String address) {
+        Log.i(TAG, "Sensor recovered " + address);
+    }
 }
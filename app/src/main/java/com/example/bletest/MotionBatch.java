@@ -0,0 +1,49 @@
+package com.example.bletest;
+
+/**
+ * A batch of IMU samples from one device, stored as primitive arrays.
+ *
+ * Each sensor is a {@link Vec3Buffer} (struct of arrays), so a listener can run its block
+ * kernels, e.g. the norm or running mean, over the whole batch. Only the first {@link #count}
+ * samples are valid. Batches are recycled once the listener callback returns, so copy
+ * anything that has to outlive the callback.
+ */
+public class MotionBatch {
+    public String address;
+    public int count;
+
+    /* Arrival time in ms */
+    public final long[] timestamps;
+    /* Accelerometer in G */
+    public final Vec3Buffer acc;
+    /* Gyroscope in deg/s */
+    public final Vec3Buffer gyro;
+    /* Magnetometer in uT */
+    public final Vec3Buffer mag;
+
+    public MotionBatch(int capacity) {
+        timestamps = new long[capacity];
+        acc = new Vec3Buffer(capacity);
+        gyro = new Vec3Buffer(capacity);
+        mag = new Vec3Buffer(capacity);
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    void add(long timestamp, Point3D a, Point3D g, Point3D m) {
+        timestamps[count] = timestamp;
+        acc.add(a.x, a.y, a.z);
+        gyro.add(g.x, g.y, g.z);
+        mag.add(m.x, m.y, m.z);
+        count++;
+    }
+
+    void clear() {
+        count = 0;
+        acc.clear();
+        gyro.clear();
+        mag.clear();
+    }
+}
@@ -0,0 +1,183 @@
+package com.example.bletest;
+
+/**
+ * Madgwick gradient descent orientation filter for one IMU.
+ *
+ * Each {@link #update} integrates the gyroscope and corrects the drift towards the attitude
+ * implied by gravity (accelerometer) and, when present, the earth field (magnetometer).
+ * All state lives in fields, so updating does not allocate.
+ *
+ * Quaternion q0..q3 is the sensor attitude relative to the earth frame (x north, z up), q0
+ * being the scalar part; a sensor turned 90 degrees about z has q = (cos 45, 0, 0, sin 45).
+ */
+public class OrientationFilter {
+    /* Default filter gain, Madgwick's suggestion for MARG sensors */
+    public static final double DEFAULT_BETA = 0.1;
+
+    private static final double DEG_TO_RAD = Math.PI / 180.0;
+
+    private final double beta;
+
+    public double q0 = 1, q1 = 0, q2 = 0, q3 = 0;
+
+    /* Acceleration without gravity in G, sensor frame */
+    public double linearX, linearY, linearZ;
+
+    /* Euler angles in degrees; heading is in [0, 360) */
+    public double roll, pitch, heading;
+
+    private long updates = 0;
+    private long updateNanos = 0;
+
+    public OrientationFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    public OrientationFilter(double beta) {
+        this.beta = beta;
+    }
+
+    public void reset() {
+        q0 = 1;
+        q1 = q2 = q3 = 0;
+    }
+
+    /**
+     * @param ax Accelerometer in G
+     * @param gx Gyroscope in deg/s
+     * @param mx Magnetometer in any unit, all zero if not available
+     * @param dt Time since the previous update in seconds
+     */
+    public void update(double ax, double ay, double az,
+                       double gx, double gy, double gz,
+                       double mx, double my, double mz, double dt) {
+        long start = System.nanoTime();
+        double rawAx = ax, rawAy = ay, rawAz = az;
+
+        gx *= DEG_TO_RAD;
+        gy *= DEG_TO_RAD;
+        gz *= DEG_TO_RAD;
+
+        // Rate of change of quaternion from gyroscope
+        double qDot1 = 0.5 * (-q1 * gx - q2 * gy - q3 * gz);
+        double qDot2 = 0.5 * (q0 * gx + q2 * gz - q3 * gy);
+        double qDot3 = 0.5 * (q0 * gy - q1 * gz + q3 * gx);
+        double qDot4 = 0.5 * (q0 * gz + q1 * gy - q2 * gx);
+
+        if (!(ax == 0 && ay == 0 && az == 0)) {
+            double recipNorm = 1 / Math.sqrt(ax * ax + ay * ay + az * az);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            double s0, s1, s2, s3;
+            double q0q0 = q0 * q0, q1q1 = q1 * q1, q2q2 = q2 * q2, q3q3 = q3 * q3;
+            double _2q0 = 2 * q0, _2q1 = 2 * q1, _2q2 = 2 * q2, _2q3 = 2 * q3;
+
+            if (mx == 0 && my == 0 && mz == 0) {
+                // Gradient step on gravity only
+                double _4q0 = 4 * q0, _4q1 = 4 * q1, _4q2 = 4 * q2;
+                double _8q1 = 8 * q1, _8q2 = 8 * q2;
+                s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+                s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay - _4q1
+                        + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+                s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2
+                        + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+                s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+            } else {
+                recipNorm = 1 / Math.sqrt(mx * mx + my * my + mz * mz);
+                mx *= recipNorm;
+                my *= recipNorm;
+                mz *= recipNorm;
+
+                double _2q0mx = 2 * q0 * mx, _2q0my = 2 * q0 * my, _2q0mz = 2 * q0 * mz;
+                double _2q1mx = 2 * q1 * mx;
+                double _2q0q2 = 2 * q0 * q2, _2q2q3 = 2 * q2 * q3;
+                double q0q1 = q0 * q1, q0q2 = q0 * q2, q0q3 = q0 * q3;
+                double q1q2 = q1 * q2, q1q3 = q1 * q3, q2q3 = q2 * q3;
+
+                // Reference direction of the earth field
+                double hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2
+                        + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+                double hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1
+                        + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+                double _2bx = Math.sqrt(hx * hx + hy * hy);
+                double _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1
+                        + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+                double _4bx = 2 * _2bx, _4bz = 2 * _2bz;
+
+                double fx = _2bx * (0.5 - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+                double fy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+                double fz = _2bx * (q0q2 + q1q3) + _2bz * (0.5 - q1q1 - q2q2) - mz;
+                double ga = 2 * q1q3 - _2q0q2 - ax;
+                double gb = 2 * q0q1 + _2q2q3 - ay;
+                double gc = 1 - 2 * q1q1 - 2 * q2q2 - az;
+
+                s0 = -_2q2 * ga + _2q1 * gb - _2bz * q2 * fx + (-_2bx * q3 + _2bz * q1) * fy
+                        + _2bx * q2 * fz;
+                s1 = _2q3 * ga + _2q0 * gb - 4 * q1 * gc + _2bz * q3 * fx
+                        + (_2bx * q2 + _2bz * q0) * fy + (_2bx * q3 - _4bz * q1) * fz;
+                s2 = -_2q0 * ga + _2q3 * gb - 4 * q2 * gc + (-_4bx * q2 - _2bz * q0) * fx
+                        + (_2bx * q1 + _2bz * q3) * fy + (_2bx * q0 - _4bz * q2) * fz;
+                s3 = _2q1 * ga + _2q2 * gb + (-_4bx * q3 + _2bz * q1) * fx
+                        + (-_2bx * q0 + _2bz * q2) * fy + _2bx * q1 * fz;
+            }
+
+            double norm = Math.sqrt(s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3);
+            if (norm > 0) {
+                recipNorm = 1 / norm;
+                qDot1 -= beta * s0 * recipNorm;
+                qDot2 -= beta * s1 * recipNorm;
+                qDot3 -= beta * s2 * recipNorm;
+                qDot4 -= beta * s3 * recipNorm;
+            }
+        }
+
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+        double recipNorm = 1 / Math.sqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 *= recipNorm;
+        q1 *= recipNorm;
+        q2 *= recipNorm;
+        q3 *= recipNorm;
+
+        updateOutputs(rawAx, rawAy, rawAz);
+
+        updateNanos += System.nanoTime() - start;
+        updates++;
+    }
+
+    private void updateOutputs(double ax, double ay, double az) {
+        // Gravity direction in the sensor frame
+        double vx = 2 * (q1 * q3 - q0 * q2);
+        double vy = 2 * (q0 * q1 + q2 * q3);
+        double vz = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+        if (ax == 0 && ay == 0 && az == 0) {
+            linearX = linearY = linearZ = 0;
+        } else {
+            linearX = ax - vx;
+            linearY = ay - vy;
+            linearZ = az - vz;
+        }
+
+        roll = Math.toDegrees(Math.atan2(q0 * q1 + q2 * q3, 0.5 - q1 * q1 - q2 * q2));
+        pitch = Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, -2 * (q1 * q3 - q0 * q2)))));
+        heading = Math.toDegrees(Math.atan2(q1 * q2 + q0 * q3, 0.5 - q2 * q2 - q3 * q3));
+        if (heading < 0) {
+            heading += 360;
+        }
+    }
+
+    public long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * @return Updates per second of pure filter time, i.e. the throughput of the loop.
+     */
+    public double getUpdatesPerSecond() {
+        return updateNanos > 0 ? updates * 1e9 / updateNanos : 0;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records raw characteristic notifications to a capture file so they can be replayed later
+ * with {@link PacketReplay}.
+ *
+ * Records are copied straight from the characteristic value into a preallocated direct buffer
+ * which is written to the file channel when it fills up, every FLUSH_RECORDS records, every
+ * FLUSH_INTERVAL ms while records wait, and on {@link #flush()}; a crash loses at most that
+ * much of the tail.
+ *
+ * File layout (big endian): int MAGIC, int VERSION, then per record
+ * long timestamp, long uuid msb, long uuid lsb, 6 bytes address, short length, payload.
+ */
+public class PacketCapture {
+    public static final int MAGIC = 0x424C4543; // "BLEC"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    public static final int FLUSH_RECORDS = 256;
+    public static final long FLUSH_INTERVAL = 1000;
+
+    static final int ADDRESS_LENGTH = 6;
+    static final int RECORD_HEADER_SIZE = 8 + 16 + ADDRESS_LENGTH + 2;
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+    private long recordCount = 0;
+    private long droppedCount = 0;
+    private int unflushed = 0;
+
+    public PacketCapture(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public PacketCapture(File file, int bufferSize) throws IOException {
+        this.file = file;
+        boolean newFile = file.length() == 0;
+        out = new FileOutputStream(file, true);
+        channel = out.getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        if (newFile) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+        }
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushPending();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends one notification. The value is copied, so the caller may reuse its array.
+     */
+    public synchronized void append(long timestamp, UUID uuid, String address, byte[] value)
+            throws IOException {
+        int size = RECORD_HEADER_SIZE + value.length;
+        if (buffer.remaining() < size) {
+            flush();
+            if (buffer.remaining() < size) {
+                droppedCount++;
+                return;
+            }
+        }
+        buffer.putLong(timestamp);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        putAddress(buffer, address);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+        recordCount++;
+        if (++unflushed >= FLUSH_RECORDS) {
+            flush();
+        }
+    }
+
+    private synchronized void flushPending() throws IOException {
+        if (unflushed > 0 && channel.isOpen()) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        unflushed = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        flusher.shutdown();
+        flush();
+        channel.close();
+        out.close();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Writes "AA:BB:CC:DD:EE:FF" as six bytes, or zeros if the address is missing.
+     */
+    static void putAddress(ByteBuffer buffer, String address) {
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            int b = 0;
+            if (address != null && address.length() >= i * 3 + 2) {
+                b = (Character.digit(address.charAt(i * 3), 16) << 4)
+                        | Character.digit(address.charAt(i * 3 + 1), 16);
+            }
+            buffer.put((byte) b);
+        }
+    }
+
+    static String formatAddress(byte[] address) {
+        StringBuilder sb = new StringBuilder(ADDRESS_LENGTH * 3 - 1);
+        for (int i = 0; i < ADDRESS_LENGTH; i++) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            sb.append(Character.toUpperCase(Character.forDigit((address[i] >> 4) & 0x0F, 16)));
+            sb.append(Character.toUpperCase(Character.forDigit(address[i] & 0x0F, 16)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.bletest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Feeds a file written by {@link PacketCapture} back through a {@link SensorPipeline}.
+ *
+ * The speed factor keeps the recorded spacing between packets (1 = real time, N = N times
+ * faster); {@link #MAX_SPEED} replays as fast as the pipeline can take it.
+ */
+public class PacketReplay {
+    public static final double MAX_SPEED = 0;
+
+    private final SensorPipeline pipeline;
+    private final double speed;
+
+    private long recordCount = 0;
+    private long elapsedMillis = 0;
+
+    public PacketReplay(SensorPipeline pipeline, double speed) {
+        this.pipeline = pipeline;
+        this.speed = speed;
+    }
+
+    /**
+     * Replays the whole capture file on the calling thread.
+     *
+     * @return Number of records fed to the pipeline.
+     */
+    public long replay(File captureFile) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(captureFile), 64 * 1024));
+        try {
+            if (in.readInt() != PacketCapture.MAGIC) {
+                throw new IOException("Not a capture file: " + captureFile);
+            }
+            int version = in.readInt();
+            if (version != PacketCapture.VERSION) {
+                throw new IOException("Unsupported capture version: " + version);
+            }
+
+            byte[] address = new byte[PacketCapture.ADDRESS_LENGTH];
+            byte[] lastAddress = null;
+            String addressString = null;
+            long startWall = System.currentTimeMillis();
+            long firstTimestamp = -1;
+            recordCount = 0;
+
+            while (true) {
+                long timestamp;
+                try {
+                    timestamp = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                in.readFully(address);
+                byte[] value = new byte[in.readUnsignedShort()];
+                in.readFully(value);
+
+                if (lastAddress == null || !Arrays.equals(address, lastAddress)) {
+                    lastAddress = address.clone();
+                    addressString = PacketCapture.formatAddress(address);
+                }
+
+                if (firstTimestamp < 0) {
+                    firstTimestamp = timestamp;
+                }
+                if (speed > 0) {
+                    long due = startWall + (long) ((timestamp - firstTimestamp) / speed);
+                    long wait = due - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+
+                pipeline.process(addressString, uuid, value, timestamp);
+                recordCount++;
+            }
+            elapsedMillis = System.currentTimeMillis() - startWall;
+        } finally {
+            in.close();
+        }
+        return recordCount;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getRecordsPerSecond() {
+        return elapsedMillis > 0 ? recordCount * 1000.0 / elapsedMillis : recordCount;
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.bletest;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Declarative description of a characteristic payload: which bytes make up each channel,
+ * their byte order and signedness, and the scale to apply.
+ *
+ * {@link #compile()} flattens the description into primitive arrays and returns a
+ * {@link SensorDecoder} that decodes with a single loop over them, so new sensor types need
+ * no hand-written shifts.
+ */
+public class PayloadLayout {
+    private final UUID uuid;
+    private final int kind;
+    private final List<String> names = new ArrayList<String>();
+    // Byte offsets of each field, least significant byte first
+    private final List<int[]> bytes = new ArrayList<int[]>();
+    private final List<Boolean> signed = new ArrayList<Boolean>();
+    private final List<Double> scales = new ArrayList<Double>();
+    private int[] invalidOffsets = new int[0];
+    private byte invalidValue;
+
+    public PayloadLayout(UUID uuid, int kind) {
+        this.uuid = uuid;
+        this.kind = kind;
+    }
+
+    /**
+     * Adds a field of width contiguous bytes starting at offset.
+     */
+    public PayloadLayout field(String name, int offset, int width, ByteOrder order,
+                               boolean isSigned, double scale) {
+        int[] offsets = new int[width];
+        for (int i = 0; i < width; i++) {
+            offsets[i] = order == ByteOrder.LITTLE_ENDIAN ? offset + i : offset + width - 1 - i;
+        }
+        return field(name, offsets, isSigned, scale);
+    }
+
+    /**
+     * Adds a field made of arbitrary bytes, given least significant first. A field whose
+     * bytes lie beyond the end of a payload decodes as 0.
+     */
+    public PayloadLayout field(String name, int[] lsbFirstOffsets, boolean isSigned, double scale) {
+        if (lsbFirstOffsets.length < 1 || lsbFirstOffsets.length > 4) {
+            throw new IllegalArgumentException("Field width must be 1 to 4 bytes: " + name);
+        }
+        names.add(name);
+        bytes.add(lsbFirstOffsets.clone());
+        signed.add(isSigned);
+        scales.add(scale);
+        return this;
+    }
+
+    /**
+     * Marks frames as carrying no reading when all the given bytes equal value.
+     */
+    public PayloadLayout invalidWhenAll(int[] offsets, byte value) {
+        invalidOffsets = offsets.clone();
+        invalidValue = value;
+        return this;
+    }
+
+    public SensorDecoder compile() {
+        int n = names.size();
+        int total = 0;
+        for (int[] b : bytes) {
+            total += b.length;
+        }
+        int[] byteOffsets = new int[total];
+        int[] start = new int[n + 1];
+        int[] signShift = new int[n];
+        int[] lastByte = new int[n];
+        double[] scale = new double[n];
+        int pos = 0;
+        for (int f = 0; f < n; f++) {
+            int[] b = bytes.get(f);
+            start[f] = pos;
+            int last = 0;
+            for (int i = 0; i < b.length; i++) {
+                byteOffsets[pos++] = b[i];
+                last = Math.max(last, b[i]);
+            }
+            lastByte[f] = last;
+            // Shifting left then arithmetic right by this amount sign extends the field.
+            signShift[f] = signed.get(f) ? 32 - 8 * b.length : 0;
+            scale[f] = scales.get(f);
+        }
+        start[n] = pos;
+        return new CompiledDecoder(uuid, kind, names.toArray(new String[n]), byteOffsets, start,
+                signShift, lastByte, scale, invalidOffsets, invalidValue);
+    }
+
+    static class CompiledDecoder implements SensorDecoder {
+        private final UUID uuid;
+        private final int kind;
+        private final String[] channels;
+        private final int[] byteOffsets;
+        private final int[] start;
+        private final int[] signShift;
+        private final int[] lastByte;
+        private final double[] scale;
+        private final int[] invalidOffsets;
+        private final byte invalidValue;
+
+        CompiledDecoder(UUID uuid, int kind, String[] channels, int[] byteOffsets, int[] start,
+                        int[] signShift, int[] lastByte, double[] scale,
+                        int[] invalidOffsets, byte invalidValue) {
+            this.uuid = uuid;
+            this.kind = kind;
+            this.channels = channels;
+            this.byteOffsets = byteOffsets;
+            this.start = start;
+            this.signShift = signShift;
+            this.lastByte = lastByte;
+            this.scale = scale;
+            this.invalidOffsets = invalidOffsets;
+            this.invalidValue = invalidValue;
+        }
+
+        @Override
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        @Override
+        public int getKind() {
+            return kind;
+        }
+
+        @Override
+        public String[] getChannels() {
+            return channels;
+        }
+
+        @Override
+        public boolean decode(byte[] value, double[] out) {
+            if (invalidOffsets.length > 0) {
+                boolean invalid = true;
+                for (int i = 0; i < invalidOffsets.length && invalid; i++) {
+                    invalid = invalidOffsets[i] < value.length && value[invalidOffsets[i]] == invalidValue;
+                }
+                if (invalid) {
+                    return false;
+                }
+            }
+            final int n = channels.length;
+            for (int f = 0; f < n; f++) {
+                if (lastByte[f] >= value.length) {
+                    out[f] = 0;
+                    continue;
+                }
+                int v = 0;
+                for (int i = start[f + 1] - 1; i >= start[f]; i--) {
+                    v = (v << 8) | (value[byteOffsets[i]] & 0xFF);
+                }
+                if (signShift[f] != 0) {
+                    v = (v << signShift[f]) >> signShift[f];
+                }
+                out[f] = v * scale[f];
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.bletest;
+
+/**
+ * A batch of pressure samples from one device, stored as parallel primitive arrays.
+ *
+ * Only the first {@link #count} entries are valid. Batches are recycled once the listener
+ * callback returns, so copy anything that has to outlive the callback.
+ */
+public class PressureBatch {
+    public String address;
+    public int count;
+
+    /* Arrival time in ms */
+    public final long[] timestamps;
+    /* Raw 24 bit sensor value */
+    public final int[] raw;
+    /* Filtered pressure in mbar */
+    public final float[] filtered;
+
+    public PressureBatch(int capacity) {
+        timestamps = new long[capacity];
+        raw = new int[capacity];
+        filtered = new float[capacity];
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    void add(long timestamp, int rawValue, float mbar) {
+        timestamps[count] = timestamp;
+        raw[count] = rawValue;
+        filtered[count] = mbar;
+        count++;
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.bletest;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import java.util.ArrayList;
+
+/**
+ * Live pressure chart of every device in a {@link SampleHistory}, one colour per device.
+ *
+ * The chart sweeps left to right over the last {@link #DEFAULT_WINDOW} ms like a patient
+ * monitor, erasing a narrow band ahead of the current time. Lines are drawn into a bitmap
+ * that keeps what is already drawn, so each frame only adds the segments of new samples
+ * ({@link ChartSeries}); the view itself just copies the bitmap. The whole window is only
+ * drawn again when the size or the pressure range changes.
+ *
+ * Work runs in a Choreographer frame callback, timed with {@link FrameStats}.
+ */
+@SuppressLint("NewApi")
+public class PressureChartView extends View implements Choreographer.FrameCallback {
+    public static final long DEFAULT_WINDOW = 30000;
+
+    private static final int[] COLORS = {
+            0xff2196f3, 0xfff44336, 0xff4caf50, 0xffff9800, 0xff9c27b0, 0xff009688,
+    };
+    private static final int BACKGROUND = Color.BLACK;
+    // Width of the erased band ahead of the newest samples
+    private static final float ERASE_FRACTION = 0.03f;
+    // Range kept around the values, and at least this much in mbar
+    private static final float RANGE_MARGIN = 0.1f;
+    private static final float MIN_RANGE = 1f;
+    private static final long DEVICE_CHECK_INTERVAL = 1000;
+
+    private SampleHistory history;
+    private final ArrayList<ChartSeries> series = new ArrayList<ChartSeries>();
+    private final ArrayList<Paint> paints = new ArrayList<Paint>();
+    private final ChartSeries.Scale scale = new ChartSeries.Scale();
+    private final Paint erase = new Paint();
+    private final FrameStats stats = new FrameStats();
+
+    private Bitmap bitmap;
+    private Canvas bitmapCanvas;
+    private boolean redraw = true;
+    private boolean attached = false;
+    private long lastDeviceCheck = 0;
+    // Samples written to the charted rings when the bitmap was last drawn, and when
+    private long drawnSequence = -1;
+    private long lastRender = 0;
+
+    public PressureChartView(Context context) {
+        super(context);
+        erase.setColor(BACKGROUND);
+        erase.setStyle(Paint.Style.FILL);
+    }
+
+    public PressureChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        erase.setColor(BACKGROUND);
+        erase.setStyle(Paint.Style.FILL);
+    }
+
+    /**
+     * Charts the devices of the history, including devices that report later. Call on the UI
+     * thread.
+     */
+    public void setHistory(SampleHistory history) {
+        if (history == this.history) {
+            return;
+        }
+        this.history = history;
+        series.clear();
+        paints.clear();
+        scale.yMin = scale.yMax = 0;
+        redraw = true;
+    }
+
+    public void setWindow(long windowMillis) {
+        scale.window = windowMillis;
+        redraw = true;
+    }
+
+    public FrameStats getFrameStats() {
+        return stats;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attached = true;
+        stats.reset();
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        attached = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+            bitmapCanvas = null;
+        }
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+            bitmapCanvas = null;
+        }
+        if (w > 0 && h > 0) {
+            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            bitmapCanvas = new Canvas(bitmap);
+        }
+        scale.left = getPaddingLeft();
+        scale.top = getPaddingTop();
+        scale.width = w - getPaddingLeft() - getPaddingRight();
+        scale.height = h - getPaddingTop() - getPaddingBottom();
+        redraw = true;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!attached) {
+            return;
+        }
+        stats.onFrame(frameTimeNanos);
+        long start = System.nanoTime();
+        if (history != null && bitmapCanvas != null && scale.width > 0) {
+            long now = System.currentTimeMillis();
+            if (now - lastDeviceCheck >= DEVICE_CHECK_INTERVAL) {
+                lastDeviceCheck = now;
+                addNewDevices();
+            }
+            // Nothing new to draw: the bitmap on screen is still right.
+            long sequence = sequence();
+            if (redraw || sequence != drawnSequence) {
+                drawnSequence = sequence;
+                render(now);
+                invalidate();
+            }
+        }
+        stats.onUpdate(System.nanoTime() - start);
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private long sequence() {
+        long sequence = 0;
+        for (ChartSeries s : series) {
+            sequence += s.getSequence();
+        }
+        return sequence;
+    }
+
+    private void render(long now) {
+        if (redraw) {
+            redraw = false;
+            bitmapCanvas.drawColor(BACKGROUND);
+            for (ChartSeries s : series) {
+                s.reset(now - scale.window);
+            }
+            lastRender = now;
+        }
+
+        // The band the sweep is about to draw into, from where the last render left it:
+        // frames without samples are skipped, so the sweep may have moved by more than a band.
+        long from = Math.max(lastRender, now - scale.window);
+        lastRender = now;
+        float x = scale.x(from);
+        float band = Math.min(scale.width, (now - from) * scale.width / scale.window
+                + scale.width * ERASE_FRACTION);
+        float right = scale.left + scale.width;
+        bitmapCanvas.drawRect(x, scale.top, Math.min(right, x + band), scale.top + scale.height, erase);
+        if (x + band > right) {
+            bitmapCanvas.drawRect(scale.left, scale.top, scale.left + x + band - right,
+                    scale.top + scale.height, erase);
+        }
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        boolean ranged = scale.yMax > scale.yMin;
+        for (int i = 0; i < series.size(); i++) {
+            ChartSeries s = series.get(i);
+            Paint paint = paints.get(i);
+            if (ranged) {
+                while (s.update(scale) > 0) {
+                    if (s.getLineCount() > 0) {
+                        bitmapCanvas.drawLines(s.getLines(), 0, s.getLineCount(), paint);
+                    }
+                }
+            } else {
+                // No range yet: read the window only to find one.
+                while (s.update(scale) > 0) {
+                }
+            }
+            min = Math.min(min, s.getMin());
+            max = Math.max(max, s.getMax());
+        }
+
+        if (min <= max && (!ranged || min < scale.yMin || max > scale.yMax)) {
+            // Out of range: widen it and draw the window again with the new scale.
+            float margin = Math.max(MIN_RANGE, (max - min) * RANGE_MARGIN);
+            scale.yMin = min - margin;
+            scale.yMax = max + margin;
+            redraw = true;
+        }
+    }
+
+    private void addNewDevices() {
+        for (String address : history.getAddresses()) {
+            boolean known = false;
+            for (ChartSeries s : series) {
+                if (s.address.equals(address)) {
+                    known = true;
+                    break;
+                }
+            }
+            if (!known) {
+                series.add(new ChartSeries(address, history.get(address)));
+                Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                paint.setColor(COLORS[(series.size() - 1) % COLORS.length]);
+                paint.setStrokeWidth(2);
+                paints.add(paint);
+                redraw = true;
+            }
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        long start = System.nanoTime();
+        if (bitmap != null) {
+            canvas.drawBitmap(bitmap, 0, 0, null);
+        }
+        stats.onDraw(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.bletest;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window over the last MAX_SIZE raw pressure values that drops the two lowest and
+ * two highest entries (SKIP_NUM) and sums the rest. Other windows are scaled to a sum of the
+ * default 8 values, the scale {@link CalibrationProfile}s are made for.
+ */
+public class PressureFilter {
+    public static final int DEFAULT_MAX_SIZE = 12;
+    public static final int DEFAULT_SKIP_NUM = 4;
+
+    int MAX_SIZE = DEFAULT_MAX_SIZE;
+    int SKIP_NUM = DEFAULT_SKIP_NUM;
+    int currentI = 0;
+    double [] buffer = new double[MAX_SIZE];
+    // Sorted copy of the window for other SKIP_NUM than 4
+    private double[] sorted;
+    private double scale = 1;
+
+    public PressureFilter() {
+    }
+
+    /**
+     * @param skipNum Entries dropped, half of them lowest and half highest.
+     */
+    public PressureFilter(int maxSize, int skipNum) {
+        if (skipNum < 0 || maxSize <= skipNum) {
+            throw new IllegalArgumentException("Window of " + maxSize + " dropping " + skipNum);
+        }
+        MAX_SIZE = maxSize;
+        SKIP_NUM = skipNum;
+        buffer = new double[MAX_SIZE];
+        if (SKIP_NUM != DEFAULT_SKIP_NUM) {
+            sorted = new double[MAX_SIZE];
+        }
+        scale = (double) (DEFAULT_MAX_SIZE - DEFAULT_SKIP_NUM) / (MAX_SIZE - SKIP_NUM);
+    }
+
+    public int getMaxSize() {
+        return MAX_SIZE;
+    }
+
+    public int getSkipNum() {
+        return SKIP_NUM;
+    }
+
+    /**
+     * Adds a raw value and returns the trimmed sum of the window.
+     */
+    public double add(double pressure) {
+        buffer[currentI] = pressure;
+        currentI = (currentI + 1) % MAX_SIZE;
+
+        if (sorted != null) {
+            return trimmedSum() * scale;
+        }
+
+        double total_amount = 0;
+        double min_value = 5000000.0, max_value = 0;
+        int minI = 0, maxI= 0;
+        int preMinI = 0, preMaxI = 0;
+        for(int i=0;i<MAX_SIZE;i++) {
+            total_amount = total_amount + buffer[i];
+            if(buffer[i] < min_value) {
+                preMinI = minI;
+                minI = i;
+                min_value = buffer[i];
+            }
+            if(buffer[i] > max_value) {
+                preMaxI = maxI;
+                maxI = i;
+                max_value = buffer[i];
+            }
+        }
+
+        total_amount = total_amount - buffer[minI] - buffer[maxI] - buffer[preMinI] - buffer[preMaxI];
+        return scale == 1 ? total_amount : total_amount * scale;
+    }
+
+    private double trimmedSum() {
+        System.arraycopy(buffer, 0, sorted, 0, MAX_SIZE);
+        Arrays.sort(sorted);
+        int skip = SKIP_NUM / 2;
+        double total_amount = 0;
+        for (int i = skip; i < MAX_SIZE - (SKIP_NUM - skip); i++) {
+            total_amount += sorted[i];
+        }
+        return total_amount;
+    }
+
+    /**
+     * Puts the filter in the state it has after total values, given the last of them in
+     * order, so a stream can be continued from the middle. With SKIP_NUM 4 the result depends
+     * on where the values sit in the window, not only on the values, hence the total.
+     *
+     * @param last  The last min(total, MAX_SIZE) or more values before this point, oldest first.
+     */
+    public void resume(long total, double[] last, int count) {
+        Arrays.fill(buffer, 0);
+        int n = (int) Math.min(Math.min(total, MAX_SIZE), count);
+        currentI = (int) ((total - n) % MAX_SIZE);
+        for (int i = count - n; i < count; i++) {
+            buffer[currentI] = last[i];
+            currentI = (currentI + 1) % MAX_SIZE;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.example.bletest;
+
+/**
+ * One pressure reading as emitted by {@link SamplePublisher}.
+ */
+public class PressureSample {
+    public final String address;
+    /* Arrival time in ms */
+    public final long timestamp;
+    /* Raw 24 bit sensor value */
+    public final int raw;
+    /* Filtered pressure in mbar */
+    public final float mbar;
+
+    public PressureSample(String address, long timestamp, int raw, float mbar) {
+        this.address = address;
+        this.timestamp = timestamp;
+        this.raw = raw;
+        this.mbar = mbar;
+    }
+
+    @Override
+    public String toString() {
+        return address + ", " + timestamp + ", " + raw + ", " + mbar;
+    }
+}
@@ -0,0 +1,358 @@
+package com.example.bletest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a {@link QuantileSketch} of the filtered pressure per device and hour, and appends
+ * each finished one to the sketch_yyyy-MM-dd.bin file of its day next to the sample logs.
+ * Reports merge the stored sketches into days, longer ranges or all devices, without the
+ * samples. A sketch cut short by {@link #flush()} is stored as is; the rest of its hour gets
+ * a record of its own, and reading merges them again. The open sketches are stored every
+ * {@link #FLUSH_INTERVAL} of sample time this way, so a crash loses at most that much. Records
+ * are written on a thread of their own, off the thread that delivers the samples.
+ *
+ * File layout: int MAGIC, int VERSION, then per record a frame of int FRAME, int payload
+ * length, int CRC32 of the payload and the payload: the address (UTF), long bucket start,
+ * long bucket length and the sketch. A record torn when the app died is skipped up to the
+ * next valid frame, so records appended after it are still read. Version 1 files, without
+ * frames, are still read.
+ */
+public class PressureSketches implements SensorPipeline.Sink {
+    public static final int MAGIC = 0x534B5443; // "SKTC"
+    public static final int VERSION = 2;
+    public static final int FRAME = 0x534B4652; // "SKFR"
+    public static final long FLUSH_INTERVAL = 10 * 60 * 1000;
+    public static final long HOUR = 60 * 60 * 1000;
+    public static final long DAY = 24 * HOUR;
+
+    private static final String PREFIX = "sketch_";
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * One device's sketch over [start, start + length). An empty address stands for all
+     * devices once merged.
+     */
+    public static class Record {
+        public final String address;
+        public final long start;
+        public final long length;
+        public final QuantileSketch sketch;
+
+        public Record(String address, long start, long length, QuantileSketch sketch) {
+            this.address = address;
+            this.start = start;
+            this.length = length;
+            this.sketch = sketch;
+        }
+    }
+
+    private final File directory;
+    private final long bucketLength;
+    private final HashMap<String, Record> open = new HashMap<String, Record>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private long lastFlush = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    // Writer thread only
+    private final CRC32 crc = new CRC32();
+    private volatile long written = 0;
+
+    public PressureSketches(File directory) {
+        this(directory, HOUR);
+    }
+
+    public PressureSketches(File directory, long bucketLength) {
+        this.directory = directory;
+        this.bucketLength = bucketLength;
+    }
+
+    @Override
+    public synchronized void onPressure(String address, long timestamp, int raw, float mbar) {
+        if (closed) {
+            return;
+        }
+        if (lastFlush == Long.MIN_VALUE || timestamp < lastFlush) {
+            lastFlush = timestamp;
+        } else if (timestamp - lastFlush >= FLUSH_INTERVAL) {
+            flush();
+            lastFlush = timestamp;
+        }
+        Record r = open.get(address);
+        if (r == null || timestamp >= r.start + r.length) {
+            if (r != null) {
+                store(r);
+            }
+            r = new Record(address, timestamp - timestamp % bucketLength, bucketLength,
+                    new QuantileSketch());
+            open.put(address, r);
+        }
+        // A sample from before the bucket, e.g. after a clock change, still counts here.
+        r.sketch.add(mbar);
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, java.util.UUID uuid) {
+    }
+
+    @Override
+    public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+    }
+
+    /**
+     * Queues the open sketches for writing, e.g. before the service stops, and starts new ones.
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        for (Record r : open.values()) {
+            store(r);
+        }
+        open.clear();
+    }
+
+    /**
+     * Stores the open sketches and waits until every queued one is written. Later samples are
+     * ignored.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            flush();
+            closed = true;
+        }
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getWrittenCount() {
+        return written;
+    }
+
+    private void store(final Record r) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(r);
+            }
+        });
+    }
+
+    private void write(Record r) {
+        if (r.sketch.getCount() == 0) {
+            return;
+        }
+        File file = fileOf(directory, r.start);
+        // A header torn when the app died is written again.
+        boolean newFile = file.length() < 8;
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+            DataOutputStream p = new DataOutputStream(payload);
+            p.writeUTF(r.address);
+            p.writeLong(r.start);
+            p.writeLong(r.length);
+            r.sketch.write(p);
+            p.flush();
+            byte[] bytes = payload.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file, !newFile)));
+            try {
+                if (newFile) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                }
+                out.writeInt(FRAME);
+                out.writeInt(bytes.length);
+                out.writeInt((int) crc.getValue());
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            written++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static File fileOf(File directory, long time) {
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        return new File(directory, PREFIX + df.format(new Date(time)) + SUFFIX);
+    }
+
+    /**
+     * Reads the stored sketches of the device, or of all devices if null, with a start in
+     * [from, to).
+     */
+    public static List<Record> read(File directory, String address, long from, long to)
+            throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return records;
+        }
+        Arrays.sort(files);
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                long day = df.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))
+                        .getTime();
+                if (day >= to || day + DAY <= from) {
+                    continue;
+                }
+            } catch (ParseException e) {
+                continue;
+            }
+            readFile(f, address, from, to, records);
+        }
+        return records;
+    }
+
+    private static void readFile(File file, String address, long from, long to, List<Record> records)
+            throws IOException {
+        byte[] bytes = readAll(file);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < 8 || in.readInt() != MAGIC) {
+            throw new IOException("Not a sketch file: " + file);
+        }
+        int version = in.readInt();
+        if (version == 1) {
+            readUnframed(in, address, from, to, records);
+            return;
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported sketch file version: " + version);
+        }
+        CRC32 crc = new CRC32();
+        int pos = 8;
+        while (pos + 12 <= bytes.length) {
+            int length = intAt(bytes, pos + 4);
+            if (intAt(bytes, pos) != FRAME || length < 0 || length > bytes.length - pos - 12) {
+                // Torn record: look for the next frame.
+                pos++;
+                continue;
+            }
+            crc.reset();
+            crc.update(bytes, pos + 12, length);
+            if ((int) crc.getValue() != intAt(bytes, pos + 8)) {
+                pos++;
+                continue;
+            }
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes, pos + 12, length));
+            Record r = new Record(payload.readUTF(), payload.readLong(), payload.readLong(),
+                    QuantileSketch.read(payload));
+            if ((address == null || address.equals(r.address)) && r.start >= from && r.start < to) {
+                records.add(r);
+            }
+            pos += 12 + length;
+        }
+    }
+
+    private static void readUnframed(DataInputStream in, String address, long from, long to,
+                                     List<Record> records) throws IOException {
+        while (true) {
+            Record r;
+            try {
+                String a = in.readUTF();
+                long start = in.readLong();
+                long length = in.readLong();
+                r = new Record(a, start, length, QuantileSketch.read(in));
+            } catch (EOFException e) {
+                // End of file, or a record cut short when the app died while writing it.
+                break;
+            }
+            if ((address == null || address.equals(r.address)) && r.start >= from && r.start < to) {
+                records.add(r);
+            }
+        }
+    }
+
+    private static int intAt(byte[] b, int pos) {
+        return (b[pos] & 0xFF) << 24 | (b[pos + 1] & 0xFF) << 16 | (b[pos + 2] & 0xFF) << 8
+                | (b[pos + 3] & 0xFF);
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Merges the records into buckets of the given length, aligned to local midnight for
+     * whole days; per device, or over all devices into records with an empty address.
+     */
+    public static List<Record> rollUp(List<Record> records, long length, boolean perDevice) {
+        TreeMap<String, Record> merged = new TreeMap<String, Record>();
+        Calendar cal = Calendar.getInstance();
+        for (Record r : records) {
+            long start;
+            if (length % DAY == 0) {
+                cal.setTimeInMillis(r.start);
+                cal.set(Calendar.HOUR_OF_DAY, 0);
+                cal.set(Calendar.MINUTE, 0);
+                cal.set(Calendar.SECOND, 0);
+                cal.set(Calendar.MILLISECOND, 0);
+                start = cal.getTimeInMillis();
+            } else {
+                start = r.start - r.start % length;
+            }
+            String address = perDevice ? r.address : "";
+            // Sorts by device, then time
+            String key = address + String.format(Locale.US, "/%020d", start);
+            Record m = merged.get(key);
+            if (m == null) {
+                m = new Record(address, start, length, new QuantileSketch(r.sketch.getAlpha()));
+                merged.put(key, m);
+            }
+            m.sketch.merge(r.sketch);
+        }
+        return new ArrayList<Record>(merged.values());
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.bletest;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Streaming quantiles with a relative error bound, after DDSketch: a value x is counted in
+ * bin ceil(log(x) / log(gamma)) with gamma = (1 + alpha) / (1 - alpha), and a quantile is
+ * answered with the middle of its bin, which is within alpha of the true value relative to
+ * it. Sketches with the same alpha merge by adding bins, so hourly sketches of several devices
+ * give the daily or fleet wide distribution with the same bound.
+ *
+ * Bins are a dense array over the range of bins seen. Past {@link #setMaxBins} bins the
+ * lowest ones are folded together, which only loses accuracy in the low quantiles. Values
+ * of 0 or less are counted apart and reported as 0.
+ *
+ * For pressure the default alpha of 1e-5 is 0.01 mbar at 1000 mbar, and an hour of one pod
+ * spans a few hundred bins; the default bound of 8192 bins spans a factor of 1.18, e.g.
+ * 930 to 1100 mbar, before the lowest values fold.
+ */
+public class QuantileSketch {
+    public static final double DEFAULT_ALPHA = 1e-5;
+    public static final int DEFAULT_MAX_BINS = 8192;
+    private static final int VERSION = 1;
+
+    private final double alpha;
+    private final double logGamma;
+    private int maxBins = DEFAULT_MAX_BINS;
+
+    private long[] bins = new long[64];
+    // Bin index of bins[0]; set with the first value
+    private int offset;
+    private boolean empty = true;
+    // Range of used entries in bins
+    private int lo;
+    private int hi;
+
+    private long count = 0;
+    private long zeroCount = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum = 0;
+
+    public QuantileSketch() {
+        this(DEFAULT_ALPHA);
+    }
+
+    public QuantileSketch(double alpha) {
+        this.alpha = alpha;
+        logGamma = Math.log((1 + alpha) / (1 - alpha));
+    }
+
+    /**
+     * Bounds the memory to about 8 bytes per bin.
+     */
+    public void setMaxBins(int maxBins) {
+        this.maxBins = Math.max(2, maxBins);
+        if (!empty && hi - lo + 1 > this.maxBins) {
+            collapse(offset + hi - this.maxBins + 1);
+        }
+    }
+
+    public double getAlpha() {
+        return alpha;
+    }
+
+    public void add(double value) {
+        add(value, 1);
+    }
+
+    public void add(double value, long n) {
+        count += n;
+        sum += value * n;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        if (value <= 0) {
+            zeroCount += n;
+            return;
+        }
+        addBin((int) Math.ceil(Math.log(value) / logGamma), n);
+    }
+
+    private void addBin(int index, long n) {
+        if (empty) {
+            offset = index - bins.length / 2;
+            lo = hi = index - offset;
+            empty = false;
+        } else if (index < offset + lo) {
+            // Below the range the sketch can hold: into the lowest bin it can.
+            index = Math.max(index, offset + hi - maxBins + 1);
+        } else if (index > offset + hi && index - (offset + lo) + 1 > maxBins) {
+            // Above it: fold the bottom to make room.
+            collapse(index - maxBins + 1);
+        }
+        grow(index);
+        int i = index - offset;
+        bins[i] += n;
+        if (i < lo) {
+            lo = i;
+        }
+        if (i > hi) {
+            hi = i;
+        }
+    }
+
+    // Makes bins hold the index, keeping the used range.
+    private void grow(int index) {
+        if (index - offset >= 0 && index - offset < bins.length) {
+            return;
+        }
+        int first = Math.min(offset + lo, index);
+        int last = Math.max(offset + hi, index);
+        int size = bins.length;
+        while (size < last - first + 1) {
+            size *= 2;
+        }
+        // Centre the used range so it can grow both ways.
+        int newOffset = first - (size - (last - first + 1)) / 2;
+        long[] grown = new long[size];
+        System.arraycopy(bins, lo, grown, offset + lo - newOffset, hi - lo + 1);
+        lo = offset + lo - newOffset;
+        hi = offset + hi - newOffset;
+        offset = newOffset;
+        bins = grown;
+    }
+
+    // Folds every bin below the index into it.
+    private void collapse(int index) {
+        if (index <= offset + lo) {
+            return;
+        }
+        long folded = 0;
+        int end = Math.min(index - offset, hi + 1);
+        for (int i = lo; i < end; i++) {
+            folded += bins[i];
+            bins[i] = 0;
+        }
+        if (index > offset + hi) {
+            // Nothing left above: start over around the index.
+            offset = index - bins.length / 2;
+            lo = hi = index - offset;
+        } else {
+            lo = index - offset;
+        }
+        bins[lo] += folded;
+    }
+
+    /**
+     * Adds the other sketch's values; both need the same alpha.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.alpha != alpha) {
+            throw new IllegalArgumentException("Sketches of different accuracy: " + alpha
+                    + ", " + other.alpha);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        zeroCount += other.zeroCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (!other.empty) {
+            for (int i = other.lo; i <= other.hi; i++) {
+                if (other.bins[i] != 0) {
+                    addBin(other.offset + i, other.bins[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The q quantile, within alpha of the true value relative to it, or NaN if empty.
+     */
+    public double quantile(double q) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (q * (count - 1));
+        if (rank < zeroCount) {
+            return Math.min(0, max);
+        }
+        long seen = zeroCount;
+        for (int i = lo; i <= hi; i++) {
+            seen += bins[i];
+            if (seen > rank) {
+                double value = 2 * Math.exp((offset + i) * logGamma) / (1 + Math.exp(logGamma));
+                return Math.max(min, Math.min(max, value));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /**
+     * @return Bins in use, the memory cost.
+     */
+    public int getBinCount() {
+        return empty ? 0 : hi - lo + 1;
+    }
+
+    /**
+     * Writes the sketch: the bins as varints from the lowest used one, so a sketch of an hour
+     * of one pod takes a few hundred bytes.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(VERSION);
+        out.writeDouble(alpha);
+        writeVarLong(out, count);
+        writeVarLong(out, zeroCount);
+        out.writeDouble(min);
+        out.writeDouble(max);
+        out.writeDouble(sum);
+        int used = getBinCount();
+        writeVarLong(out, used);
+        if (used > 0) {
+            writeVarLong(out, zigZag(offset + lo));
+            for (int i = lo; i <= hi; i++) {
+                writeVarLong(out, bins[i]);
+            }
+        }
+    }
+
+    public static QuantileSketch read(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported sketch version: " + version);
+        }
+        QuantileSketch s = new QuantileSketch(in.readDouble());
+        s.count = readVarLong(in);
+        s.zeroCount = readVarLong(in);
+        s.min = in.readDouble();
+        s.max = in.readDouble();
+        s.sum = in.readDouble();
+        int used = (int) readVarLong(in);
+        if (used > 0) {
+            long first = readVarLong(in);
+            int index = (int) ((first >>> 1) ^ -(first & 1));
+            s.setMaxBins(Math.max(DEFAULT_MAX_BINS, used));
+            for (int i = 0; i < used; i++) {
+                long n = readVarLong(in);
+                if (n != 0) {
+                    s.addBin(index + i, n);
+                }
+            }
+        }
+        return s;
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.bletest;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Re-applies calibration profiles to the raw pressure values stored in a
+ * log_state_change_*.txt file, read with {@link LogLineParser}.
+ *
+ * Lines are grouped by their address column the way {@link Reprocessing} does: each device
+ * runs through a fresh {@link PressureFilter} of its own and is converted with its own profile,
+ * in runs of consecutive lines with {@link CalibrationProfile#apply(double[], int, int, float[])}.
+ * The output keeps the input lines in order and appends the recalibrated mbar value.
+ */
+public class Recalibration {
+    private static final int BLOCK_SIZE = 4096;
+
+    // One device of the file; lines without an address have an empty one.
+    private static class Device {
+        final byte[] address;
+        final PressureFilter filter = new PressureFilter();
+        final CalibrationProfile profile;
+
+        Device(byte[] address, CalibrationProfile profile) {
+            this.address = address;
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * Converts every device with the same profile.
+     *
+     * @return Number of samples converted.
+     */
+    public static long recalibrate(File logFile, File outFile, CalibrationProfile profile)
+            throws IOException {
+        return recalibrate(logFile, outFile, profile, null);
+    }
+
+    /**
+     * Converts every device with its profile from the store.
+     *
+     * @return Number of samples converted.
+     */
+    public static long recalibrate(File logFile, File outFile, CalibrationStore store)
+            throws IOException {
+        return recalibrate(logFile, outFile, null, store);
+    }
+
+    private static long recalibrate(File logFile, File outFile, CalibrationProfile profile,
+                                    CalibrationStore store) throws IOException {
+        LogLineParser parser = new LogLineParser();
+        List<Device> devices = new ArrayList<Device>();
+        Device last = null;
+        String[] lines = new String[BLOCK_SIZE];
+        Device[] owners = new Device[BLOCK_SIZE];
+        double[] filtered = new double[BLOCK_SIZE];
+        float[] mbar = new float[BLOCK_SIZE];
+        long total = 0;
+
+        BufferedReader in = new BufferedReader(new FileReader(logFile));
+        BufferedWriter out = new BufferedWriter(new FileWriter(outFile));
+        try {
+            int count = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                byte[] bytes = line.getBytes();
+                if (!parser.parse(bytes, 0, bytes.length)) {
+                    continue;
+                }
+                if (last == null || !matches(parser, last.address)) {
+                    last = null;
+                    for (Device d : devices) {
+                        if (matches(parser, d.address)) {
+                            last = d;
+                            break;
+                        }
+                    }
+                    if (last == null) {
+                        byte[] address = parser.hasAddress() ? parser.getAddress().getBytes() : new byte[0];
+                        last = new Device(address, profile != null ? profile
+                                : store.get(address.length > 0 ? new String(address) : null));
+                        devices.add(last);
+                    }
+                }
+                lines[count] = line;
+                owners[count] = last;
+                filtered[count] = last.filter.add(parser.raw);
+                count++;
+                if (count == BLOCK_SIZE) {
+                    writeBlock(out, lines, owners, filtered, mbar, count);
+                    total += count;
+                    count = 0;
+                }
+            }
+            writeBlock(out, lines, owners, filtered, mbar, count);
+            total += count;
+        } finally {
+            in.close();
+            out.close();
+        }
+        return total;
+    }
+
+    private static boolean matches(LogLineParser line, byte[] address) {
+        return line.hasAddress() ? line.addressEquals(address) : address.length == 0;
+    }
+
+    private static void writeBlock(BufferedWriter out, String[] lines, Device[] owners,
+                                   double[] filtered, float[] mbar, int count) throws IOException {
+        int start = 0;
+        while (start < count) {
+            int end = start + 1;
+            while (end < count && owners[end] == owners[start]) {
+                end++;
+            }
+            owners[start].profile.apply(filtered, start, end - start, mbar);
+            for (int i = start; i < end; i++) {
+                out.write(lines[i]);
+                out.write(", ");
+                out.write(String.valueOf(mbar[i - start]));
+                out.newLine();
+            }
+            start = end;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.bletest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Records the pressure samples of a set of devices into one session directory so they can be
+ * put on a common timeline afterwards.
+ *
+ * Each device gets its own AABBCCDDEEFF.csv file of "arrival millis, raw, mbar" lines, and a
+ * session.properties manifest lists the devices, the start and stop time and the clock offset
+ * of each device. The corrected timestamp of a sample is its arrival time minus the offset of
+ * its device (e.g. the connection latency measured with a common tap on all pods).
+ *
+ * While recording, samples can also be merged live through a {@link TimeAligner}; {@link
+ * SessionMerger} produces the merge offline from the stored files, including the samples the
+ * live merge dropped as late.
+ */
+public class RecordingSession implements SensorPipeline.Sink {
+    public static final String MANIFEST = "session.properties";
+
+    /**
+     * Contents of the session.properties file.
+     */
+    public static class Manifest {
+        public String name;
+        public long startMillis;
+        public long stopMillis;
+        public final List<String> devices = new ArrayList<String>();
+        public final Map<String, Long> offsets = new HashMap<String, Long>();
+        public final Map<String, Long> sampleCounts = new HashMap<String, Long>();
+
+        public long offsetOf(String address) {
+            Long offset = offsets.get(address);
+            return offset != null ? offset : 0;
+        }
+
+        public static Manifest read(File directory) throws IOException {
+            Properties p = new Properties();
+            InputStream in = new FileInputStream(new File(directory, MANIFEST));
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+            Manifest m = new Manifest();
+            m.name = p.getProperty("name");
+            m.startMillis = Long.parseLong(p.getProperty("start", "0"));
+            m.stopMillis = Long.parseLong(p.getProperty("stop", "0"));
+            String devices = p.getProperty("devices", "");
+            for (String address : devices.split(",")) {
+                address = address.trim();
+                if (address.length() == 0) {
+                    continue;
+                }
+                m.devices.add(address);
+                String key = address.replace(":", "");
+                m.offsets.put(address, Long.parseLong(p.getProperty("offset." + key, "0")));
+                m.sampleCounts.put(address, Long.parseLong(p.getProperty("samples." + key, "0")));
+            }
+            return m;
+        }
+
+        public void write(File directory) throws IOException {
+            Properties p = new Properties();
+            p.setProperty("name", name);
+            p.setProperty("start", String.valueOf(startMillis));
+            p.setProperty("stop", String.valueOf(stopMillis));
+            StringBuilder sb = new StringBuilder();
+            for (String address : devices) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(address);
+                String key = address.replace(":", "");
+                p.setProperty("offset." + key, String.valueOf(offsetOf(address)));
+                Long count = sampleCounts.get(address);
+                p.setProperty("samples." + key, String.valueOf(count != null ? count : 0));
+            }
+            p.setProperty("devices", sb.toString());
+            OutputStream out = new FileOutputStream(new File(directory, MANIFEST));
+            try {
+                p.store(out, "Recording session " + name);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private final File directory;
+    private final Manifest manifest = new Manifest();
+    private final HashMap<String, Writer> writers = new HashMap<String, Writer>();
+    private TimeAligner aligner;
+    private boolean recording = false;
+
+    /**
+     * @param directory Session directory, created on {@link #start}.
+     * @param devices   Addresses to record; samples of other devices are ignored.
+     */
+    public RecordingSession(File directory, String name, Collection<String> devices) {
+        this.directory = directory;
+        manifest.name = name;
+        manifest.devices.addAll(devices);
+    }
+
+    /**
+     * Sets the clock offset subtracted from the arrival times of the device. Set offsets
+     * before {@link #start}, so the manifest has them from the start.
+     */
+    public synchronized void setClockOffset(String address, long offsetMillis) {
+        manifest.offsets.put(address, offsetMillis);
+    }
+
+    /**
+     * Merges the samples live while recording. The aligner is flushed on {@link #stop}.
+     */
+    public synchronized void setAligner(TimeAligner aligner) {
+        this.aligner = aligner;
+    }
+
+    public synchronized void start(long now) throws IOException {
+        if (recording) {
+            return;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        manifest.startMillis = now;
+        for (String address : manifest.devices) {
+            writers.put(address, new BufferedWriter(new FileWriter(fileFor(directory, address), true)));
+            manifest.sampleCounts.put(address, 0L);
+        }
+        manifest.write(directory);
+        recording = true;
+    }
+
+    public synchronized void stop(long now) throws IOException {
+        if (!recording) {
+            return;
+        }
+        recording = false;
+        for (Writer w : writers.values()) {
+            w.close();
+        }
+        writers.clear();
+        if (aligner != null) {
+            aligner.flush();
+        }
+        manifest.stopMillis = now;
+        manifest.write(directory);
+    }
+
+    public synchronized boolean isRecording() {
+        return recording;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    static File fileFor(File directory, String address) {
+        return new File(directory, address.replace(":", "") + ".csv");
+    }
+
+    @Override
+    public synchronized void onPressure(String address, long timestamp, int raw, float mbar) {
+        if (!recording) {
+            return;
+        }
+        Writer w = writers.get(address);
+        if (w == null) {
+            return;
+        }
+        try {
+            w.write(timestamp + ", " + raw + ", " + mbar + "\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        manifest.sampleCounts.put(address, manifest.sampleCounts.get(address) + 1);
+        if (aligner != null) {
+            aligner.offer(new PressureSample(address, timestamp - manifest.offsetOf(address), raw, mbar));
+        }
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+    }
+
+    @Override
+    public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+    }
+}
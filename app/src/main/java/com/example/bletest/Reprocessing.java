@@ -0,0 +1,393 @@
+package com.example.bletest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Recomputes the filtered pressure of stored logs with other {@link PressureFilter}
+ * parameters or calibration profiles, as the live pipeline would have with them.
+ *
+ * Each day file is a partition, split by device inside; partitions run on a thread pool of
+ * one thread per core. The filter output depends on the last MAX_SIZE raw values of the
+ * device and on where they sit in the window, so a first parallel pass counts the samples of
+ * every device per day and keeps the last values; each partition then resumes the filters of
+ * its devices from the days before it and gives the same values as one pass from the first
+ * log on. The live filter also starts over when the app restarts, which the logs do not show.
+ *
+ * Outputs go to a new derived_vN directory next to the logs, one pressure_AABBCCDDEEFF_day.txt
+ * per device and day with "millis, raw, mbar" lines, and a derived.properties manifest with
+ * the parameters. Earlier versions are kept.
+ * Run on a JVM:
+ * Reprocessing log_directory [-from yyyy-MM-dd] [-to yyyy-MM-dd] [-window 12] [-skip 4]
+ * [-calibration directory] [-threads n]
+ */
+public class Reprocessing {
+    public static final String DIRECTORY_PREFIX = "derived_v";
+    public static final String MANIFEST = "derived.properties";
+
+    private static final String LOG_PREFIX = "log_state_change_";
+    private static final String LOG_SUFFIX = ".txt";
+
+    // Samples of one device in one day file, and its last values
+    private static class DeviceDay {
+        final byte[] address;
+        long count = 0;
+        final double[] last;
+        int lastIndex = 0;
+
+        DeviceDay(byte[] address, int window) {
+            this.address = address;
+            last = new double[window];
+        }
+
+        void add(double raw) {
+            last[lastIndex] = raw;
+            lastIndex = (lastIndex + 1) % last.length;
+            count++;
+        }
+    }
+
+    // Where a device's stream stands at the start of a day
+    private static class Resume {
+        long total = 0;
+        // The last values, oldest first
+        double[] last = new double[0];
+    }
+
+    private final File logDirectory;
+    private String fromDay;
+    private String toDay;
+    private int maxSize = PressureFilter.DEFAULT_MAX_SIZE;
+    private int skipNum = PressureFilter.DEFAULT_SKIP_NUM;
+    private CalibrationStore calibrations;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private File outputDirectory;
+    private long samples = 0;
+    private long bytes = 0;
+    private long elapsedMillis = 0;
+
+    public Reprocessing(File logDirectory) {
+        this.logDirectory = logDirectory;
+    }
+
+    /**
+     * Only writes the days in [from, to], as yyyy-MM-dd; null for no limit. Earlier days are
+     * still read for the filter state.
+     */
+    public void setDays(String from, String to) {
+        fromDay = from;
+        toDay = to;
+    }
+
+    public void setFilter(int maxSize, int skipNum) {
+        this.maxSize = maxSize;
+        this.skipNum = skipNum;
+    }
+
+    /**
+     * Profiles of the devices, or null for {@link CalibrationProfile#DEFAULT}.
+     */
+    public void setCalibrations(CalibrationStore calibrations) {
+        this.calibrations = calibrations;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return The new derived_vN directory.
+     */
+    public File run() throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        samples = bytes = 0;
+        List<File> days = listDays();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // Pass 1: samples and last values of each device per day
+            List<Future<List<DeviceDay>>> counted = new ArrayList<Future<List<DeviceDay>>>();
+            for (final File day : days) {
+                counted.add(executor.submit(new Callable<List<DeviceDay>>() {
+                    @Override
+                    public List<DeviceDay> call() throws IOException {
+                        return summarize(day);
+                    }
+                }));
+            }
+            List<List<DeviceDay>> summaries = new ArrayList<List<DeviceDay>>();
+            for (Future<List<DeviceDay>> f : counted) {
+                summaries.add(get(f));
+            }
+
+            outputDirectory = newVersionDirectory();
+            // Pass 2: the days in range, each resumed from the days before
+            HashMap<String, Resume> state = new HashMap<String, Resume>();
+            List<Future<Long>> written = new ArrayList<Future<Long>>();
+            for (int d = 0; d < days.size(); d++) {
+                final File day = days.get(d);
+                if (inRange(dayOf(day))) {
+                    final Map<String, Resume> resume = copy(state);
+                    written.add(executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws IOException {
+                            return process(day, resume);
+                        }
+                    }));
+                }
+                advance(state, summaries.get(d));
+            }
+            for (Future<Long> f : written) {
+                samples += get(f);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        elapsedMillis = System.currentTimeMillis() - start;
+        writeManifest();
+        return outputDirectory;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private List<File> listDays() {
+        List<File> days = new ArrayList<File>();
+        File[] files = logDirectory.listFiles();
+        if (files == null) {
+            return days;
+        }
+        // yyyy-MM-dd sorts by date.
+        Arrays.sort(files);
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)
+                    && name.length() == LOG_PREFIX.length() + 10 + LOG_SUFFIX.length()
+                    && (toDay == null || dayOf(f).compareTo(toDay) <= 0)) {
+                days.add(f);
+            }
+        }
+        return days;
+    }
+
+    private static String dayOf(File logFile) {
+        return logFile.getName().substring(LOG_PREFIX.length(), LOG_PREFIX.length() + 10);
+    }
+
+    private boolean inRange(String day) {
+        return (fromDay == null || day.compareTo(fromDay) >= 0)
+                && (toDay == null || day.compareTo(toDay) <= 0);
+    }
+
+    private List<DeviceDay> summarize(File day) throws IOException {
+        final List<DeviceDay> devices = new ArrayList<DeviceDay>();
+        long read = LogLineParser.scan(day, 0, Long.MAX_VALUE, new LogLineParser.Handler() {
+            private DeviceDay last;
+
+            @Override
+            public boolean onLine(LogLineParser line) {
+                if (last == null || !matches(line, last.address)) {
+                    last = null;
+                    for (DeviceDay d : devices) {
+                        if (matches(line, d.address)) {
+                            last = d;
+                            break;
+                        }
+                    }
+                    if (last == null) {
+                        last = new DeviceDay(addressOf(line), maxSize);
+                        devices.add(last);
+                    }
+                }
+                last.add(line.raw);
+                return true;
+            }
+        });
+        synchronized (this) {
+            bytes += read;
+        }
+        return devices;
+    }
+
+    private static boolean matches(LogLineParser line, byte[] address) {
+        return line.hasAddress() ? line.addressEquals(address) : address.length == 0;
+    }
+
+    private static byte[] addressOf(LogLineParser line) {
+        return line.hasAddress() ? line.getAddress().getBytes() : new byte[0];
+    }
+
+    // Moves the state of each device past the day.
+    private void advance(HashMap<String, Resume> state, List<DeviceDay> devices) {
+        for (DeviceDay d : devices) {
+            String address = new String(d.address);
+            Resume r = state.get(address);
+            if (r == null) {
+                r = new Resume();
+                state.put(address, r);
+            }
+            int ofDay = (int) Math.min(d.count, maxSize);
+            int ofBefore = Math.min(r.last.length, maxSize - ofDay);
+            double[] last = new double[ofBefore + ofDay];
+            System.arraycopy(r.last, r.last.length - ofBefore, last, 0, ofBefore);
+            for (int i = 0; i < ofDay; i++) {
+                // Oldest of the day's last values first
+                last[ofBefore + i] = d.last[(int) ((d.count - ofDay + i) % maxSize)];
+            }
+            r.last = last;
+            r.total += d.count;
+        }
+    }
+
+    private static Map<String, Resume> copy(Map<String, Resume> state) {
+        HashMap<String, Resume> copy = new HashMap<String, Resume>();
+        for (Map.Entry<String, Resume> e : state.entrySet()) {
+            Resume r = new Resume();
+            r.total = e.getValue().total;
+            r.last = e.getValue().last;
+            copy.put(e.getKey(), r);
+        }
+        return copy;
+    }
+
+    // Output of one device in one day
+    private class Output {
+        final byte[] address;
+        final PressureFilter filter = new PressureFilter(maxSize, skipNum);
+        final CalibrationProfile profile;
+        final BufferedWriter out;
+
+        Output(byte[] address, Resume resume, String day) throws IOException {
+            this.address = address;
+            String name = new String(address);
+            if (resume != null) {
+                filter.resume(resume.total, resume.last, resume.last.length);
+            }
+            profile = calibrations != null && address.length > 0 ? calibrations.get(name)
+                    : CalibrationProfile.DEFAULT;
+            String file = "pressure_" + (address.length > 0 ? name.replace(":", "") : "unknown")
+                    + "_" + day + ".txt";
+            out = new BufferedWriter(new FileWriter(new File(outputDirectory, file)), 64 * 1024);
+        }
+    }
+
+    private long process(File day, final Map<String, Resume> resume) throws IOException {
+        final String dayName = dayOf(day);
+        final List<Output> outputs = new ArrayList<Output>();
+        final StringBuilder sb = new StringBuilder(64);
+        final long[] count = new long[1];
+        final IOException[] error = new IOException[1];
+        try {
+            LogLineParser.scan(day, 0, Long.MAX_VALUE, new LogLineParser.Handler() {
+                private Output last;
+
+                @Override
+                public boolean onLine(LogLineParser line) {
+                    try {
+                        if (last == null || !matches(line, last.address)) {
+                            last = null;
+                            for (Output o : outputs) {
+                                if (matches(line, o.address)) {
+                                    last = o;
+                                    break;
+                                }
+                            }
+                            if (last == null) {
+                                byte[] address = addressOf(line);
+                                last = new Output(address, resume.get(new String(address)), dayName);
+                                outputs.add(last);
+                            }
+                        }
+                        float mbar = last.profile.apply(last.filter.add(line.raw));
+                        sb.setLength(0);
+                        sb.append(line.millis).append(", ").append(line.raw).append(", ").append(mbar);
+                        last.out.append(sb).append('\n');
+                        count[0]++;
+                        return true;
+                    } catch (IOException e) {
+                        error[0] = e;
+                        return false;
+                    }
+                }
+            });
+        } finally {
+            for (Output o : outputs) {
+                o.out.close();
+            }
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return count[0];
+    }
+
+    private File newVersionDirectory() throws IOException {
+        int version = 1;
+        File[] files = logDirectory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (f.isDirectory() && name.startsWith(DIRECTORY_PREFIX)) {
+                    try {
+                        version = Math.max(version,
+                                Integer.parseInt(name.substring(DIRECTORY_PREFIX.length())) + 1);
+                    } catch (NumberFormatException e) {
+                        // Not a version
+                    }
+                }
+            }
+        }
+        File dir = new File(logDirectory, DIRECTORY_PREFIX + version);
+        if (!dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return dir;
+    }
+
+    private void writeManifest() throws IOException {
+        Properties p = new Properties();
+        p.setProperty("created", String.valueOf(System.currentTimeMillis()));
+        p.setProperty("max_size", String.valueOf(maxSize));
+        p.setProperty("skip_num", String.valueOf(skipNum));
+        p.setProperty("calibration", calibrations != null ? "store" : CalibrationProfile.DEFAULT.toString());
+        p.setProperty("from", fromDay != null ? fromDay : "");
+        p.setProperty("to", toDay != null ? toDay : "");
+        p.setProperty("samples", String.valueOf(samples));
+        OutputStream out = new FileOutputStream(new File(outputDirectory, MANIFEST));
+        try {
+            p.store(out, "Reprocessed pressure logs");
+        } finally {
+            out.close();
+        }
+    }
+
+    public synchronized String report() {
+        return String.format(Locale.US, "%d samples in %d ms, %.0f samples/s, %.1f MB read, %d threads",
+                samples, elapsedMillis, elapsedMillis > 0 ? samples * 1000.0 / elapsedMillis : 0,
+                bytes / 1e6, threads);
+    }
+}
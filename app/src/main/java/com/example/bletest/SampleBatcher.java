@@ -0,0 +1,157 @@
+package com.example.bletest;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Pipeline sink that collects samples into {@link PressureBatch} and {@link MotionBatch}
+ * objects and hands them to a {@link BluetoothListener}.
+ *
+ * A batch is delivered when it is full, when its oldest sample is older than the maximum
+ * delay, when samples from another device arrive, or on {@link #flush()}. The delay is checked
+ * as samples arrive and by {@link #flushStale(long)}, which the owner calls on a timer so a
+ * pod that goes quiet does not hold its last batch. Batches come from
+ * a small pool and go back to it after delivery, so steady state streaming does not allocate
+ * per sample.
+ */
+public class SampleBatcher implements SensorPipeline.Sink {
+    private final BluetoothListener listener;
+    private final Executor executor;
+    private final int batchSize;
+    private final long maxDelay;
+
+    private final ConcurrentLinkedQueue<PressureBatch> freePressure =
+            new ConcurrentLinkedQueue<PressureBatch>();
+    private final ConcurrentLinkedQueue<MotionBatch> freeMotion =
+            new ConcurrentLinkedQueue<MotionBatch>();
+
+    private PressureBatch pressure;
+    private MotionBatch motion;
+
+    /**
+     * @param listener  Receiver of the batches.
+     * @param executor  Thread to deliver on, or null to deliver on the pipeline thread (or the
+     *                  thread calling flush() or flushStale()).
+     * @param batchSize Samples per batch.
+     * @param maxDelay  Longest time in ms a sample may wait for its batch to fill.
+     */
+    public SampleBatcher(BluetoothListener listener, Executor executor, int batchSize, long maxDelay) {
+        this.listener = listener;
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public synchronized void onPressure(String address, long timestamp, int raw, float mbar) {
+        if (pressure != null && !sameAddress(pressure.address, address)) {
+            flushPressure();
+        }
+        if (pressure == null) {
+            pressure = freePressure.poll();
+            if (pressure == null) {
+                pressure = new PressureBatch(batchSize);
+            }
+            pressure.address = address;
+        }
+        pressure.add(timestamp, raw, mbar);
+        if (pressure.count == batchSize || timestamp - pressure.timestamps[0] >= maxDelay) {
+            flushPressure();
+        }
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+    }
+
+    @Override
+    public synchronized void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+        if (motion != null && !sameAddress(motion.address, address)) {
+            flushMotion();
+        }
+        if (motion == null) {
+            motion = freeMotion.poll();
+            if (motion == null) {
+                motion = new MotionBatch(batchSize);
+            }
+            motion.address = address;
+        }
+        motion.add(timestamp, acc, gyro, mag);
+        if (motion.count == batchSize || timestamp - motion.timestamps[0] >= maxDelay) {
+            flushMotion();
+        }
+    }
+
+    private static boolean sameAddress(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Delivers the batches whose oldest sample is at least the maximum delay older than now.
+     */
+    public synchronized void flushStale(long now) {
+        if (pressure != null && now - pressure.timestamps[0] >= maxDelay) {
+            flushPressure();
+        }
+        if (motion != null && now - motion.timestamps[0] >= maxDelay) {
+            flushMotion();
+        }
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Delivers partially filled batches.
+     */
+    public synchronized void flush() {
+        if (pressure != null) {
+            flushPressure();
+        }
+        if (motion != null) {
+            flushMotion();
+        }
+    }
+
+    private void flushPressure() {
+        final PressureBatch batch = pressure;
+        pressure = null;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.blePressureSamples(batch);
+                } finally {
+                    batch.count = 0;
+                    freePressure.offer(batch);
+                }
+            }
+        });
+    }
+
+    private void flushMotion() {
+        final MotionBatch batch = motion;
+        motion = null;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.bleMotionSamples(batch);
+                } finally {
+                    batch.clear();
+                    freeMotion.offer(batch);
+                }
+            }
+        });
+    }
+
+    private void deliver(Runnable r) {
+        if (executor == null) {
+            r.run();
+        } else {
+            executor.execute(r);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.bletest;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the most recent pressure samples of each device in a {@link SampleRing}, so charts,
+ * analytics and export can read recent history through their own cursors instead of keeping
+ * copies.
+ */
+public class SampleHistory implements SensorPipeline.Sink {
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final int capacity;
+    private final ConcurrentHashMap<String, SampleRing> rings =
+            new ConcurrentHashMap<String, SampleRing>();
+    // Only touched by the pipeline thread.
+    private String lastAddress;
+    private SampleRing lastRing;
+
+    public SampleHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Samples kept per device.
+     */
+    public SampleHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return The ring of the device, created empty if it has not reported yet so readers
+     * can attach before the first sample.
+     */
+    public SampleRing get(String address) {
+        SampleRing ring = rings.get(address);
+        if (ring == null) {
+            SampleRing created = new SampleRing(capacity);
+            ring = rings.putIfAbsent(address, created);
+            if (ring == null) {
+                ring = created;
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * @return Addresses of the devices with a ring, live view.
+     */
+    public Set<String> getAddresses() {
+        return rings.keySet();
+    }
+
+    @Override
+    public void onPressure(String address, long timestamp, int raw, float mbar) {
+        if (address != lastAddress || lastRing == null) {
+            lastRing = get(address);
+            lastAddress = address;
+        }
+        lastRing.add(timestamp, raw, mbar);
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+    }
+
+    @Override
+    public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+    }
+}
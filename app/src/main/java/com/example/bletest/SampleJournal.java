@@ -0,0 +1,539 @@
+package com.example.bletest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Crash safe writer of the pressure lines of the daily {@link SampleLog} files. Samples are
+ * appended with a CRC32 to a preallocated journal, sample_journal.bin, in group commits: a
+ * writer thread commits once maxRecords samples wait or the oldest has waited maxDelay ms, at
+ * most maxRecords at a time, and with SYNC_COMMIT forces the journal to disk before the lines
+ * go to the log files. The log files stay open and are only synced at a checkpoint, when the
+ * journal is full or closed, after which it starts over with the next generation.
+ *
+ * On open, the records of the current generation that check out are replayed: each log file
+ * is cut back to where the first of them went and their lines are written again. That drops a
+ * half written line and restores lines the log lost after the last checkpoint. Recovery stops
+ * at the first record that does not check out, the write torn by the crash.
+ *
+ * Journal layout: two header slots of HEADER_SLOT bytes (MAGIC, VERSION, long generation,
+ * CRC32 of those), the valid one with the higher generation counting; then records of int
+ * length, int CRC32 over generation and payload, and the payload: long millis, int raw, float
+ * mbar, long offset of the line in its log file, UTF day (yyyy-MM-dd) and UTF address.
+ */
+public class SampleJournal {
+    public static final String FILE_NAME = "sample_journal.bin";
+    public static final int MAGIC = 0x534A524E; // "SJRN"
+    public static final int VERSION = 1;
+
+    /**
+     * Journal written but not forced: an app crash loses nothing, a power loss what the OS
+     * had not written yet, and a log may then end in a half line.
+     */
+    public static final int SYNC_NONE = 0;
+    /**
+     * Journal forced to disk at every group commit, before the lines are written.
+     */
+    public static final int SYNC_COMMIT = 1;
+
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_RECORDS = 64;
+    public static final long DEFAULT_MAX_DELAY = 1000;
+
+    private static final int HEADER_SLOT = 32;
+    private static final int HEADER = 2 * HEADER_SLOT;
+    private static final int MAX_PAYLOAD = 1024;
+
+    private static class Sample {
+        final long millis;
+        final String address;
+        final int raw;
+        final float mbar;
+
+        Sample(long millis, String address, int raw, float mbar) {
+            this.millis = millis;
+            this.address = address;
+            this.raw = raw;
+            this.mbar = mbar;
+        }
+    }
+
+    // An open daily log and the lines of the commit not written to it yet
+    private static class LogFile {
+        final FileOutputStream out;
+        long length;
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+
+        LogFile(File file) throws IOException {
+            length = file.length();
+            out = new FileOutputStream(file, true);
+        }
+    }
+
+    private final File directory;
+    private final int capacity;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    // Guarded by this
+    private ArrayList<Sample> pending = new ArrayList<Sample>();
+    private boolean commitQueued = false;
+    private ScheduledFuture<?> delayedCommit;
+    private boolean closed = false;
+    private int maxRecords = DEFAULT_MAX_RECORDS;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private volatile int syncPolicy = SYNC_COMMIT;
+
+    // Writer thread only, after the constructor
+    private final RandomAccessFile journal;
+    private long generation = 0;
+    private int position = HEADER;
+    private final HashMap<String, LogFile> logs = new HashMap<String, LogFile>();
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    private final DataOutputStream payloadOut = new DataOutputStream(payload);
+    private final CRC32 crc = new CRC32();
+    private final SimpleDateFormat lineFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+    private final Calendar cal = Calendar.getInstance();
+    private long dayStart = 0;
+    private long dayEnd = 0;
+    private String day;
+    private long second = Long.MIN_VALUE;
+    private String secondText;
+
+    private volatile long records = 0;
+    private volatile long commits = 0;
+    private volatile long syncs = 0;
+    private volatile long checkpoints = 0;
+    private volatile long failures = 0;
+    private volatile long rejected = 0;
+    // Samples of the chunk being encoded that were rejected
+    private int chunkRejected = 0;
+    private long recovered = 0;
+    private long cutBytes = 0;
+
+    public SampleJournal(File directory) throws IOException {
+        this(directory, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the journal in the directory, replaying what the logs may have lost.
+     *
+     * @param capacity Journal size; a checkpoint is taken each time it fills.
+     */
+    public SampleJournal(File directory, int capacity) throws IOException {
+        this.directory = directory;
+        this.capacity = Math.max(capacity, HEADER + 8 + MAX_PAYLOAD);
+        journal = new RandomAccessFile(new File(directory, FILE_NAME), "rw");
+        try {
+            recover();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Commits once maxRecords samples are pending or the oldest is maxDelay ms old; a sync
+     * covers at most maxRecords samples.
+     */
+    public synchronized void setGroupCommit(int maxRecords, long maxDelay) {
+        this.maxRecords = Math.max(1, maxRecords);
+        this.maxDelay = Math.max(0, maxDelay);
+    }
+
+    /**
+     * @param syncPolicy SYNC_NONE or SYNC_COMMIT.
+     */
+    public void setSyncPolicy(int syncPolicy) {
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Queues one pressure sample of the device; written by the next group commit.
+     *
+     * @return false if the journal is closed and the sample was not taken.
+     */
+    public synchronized boolean write(long timeMillis, String address, int raw, float mbar) {
+        if (closed) {
+            return false;
+        }
+        pending.add(new Sample(timeMillis, address, raw, mbar));
+        if (pending.size() >= maxRecords) {
+            if (!commitQueued) {
+                commitQueued = true;
+                executor.execute(mCommit);
+            }
+        } else if (delayedCommit == null) {
+            delayedCommit = executor.schedule(mCommit, maxDelay, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Commits the pending samples and waits for it.
+     */
+    public void flush() {
+        await(executor.submit(mCommit));
+    }
+
+    /**
+     * Commits the pending samples, takes a checkpoint and closes the files. Later samples are
+     * refused by {@link #write}.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        await(executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                mCommit.run();
+                try {
+                    checkpoint();
+                    closeLogs();
+                    journal.close();
+                } catch (IOException e) {
+                    failures++;
+                    e.printStackTrace();
+                }
+            }
+        }));
+        executor.shutdown();
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final Runnable mCommit = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Sample> batch;
+            synchronized (SampleJournal.this) {
+                batch = pending;
+                pending = new ArrayList<Sample>();
+                commitQueued = false;
+                if (delayedCommit != null) {
+                    delayedCommit.cancel(false);
+                    delayedCommit = null;
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            int limit;
+            synchronized (SampleJournal.this) {
+                limit = maxRecords;
+            }
+            try {
+                append(batch, limit);
+            } catch (IOException e) {
+                // The batch is lost; the journal and logs stay consistent up to the last commit.
+                // Lines encoded but not journaled must not reach the logs with a later commit.
+                for (LogFile lf : logs.values()) {
+                    lf.lines.reset();
+                }
+                failures++;
+                e.printStackTrace();
+            }
+        }
+    };
+
+    private void append(List<Sample> batch, int limit) throws IOException {
+        int i = 0;
+        while (i < batch.size()) {
+            int end = encode(batch, i, Math.min(batch.size(), i + limit));
+            if (end == i) {
+                checkpoint();
+                continue;
+            }
+            journal.seek(position);
+            journal.write(chunk.toByteArray(), 0, chunk.size());
+            if (syncPolicy == SYNC_COMMIT) {
+                journal.getChannel().force(false);
+                syncs++;
+            }
+            position += chunk.size();
+            // Only now the lines: whatever reaches the logs is in the journal.
+            for (LogFile lf : logs.values()) {
+                if (lf.lines.size() > 0) {
+                    lf.lines.writeTo(lf.out);
+                    lf.length += lf.lines.size();
+                    lf.lines.reset();
+                }
+            }
+            records += end - i - chunkRejected;
+            commits++;
+            i = end;
+        }
+    }
+
+    // Encodes records from the index on into chunk while they fit in the journal, and their
+    // lines into the logs' buffers; returns the index after the last one. A sample too long
+    // for a record is dropped on its own.
+    private int encode(List<Sample> batch, int from, int to) throws IOException {
+        chunk.reset();
+        chunkRejected = 0;
+        int i = from;
+        for (; i < to; i++) {
+            Sample s = batch.get(i);
+            String dayName = dayOf(s.millis);
+            LogFile lf = log(dayName);
+            byte[] line = (secondOf(s.millis) + ", " + s.millis + ", "
+                    + SampleLog.pressureMessage(s.address, s.raw, s.mbar) + "\n").getBytes();
+            payload.reset();
+            payloadOut.writeLong(s.millis);
+            payloadOut.writeInt(s.raw);
+            payloadOut.writeFloat(s.mbar);
+            payloadOut.writeLong(lf.length + lf.lines.size());
+            payloadOut.writeUTF(dayName);
+            payloadOut.writeUTF(s.address);
+            if (payload.size() > MAX_PAYLOAD) {
+                chunkRejected++;
+                rejected++;
+                continue;
+            }
+            if (position + chunk.size() + 8 + payload.size() > capacity) {
+                break;
+            }
+            writeInt(chunk, payload.size());
+            writeInt(chunk, checksum(generation, payload.toByteArray(), payload.size()));
+            payload.writeTo(chunk);
+            lf.lines.write(line);
+        }
+        return i;
+    }
+
+    /**
+     * Syncs the logs, so the journal can start over with a new generation.
+     */
+    private void checkpoint() throws IOException {
+        for (LogFile lf : logs.values()) {
+            lf.out.getFD().sync();
+        }
+        // Keep only today's log open.
+        String today = day;
+        LogFile current = logs.remove(today);
+        closeLogs();
+        if (current != null) {
+            logs.put(today, current);
+        }
+        generation++;
+        writeHeader();
+        position = HEADER;
+        checkpoints++;
+    }
+
+    private void closeLogs() throws IOException {
+        for (LogFile lf : logs.values()) {
+            lf.out.close();
+        }
+        logs.clear();
+    }
+
+    private LogFile log(String dayName) throws IOException {
+        LogFile lf = logs.get(dayName);
+        if (lf == null) {
+            lf = new LogFile(new File(directory, SampleLog.fileName(dayName)));
+            logs.put(dayName, lf);
+        }
+        return lf;
+    }
+
+    private String dayOf(long millis) {
+        if (millis < dayStart || millis >= dayEnd) {
+            cal.setTimeInMillis(millis);
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            dayStart = cal.getTimeInMillis();
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+            dayEnd = cal.getTimeInMillis();
+            day = dayFormat.format(new Date(dayStart));
+        }
+        return day;
+    }
+
+    // Samples come several a second; format each second once.
+    private String secondOf(long millis) {
+        long s = millis / 1000 - (millis % 1000 < 0 ? 1 : 0);
+        if (s != second) {
+            second = s;
+            secondText = lineFormat.format(new Date(millis));
+        }
+        return secondText;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SLOT);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+        out.writeInt(checksum(0, bytes.toByteArray(), bytes.size()));
+        journal.seek((generation % 2) * HEADER_SLOT);
+        journal.write(bytes.toByteArray());
+        journal.getChannel().force(false);
+        syncs++;
+    }
+
+    // Generation of the valid header slot with the higher one, or -1.
+    private long readHeader() throws IOException {
+        long best = -1;
+        byte[] slot = new byte[HEADER_SLOT];
+        for (int i = 0; i < 2; i++) {
+            if (journal.length() < (i + 1) * HEADER_SLOT) {
+                break;
+            }
+            journal.seek(i * HEADER_SLOT);
+            journal.readFully(slot);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(slot));
+            int magic = in.readInt();
+            int version = in.readInt();
+            long g = in.readLong();
+            int sum = in.readInt();
+            if (magic == MAGIC && version == VERSION && sum == checksum(0, slot, 16) && g > best) {
+                best = g;
+            }
+        }
+        return best;
+    }
+
+    private void recover() throws IOException {
+        long g = readHeader();
+        if (g >= 0) {
+            generation = g;
+            replay();
+        }
+        // Start from a checkpoint in a journal of the configured size, preallocated so commits
+        // do not change the file length.
+        checkpoint();
+        if (journal.length() != capacity) {
+            long old = journal.length();
+            journal.setLength(capacity);
+            byte[] zeros = new byte[64 * 1024];
+            for (long p = Math.min(old, capacity); p < capacity; p += zeros.length) {
+                journal.seek(p);
+                journal.write(zeros, 0, (int) Math.min(zeros.length, capacity - p));
+            }
+            journal.getChannel().force(true);
+        }
+    }
+
+    // Writes the lines of the valid records again from where the first of each log went.
+    private void replay() throws IOException {
+        long length = journal.length();
+        int p = HEADER;
+        byte[] buffer = new byte[MAX_PAYLOAD];
+        HashMap<String, Boolean> cut = new HashMap<String, Boolean>();
+        while (p + 8 <= length) {
+            journal.seek(p);
+            int n = journal.readInt();
+            int sum = journal.readInt();
+            if (n <= 0 || n > MAX_PAYLOAD || p + 8 + n > length) {
+                break;
+            }
+            journal.readFully(buffer, 0, n);
+            if (sum != checksum(generation, buffer, n)) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer, 0, n));
+            long millis = in.readLong();
+            int raw = in.readInt();
+            float mbar = in.readFloat();
+            long offset = in.readLong();
+            String dayName = in.readUTF();
+            String address = in.readUTF();
+            if (cut.get(dayName) == null) {
+                cut.put(dayName, true);
+                File file = new File(directory, SampleLog.fileName(dayName));
+                if (file.length() > offset) {
+                    cutBytes += file.length() - offset;
+                    RandomAccessFile f = new RandomAccessFile(file, "rw");
+                    try {
+                        f.setLength(offset);
+                    } finally {
+                        f.close();
+                    }
+                }
+            }
+            LogFile lf = log(dayName);
+            lf.lines.write((secondOf(millis) + ", " + millis + ", "
+                    + SampleLog.pressureMessage(address, raw, mbar) + "\n").getBytes());
+            if (lf.lines.size() >= 64 * 1024) {
+                lf.lines.writeTo(lf.out);
+                lf.lines.reset();
+            }
+            recovered++;
+            p += 8 + n;
+        }
+        for (LogFile lf : logs.values()) {
+            lf.lines.writeTo(lf.out);
+            lf.lines.reset();
+        }
+        // The next checkpoint syncs the replayed lines.
+    }
+
+    private int checksum(long generation, byte[] bytes, int length) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (generation >>> shift));
+        }
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    /**
+     * @return Samples replayed into the logs when the journal was opened.
+     */
+    public long getRecoveredCount() {
+        return recovered;
+    }
+
+    public String report() {
+        long c = commits;
+        return String.format(Locale.US,
+                "records %d, commits %d (%.1f records each), syncs %d, checkpoints %d, failures %d, "
+                        + "rejected %d, recovered %d (%d bytes of logs cut)",
+                records, c, c > 0 ? (double) records / c : 0.0, syncs, checkpoints, failures,
+                rejected, recovered, cutBytes);
+    }
+}
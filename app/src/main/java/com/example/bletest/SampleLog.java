@@ -0,0 +1,65 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+
+/**
+ * Appends sample lines to the daily log_state_change_yyyy-MM-dd.txt files. Pressure samples
+ * are written as "date, millis, raw, mbar, address"; older files only have the first three
+ * columns. {@link LogLineParser} reads both.
+ */
+public class SampleLog {
+    private final File directory;
+
+    public SampleLog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes "yyyy-MM-dd HH:mm:ss, millis, logMsg" to the file of the day of timeMillis.
+     */
+    public void write(long timeMillis, String logMsg) {
+        try {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(timeMillis);
+            SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            String calString = df.format(cal.getTime());
+
+            SimpleDateFormat nameDF = new SimpleDateFormat("yyyy-MM-dd");
+
+            String fileName = fileName(nameDF.format(cal.getTime()));
+            File logFile = new File(directory, fileName);
+            FileOutputStream fOut = new FileOutputStream(logFile, true);
+
+            OutputStreamWriter osw = new OutputStreamWriter(fOut);
+            osw.write(calString + ", "
+                    + timeMillis + ", "
+                    + logMsg
+                    + "\n");
+            osw.flush();
+            osw.close();
+
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes one pressure sample of the device.
+     */
+    public void write(long timeMillis, String address, int raw, float mbar) {
+        write(timeMillis, pressureMessage(address, raw, mbar));
+    }
+
+    static String fileName(String day) {
+        return "log_state_change_" + day + ".txt";
+    }
+
+    static String pressureMessage(String address, int raw, float mbar) {
+        return raw + ", " + mbar + ", " + address;
+    }
+}
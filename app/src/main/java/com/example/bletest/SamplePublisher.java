@@ -0,0 +1,206 @@
+package com.example.bletest;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipeline sink that publishes pressure samples to any number of {@link SampleStream}
+ * subscribers.
+ *
+ * Every subscription has its own buffer and is drained on the executor, so publishing from
+ * the GATT callback only appends to the buffers and never waits for a subscriber. What
+ * happens when a subscriber falls behind is chosen per subscription with
+ * {@link SampleStream.Overflow}.
+ */
+public class SamplePublisher implements SensorPipeline.Sink, SampleStream.Publisher<PressureSample> {
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final Executor executor;
+    private final CopyOnWriteArrayList<SampleSubscription> subscriptions =
+            new CopyOnWriteArrayList<SampleSubscription>();
+
+    public SamplePublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Subscribes with {@link SampleStream.Overflow#DROP_OLDEST} and the default capacity.
+     */
+    @Override
+    public void subscribe(SampleStream.Subscriber<? super PressureSample> subscriber) {
+        subscribe(subscriber, SampleStream.Overflow.DROP_OLDEST, DEFAULT_CAPACITY);
+    }
+
+    public void subscribe(SampleStream.Subscriber<? super PressureSample> subscriber,
+                          SampleStream.Overflow overflow, int capacity) {
+        SampleSubscription s = new SampleSubscription(subscriber, overflow,
+                overflow == SampleStream.Overflow.LATEST ? 1 : capacity);
+        subscriptions.add(s);
+        subscriber.onSubscribe(s);
+    }
+
+    @Override
+    public void onPressure(String address, long timestamp, int raw, float mbar) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        PressureSample sample = new PressureSample(address, timestamp, raw, mbar);
+        for (SampleSubscription s : subscriptions) {
+            s.offer(sample);
+        }
+    }
+
+    @Override
+    public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+    }
+
+    @Override
+    public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+    }
+
+    /**
+     * Completes every subscription once its buffered items are delivered.
+     */
+    public void complete() {
+        for (SampleSubscription s : subscriptions) {
+            s.complete();
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private class SampleSubscription implements SampleStream.Subscription, Runnable {
+        private final SampleStream.Subscriber<? super PressureSample> subscriber;
+        private final SampleStream.Overflow overflow;
+        private final int capacity;
+
+        private final ArrayDeque<PressureSample> queue = new ArrayDeque<PressureSample>();
+        private final AtomicInteger wip = new AtomicInteger();
+        private long demand = 0;
+        private long dropped = 0;
+        private boolean cancelled = false;
+        private boolean completed = false;
+        private Throwable error;
+
+        SampleSubscription(SampleStream.Subscriber<? super PressureSample> subscriber,
+                           SampleStream.Overflow overflow, int capacity) {
+            this.subscriber = subscriber;
+            this.overflow = overflow;
+            this.capacity = capacity;
+        }
+
+        void offer(PressureSample sample) {
+            synchronized (this) {
+                if (cancelled || completed) {
+                    return;
+                }
+                if (queue.size() >= capacity) {
+                    if (overflow == SampleStream.Overflow.BUFFER) {
+                        error = new IllegalStateException("Subscriber buffer overflow: " + capacity);
+                        completed = true;
+                    } else {
+                        queue.pollFirst();
+                        dropped++;
+                        queue.addLast(sample);
+                    }
+                } else {
+                    queue.addLast(sample);
+                }
+            }
+            schedule();
+        }
+
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            schedule();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    error = new IllegalArgumentException("request must be positive: " + n);
+                    completed = true;
+                }
+            } else {
+                synchronized (this) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                cancelled = true;
+                queue.clear();
+            }
+            subscriptions.remove(this);
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // The executor was shut down after complete(); nothing is left to deliver.
+                }
+            }
+        }
+
+        // Drains on the executor; wip makes sure only one drain runs at a time.
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                while (true) {
+                    PressureSample next;
+                    synchronized (this) {
+                        if (cancelled) {
+                            return;
+                        }
+                        if (demand == 0 || queue.isEmpty()) {
+                            break;
+                        }
+                        next = queue.pollFirst();
+                        demand--;
+                    }
+                    subscriber.onNext(next);
+                }
+
+                boolean finish;
+                Throwable failure;
+                synchronized (this) {
+                    finish = completed && !cancelled && (queue.isEmpty() || error != null);
+                    failure = error;
+                    if (finish) {
+                        cancelled = true;
+                    }
+                }
+                if (finish) {
+                    subscriptions.remove(this);
+                    if (failure != null) {
+                        subscriber.onError(failure);
+                    } else {
+                        subscriber.onComplete();
+                    }
+                    return;
+                }
+
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.bletest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed capacity history of pressure samples in a direct buffer, written by one thread and
+ * read by any number of {@link Cursor}s without locks or copies of the whole history.
+ *
+ * Every sample gets a sequence number, and every slot a stamp with the sequence it holds. The
+ * writer clears the stamp, fills the slot, stamps it and then publishes the sequence. A reader
+ * checks the stamp before and after copying a slot and skips what was overwritten
+ * meanwhile. Plain reads of the buffer may still be reordered past the second check under
+ * the Java memory model and on ARM, so readers also keep clear of the slots the writer will
+ * reach next: a slot is only read while it is more than a slack of capacity / 16 samples
+ * ahead of the writer.
+ *
+ * Record layout (native order): long timestamp, int raw, float mbar.
+ */
+public class SampleRing {
+    static final int RECORD_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final int slack;
+    // Sequence of the sample in each slot, -1 while it is written.
+    private final AtomicLongArray stamps;
+    // Number of samples written; the next sample gets this sequence.
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param capacity Number of samples kept, rounded up to a power of two.
+     */
+    public SampleRing(int capacity) {
+        int c = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.capacity = c;
+        mask = c - 1;
+        slack = Math.max(1, c / 16);
+        buffer = ByteBuffer.allocateDirect(c * RECORD_SIZE).order(ByteOrder.nativeOrder());
+        stamps = new AtomicLongArray(c);
+        for (int i = 0; i < c; i++) {
+            stamps.set(i, -1);
+        }
+    }
+
+    /**
+     * Appends a sample. Must only be called from one thread at a time.
+     */
+    public void add(long timestamp, int raw, float mbar) {
+        long seq = sequence.get();
+        int slot = (int) (seq & mask);
+        int pos = slot * RECORD_SIZE;
+        stamps.set(slot, -1);
+        buffer.putLong(pos, timestamp);
+        buffer.putInt(pos + 8, raw);
+        buffer.putFloat(pos + 12, mbar);
+        stamps.lazySet(slot, seq);
+        sequence.lazySet(seq + 1);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of samples written so far.
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    // Slots below this sequence may be overwritten or being overwritten.
+    private long firstValid() {
+        return Math.max(0, sequence.get() - capacity + slack);
+    }
+
+    /**
+     * @return A cursor positioned after the newest sample, which reads only new samples.
+     */
+    public Cursor newCursor() {
+        return new Cursor(sequence.get());
+    }
+
+    /**
+     * @return A cursor positioned at the oldest kept sample with a timestamp at or after
+     * sinceMillis, e.g. for "the last N seconds".
+     */
+    public Cursor newCursorSince(long sinceMillis) {
+        long lo = firstValid();
+        long hi = sequence.get();
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (buffer.getLong((int) (mid & mask) * RECORD_SIZE) < sinceMillis) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return new Cursor(lo);
+    }
+
+    /**
+     * Read position of one consumer. A cursor must only be used by one thread.
+     */
+    public class Cursor {
+        private long next;
+        private long missed = 0;
+
+        Cursor(long next) {
+            this.next = next;
+        }
+
+        /**
+         * Copies up to max samples following the previous ones read into the arrays.
+         *
+         * @return Number of samples copied; 0 if there is nothing new.
+         */
+        public int poll(long[] timestamps, int[] raw, float[] mbar, int off, int max) {
+            long head = sequence.get();
+            long oldest = firstValid();
+            if (next < oldest) {
+                missed += oldest - next;
+                next = oldest;
+            }
+            int n = (int) Math.max(0, Math.min(max, head - next));
+            // Copies that lost a race with the writer end before this index.
+            int stale = 0;
+            for (int i = 0; i < n; i++) {
+                long seq = next + i;
+                int slot = (int) (seq & mask);
+                int pos = slot * RECORD_SIZE;
+                if (stamps.get(slot) != seq) {
+                    stale = i + 1;
+                    continue;
+                }
+                timestamps[off + i] = buffer.getLong(pos);
+                raw[off + i] = buffer.getInt(pos + 8);
+                mbar[off + i] = buffer.getFloat(pos + 12);
+                if (stamps.get(slot) != seq) {
+                    stale = i + 1;
+                }
+            }
+
+            // The writer overwrites in order, so whatever it reached is a prefix; drop it along
+            // with what fell behind the slack while we were copying.
+            stale = (int) Math.min(n, Math.max(stale, firstValid() - next));
+            if (stale > 0) {
+                n -= stale;
+                System.arraycopy(timestamps, off + stale, timestamps, off, n);
+                System.arraycopy(raw, off + stale, raw, off, n);
+                System.arraycopy(mbar, off + stale, mbar, off, n);
+                missed += stale;
+                next += stale;
+            }
+            next += n;
+            return n;
+        }
+
+        /* Samples overwritten before this cursor could read them */
+        public long getMissed() {
+            return missed;
+        }
+
+        /* Samples written but not read yet */
+        public long getLag() {
+            return sequence.get() - next;
+        }
+    }
+}
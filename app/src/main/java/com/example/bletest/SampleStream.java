@@ -0,0 +1,227 @@
+package com.example.bletest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Demand driven stream interfaces with the same contract as java.util.concurrent.Flow, which
+ * is not available on the Android versions this app supports, plus a few operators.
+ *
+ * A subscriber receives nothing until it calls {@link Subscription#request(long)}; it is
+ * never sent more items than it requested.
+ */
+public final class SampleStream {
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        void request(long n);
+
+        void cancel();
+    }
+
+    /* What a subscription does with items that arrive while its subscriber has no demand */
+    public enum Overflow {
+        /* Keep a bounded buffer and evict the oldest item when it is full */
+        DROP_OLDEST,
+        /* Keep only the most recent item */
+        LATEST,
+        /* Buffer everything up to the capacity, then fail the subscription */
+        BUFFER
+    }
+
+    private SampleStream() {
+    }
+
+    /**
+     * Groups consecutive items into lists of the given size. Requesting n windows requests
+     * n * size items upstream.
+     */
+    public static <T> Publisher<List<T>> window(final Publisher<T> source, final int size) {
+        return new Publisher<List<T>>() {
+            @Override
+            public void subscribe(final Subscriber<? super List<T>> downstream) {
+                source.subscribe(new Subscriber<T>() {
+                    private List<T> current = new ArrayList<T>(size);
+
+                    @Override
+                    public void onSubscribe(final Subscription upstream) {
+                        downstream.onSubscribe(new Subscription() {
+                            @Override
+                            public void request(long n) {
+                                upstream.request(n >= Long.MAX_VALUE / size ? Long.MAX_VALUE : n * size);
+                            }
+
+                            @Override
+                            public void cancel() {
+                                upstream.cancel();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onNext(T item) {
+                        current.add(item);
+                        if (current.size() == size) {
+                            List<T> full = current;
+                            current = new ArrayList<T>(size);
+                            downstream.onNext(full);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable throwable) {
+                        downstream.onError(throwable);
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        if (!current.isEmpty()) {
+                            downstream.onNext(current);
+                        }
+                        downstream.onComplete();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Emits at most one pressure sample per period of sample time. The source is consumed at
+     * full rate so it never backs up; while the subscriber has no demand only the latest
+     * sample is held and it is emitted as soon as the subscriber asks.
+     */
+    public static Publisher<PressureSample> sample(final Publisher<PressureSample> source,
+                                                   final long periodMillis) {
+        return new Publisher<PressureSample>() {
+            @Override
+            public void subscribe(final Subscriber<? super PressureSample> downstream) {
+                source.subscribe(new SamplingSubscriber(downstream, periodMillis));
+            }
+        };
+    }
+
+    private static class SamplingSubscriber implements Subscriber<PressureSample> {
+        private final Subscriber<? super PressureSample> downstream;
+        private final long periodMillis;
+
+        private long demand = 0;
+        private long periodEnd = Long.MIN_VALUE;
+        private PressureSample pending;
+        private boolean done = false;
+        private Throwable error;
+        private boolean terminated = false;
+        // request() and the upstream both call drain(); only one of them emits at a time and
+        // the other leaves its work to it.
+        private boolean emitting = false;
+        private boolean missed = false;
+
+        SamplingSubscriber(Subscriber<? super PressureSample> downstream, long periodMillis) {
+            this.downstream = downstream;
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        public void onSubscribe(final Subscription upstream) {
+            downstream.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                    synchronized (SamplingSubscriber.this) {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                    drain();
+                }
+
+                @Override
+                public void cancel() {
+                    upstream.cancel();
+                }
+            });
+            upstream.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(PressureSample item) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                pending = item;
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            synchronized (this) {
+                done = true;
+                error = throwable;
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                done = true;
+            }
+            drain();
+        }
+
+        private void drain() {
+            synchronized (this) {
+                if (emitting) {
+                    missed = true;
+                    return;
+                }
+                emitting = true;
+            }
+            while (true) {
+                PressureSample item = null;
+                Throwable failure = null;
+                synchronized (this) {
+                    if (done && !terminated) {
+                        terminated = true;
+                        failure = error;
+                    } else if (!done && pending != null && demand > 0 && pending.timestamp >= periodEnd) {
+                        item = take();
+                    } else if (missed) {
+                        missed = false;
+                        continue;
+                    } else {
+                        emitting = false;
+                        return;
+                    }
+                }
+                if (item != null) {
+                    downstream.onNext(item);
+                } else if (failure != null) {
+                    downstream.onError(failure);
+                } else {
+                    downstream.onComplete();
+                }
+            }
+        }
+
+        // Caller holds the lock.
+        private PressureSample take() {
+            PressureSample item = pending;
+            pending = null;
+            demand--;
+            periodEnd = item.timestamp + periodMillis;
+            return item;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.bletest;
+
+import java.util.UUID;
+
+/**
+ * Turns the value of one characteristic into a fixed set of output channels.
+ *
+ * Implementations are registered with {@link DecoderRegistry}; the pipeline then dispatches
+ * notifications of the characteristic to them by index. Most decoders are built from a
+ * declarative {@link PayloadLayout} instead of being written by hand.
+ */
+public interface SensorDecoder {
+    /* Channels go through the pressure filter and calibration: one channel, raw value */
+    int KIND_PRESSURE = 0;
+    /* Channels are accelerometer, gyroscope and magnetometer x/y/z, in that order */
+    int KIND_MOTION = 1;
+    /* Channels are delivered as they are to SensorPipeline.ChannelSink */
+    int KIND_GENERIC = 2;
+
+    UUID getUuid();
+
+    int getKind();
+
+    String[] getChannels();
+
+    /**
+     * @param value Characteristic value.
+     * @param out   Receives one value per channel, scale applied.
+     * @return false if the frame carries no reading.
+     */
+    boolean decode(byte[] value, double[] out);
+}
@@ -0,0 +1,426 @@
+package com.example.bletest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decodes sensor notifications with the decoders of a {@link DecoderRegistry} and runs the
+ * pressure values through the trimmed mean filter.
+ *
+ * The pipeline has no Android dependencies so captured packets can be fed through the exact
+ * same code on a JVM (see {@link PacketReplay}). Results are handed to every registered
+ * {@link Sink}, in registration order, on the thread that called {@link #process}.
+ * {@link #process} must not be called from several threads at once.
+ *
+ * The filter window and the sinks form a {@link Config} that can be switched while samples
+ * flow, see {@link #edit()}.
+ */
+public class SensorPipeline {
+    public static final UUID UUID_MOV_DATA = DecoderRegistry.UUID_MOV_DATA;
+    public static final UUID UUID_ACC_DATA = DecoderRegistry.UUID_ACC_DATA;
+
+    public static final int DECODER_NONE = -1;
+    /* Indices of the built-in decoders in the default registry */
+    public static final int DECODER_MOTION = 0;
+    public static final int DECODER_PRESSURE = 1;
+
+    /** Largest filter window {@link Editor#setFilter} takes. */
+    public static final int MAX_FILTER_SIZE = 64;
+
+    public interface Sink {
+        /* Pressure reading with its raw 24 bit value and the filtered value in mbar */
+        void onPressure(String address, long timestamp, int raw, float mbar);
+
+        /* Notification that carried no reading */
+        void onInvalidFrame(String address, long timestamp, UUID uuid);
+
+        /* Motion reading: accelerometer (G), gyroscope (deg/s), magnetometer (uT).
+        The points are reused for the next notification; copy them to keep them. */
+        void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag);
+    }
+
+    /**
+     * Optional extension of {@link Sink} for decoders of {@link SensorDecoder#KIND_GENERIC}
+     * sensors, which have no typed callback.
+     */
+    public interface ChannelSink extends Sink {
+        /* The values array is reused for the next notification; copy it to keep it. */
+        void onChannels(String address, long timestamp, SensorDecoder decoder, double[] values);
+    }
+
+    /**
+     * Filter window and sinks. A published config is never changed: {@link Editor#apply()}
+     * replaces it with a new one in a single volatile write, so each notification runs
+     * entirely with the config it started with, and no notification is held up or dropped by
+     * a switch.
+     */
+    public static final class Config {
+        public final int filterSize;
+        public final int filterSkip;
+        final Sink[] sinks;
+        final ChannelSink[] channelSinks;
+        // System.nanoTime() of the switch to this config, 0 for the first one
+        final long appliedAt;
+        // Set by the first notification run with it
+        boolean used;
+
+        Config(int filterSize, int filterSkip, Sink[] sinks, ChannelSink[] channelSinks, long appliedAt) {
+            this.filterSize = filterSize;
+            this.filterSkip = filterSkip;
+            this.sinks = sinks;
+            this.channelSinks = channelSinks;
+            this.appliedAt = appliedAt;
+        }
+
+        public List<Sink> getSinks() {
+            return Collections.unmodifiableList(Arrays.asList(sinks));
+        }
+    }
+
+    /**
+     * Changes for one switch of the {@link Config}, made with {@link #edit()}. They are
+     * applied on top of the config current at {@link #apply()}, so editors used at the same
+     * time do not undo each other.
+     */
+    public final class Editor {
+        private int filterSize = -1;
+        private int filterSkip = -1;
+        private boolean clearSinks = false;
+        private final ArrayList<Sink> removed = new ArrayList<Sink>();
+        private final ArrayList<Sink> added = new ArrayList<Sink>();
+
+        private Editor() {
+        }
+
+        /**
+         * Switches the trimmed mean filter of every device to a window of maxSize values
+         * dropping skipNum of them. Each device's filter carries over its recent values, so
+         * the filtered signal continues without a gap.
+         */
+        public Editor setFilter(int maxSize, int skipNum) {
+            if (maxSize > MAX_FILTER_SIZE || skipNum < 0 || maxSize <= skipNum) {
+                throw new IllegalArgumentException("Window of " + maxSize + " dropping " + skipNum);
+            }
+            filterSize = maxSize;
+            filterSkip = skipNum;
+            return this;
+        }
+
+        /**
+         * Removes every sink present at {@link #apply()}; sinks added by this editor stay.
+         */
+        public Editor clearSinks() {
+            clearSinks = true;
+            return this;
+        }
+
+        public Editor removeSink(Sink sink) {
+            removed.add(sink);
+            return this;
+        }
+
+        public Editor addSink(Sink sink) {
+            added.add(sink);
+            return this;
+        }
+
+        /**
+         * Switches to the new config; notifications from now on run with it. A notification
+         * already in progress finishes with the old one, so a removed sink may still get its
+         * calls.
+         */
+        public Config apply() {
+            return SensorPipeline.this.apply(this);
+        }
+    }
+
+    // Filter and calibration of each device, found once per sample via the address.
+    private static class DeviceState {
+        PressureFilter filter = new PressureFilter();
+        // The stored profile, and the one pressure() applies: it at the last temperature
+        CalibrationProfile calibration = CalibrationProfile.DEFAULT;
+        CalibrationProfile profile = CalibrationProfile.DEFAULT;
+        double temperature = Double.NaN;
+        // The last raw values, for a filter of another window to start from
+        final double[] recent = new double[MAX_FILTER_SIZE];
+        long samples = 0;
+
+        void setCalibration(CalibrationProfile calibration, double temperature) {
+            this.calibration = calibration;
+            this.temperature = temperature;
+            profile = Double.isNaN(temperature) ? calibration : calibration.atTemperature(temperature);
+        }
+
+        void switchFilter(int maxSize, int skipNum) {
+            int n = (int) Math.min(samples, MAX_FILTER_SIZE);
+            double[] last = new double[n];
+            for (int i = 0; i < n; i++) {
+                last[i] = recent[(int) ((samples - n + i) % MAX_FILTER_SIZE)];
+            }
+            filter = new PressureFilter(maxSize, skipNum);
+            filter.resume(samples, last, n);
+        }
+    }
+
+    private final HashMap<String, DeviceState> devices = new HashMap<String, DeviceState>();
+    private String lastAddress;
+    private DeviceState lastState;
+    private CalibrationStore calibrations;
+
+    private final DecoderRegistry registry;
+    private double[] channels;
+
+    // Reused for every motion notification instead of allocating three points each time.
+    private final Point3D acc = new Point3D(0, 0, 0);
+    private final Point3D gyro = new Point3D(0, 0, 0);
+    private final Point3D mag = new Point3D(0, 0, 0);
+
+    // Copied on change so the notification path iterates without locking or allocating.
+    private volatile Config config = new Config(PressureFilter.DEFAULT_MAX_SIZE,
+            PressureFilter.DEFAULT_SKIP_NUM, new Sink[0], new ChannelSink[0], 0);
+
+    private long switches = 0;
+    private long applyNanos = 0;
+    private long switchLatencyNanos = 0;
+    private long maxSwitchLatencyNanos = 0;
+    private long switchesUsed = 0;
+
+    public SensorPipeline() {
+        this(DecoderRegistry.getDefault());
+    }
+
+    public SensorPipeline(Sink sink) {
+        this();
+        addSink(sink);
+    }
+
+    public SensorPipeline(DecoderRegistry registry) {
+        this.registry = registry;
+        channels = new double[Math.max(1, registry.getMaxChannels())];
+    }
+
+    public void addSink(Sink sink) {
+        edit().addSink(sink).apply();
+    }
+
+    public void removeSink(Sink sink) {
+        edit().removeSink(sink).apply();
+    }
+
+    /**
+     * @return An editor to switch filter window and sinks at once with {@link Editor#apply()}.
+     */
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    private synchronized Config apply(Editor e) {
+        long start = System.nanoTime();
+        Config old = config;
+        ArrayList<Sink> sinks = new ArrayList<Sink>();
+        if (!e.clearSinks) {
+            sinks.addAll(Arrays.asList(old.sinks));
+        }
+        for (Sink sink : e.removed) {
+            for (int i = 0; i < sinks.size(); i++) {
+                if (sinks.get(i) == sink) {
+                    sinks.remove(i);
+                    break;
+                }
+            }
+        }
+        sinks.addAll(e.added);
+        ArrayList<ChannelSink> channelSinks = new ArrayList<ChannelSink>();
+        for (Sink sink : sinks) {
+            if (sink instanceof ChannelSink) {
+                channelSinks.add((ChannelSink) sink);
+            }
+        }
+        Config next = new Config(e.filterSize > 0 ? e.filterSize : old.filterSize,
+                e.filterSize > 0 ? e.filterSkip : old.filterSkip,
+                sinks.toArray(new Sink[sinks.size()]),
+                channelSinks.toArray(new ChannelSink[channelSinks.size()]), System.nanoTime());
+        config = next;
+        switches++;
+        applyNanos += System.nanoTime() - start;
+        return next;
+    }
+
+    // Time from a switch to the first notification run with the new config.
+    private synchronized void markUsed(Config c) {
+        if (c.used) {
+            return;
+        }
+        c.used = true;
+        if (c.appliedAt != 0) {
+            long latency = System.nanoTime() - c.appliedAt;
+            switchLatencyNanos += latency;
+            maxSwitchLatencyNanos = Math.max(maxSwitchLatencyNanos, latency);
+            switchesUsed++;
+        }
+    }
+
+    /**
+     * @return Config switches, the time apply() takes and the time until the first
+     * notification runs with the new config.
+     */
+    public synchronized String report() {
+        return String.format(Locale.US,
+                "config %d/%d, switches %d, apply %.1f us avg, in effect after %.0f us avg, %.0f us max",
+                config.filterSize, config.filterSkip, switches,
+                switches > 0 ? applyNanos / 1e3 / switches : 0.0,
+                switchesUsed > 0 ? switchLatencyNanos / 1e3 / switchesUsed : 0.0,
+                maxSwitchLatencyNanos / 1e3);
+    }
+
+    public DecoderRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Uses per-device calibration profiles from the store instead of the fixed / 4096
+     * conversion. Profiles are looked up once per device and kept until {@link
+     * #reloadCalibration()}.
+     */
+    public synchronized void setCalibrationStore(CalibrationStore store) {
+        calibrations = store;
+        reloadCalibration();
+    }
+
+    public synchronized void reloadCalibration() {
+        for (Map.Entry<String, DeviceState> e : devices.entrySet()) {
+            DeviceState state = e.getValue();
+            state.setCalibration(profileFor(e.getKey()), state.temperature);
+        }
+    }
+
+    /**
+     * Compensates the device's pressure for the given temperature, in degree C, from the next
+     * sample on; NaN turns the compensation off. The pods do not measure it, so it has to come
+     * from elsewhere, e.g. a sensor of the phone or the user.
+     */
+    public synchronized void setTemperature(String address, double temperature) {
+        DeviceState state = stateFor(address);
+        state.setCalibration(state.calibration, temperature);
+    }
+
+    private CalibrationProfile profileFor(String address) {
+        return calibrations == null ? CalibrationProfile.DEFAULT : calibrations.get(address);
+    }
+
+    private synchronized DeviceState stateFor(String address) {
+        if (address == lastAddress && lastState != null) {
+            return lastState;
+        }
+        DeviceState state = devices.get(address);
+        if (state == null) {
+            state = new DeviceState();
+            state.setCalibration(profileFor(address), Double.NaN);
+            devices.put(address, state);
+        }
+        lastAddress = address;
+        lastState = state;
+        return state;
+    }
+
+    /**
+     * Decodes one notification.
+     *
+     * @param address   Address of the device that sent the notification.
+     * @param uuid      Characteristic UUID.
+     * @param raw_value Characteristic value.
+     * @param timestamp Arrival time in ms.
+     */
+    public void process(String address, UUID uuid, byte[] raw_value, long timestamp) {
+        process(address, registry.indexOf(uuid), raw_value, timestamp);
+    }
+
+    /**
+     * Decodes one notification with a decoder index resolved earlier by {@link #decoderFor}.
+     */
+    public void process(String address, int decoder, byte[] raw_value, long timestamp) {
+        SensorDecoder d = registry.get(decoder);
+        if (d == null) {
+            return;
+        }
+        Config c = config;
+        if (!c.used) {
+            markUsed(c);
+        }
+        int count = d.getChannels().length;
+        if (channels.length < count) {
+            channels = new double[count];
+        }
+        double[] values = channels;
+        if (!d.decode(raw_value, values)) {
+            for (Sink sink : c.sinks) {
+                sink.onInvalidFrame(address, timestamp, d.getUuid());
+            }
+            return;
+        }
+
+        switch (d.getKind()) {
+            case SensorDecoder.KIND_PRESSURE:
+                pressure(c, address, (int) values[0], timestamp);
+                break;
+            case SensorDecoder.KIND_MOTION:
+                motion(c, address, values, timestamp);
+                break;
+            default:
+                for (ChannelSink sink : c.channelSinks) {
+                    sink.onChannels(address, timestamp, d, values);
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return The decoder index for notifications of the characteristic in the default
+     * registry, or DECODER_NONE.
+     */
+    public static int decoderFor(UUID uuid) {
+        return DecoderRegistry.getDefault().indexOf(uuid);
+    }
+
+    private void motion(Config c, String address, double[] v, long timestamp) {
+        acc.x = v[0];
+        acc.y = v[1];
+        acc.z = v[2];
+        gyro.x = v[3];
+        gyro.y = v[4];
+        gyro.z = v[5];
+        mag.x = v[6];
+        mag.y = v[7];
+        mag.z = v[8];
+
+        for (Sink sink : c.sinks) {
+            sink.onMotion(address, timestamp, acc, gyro, mag);
+        }
+    }
+
+    private void pressure(Config c, String address, int pressure, long timestamp) {
+        DeviceState state = stateFor(address);
+        if (state.filter.getMaxSize() != c.filterSize || state.filter.getSkipNum() != c.filterSkip) {
+            state.switchFilter(c.filterSize, c.filterSkip);
+        }
+        state.recent[(int) (state.samples++ % MAX_FILTER_SIZE)] = pressure;
+        double total_amount = state.filter.add(pressure);
+
+        //Calculate Pressure in mbar
+        float pressure_mbar = state.profile.apply(total_amount);
+
+        for (Sink sink : c.sinks) {
+            sink.onPressure(address, timestamp, pressure, pressure_mbar);
+        }
+    }
+}
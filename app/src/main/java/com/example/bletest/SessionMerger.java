@@ -0,0 +1,120 @@
+package com.example.bletest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the per-device files of a {@link RecordingSession} into one stream ordered by
+ * corrected timestamp.
+ *
+ * The files are read with a k-way merge (one open reader per device, the next line of each in
+ * a priority queue) and fed through a {@link TimeAligner} with the same lateness bound as the
+ * live merge. The files hand every sample over in timestamp order, so unlike the live merge,
+ * which drops what arrives later than the bound, the offline merge drops nothing. Both agree
+ * except for the samples the live one counted as late.
+ */
+public class SessionMerger {
+    public static final long DEFAULT_LATENESS = 500;
+
+    private static class Cursor {
+        final String address;
+        final long offset;
+        final BufferedReader reader;
+        PressureSample head;
+
+        Cursor(String address, long offset, BufferedReader reader) {
+            this.address = address;
+            this.offset = offset;
+            this.reader = reader;
+        }
+
+        // Reads the next well formed line; false at the end of the file.
+        boolean advance() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(",");
+                if (parts.length < 3) {
+                    continue;
+                }
+                try {
+                    head = new PressureSample(address,
+                            Long.parseLong(parts[0].trim()) - offset,
+                            Integer.parseInt(parts[1].trim()),
+                            Float.parseFloat(parts[2].trim()));
+                    return true;
+                } catch (NumberFormatException e) {
+                    // Partially written last line.
+                }
+            }
+            head = null;
+            return false;
+        }
+    }
+
+    private static final Comparator<Cursor> BY_HEAD = new Comparator<Cursor>() {
+        @Override
+        public int compare(Cursor a, Cursor b) {
+            return a.head.timestamp < b.head.timestamp ? -1
+                    : (a.head.timestamp == b.head.timestamp ? 0 : 1);
+        }
+    };
+
+    private final long latenessMillis;
+    private long lateCount = 0;
+
+    public SessionMerger(long latenessMillis) {
+        this.latenessMillis = latenessMillis;
+    }
+
+    /**
+     * Merges the session in the directory, handing samples to the listener in timestamp
+     * order.
+     *
+     * @return Number of samples emitted.
+     */
+    public long merge(File sessionDirectory, TimeAligner.Listener listener) throws IOException {
+        RecordingSession.Manifest manifest = RecordingSession.Manifest.read(sessionDirectory);
+        TimeAligner aligner = new TimeAligner(manifest.devices, latenessMillis, listener);
+        PriorityQueue<Cursor> heads = new PriorityQueue<Cursor>(
+                Math.max(1, manifest.devices.size()), BY_HEAD);
+        try {
+            for (String address : manifest.devices) {
+                File file = RecordingSession.fileFor(sessionDirectory, address);
+                if (!file.exists()) {
+                    continue;
+                }
+                Cursor c = new Cursor(address, manifest.offsetOf(address),
+                        new BufferedReader(new FileReader(file)));
+                if (c.advance()) {
+                    heads.add(c);
+                } else {
+                    c.reader.close();
+                }
+            }
+            while (!heads.isEmpty()) {
+                Cursor c = heads.poll();
+                aligner.offer(c.head);
+                if (c.advance()) {
+                    heads.add(c);
+                } else {
+                    c.reader.close();
+                }
+            }
+            aligner.flush();
+        } finally {
+            for (Cursor c : heads) {
+                c.reader.close();
+            }
+        }
+        lateCount = aligner.getLateCount();
+        return aligner.getEmittedCount();
+    }
+
+    public long getLateCount() {
+        return lateCount;
+    }
+}
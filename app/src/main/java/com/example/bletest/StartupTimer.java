@@ -0,0 +1,59 @@
+package com.example.bletest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long after launch each startup phase was reached, from {@link #begin()} in
+ * MainActivity.onCreate to the first sample. Each phase is recorded the first time it is
+ * marked only, so marking again on later connections costs a map lookup.
+ */
+public final class StartupTimer {
+    public static final String ACTIVITY_CREATED = "activity_created";
+    public static final String ADAPTER_READY = "adapter_ready";
+    public static final String SERVICE_BOUND = "service_bound";
+    public static final String SERVICE_INITIALIZED = "service_initialized";
+    public static final String LAYOUTS_PRELOADED = "layouts_preloaded";
+    public static final String CALIBRATION_PRELOADED = "calibration_preloaded";
+    public static final String SCAN_STARTED = "scan_started";
+    public static final String DEVICE_FOUND = "device_found";
+    public static final String CONNECTED = "connected";
+    public static final String SERVICES_DISCOVERED = "services_discovered";
+    public static final String FIRST_SAMPLE = "first_sample";
+
+    private static long origin = System.nanoTime();
+    private static final LinkedHashMap<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Starts timing a launch; earlier marks are discarded.
+     */
+    public static synchronized void begin() {
+        origin = System.nanoTime();
+        phases.clear();
+    }
+
+    public static synchronized void mark(String phase) {
+        if (!phases.containsKey(phase)) {
+            phases.put(phase, (System.nanoTime() - origin) / 1000000);
+        }
+    }
+
+    /**
+     * @return Milliseconds from launch to the phase, or -1 if it was not reached.
+     */
+    public static synchronized long get(String phase) {
+        Long millis = phases.get(phase);
+        return millis != null ? millis : -1;
+    }
+
+    public static synchronized String report() {
+        StringBuilder sb = new StringBuilder("Startup:");
+        for (Map.Entry<String, Long> e : phases.entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue()).append("ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.bletest;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the pressure streams of several devices into one stream ordered by corrected
+ * timestamp.
+ *
+ * Samples are held in a priority queue until every device has reported a later sample (a
+ * k-way merge), but never for more than the lateness bound behind the newest sample, so one
+ * silent device does not stall the others. A sample that arrives after a later one has
+ * already been emitted is counted as late and dropped.
+ *
+ * Used live by {@link RecordingSession} and offline by {@link SessionMerger} so both produce
+ * the same timeline.
+ */
+public class TimeAligner {
+
+    public interface Listener {
+        /* Called in timestamp order, on the thread that offered the sample which released it */
+        void onAligned(PressureSample sample);
+    }
+
+    private static class Entry {
+        final PressureSample sample;
+        final long sequence;
+
+        Entry(PressureSample sample, long sequence) {
+            this.sample = sample;
+            this.sequence = sequence;
+        }
+    }
+
+    // Equal timestamps keep their arrival order.
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.sample.timestamp != b.sample.timestamp) {
+                return a.sample.timestamp < b.sample.timestamp ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private final long latenessMillis;
+    private final Listener listener;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(64, ORDER);
+    private final HashMap<String, Integer> deviceIndex = new HashMap<String, Integer>();
+    // Newest timestamp per device, Long.MIN_VALUE until the device reports.
+    private final long[] latest;
+
+    private long sequence = 0;
+    private long newest = Long.MIN_VALUE;
+    private long emittedUpTo = Long.MIN_VALUE;
+    private long emittedCount = 0;
+    private long lateCount = 0;
+
+    /**
+     * @param devices        Addresses whose streams are merged. Samples of other devices are
+     *                       queued and ordered like the rest, but the merge never waits for
+     *                       their devices to report.
+     * @param latenessMillis How long a sample may be held waiting for slower devices.
+     */
+    public TimeAligner(Collection<String> devices, long latenessMillis, Listener listener) {
+        this.latenessMillis = latenessMillis;
+        this.listener = listener;
+        latest = new long[devices.size()];
+        int i = 0;
+        for (String address : devices) {
+            deviceIndex.put(address, i);
+            latest[i++] = Long.MIN_VALUE;
+        }
+    }
+
+    public synchronized void offer(PressureSample sample) {
+        if (sample.timestamp < emittedUpTo) {
+            lateCount++;
+            return;
+        }
+        queue.add(new Entry(sample, sequence++));
+        Integer index = deviceIndex.get(sample.address);
+        if (index != null && sample.timestamp > latest[index]) {
+            latest[index] = sample.timestamp;
+        }
+        if (sample.timestamp > newest) {
+            newest = sample.timestamp;
+        }
+        drain(watermark());
+    }
+
+    /**
+     * Emits everything still held, e.g. when the recording stops.
+     */
+    public synchronized void flush() {
+        drain(Long.MAX_VALUE);
+    }
+
+    // Samples up to this timestamp can no longer be preceded by one still to come.
+    private long watermark() {
+        long slowest = Long.MAX_VALUE;
+        for (long t : latest) {
+            slowest = Math.min(slowest, t);
+        }
+        long bound = newest - latenessMillis;
+        return latest.length == 0 ? newest : Math.max(slowest, bound);
+    }
+
+    private void drain(long watermark) {
+        while (!queue.isEmpty() && queue.peek().sample.timestamp <= watermark) {
+            PressureSample sample = queue.poll().sample;
+            emittedUpTo = sample.timestamp;
+            emittedCount++;
+            listener.onAligned(sample);
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        return queue.size();
+    }
+
+    public synchronized long getEmittedCount() {
+        return emittedCount;
+    }
+
+    /* Samples dropped because they arrived later than the lateness bound */
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+}
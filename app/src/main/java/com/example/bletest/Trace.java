@@ -0,0 +1,392 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Binary trace of hot-path events, cheap enough to leave on in production.
+ *
+ * An event is a fixed record (time, event id, three long arguments) written into a ring
+ * buffer owned by the calling thread, so recording takes no lock, builds no string and never
+ * blocks. A drain thread copies the rings to a trace file in batches; {@link TraceDecoder}
+ * renders the file to text off-device with the formats in {@link #FORMATS}.
+ *
+ * Events below the current level, and all events while no trace file is open, return after
+ * one comparison. Setting {@link #COMPILED} to false makes every call an empty method the
+ * compiler can drop.
+ *
+ * A trace file that reaches its size cap is renamed to name.1, replacing the one before, and
+ * recording goes on in a new file; a trace keeps about twice the cap on disk. The ring of
+ * a thread is dropped by the drain once the thread has ended.
+ *
+ * File layout (big endian): int MAGIC, int VERSION, long wall clock ms, long nanoTime at the
+ * same moment, then 40 byte records: long nanoTime, int event, int thread, long a, b, c. A
+ * record with event {@link #EV_THREAD} names thread a and is followed by b bytes of UTF-8.
+ */
+public final class Trace {
+    public static final boolean COMPILED = true;
+
+    public static final int MAGIC = 0x424C4554; // "BLET"
+    public static final int VERSION = 1;
+    static final int RECORD_SIZE = 40;
+
+    // Levels, same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+
+    // Events. Formats take %a (address), %i (integer), %f (float bits) and %x (hex).
+    public static final int EV_THREAD = 0;
+    public static final int EV_DROPPED = 1;
+    public static final int EV_SCAN_RESULT = 2;
+    public static final int EV_SCAN_MATCH = 3;
+    public static final int EV_SCAN_BATCH = 4;
+    public static final int EV_NOTIFY = 5;
+    public static final int EV_PRESSURE = 6;
+    public static final int EV_INVALID_FRAME = 7;
+    public static final int EV_ACC = 8;
+    public static final int EV_GYRO = 9;
+    public static final int EV_MAG = 10;
+    public static final int EV_WRITE = 11;
+    public static final int EV_WRITE_DONE = 12;
+    public static final int EV_RATE_CHANGE = 13;
+
+    static final String[] FORMATS = {
+            "thread %i",
+            "dropped %i events",
+            "scan %a rssi=%i type=%i",
+            "scan match %a rssi=%i",
+            "scan batch of %i",
+            "notify %a decoder=%i length=%i",
+            "pressure %a raw=%i mbar=%f",
+            "invalid frame %a",
+            "acc %f %f %f G",
+            "gyro %f %f %f deg/s",
+            "mag %f %f %f uT",
+            "write %x kind=%i",
+            "write done %x status=%i",
+            "rate period=%i ms",
+    };
+
+    private static final int[] LEVELS = {
+            WARN, WARN, VERBOSE, INFO, DEBUG, VERBOSE, DEBUG, DEBUG, VERBOSE, VERBOSE, VERBOSE,
+            DEBUG, DEBUG, INFO,
+    };
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final int RING_RECORDS = 1024;
+    private static final long DRAIN_INTERVAL = 50;
+
+    private static volatile int level = DEBUG;
+    private static volatile boolean running = false;
+
+    private static final CopyOnWriteArrayList<Ring> rings = new CopyOnWriteArrayList<Ring>();
+    private static final AtomicInteger ringIds = new AtomicInteger();
+    private static final ThreadLocal<Ring> localRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(ringIds.incrementAndGet(), Thread.currentThread());
+            rings.add(ring);
+            return ring;
+        }
+    };
+
+    // Guards the file; start() and stop() lock the class and wait for the drain thread.
+    private static final Object drainLock = new Object();
+    private static Thread drainThread;
+    private static File traceFile;
+    private static long maxBytes;
+    private static long fileBytes;
+    private static FileOutputStream out;
+    private static FileChannel channel;
+    private static ByteBuffer fileBuffer;
+
+    // Address parsed last, by identity; notifications of one device reuse the string.
+    private static final class ParsedAddress {
+        final String address;
+        final long bits;
+
+        ParsedAddress(String address, long bits) {
+            this.address = address;
+            this.bits = bits;
+        }
+    }
+
+    private static volatile ParsedAddress lastAddress = new ParsedAddress(null, 0);
+
+    private Trace() {
+    }
+
+    /**
+     * One thread's events. Only the owner writes; only the drain thread reads.
+     */
+    private static class Ring {
+        final int id;
+        final String name;
+        // Weak, so the ring does not keep its thread alive.
+        final WeakReference<Thread> owner;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(RING_RECORDS * RECORD_SIZE)
+                .order(ByteOrder.nativeOrder());
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        // Written by the owner only; the drain thread reports the growth since last time.
+        final AtomicLong dropped = new AtomicLong();
+        long reportedDropped = 0;
+        boolean named = false;
+
+        Ring(int id, Thread owner) {
+            this.id = id;
+            name = owner.getName();
+            this.owner = new WeakReference<Thread>(owner);
+        }
+
+        boolean ownerEnded() {
+            Thread t = owner.get();
+            return t == null || !t.isAlive();
+        }
+
+        void put(int event, long a, long b, long c) {
+            long h = head.get();
+            if (h - tail.get() >= RING_RECORDS) {
+                // Drop rather than block the caller or overwrite what is not written yet.
+                dropped.lazySet(dropped.get() + 1);
+                return;
+            }
+            int pos = (int) (h % RING_RECORDS) * RECORD_SIZE;
+            buffer.putLong(pos, System.nanoTime());
+            buffer.putInt(pos + 8, event);
+            buffer.putInt(pos + 12, id);
+            buffer.putLong(pos + 16, a);
+            buffer.putLong(pos + 24, b);
+            buffer.putLong(pos + 32, c);
+            head.lazySet(h + 1);
+        }
+    }
+
+    public static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+
+    public static boolean isEnabled(int event) {
+        return COMPILED && running && LEVELS[event] >= level;
+    }
+
+    public static void event(int event, long a, long b, long c) {
+        if (!COMPILED || !running || LEVELS[event] < level) {
+            return;
+        }
+        localRing.get().put(event, a, b, c);
+    }
+
+    public static void event(int event, long a, long b) {
+        event(event, a, b, 0);
+    }
+
+    public static void event(int event, long a) {
+        event(event, a, 0, 0);
+    }
+
+    public static long floatBits(double value) {
+        return Float.floatToIntBits((float) value);
+    }
+
+    /**
+     * @return The address "AA:BB:CC:DD:EE:FF" as a 48 bit number for %a.
+     */
+    public static long address(String address) {
+        if (address == null) {
+            return 0;
+        }
+        ParsedAddress last = lastAddress;
+        if (address == last.address) {
+            return last.bits;
+        }
+        long bits = 0;
+        for (int i = 0; i < 6 && i * 3 + 1 < address.length(); i++) {
+            bits = (bits << 8) | (Character.digit(address.charAt(i * 3), 16) << 4)
+                    | Character.digit(address.charAt(i * 3 + 1), 16);
+        }
+        lastAddress = new ParsedAddress(address, bits);
+        return bits;
+    }
+
+    /**
+     * Starts recording into the file with the default size cap.
+     */
+    public static void start(File file) throws IOException {
+        start(file, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Starts recording into the file; events before this are not recorded.
+     *
+     * @param maxBytes Size at which the file is moved to name.1 and a new one started.
+     */
+    public static synchronized void start(File file, long maxBytes) throws IOException {
+        if (running) {
+            return;
+        }
+        traceFile = file;
+        Trace.maxBytes = maxBytes;
+        fileBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        open();
+        for (Ring ring : rings) {
+            if (ring.ownerEnded()) {
+                rings.remove(ring);
+            }
+            ring.tail.set(ring.head.get());
+            ring.reportedDropped = ring.dropped.get();
+        }
+        running = true;
+        drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        Thread.sleep(DRAIN_INTERVAL);
+                        drain();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        running = false;
+                    }
+                }
+            }
+        }, "TraceDrain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Stops recording, writes what is left and closes the file.
+     */
+    public static synchronized void stop() {
+        if (drainThread == null) {
+            return;
+        }
+        running = false;
+        drainThread.interrupt();
+        try {
+            drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drainThread = null;
+        try {
+            drain();
+            channel.close();
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Opens the trace file and puts its header; every thread is named again in it.
+    private static void open() throws IOException {
+        out = new FileOutputStream(traceFile);
+        channel = out.getChannel();
+        fileBytes = 0;
+        fileBuffer.clear();
+        fileBuffer.putInt(MAGIC);
+        fileBuffer.putInt(VERSION);
+        fileBuffer.putLong(System.currentTimeMillis());
+        fileBuffer.putLong(System.nanoTime());
+        for (Ring ring : rings) {
+            ring.named = false;
+        }
+    }
+
+    private static void rotate() throws IOException {
+        flush();
+        channel.close();
+        out.close();
+        File previous = new File(traceFile.getPath() + ".1");
+        previous.delete();
+        if (!traceFile.renameTo(previous)) {
+            throw new IOException("Unable to rotate " + traceFile);
+        }
+        open();
+    }
+
+    private static void drain() throws IOException {
+        synchronized (drainLock) {
+            for (Ring ring : rings) {
+                // Between rings, so each file names every thread it has events of.
+                if (fileBytes + fileBuffer.position() >= maxBytes) {
+                    rotate();
+                }
+                // Checked before draining, so an event put just before the end is still read.
+                boolean ended = ring.ownerEnded();
+                long dropped = ring.dropped.get();
+                long h = ring.head.get();
+                long t = ring.tail.get();
+                if (h == t && dropped == ring.reportedDropped) {
+                    if (ended) {
+                        rings.remove(ring);
+                    }
+                    continue;
+                }
+                if (!ring.named) {
+                    byte[] name = ring.name.getBytes("UTF-8");
+                    putRecord(System.nanoTime(), EV_THREAD, ring.id, ring.id, name.length, 0);
+                    ensure(name.length);
+                    fileBuffer.put(name);
+                    ring.named = true;
+                }
+                if (dropped > ring.reportedDropped) {
+                    putRecord(System.nanoTime(), EV_DROPPED, ring.id, dropped - ring.reportedDropped, 0, 0);
+                    ring.reportedDropped = dropped;
+                }
+                for (; t < h; t++) {
+                    int pos = (int) (t % RING_RECORDS) * RECORD_SIZE;
+                    ByteBuffer b = ring.buffer;
+                    putRecord(b.getLong(pos), b.getInt(pos + 8), b.getInt(pos + 12),
+                            b.getLong(pos + 16), b.getLong(pos + 24), b.getLong(pos + 32));
+                }
+                // Frees the slots for the writer.
+                ring.tail.lazySet(h);
+                if (ended) {
+                    // Its ThreadLocal went with the thread; this was the last reference.
+                    rings.remove(ring);
+                }
+            }
+            flush();
+        }
+    }
+
+    private static void putRecord(long nanos, int event, int thread, long a, long b, long c)
+            throws IOException {
+        ensure(RECORD_SIZE);
+        fileBuffer.putLong(nanos);
+        fileBuffer.putInt(event);
+        fileBuffer.putInt(thread);
+        fileBuffer.putLong(a);
+        fileBuffer.putLong(b);
+        fileBuffer.putLong(c);
+    }
+
+    private static void ensure(int size) throws IOException {
+        if (fileBuffer.remaining() < size) {
+            flush();
+        }
+    }
+
+    private static void flush() throws IOException {
+        fileBuffer.flip();
+        while (fileBuffer.hasRemaining()) {
+            fileBytes += channel.write(fileBuffer);
+        }
+        fileBuffer.clear();
+    }
+}
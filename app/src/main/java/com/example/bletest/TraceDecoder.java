@@ -0,0 +1,148 @@
+package com.example.bletest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Renders a file written by {@link Trace} as text, one line per event:
+ * "HH:mm:ss.SSS.uuu [thread] message".
+ */
+public class TraceDecoder {
+    private final HashMap<Integer, String> threads = new HashMap<Integer, String>();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    private long eventCount = 0;
+    private boolean truncated = false;
+
+    /**
+     * Renders the events up to the end of the file, or up to a record cut short when the app
+     * was killed while writing it; see {@link #isTruncated()}.
+     *
+     * @return Number of events rendered.
+     */
+    public long decode(File file, PrintStream out) throws IOException {
+        truncated = false;
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != Trace.MAGIC) {
+                throw new IOException("Not a trace file: " + file);
+            }
+            int version = in.readInt();
+            if (version != Trace.VERSION) {
+                throw new IOException("Unsupported trace version: " + version);
+            }
+            long wallMillis;
+            long originNanos;
+            try {
+                wallMillis = in.readLong();
+                originNanos = in.readLong();
+            } catch (EOFException e) {
+                // Killed while the header was being written: no events yet.
+                truncated = true;
+                return eventCount;
+            }
+            StringBuilder line = new StringBuilder(128);
+
+            while (true) {
+                long nanos;
+                try {
+                    nanos = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int event;
+                int thread;
+                long a;
+                long b;
+                long c;
+                try {
+                    event = in.readInt();
+                    thread = in.readInt();
+                    a = in.readLong();
+                    b = in.readLong();
+                    c = in.readLong();
+                    if (event == Trace.EV_THREAD) {
+                        byte[] name = new byte[(int) b];
+                        in.readFully(name);
+                        threads.put((int) a, new String(name, "UTF-8"));
+                        continue;
+                    }
+                } catch (EOFException e) {
+                    // The app died while the ring was being drained; keep what came before.
+                    truncated = true;
+                    out.println("(trace ends inside a record)");
+                    break;
+                }
+
+                long sinceOrigin = nanos - originNanos;
+                long millis = wallMillis + sinceOrigin / 1000000;
+                line.setLength(0);
+                line.append(timeFormat.format(new Date(millis)));
+                line.append('.').append(String.format("%03d", Math.abs(sinceOrigin / 1000 % 1000)));
+                String name = threads.get(thread);
+                line.append(" [").append(name != null ? name : "thread-" + thread).append("] ");
+                format(line, event, a, b, c);
+                out.println(line);
+                eventCount++;
+            }
+        } finally {
+            in.close();
+        }
+        return eventCount;
+    }
+
+    /**
+     * @return True if the last decoded file ended inside a record.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    static void format(StringBuilder sb, int event, long a, long b, long c) {
+        if (event < 0 || event >= Trace.FORMATS.length) {
+            sb.append("event ").append(event).append(' ').append(a).append(' ').append(b)
+                    .append(' ').append(c);
+            return;
+        }
+        String format = Trace.FORMATS[event];
+        long[] args = {a, b, c};
+        int arg = 0;
+        for (int i = 0; i < format.length(); i++) {
+            char ch = format.charAt(i);
+            if (ch != '%' || i + 1 == format.length() || arg == args.length) {
+                sb.append(ch);
+                continue;
+            }
+            long v = args[arg++];
+            switch (format.charAt(++i)) {
+                case 'a':
+                    for (int shift = 40; shift >= 0; shift -= 8) {
+                        int octet = (int) (v >> shift) & 0xFF;
+                        sb.append(Character.toUpperCase(Character.forDigit(octet >> 4, 16)));
+                        sb.append(Character.toUpperCase(Character.forDigit(octet & 0x0F, 16)));
+                        if (shift > 0) {
+                            sb.append(':');
+                        }
+                    }
+                    break;
+                case 'f':
+                    sb.append(String.format("%.3f", Float.intBitsToFloat((int) v)));
+                    break;
+                case 'x':
+                    sb.append(Long.toHexString(v));
+                    break;
+                default:
+                    sb.append(v);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.example.bletest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends finalized files from the main storage directory to a collector and keeps on-device
+ * disk usage under a cap.
+ *
+ * A daily log file is finalized once its day is over and the files of a {@link
+ * RecordingSession} once it has stopped; other files (e.g. captures) are finalized by {@link
+ * #enqueue(File)}. Files are sent in gzip compressed batches of whole lines, each tagged with
+ * the file name and the byte offset it starts at. The offset reached in each file is stored in
+ * upload_queue.properties after every accepted batch, so an interrupted upload resumes where it
+ * stopped, also after a restart. Failed batches are retried with exponential backoff.
+ *
+ * When the directory grows over the cap, uploaded files are deleted oldest first, then, if
+ * that is not enough, files not uploaded yet.
+ */
+public class UploadQueue {
+    public static final String STATE_FILE = "upload_queue.properties";
+    public static final int BATCH_BYTES = 256 * 1024;
+    public static final long POLL_INTERVAL = 60 * 1000;
+    public static final long DEFAULT_DISK_CAP = 512L * 1024 * 1024;
+
+    private static final long BASE_BACKOFF = 5000;
+    private static final long MAX_BACKOFF = 30 * 60 * 1000;
+    private static final String LOG_PREFIX = "log_state_change_";
+    private static final String SESSION_PREFIX = "session_";
+
+    public interface Transport {
+        /**
+         * Sends one gzip compressed batch.
+         *
+         * @return Return true if the collector accepted the batch.
+         */
+        boolean send(String segment, long offset, byte[] gzipBody) throws IOException;
+    }
+
+    private final File directory;
+    private final Transport transport;
+    private final long diskCap;
+    private final Properties state = new Properties();
+    private final Random random = new Random();
+    private ScheduledExecutorService executor;
+
+    // The state file is read on first use, normally by the upload thread, not the caller.
+    private boolean loaded = false;
+    private int failures = 0;
+    private long nextAttempt = 0;
+    private long sentBatches = 0;
+    private long sentBytes = 0;
+    private long compressedBytes = 0;
+    private long evictedFiles = 0;
+    private long lostBytes = 0;
+
+    public UploadQueue(File directory, Transport transport, long diskCap) {
+        this.directory = directory;
+        this.transport = transport;
+        this.diskCap = diskCap;
+    }
+
+    /**
+     * Uploads in the background every POLL_INTERVAL until {@link #stop()}.
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runOnce(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    // Keep the schedule alive.
+                    e.printStackTrace();
+                }
+            }
+        }, 0, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * Marks a file in the directory (or below it) as complete so it is uploaded.
+     */
+    public synchronized void enqueue(File file) {
+        loadState();
+        String segment = segmentOf(file);
+        if (segment != null && state.getProperty(segment) == null) {
+            state.setProperty(segment, "0");
+            saveState();
+        }
+    }
+
+    /**
+     * Sends everything pending unless backing off, then enforces the disk cap.
+     *
+     * @return Number of batches the collector accepted.
+     */
+    public synchronized int runOnce(long now) {
+        loadState();
+        discoverFinishedLogs(now);
+        int accepted = 0;
+        if (now >= nextAttempt) {
+            for (String segment : pendingSegments()) {
+                int n = upload(segment, now);
+                accepted += Math.max(0, n);
+                if (n < 0) {
+                    break;
+                }
+            }
+        }
+        enforceCap();
+        return accepted;
+    }
+
+    // Daily logs are final once their day has passed.
+    private void discoverFinishedLogs(long now) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(now);
+        String today = LOG_PREFIX + new SimpleDateFormat("yyyy-MM-dd").format(cal.getTime());
+        String[] names = directory.list();
+        if (names == null) {
+            return;
+        }
+        boolean changed = false;
+        for (String name : names) {
+            if (name.startsWith(LOG_PREFIX) && name.endsWith(".txt") && name.compareTo(today) < 0
+                    && state.getProperty(name) == null) {
+                state.setProperty(name, "0");
+                changed = true;
+            } else if (name.startsWith(SESSION_PREFIX)) {
+                changed |= discoverStoppedSession(new File(directory, name));
+            }
+        }
+        if (changed) {
+            saveState();
+        }
+    }
+
+    // Sessions are final once their manifest has a stop time.
+    private boolean discoverStoppedSession(File sessionDirectory) {
+        File[] files = sessionDirectory.listFiles();
+        if (files == null || !new File(sessionDirectory, RecordingSession.MANIFEST).exists()) {
+            return false;
+        }
+        try {
+            if (RecordingSession.Manifest.read(sessionDirectory).stopMillis == 0) {
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        boolean changed = false;
+        for (File f : files) {
+            String segment = segmentOf(f);
+            if (f.isFile() && state.getProperty(segment) == null) {
+                state.setProperty(segment, "0");
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private List<String> pendingSegments() {
+        List<String> pending = new ArrayList<String>();
+        for (String segment : state.stringPropertyNames()) {
+            File f = new File(directory, segment);
+            if (f.exists() && Long.parseLong(state.getProperty(segment)) < f.length()) {
+                pending.add(segment);
+            }
+        }
+        Collections.sort(pending);
+        return pending;
+    }
+
+    /**
+     * @return Number of batches sent, or -1 if a batch failed.
+     */
+    private int upload(String segment, long now) {
+        File file = new File(directory, segment);
+        long offset = Long.parseLong(state.getProperty(segment));
+        int sent = 0;
+        byte[] buffer = new byte[BATCH_BYTES];
+        try {
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                while (offset < in.length()) {
+                    in.seek(offset);
+                    int n = in.read(buffer, 0, (int) Math.min(BATCH_BYTES, in.length() - offset));
+                    if (n <= 0) {
+                        break;
+                    }
+                    // Cut after the last full line unless the line is longer than a batch.
+                    int end = n;
+                    if (offset + n < in.length()) {
+                        while (end > 0 && buffer[end - 1] != '\n') {
+                            end--;
+                        }
+                        if (end == 0) {
+                            end = n;
+                        }
+                    }
+                    byte[] body = gzip(buffer, end);
+                    if (!transport.send(segment, offset, body)) {
+                        backoff(now);
+                        return -1;
+                    }
+                    offset += end;
+                    state.setProperty(segment, String.valueOf(offset));
+                    saveState();
+                    failures = 0;
+                    sent++;
+                    sentBatches++;
+                    sentBytes += end;
+                    compressedBytes += body.length;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            backoff(now);
+            return -1;
+        }
+        return sent;
+    }
+
+    private void backoff(long now) {
+        failures++;
+        long delay = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(failures - 1, 20));
+        // Jitter so a fleet of phones does not retry in step.
+        nextAttempt = now + delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+
+    private static byte[] gzip(byte[] data, int length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data, 0, length);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private void enforceCap() {
+        List<File> files = new ArrayList<File>();
+        collect(directory, files);
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= diskCap) {
+            return;
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long x = a.lastModified(), y = b.lastModified();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        // Uploaded files first, then the oldest data still waiting.
+        for (int pass = 0; pass < 2 && total > diskCap; pass++) {
+            for (File f : files) {
+                if (total <= diskCap) {
+                    break;
+                }
+                String segment = segmentOf(f);
+                String offset = segment != null ? state.getProperty(segment) : null;
+                if (offset == null || !f.exists()) {
+                    // Not finalized yet: still being written.
+                    continue;
+                }
+                long remaining = f.length() - Long.parseLong(offset);
+                if (pass == 0 && remaining > 0) {
+                    continue;
+                }
+                long length = f.length();
+                if (f.delete()) {
+                    total -= length;
+                    evictedFiles++;
+                    lostBytes += remaining;
+                    state.remove(segment);
+                }
+            }
+        }
+        saveState();
+    }
+
+    private static void collect(File dir, List<File> out) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.isDirectory()) {
+                collect(f, out);
+            } else if (!STATE_FILE.equals(f.getName())) {
+                out.add(f);
+            }
+        }
+    }
+
+    // Path relative to the directory with '/' separators, or null if outside it.
+    private String segmentOf(File file) {
+        String root = directory.getAbsolutePath() + File.separator;
+        String path = file.getAbsolutePath();
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        return path.substring(root.length()).replace(File.separatorChar, '/');
+    }
+
+    private void loadState() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = new File(directory, STATE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                state.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void saveState() {
+        File tmp = new File(directory, STATE_FILE + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                state.store(out, "Uploaded byte offset per file");
+            } finally {
+                out.close();
+            }
+            // Replace in one step so a crash leaves either the old or the new state.
+            if (!tmp.renameTo(new File(directory, STATE_FILE))) {
+                throw new IOException("Unable to replace " + STATE_FILE);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Offset uploaded so far of the file, or -1 if it is not queued.
+     */
+    public synchronized long getOffset(String segment) {
+        loadState();
+        String offset = state.getProperty(segment);
+        return offset != null ? Long.parseLong(offset) : -1;
+    }
+
+    public synchronized String report() {
+        String[] pending = pendingSegments().toArray(new String[0]);
+        return String.format(Locale.US,
+                "batches %d, sent %d bytes as %d (%.0f%%), pending %s, failures %d, evicted %d files (%d bytes not sent)",
+                sentBatches, sentBytes, compressedBytes,
+                sentBytes > 0 ? compressedBytes * 100.0 / sentBytes : 0,
+                Arrays.toString(pending), failures, evictedFiles, lostBytes);
+    }
+}
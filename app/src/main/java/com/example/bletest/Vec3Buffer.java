@@ -0,0 +1,173 @@
+package com.example.bletest;
+
+/**
+ * Growable block of 3D vectors stored as three primitive arrays (struct of arrays).
+ *
+ * The kernels work on the whole block with plain counted loops over the arrays, which the JIT
+ * can unroll and vectorize, instead of touching one {@link Point3D} object per sample.
+ * Buffers are meant to be reused: {@link #clear()} keeps the arrays.
+ */
+public class Vec3Buffer {
+    public double[] x;
+    public double[] y;
+    public double[] z;
+    private int size = 0;
+
+    public Vec3Buffer() {
+        this(16);
+    }
+
+    public Vec3Buffer(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return x.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity <= x.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, x.length * 2);
+        x = copyOf(x, newCapacity);
+        y = copyOf(y, newCapacity);
+        z = copyOf(z, newCapacity);
+    }
+
+    public void add(double vx, double vy, double vz) {
+        if (size == x.length) {
+            ensureCapacity(size + 1);
+        }
+        x[size] = vx;
+        y[size] = vy;
+        z[size] = vz;
+        size++;
+    }
+
+    public void get(int i, Point3D out) {
+        out.x = x[i];
+        out.y = y[i];
+        out.z = z[i];
+    }
+
+    /**
+     * Multiplies every vector by s.
+     */
+    public void scale(double s) {
+        scale(s, s, s);
+    }
+
+    /**
+     * Multiplies each axis by its own factor, e.g. a sensor scale with sign flips.
+     */
+    public void scale(double sx, double sy, double sz) {
+        final double[] x = this.x, y = this.y, z = this.z;
+        final int n = size;
+        for (int i = 0; i < n; i++) {
+            x[i] *= sx;
+        }
+        for (int i = 0; i < n; i++) {
+            y[i] *= sy;
+        }
+        for (int i = 0; i < n; i++) {
+            z[i] *= sz;
+        }
+    }
+
+    /**
+     * Rotates every vector by the unit quaternion (q0 scalar part).
+     */
+    public void rotate(double q0, double q1, double q2, double q3) {
+        // Rotation matrix computed once for the block
+        double m00 = 1 - 2 * (q2 * q2 + q3 * q3), m01 = 2 * (q1 * q2 - q0 * q3), m02 = 2 * (q1 * q3 + q0 * q2);
+        double m10 = 2 * (q1 * q2 + q0 * q3), m11 = 1 - 2 * (q1 * q1 + q3 * q3), m12 = 2 * (q2 * q3 - q0 * q1);
+        double m20 = 2 * (q1 * q3 - q0 * q2), m21 = 2 * (q2 * q3 + q0 * q1), m22 = 1 - 2 * (q1 * q1 + q2 * q2);
+        final double[] x = this.x, y = this.y, z = this.z;
+        final int n = size;
+        for (int i = 0; i < n; i++) {
+            double vx = x[i], vy = y[i], vz = z[i];
+            x[i] = m00 * vx + m01 * vy + m02 * vz;
+            y[i] = m10 * vx + m11 * vy + m12 * vz;
+            z[i] = m20 * vx + m21 * vy + m22 * vz;
+        }
+    }
+
+    /**
+     * Writes the length of each vector to out[0..size).
+     */
+    public void norm(double[] out) {
+        final double[] x = this.x, y = this.y, z = this.z;
+        final int n = size;
+        for (int i = 0; i < n; i++) {
+            out[i] = Math.sqrt(x[i] * x[i] + y[i] * y[i] + z[i] * z[i]);
+        }
+    }
+
+    /**
+     * Writes the dot product of vector i of this and other to out[i].
+     */
+    public void dot(Vec3Buffer other, double[] out) {
+        final double[] x = this.x, y = this.y, z = this.z;
+        final double[] ox = other.x, oy = other.y, oz = other.z;
+        final int n = Math.min(size, other.size);
+        for (int i = 0; i < n; i++) {
+            out[i] = x[i] * ox[i] + y[i] * oy[i] + z[i] * oz[i];
+        }
+    }
+
+    /**
+     * Mean of all vectors.
+     */
+    public void mean(Point3D out) {
+        double sx = 0, sy = 0, sz = 0;
+        final int n = size;
+        for (int i = 0; i < n; i++) {
+            sx += x[i];
+            sy += y[i];
+            sz += z[i];
+        }
+        out.x = n > 0 ? sx / n : 0;
+        out.y = n > 0 ? sy / n : 0;
+        out.z = n > 0 ? sz / n : 0;
+    }
+
+    /**
+     * Fills out with the mean of the last window vectors at each position (fewer at the
+     * start of the block).
+     */
+    public void runningMean(int window, Vec3Buffer out) {
+        out.ensureCapacity(size);
+        out.size = size;
+        runningMean(x, out.x, size, window);
+        runningMean(y, out.y, size, window);
+        runningMean(z, out.z, size, window);
+    }
+
+    private static void runningMean(double[] in, double[] out, int n, int window) {
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += in[i];
+            if (i >= window) {
+                sum -= in[i - window];
+            }
+            out[i] = sum / Math.min(i + 1, window);
+        }
+    }
+
+    private static double[] copyOf(double[] a, int length) {
+        double[] b = new double[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+}
@@ -0,0 +1,283 @@
+package com.example.bletest;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measures the scan callback work on a scan trace: parsing with {@link AdParser}, the target
+ * name check, the manufacturer data lookup of {@link AdvertisementCollector} and duplicate
+ * suppression with {@link AdFilter}. For comparison, the same trace is parsed the way
+ * android.bluetooth.le.ScanRecord does it, copying every field into new arrays and strings.
+ * Run on a JVM:
+ * AdBenchmark [capture_file|devices] [rounds]
+ *
+ * A capture file holds the scan records recorded with BluetoothLE capturePackets; otherwise
+ * a trace of the given number of devices advertising for a minute is generated.
+ */
+public class AdBenchmark {
+    private static final String TARGET = "CC2650 SensorTag";
+    private static final int RECORD_LENGTH = 62;
+
+    private final ArrayList<String> addresses = new ArrayList<String>();
+    private final ArrayList<byte[]> records = new ArrayList<byte[]>();
+    private final ArrayList<Long> times = new ArrayList<Long>();
+
+    public static void main(String[] args) throws IOException {
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        AdBenchmark b = new AdBenchmark();
+        if (args.length > 0 && new File(args[0]).isFile()) {
+            b.load(new File(args[0]));
+        } else {
+            b.generate(args.length > 0 ? Integer.parseInt(args[0]) : 40, 60000);
+        }
+        int n = b.records.size();
+        if (n == 0) {
+            System.err.println("No scan records");
+            System.exit(1);
+        }
+        long bytes = 0;
+        for (byte[] r : b.records) {
+            bytes += r.length;
+        }
+        System.out.println(String.format(Locale.US, "%d scan records, %d bytes, %d devices",
+                n, bytes, new HashSet<String>(b.addresses).size()));
+
+        long[] parse = new long[rounds];
+        long[] copy = new long[rounds];
+        long sink = 0;
+        for (int r = 0; r < rounds; r++) {
+            long t0 = System.nanoTime();
+            sink += b.parseInPlace();
+            parse[r] = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            sink += b.parseCopying();
+            copy[r] = System.nanoTime() - t0;
+        }
+        report("in place", parse, n, bytes);
+        report("copying", copy, n, bytes);
+
+        AdFilter filter = new AdFilter();
+        AdParser parser = new AdParser();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            parser.parse(b.records.get(i));
+            filter.isDuplicate(parser.fingerprint(b.addresses.get(i)), b.times.get(i));
+        }
+        System.out.println(String.format(Locale.US, "filter: %s, %.0f ns/record",
+                filter.report(), (System.nanoTime() - t0) / (double) n));
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private static void report(String name, long[] nanos, int n, long bytes) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        // The first rounds run in the interpreter.
+        double median = sorted[sorted.length / 2];
+        System.out.println(String.format(Locale.US,
+                "%-8s: %.0f ns/record, %.2f M records/s, %.0f MB/s (median of %d rounds)",
+                name, median / n, n * 1e3 / median, bytes * 1e3 / median, nanos.length));
+    }
+
+    // The scan callback work, as BleOldScanner and AdvertisementCollector do it.
+    private long parseInPlace() {
+        AdParser parser = new AdParser();
+        long found = 0;
+        for (int i = 0; i < records.size(); i++) {
+            parser.parse(records.get(i));
+            if (parser.nameEquals(TARGET)) {
+                found++;
+            }
+            if (parser.findManufacturerData(AdvertisementCollector.COMPANY_ID) >= 0) {
+                found += parser.getDataLength();
+            }
+            found += parser.getFlags();
+        }
+        return found;
+    }
+
+    // What ScanRecord.parseFromBytes() does: every field copied out, UUIDs as objects.
+    private long parseCopying() {
+        long found = 0;
+        for (int i = 0; i < records.size(); i++) {
+            byte[] record = records.get(i);
+            ArrayList<UUID> uuids = new ArrayList<UUID>();
+            String name = null;
+            int flags = -1;
+            byte[] manufacturer = null;
+            int p = 0;
+            while (p < record.length) {
+                int len = record[p] & 0xFF;
+                if (len == 0 || p + 1 + len > record.length) {
+                    break;
+                }
+                int type = record[p + 1] & 0xFF;
+                byte[] data = Arrays.copyOfRange(record, p + 2, p + 1 + len);
+                switch (type) {
+                    case AdParser.TYPE_FLAGS:
+                        flags = data.length > 0 ? data[0] & 0xFF : -1;
+                        break;
+                    case AdParser.TYPE_NAME:
+                    case AdParser.TYPE_SHORT_NAME:
+                        name = new String(data);
+                        break;
+                    case AdParser.TYPE_UUID16:
+                    case AdParser.TYPE_UUID16_INCOMPLETE:
+                        for (int k = 0; k + 2 <= data.length; k += 2) {
+                            long v = (data[k] & 0xFF) | (data[k + 1] & 0xFF) << 8;
+                            uuids.add(new UUID(v << 32 | 0x1000L, 0x800000805F9B34FBL));
+                        }
+                        break;
+                    case AdParser.TYPE_UUID128:
+                    case AdParser.TYPE_UUID128_INCOMPLETE:
+                        for (int k = 0; k + 16 <= data.length; k += 16) {
+                            long lsb = 0;
+                            long msb = 0;
+                            for (int b = 7; b >= 0; b--) {
+                                lsb = lsb << 8 | (data[k + b] & 0xFF);
+                                msb = msb << 8 | (data[k + 8 + b] & 0xFF);
+                            }
+                            uuids.add(new UUID(msb, lsb));
+                        }
+                        break;
+                    case AdParser.TYPE_MANUFACTURER_DATA:
+                        if (data.length >= 2) {
+                            manufacturer = Arrays.copyOfRange(data, 2, data.length);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                p += 1 + len;
+            }
+            if (TARGET.equals(name)) {
+                found++;
+            }
+            if (manufacturer != null) {
+                found += manufacturer.length;
+            }
+            found += flags + uuids.size();
+        }
+        return found;
+    }
+
+    private void load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != PacketCapture.MAGIC || in.readInt() != PacketCapture.VERSION) {
+                throw new IOException("Not a capture file: " + file);
+            }
+            byte[] address = new byte[PacketCapture.ADDRESS_LENGTH];
+            while (true) {
+                long timestamp;
+                try {
+                    timestamp = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                in.readFully(address);
+                byte[] value = new byte[in.readUnsignedShort()];
+                in.readFully(value);
+                if (AdParser.CAPTURE_UUID.equals(uuid)) {
+                    addresses.add(PacketCapture.formatAddress(address));
+                    records.add(value);
+                    times.add(timestamp);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * A busy scan: a quarter of the devices are pods advertising every 100 ms with a reading
+     * that changes every 500 ms, the rest phones and beacons advertising every 200 ms that
+     * change rarely. Records are padded to 62 bytes as the old scan API delivers them.
+     */
+    private void generate(int devices, long duration) {
+        Random random = new Random(42);
+        int[] sequences = new int[devices];
+        for (long t = 0; t < duration; t += 10) {
+            for (int d = 0; d < devices; d++) {
+                boolean pod = d % 4 == 0;
+                long interval = pod ? 100 : 200;
+                if ((t + d * 10) % interval != 0) {
+                    continue;
+                }
+                if (pod && t % 500 == 0) {
+                    sequences[d]++;
+                }
+                // Advertising events are missed now and then.
+                if (random.nextInt(10) == 0) {
+                    continue;
+                }
+                addresses.add(String.format("B0:B4:48:00:%02X:%02X", d >> 8, d & 0xFF));
+                records.add(pod ? podRecord(sequences[d]) : otherRecord(d, t / 15000));
+                times.add(t);
+            }
+        }
+    }
+
+    private static byte[] podRecord(int sequence) {
+        byte[] r = new byte[RECORD_LENGTH];
+        int p = 0;
+        r[p++] = 2;
+        r[p++] = AdParser.TYPE_FLAGS;
+        r[p++] = 0x06;
+        r[p++] = 17;
+        r[p++] = AdParser.TYPE_UUID128_INCOMPLETE;
+        for (int k = 0; k < 16; k++) {
+            r[p++] = (byte) (0xA0 + k);
+        }
+        r[p++] = 9;
+        r[p++] = (byte) AdParser.TYPE_MANUFACTURER_DATA;
+        r[p++] = (byte) AdvertisementCollector.COMPANY_ID;
+        r[p++] = (byte) (AdvertisementCollector.COMPANY_ID >> 8);
+        r[p++] = AdvertisementCollector.FORMAT_PRESSURE;
+        r[p++] = (byte) sequence;
+        for (int k = 0; k < 3; k++) {
+            r[p++] = (byte) (sequence * 7 + k);
+        }
+        // Scan response
+        byte[] name = TARGET.getBytes();
+        r[p++] = (byte) (name.length + 1);
+        r[p++] = AdParser.TYPE_NAME;
+        System.arraycopy(name, 0, r, p, name.length);
+        return r;
+    }
+
+    private static byte[] otherRecord(int device, long epoch) {
+        byte[] r = new byte[RECORD_LENGTH];
+        int p = 0;
+        r[p++] = 2;
+        r[p++] = AdParser.TYPE_FLAGS;
+        r[p++] = 0x1A;
+        r[p++] = 3;
+        r[p++] = AdParser.TYPE_UUID16;
+        r[p++] = (byte) 0x6F;
+        r[p++] = (byte) 0xFD;
+        // Phone style manufacturer data that rotates with the epoch
+        r[p++] = 12;
+        r[p++] = (byte) AdParser.TYPE_MANUFACTURER_DATA;
+        r[p++] = 0x4C;
+        r[p++] = 0x00;
+        for (int k = 0; k < 9; k++) {
+            r[p++] = (byte) (device * 31 + epoch * 17 + k);
+        }
+        r[p++] = 2;
+        r[p++] = AdParser.TYPE_TX_POWER;
+        r[p++] = (byte) -8;
+        return r;
+    }
+}
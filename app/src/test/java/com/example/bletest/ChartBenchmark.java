@@ -0,0 +1,94 @@
+package com.example.bletest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures the per-frame work of {@link PressureChartView} without a display: devices report
+ * at 100 Hz into a {@link SampleHistory}, and every 16.7 ms each series reads its new samples
+ * and decimates them, as the view does before drawing. Also times a full redraw of the window.
+ * Run on a JVM:
+ * ChartBenchmark [devices] [seconds] [width_px]
+ */
+public class ChartBenchmark {
+    private static final long SAMPLE_INTERVAL = 10;
+
+    public static void main(String[] args) {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 120;
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : 1080;
+
+        SampleHistory history = new SampleHistory();
+        List<ChartSeries> series = new ArrayList<ChartSeries>();
+        for (int d = 0; d < devices; d++) {
+            String address = String.format("SI:MU:LA:TE:00:%02X", d);
+            series.add(new ChartSeries(address, history.get(address)));
+        }
+        ChartSeries.Scale scale = new ChartSeries.Scale();
+        scale.width = width;
+        scale.height = 600;
+        scale.yMin = 990;
+        scale.yMax = 1030;
+
+        FrameStats stats = new FrameStats();
+        long start = 1000000000L;
+        long end = start + seconds * 1000;
+        long nextSample = start;
+        long segments = 0;
+        double sink = 0;
+        int frame = 0;
+        for (long frameNanos = 0; ; frameNanos += FrameStats.FRAME_NANOS, frame++) {
+            long now = start + frameNanos / 1000000;
+            if (now > end) {
+                break;
+            }
+            for (; nextSample <= now; nextSample += SAMPLE_INTERVAL) {
+                for (int d = 0; d < devices; d++) {
+                    double phase = nextSample / 1000.0 + d;
+                    float mbar = (float) (1010 + 8 * Math.sin(phase * 0.7) + Math.sin(phase * 23));
+                    history.onPressure(series.get(d).address, nextSample, (int) (mbar * 100), mbar);
+                }
+            }
+
+            long t0 = System.nanoTime();
+            for (ChartSeries s : series) {
+                while (s.update(scale) > 0) {
+                    segments += s.getLineCount() / 4;
+                    if (s.getLineCount() > 0) {
+                        sink += s.getLines()[0];
+                    }
+                }
+            }
+            // The first frames run in the interpreter; count them anyway.
+            stats.onUpdate(System.nanoTime() - t0);
+            stats.onFrame(frameNanos);
+        }
+
+        long samples = 0;
+        long points = 0;
+        for (ChartSeries s : series) {
+            samples += s.getSampleCount();
+            points += s.getPointCount();
+        }
+        System.out.println(String.format(Locale.US,
+                "%d devices at 100 Hz, %d px: %d samples drawn as %d points (%.1f samples/point), %d segments",
+                devices, width, samples, points, (double) samples / points, segments));
+        System.out.println("per frame: " + stats.report());
+
+        // Full redraw, as after a resize or a range change.
+        int rounds = 50;
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (ChartSeries s : series) {
+                s.reset(end - scale.window);
+                while (s.update(scale) > 0) {
+                    sink += s.getLineCount();
+                }
+            }
+        }
+        System.out.println(String.format(Locale.US, "full redraw of %d s: %.3f ms",
+                scale.window / 1000, (System.nanoTime() - t0) / 1e6 / rounds));
+        System.out.println("(checksum " + sink + ")");
+    }
+}
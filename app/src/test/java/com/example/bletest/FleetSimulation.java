@@ -0,0 +1,177 @@
+package com.example.bletest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Runs {@link FleetScheduler} against simulated pods in virtual time and prints throughput and
+ * duty cycle, to compare scheduling settings without walking past real pods.
+ *
+ * The walk passes the pods one after another; each is in range for a while, with an RSSI that
+ * peaks when the walker is closest. Connections take a random setup time and sometimes fail.
+ *
+ * Usage: FleetSimulation [pods] [walk_seconds] [seed]
+ */
+public class FleetSimulation {
+    private static final long STEP = 50;
+    private static final long ADVERTISING_INTERVAL = 200;
+    private static final long SAMPLE_INTERVAL = 100;
+    private static final double CONNECT_FAILURE_RATE = 0.1;
+
+    private static class Pod {
+        final String address;
+        final long closest;
+        final long inRange;
+        boolean connected;
+
+        Pod(String address, long closest, long inRange) {
+            this.address = address;
+            this.closest = closest;
+            this.inRange = inRange;
+        }
+
+        boolean visible(long now) {
+            return Math.abs(now - closest) < inRange / 2;
+        }
+
+        int rssi(long now, Random random) {
+            double distance = Math.abs(now - closest) / (double) (inRange / 2);
+            return (int) (-45 - 50 * distance + random.nextGaussian() * 4);
+        }
+    }
+
+    private static class Event {
+        final long time;
+        final Runnable action;
+
+        Event(long time, Runnable action) {
+            this.time = time;
+            this.action = action;
+        }
+    }
+
+    private final List<Pod> pods = new ArrayList<Pod>();
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>(64, new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+        }
+    });
+    private FleetScheduler scheduler;
+    private boolean scanning;
+    private long now;
+
+    public FleetSimulation(int podCount, long walkMillis, long seed) {
+        random = new Random(seed);
+        for (int i = 0; i < podCount; i++) {
+            long closest = walkMillis * (i + 1) / (podCount + 1);
+            long inRange = 15000 + random.nextInt(30000);
+            pods.add(new Pod(String.format("SI:MU:LA:TE:%02X:%02X", i >> 8, i & 0xFF), closest, inRange));
+        }
+    }
+
+    private Pod pod(String address) {
+        for (Pod p : pods) {
+            if (p.address.equals(address)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private void at(long time, Runnable action) {
+        events.add(new Event(time, action));
+    }
+
+    private final FleetScheduler.Radio radio = new FleetScheduler.Radio() {
+        @Override
+        public void startScan() {
+            scanning = true;
+        }
+
+        @Override
+        public void stopScan() {
+            scanning = false;
+        }
+
+        @Override
+        public void connect(final String address) {
+            final Pod p = pod(address);
+            long setup = 300 + random.nextInt(1500);
+            final boolean fails = random.nextDouble() < CONNECT_FAILURE_RATE;
+            at(now + setup, new Runnable() {
+                @Override
+                public void run() {
+                    if (fails || !p.visible(now)) {
+                        scheduler.onDisconnected(address, now);
+                        return;
+                    }
+                    p.connected = true;
+                    scheduler.onConnected(address, now);
+                }
+            });
+        }
+
+        @Override
+        public void disconnect(final String address) {
+            at(now + 100, new Runnable() {
+                @Override
+                public void run() {
+                    pod(address).connected = false;
+                    scheduler.onDisconnected(address, now);
+                }
+            });
+        }
+    };
+
+    public FleetScheduler run(int maxConnections, long walkMillis) {
+        scheduler = new FleetScheduler(radio, maxConnections);
+        List<String> addresses = new ArrayList<String>();
+        for (Pod p : pods) {
+            addresses.add(p.address);
+        }
+        scheduler.setTargets(addresses);
+        events.clear();
+        scanning = false;
+        now = 0;
+        scheduler.start(now);
+        for (now = 0; now <= walkMillis; now += STEP) {
+            while (!events.isEmpty() && events.peek().time <= now) {
+                events.poll().action.run();
+            }
+            for (Pod p : pods) {
+                if (!p.visible(now)) {
+                    if (p.connected) {
+                        // Walked out of range.
+                        p.connected = false;
+                        scheduler.onDisconnected(p.address, now);
+                    }
+                    continue;
+                }
+                if (scanning && now % ADVERTISING_INTERVAL == 0) {
+                    scheduler.onScanResult(p.address, p.rssi(now, random), now);
+                }
+                if (p.connected && now % SAMPLE_INTERVAL == 0) {
+                    scheduler.onPressure(p.address, now, 0, 0);
+                }
+            }
+            scheduler.tick(now);
+        }
+        scheduler.stop(now);
+        return scheduler;
+    }
+
+    public static void main(String[] args) {
+        int podCount = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        long walk = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 10 * 60 * 1000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        for (int maxConnections : new int[]{1, 2, 4}) {
+            FleetScheduler s = new FleetSimulation(podCount, walk, seed).run(maxConnections, walk);
+            System.out.println("max connections " + maxConnections + ": " + s.report());
+        }
+    }
+}
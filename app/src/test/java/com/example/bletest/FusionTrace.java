@@ -0,0 +1,135 @@
+package com.example.bletest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Runs an {@link OrientationFilter} over a recorded IMU trace and reports its throughput and,
+ * when the trace carries a reference attitude, the angular error against it.
+ *
+ * Trace lines: timestamp_ms, ax, ay, az (G), gx, gy, gz (deg/s), mx, my, mz [, q0, q1, q2, q3].
+ * Lines starting with '#' are skipped.
+ */
+public class FusionTrace {
+    private long samples = 0;
+    private long referenced = 0;
+    private double errorSum = 0;
+    private double errorMax = 0;
+    private final OrientationFilter filter;
+
+    public FusionTrace(OrientationFilter filter) {
+        this.filter = filter;
+    }
+
+    public void run(File trace) throws IOException {
+        // Parse the whole trace first so the filter loop runs over primitive blocks.
+        Vec3Buffer acc = new Vec3Buffer(1024);
+        Vec3Buffer gyro = new Vec3Buffer(1024);
+        Vec3Buffer mag = new Vec3Buffer(1024);
+        Vec3Buffer refVector = new Vec3Buffer(1024);
+        double[] refScalar = new double[1024];
+        long[] timestamps = new long[1024];
+        int count = 0;
+        boolean hasReference = true;
+
+        BufferedReader in = new BufferedReader(new FileReader(trace));
+        try {
+            double[] v = new double[14];
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] parts = line.split(",");
+                if (parts.length < 10) {
+                    continue;
+                }
+                int n = Math.min(parts.length, v.length);
+                for (int i = 0; i < n; i++) {
+                    v[i] = Double.parseDouble(parts[i].trim());
+                }
+                if (count == timestamps.length) {
+                    long[] t = new long[count * 2];
+                    System.arraycopy(timestamps, 0, t, 0, count);
+                    timestamps = t;
+                    double[] r = new double[count * 2];
+                    System.arraycopy(refScalar, 0, r, 0, count);
+                    refScalar = r;
+                }
+                timestamps[count] = (long) v[0];
+                acc.add(v[1], v[2], v[3]);
+                gyro.add(v[4], v[5], v[6]);
+                mag.add(v[7], v[8], v[9]);
+                hasReference &= n == 14;
+                if (hasReference) {
+                    refScalar[count] = v[10];
+                    refVector.add(v[11], v[12], v[13]);
+                }
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+
+        long lastTimestamp = -1;
+        for (int i = 0; i < count; i++) {
+            double dt = lastTimestamp < 0 ? 0.01 : (timestamps[i] - lastTimestamp) / 1000.0;
+            lastTimestamp = timestamps[i];
+            filter.update(acc.x[i], acc.y[i], acc.z[i], gyro.x[i], gyro.y[i], gyro.z[i],
+                    mag.x[i], mag.y[i], mag.z[i], dt);
+            samples++;
+
+            if (hasReference) {
+                double error = angleBetween(refScalar[i], refVector.x[i], refVector.y[i], refVector.z[i]);
+                errorSum += error;
+                errorMax = Math.max(errorMax, error);
+                referenced++;
+            }
+        }
+    }
+
+    /**
+     * @return Angle in degrees between the filter attitude and the given quaternion.
+     */
+    private double angleBetween(double r0, double r1, double r2, double r3) {
+        double norm = Math.sqrt(r0 * r0 + r1 * r1 + r2 * r2 + r3 * r3);
+        double dot = Math.abs(filter.q0 * r0 + filter.q1 * r1 + filter.q2 * r2 + filter.q3 * r3) / norm;
+        return Math.toDegrees(2 * Math.acos(Math.min(1, dot)));
+    }
+
+    public long getSampleCount() {
+        return samples;
+    }
+
+    public double getMeanError() {
+        return referenced > 0 ? errorSum / referenced : Double.NaN;
+    }
+
+    public double getMaxError() {
+        return errorMax;
+    }
+
+    /**
+     * Usage: FusionTrace trace_file [beta]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: FusionTrace trace_file [beta]");
+            System.exit(1);
+        }
+        double beta = args.length > 1 ? Double.parseDouble(args[1]) : OrientationFilter.DEFAULT_BETA;
+        OrientationFilter filter = new OrientationFilter(beta);
+        FusionTrace trace = new FusionTrace(filter);
+        trace.run(new File(args[0]));
+        System.out.println(String.format("samples: %d, %.0f updates/s",
+                trace.getSampleCount(), filter.getUpdatesPerSecond()));
+        System.out.println(String.format("heading: %.1f, roll: %.1f, pitch: %.1f",
+                filter.heading, filter.roll, filter.pitch));
+        if (trace.referenced > 0) {
+            System.out.println(String.format("attitude error: mean %.2f deg, max %.2f deg",
+                    trace.getMeanError(), trace.getMaxError()));
+        }
+    }
+}
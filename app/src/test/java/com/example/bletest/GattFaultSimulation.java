@@ -0,0 +1,227 @@
+package com.example.bletest;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Injects GATT faults into a simulated link in virtual time and prints how fast {@link
+ * GattRecovery} brings the connection back, per kind of fault.
+ *
+ * The simulated stack behaves like the ones seen in the field: after a status 133 the same
+ * BluetoothGatt usually keeps failing until it is closed, a changed device keeps returning its
+ * old services until the cache is refreshed, and a device out of range never answers a
+ * connect, so only the attempt timeout ends it.
+ *
+ * Usage: GattFaultSimulation [faults] [seed]
+ */
+public class GattFaultSimulation {
+    private static final long STEP = 10;
+    private static final long TICK = 250;
+
+    static final int FAULT_LINK_DROP = 0;
+    static final int FAULT_STACK_ERROR = 1;
+    static final int FAULT_STALE_CACHE = 2;
+    static final int FAULT_OUT_OF_RANGE = 3;
+    static final int FAULT_MIXED = 4;
+    private static final String[] FAULT_NAMES = {
+            "link drop", "status 133", "stale cache", "out of range", "mixed",
+    };
+
+    // Chance that a new BluetoothGatt clears a stack error
+    private static final double RECREATE_CLEARS = 0.85;
+    // Chance that reconnecting over the same BluetoothGatt still works after a stack error
+    private static final double RETRY_CLEARS = 0.1;
+
+    private static class Event {
+        final long time;
+        final Runnable action;
+
+        Event(long time, Runnable action) {
+            this.time = time;
+            this.action = action;
+        }
+    }
+
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<Event>(16, new Comparator<Event>() {
+        @Override
+        public int compare(Event a, Event b) {
+            return a.time < b.time ? -1 : (a.time == b.time ? 0 : 1);
+        }
+    });
+    private GattRecovery recovery;
+    private long now;
+
+    // Fault state of the simulated device and stack
+    private boolean stackPoisoned;
+    private boolean cacheStale;
+    private long absentUntil;
+    // Attempts started before a new BluetoothGatt or a scan are abandoned.
+    private int generation;
+
+    public GattFaultSimulation(long seed) {
+        random = new Random(seed);
+    }
+
+    private void at(long time, Runnable action) {
+        events.add(new Event(time, action));
+    }
+
+    private boolean present() {
+        return now >= absentUntil;
+    }
+
+    private final GattRecovery.Transport transport = new GattRecovery.Transport() {
+        @Override
+        public void connect(final boolean recreate) {
+            if (recreate) {
+                generation++;
+                if (stackPoisoned && random.nextDouble() < RECREATE_CLEARS) {
+                    stackPoisoned = false;
+                }
+            } else if (stackPoisoned && random.nextDouble() < RETRY_CLEARS) {
+                stackPoisoned = false;
+            }
+            final int attempt = generation;
+            if (stackPoisoned) {
+                at(now + 200 + random.nextInt(300), new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt == generation) {
+                            recovery.onConnectionStateChange(GattRecovery.GATT_ERROR, false, now);
+                        }
+                    }
+                });
+                return;
+            }
+            if (!present()) {
+                // No answer; the attempt timeout takes over.
+                return;
+            }
+            at(now + 300 + random.nextInt(500), new Runnable() {
+                @Override
+                public void run() {
+                    if (attempt == generation) {
+                        recovery.onConnectionStateChange(GattRecovery.GATT_SUCCESS, true, now);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public boolean refreshCache() {
+            cacheStale = false;
+            return true;
+        }
+
+        @Override
+        public void discoverServices() {
+            final int attempt = generation;
+            at(now + 400 + random.nextInt(400), new Runnable() {
+                @Override
+                public void run() {
+                    if (attempt == generation) {
+                        recovery.onServicesDiscovered(GattRecovery.GATT_SUCCESS, !cacheStale, now);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void rescan() {
+            generation++;
+            final int attempt = generation;
+            long found = Math.max(now, absentUntil) + 500 + random.nextInt(1500);
+            at(found, new Runnable() {
+                @Override
+                public void run() {
+                    if (attempt == generation) {
+                        // A new connection after a scan starts without stale stack state.
+                        stackPoisoned = false;
+                        recovery.onDeviceFound(now);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void giveUp(int failureClass, int status) {
+            // The user connects again by hand.
+            at(now + 5000, new Runnable() {
+                @Override
+                public void run() {
+                    recovery.onConnectRequested(now);
+                    transport.connect(true);
+                }
+            });
+        }
+    };
+
+    private void inject(int fault) {
+        if (fault == FAULT_MIXED) {
+            fault = random.nextInt(FAULT_MIXED);
+        }
+        generation++;
+        int status;
+        switch (fault) {
+            case FAULT_STACK_ERROR:
+                stackPoisoned = true;
+                status = GattRecovery.GATT_ERROR;
+                break;
+            case FAULT_STALE_CACHE:
+                // The device came back with a new firmware and a new attribute table.
+                cacheStale = true;
+                status = GattRecovery.GATT_CONN_TERMINATE_PEER_USER;
+                break;
+            case FAULT_OUT_OF_RANGE:
+                absentUntil = now + 2000 + random.nextInt(20000);
+                status = GattRecovery.GATT_CONN_TIMEOUT;
+                break;
+            default:
+                status = GattRecovery.GATT_CONN_TIMEOUT;
+                break;
+        }
+        recovery.onConnectionStateChange(status, false, now);
+    }
+
+    public GattRecovery run(int fault, int faultCount) {
+        recovery = new GattRecovery(transport);
+        events.clear();
+        now = 0;
+        stackPoisoned = false;
+        cacheStale = false;
+        absentUntil = 0;
+        recovery.onConnectRequested(now);
+        transport.connect(true);
+
+        int injected = 0;
+        long nextFault = 5000;
+        long lastTick = 0;
+        while (injected < faultCount || recovery.isRecovering() || !events.isEmpty()) {
+            while (!events.isEmpty() && events.peek().time <= now) {
+                events.poll().action.run();
+            }
+            if (now - lastTick >= TICK) {
+                recovery.tick(now);
+                lastTick = now;
+            }
+            if (injected < faultCount && now >= nextFault && !recovery.isRecovering()) {
+                inject(fault);
+                injected++;
+                nextFault = now + 30000 + random.nextInt(30000);
+            }
+            now += STEP;
+        }
+        return recovery;
+    }
+
+    public static void main(String[] args) {
+        int faults = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        for (int fault = 0; fault < FAULT_NAMES.length; fault++) {
+            GattRecovery r = new GattFaultSimulation(seed).run(fault, faults);
+            System.out.println(FAULT_NAMES[fault] + ": " + r.report());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.bletest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives {@link GattRecovery} with a transport that only records what it is asked to do;
+ * the tests answer in its place.
+ */
+public class GattRecoveryTest {
+    private static final long TICK = 50;
+    private static final long ATTEMPT_TIMEOUT = 1000;
+    private static final long RESCAN_TIMEOUT = 2000;
+
+    private final List<String> actions = new ArrayList<String>();
+    private int gaveUpClass = -1;
+    private GattRecovery recovery;
+    private long now;
+
+    @Before
+    public void setUp() {
+        recovery = new GattRecovery(new GattRecovery.Transport() {
+            @Override
+            public void connect(boolean recreate) {
+                actions.add(recreate ? "recreate" : "connect");
+            }
+
+            @Override
+            public boolean refreshCache() {
+                actions.add("refresh");
+                return true;
+            }
+
+            @Override
+            public void discoverServices() {
+                actions.add("discover");
+            }
+
+            @Override
+            public void rescan() {
+                actions.add("rescan");
+            }
+
+            @Override
+            public void giveUp(int failureClass, int status) {
+                gaveUpClass = failureClass;
+            }
+        });
+        recovery.setTimeouts(ATTEMPT_TIMEOUT, RESCAN_TIMEOUT);
+        now = 0;
+        recovery.onConnectRequested(now);
+        recovery.onConnectionStateChange(GattRecovery.GATT_SUCCESS, true, now);
+        recovery.onServicesDiscovered(GattRecovery.GATT_SUCCESS, true, now);
+        actions.clear();
+    }
+
+    // Ticks until the recovery asks for something or gives up; returns the time it did.
+    private long tickUntilAction() {
+        int before = actions.size();
+        for (int i = 0; i < 10000 && actions.size() == before && gaveUpClass < 0; i++) {
+            now += TICK;
+            recovery.tick(now);
+        }
+        return now;
+    }
+
+    private void disconnect(int status) {
+        assertTrue(recovery.onConnectionStateChange(status, false, now));
+    }
+
+    @Test
+    public void escalatesThroughTheActionsInOrder() {
+        now = 1000;
+        disconnect(GattRecovery.GATT_CONN_TIMEOUT);
+        assertTrue(recovery.isRecovering());
+
+        // Link loss: two plain reconnects, the second after twice the delay.
+        assertEquals(1100, tickUntilAction());
+        disconnect(GattRecovery.GATT_CONN_TIMEOUT);
+        assertEquals(1100 + 200, tickUntilAction());
+        disconnect(GattRecovery.GATT_CONN_TIMEOUT);
+        // Then a new BluetoothGatt, twice; a stack error does not step back.
+        long t = now;
+        assertEquals(t + 600, tickUntilAction());
+        disconnect(GattRecovery.GATT_ERROR);
+        t = now;
+        assertEquals(t + 1200, tickUntilAction());
+        disconnect(GattRecovery.GATT_ERROR);
+        // Then a cache refresh, over a new connection since the link is down.
+        t = now;
+        assertEquals(t + 600, tickUntilAction());
+        assertEquals(Arrays.asList("connect", "connect", "recreate", "recreate", "refresh", "recreate"),
+                actions);
+
+        recovery.onConnectionStateChange(GattRecovery.GATT_SUCCESS, true, now);
+        recovery.onServicesDiscovered(GattRecovery.GATT_SUCCESS, true, now);
+        assertFalse(recovery.isRecovering());
+        assertEquals(1, recovery.getRecoveredCount());
+        assertEquals(now - 1000, recovery.getRecoveryTime(1));
+        assertEquals(-1, gaveUpClass);
+    }
+
+    @Test
+    public void unansweredDeviceGivesUpWithinTheTimeouts() {
+        now = 1000;
+        disconnect(GattRecovery.GATT_CONN_TIMEOUT);
+        while (gaveUpClass < 0 && now < 1000 + 60000) {
+            tickUntilAction();
+        }
+        // A connect nobody answers means the device is gone: straight to the two rescans.
+        assertEquals(Arrays.asList("connect", "rescan", "rescan"), actions);
+        assertEquals(GattRecovery.CLASS_NOT_FOUND, gaveUpClass);
+        long bound = 100 + ATTEMPT_TIMEOUT + 2 * RESCAN_TIMEOUT + TICK;
+        assertTrue("gave up after " + (now - 1000) + " ms", now - 1000 <= bound);
+        assertFalse(recovery.isRecovering());
+        assertEquals(1, recovery.getGaveUpCount());
+        assertEquals(-1, recovery.getRecoveryTime(0.5));
+    }
+
+    @Test
+    public void failedDiscoveryRefreshesOnTheOpenLink() {
+        now = 1000;
+        recovery.onConnectRequested(now);
+        recovery.onConnectionStateChange(GattRecovery.GATT_SUCCESS, true, now);
+        actions.clear();
+        recovery.onServicesDiscovered(GattRecovery.GATT_INTERNAL_ERROR, false, now);
+        assertEquals(1600, tickUntilAction());
+        assertEquals(Arrays.asList("refresh", "discover"), actions);
+    }
+
+    @Test
+    public void authenticationErrorGivesUpAtOnce() {
+        now = 1000;
+        disconnect(GattRecovery.GATT_INSUFFICIENT_AUTHENTICATION);
+        assertEquals(GattRecovery.CLASS_AUTH, gaveUpClass);
+        assertTrue(actions.isEmpty());
+        assertFalse(recovery.isRecovering());
+    }
+
+    @Test
+    public void requestedDisconnectIsNoFailure() {
+        now = 1000;
+        recovery.onDisconnectRequested(now);
+        assertFalse(recovery.onConnectionStateChange(GattRecovery.GATT_SUCCESS, false, now));
+        assertFalse(recovery.isRecovering());
+        assertFalse(recovery.isBusy());
+    }
+
+    @Test
+    public void recoveryTimesKeepAFixedWindow() {
+        for (int i = 0; i < 2 * GattRecovery.RECOVERY_WINDOW; i++) {
+            long start = now;
+            disconnect(GattRecovery.GATT_CONN_TIMEOUT);
+            tickUntilAction();
+            // The first window recovers slowly, the second at the first retry.
+            if (i < GattRecovery.RECOVERY_WINDOW) {
+                now += 5000;
+            }
+            recovery.onConnectionStateChange(GattRecovery.GATT_SUCCESS, true, now);
+            recovery.onServicesDiscovered(GattRecovery.GATT_SUCCESS, true, now);
+            assertEquals(now - start, i < GattRecovery.RECOVERY_WINDOW ? 5100 : 100);
+            now += 1000;
+        }
+        assertEquals(2 * GattRecovery.RECOVERY_WINDOW, recovery.getRecoveredCount());
+        assertEquals(100, recovery.getRecoveryTime(0));
+        assertEquals(100, recovery.getRecoveryTime(1));
+    }
+}
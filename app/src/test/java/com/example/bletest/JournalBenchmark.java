@@ -0,0 +1,244 @@
+package com.example.bletest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares writing samples with {@link SampleLog}, a file open per line, against {@link
+ * SampleJournal} group commits with and without fsync, then crashes the journal in a few ways
+ * and checks that recovery leaves the logs exactly as SampleLog would have written them.
+ * Run on a JVM:
+ * JournalBenchmark [samples] [directory]
+ *
+ * Prints the throughput and every recovery check, and exits with 1 if one fails.
+ */
+public class JournalBenchmark {
+    private static final String[] DEVICES = {"B0:B4:48:BD:10:83", "B0:B4:48:BD:10:84", "B0:B4:48:BD:10:85"};
+
+    private final int count;
+    private final long[] times;
+    private final int[] raws;
+    private final float[] mbars;
+    private int failures = 0;
+
+    private JournalBenchmark(int count) {
+        this.count = count;
+        times = new long[count];
+        raws = new int[count];
+        mbars = new float[count];
+        Random random = new Random(1);
+        // Three pods at 10 Hz, ending just after midnight so the logs roll over.
+        long t = System.currentTimeMillis() / 86400000L * 86400000L - count * 33L;
+        for (int i = 0; i < count; i++) {
+            t += 33;
+            times[i] = t;
+            raws[i] = 4000000 + random.nextInt(2000);
+            mbars[i] = 1013 + (float) random.nextGaussian();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        File base = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"),
+                "journal_benchmark");
+        JournalBenchmark b = new JournalBenchmark(count);
+
+        File reference = b.clean(new File(base, "reference"));
+        long start = System.nanoTime();
+        SampleLog log = new SampleLog(reference);
+        for (int i = 0; i < count; i++) {
+            log.write(b.times[i], DEVICES[i % DEVICES.length], b.raws[i], b.mbars[i]);
+        }
+        b.rate("SampleLog, open per line", start, count);
+
+        b.throughput(base, "journal, fsync per commit of 64", SampleJournal.SYNC_COMMIT, 64);
+        b.throughput(base, "journal, no fsync", SampleJournal.SYNC_NONE, 64);
+        b.throughput(base, "journal, fsync per record", SampleJournal.SYNC_COMMIT, 1);
+
+        b.recovery(base, reference);
+
+        if (b.failures > 0) {
+            System.out.println(b.failures + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+        // Crashed journals leave their writer threads behind.
+        System.exit(0);
+    }
+
+    private void throughput(File base, String name, int syncPolicy, int groupSize) throws IOException {
+        File dir = clean(new File(base, "throughput"));
+        long start = System.nanoTime();
+        SampleJournal journal = new SampleJournal(dir);
+        journal.setSyncPolicy(syncPolicy);
+        journal.setGroupCommit(groupSize, SampleJournal.DEFAULT_MAX_DELAY);
+        write(journal, 0, count);
+        journal.close();
+        rate(name, start, count);
+        System.out.println("  " + journal.report());
+    }
+
+    private void recovery(File base, File reference) throws IOException {
+        File dir = clean(new File(base, "recovery"));
+
+        // A clean close leaves nothing to replay.
+        SampleJournal journal = new SampleJournal(dir, 64 * 1024);
+        write(journal, 0, count);
+        journal.close();
+        journal = new SampleJournal(dir, 64 * 1024);
+        check("clean close, reopened", dir, reference, count, journal.getRecoveredCount() == 0);
+        journal.close();
+
+        // The app dies after a commit; the OS never wrote the end of the log, the last line
+        // only half.
+        dir = clean(dir);
+        journal = new SampleJournal(dir, 64 * 1024);
+        write(journal, 0, count);
+        journal.flush();
+        File last = lastLog(dir);
+        cut(last, last.length() * 3 / 5 + 7);
+        journal = new SampleJournal(dir, 64 * 1024);
+        check("log tail lost, half line", dir, reference, count, journal.getRecoveredCount() > 0);
+        journal.close();
+
+        // Power fails while the last commit is written: its last record is torn, its lines
+        // never reached the log. A journal that does not fill, so only zeros follow the end.
+        dir = clean(dir);
+        journal = new SampleJournal(dir);
+        write(journal, 0, count - 1);
+        journal.flush();
+        File[] logs = logs(dir);
+        long[] lengths = new long[logs.length];
+        for (int i = 0; i < logs.length; i++) {
+            lengths[i] = logs[i].length();
+        }
+        long end = journalEnd(new File(dir, SampleJournal.FILE_NAME));
+        write(journal, count - 1, count);
+        journal.flush();
+        RandomAccessFile j = new RandomAccessFile(new File(dir, SampleJournal.FILE_NAME), "rw");
+        j.seek(end + 12);
+        j.write(0x5A);
+        j.close();
+        for (File f : logs(dir)) {
+            int i = Arrays.asList(logs).indexOf(f);
+            if (i < 0) {
+                f.delete();
+            } else {
+                cut(f, lengths[i]);
+            }
+        }
+        journal = new SampleJournal(dir);
+        check("last record torn", dir, reference, count - 1, true);
+        // Written on after recovery, the logs continue in order.
+        write(journal, count - 1, count);
+        journal.close();
+        check("written on after recovery", dir, reference, count, true);
+    }
+
+    private void write(SampleJournal journal, int from, int to) {
+        for (int i = from; i < to; i++) {
+            journal.write(times[i], DEVICES[i % DEVICES.length], raws[i], mbars[i]);
+        }
+    }
+
+    // The logs hold the first n lines of the reference logs.
+    private void check(String name, File dir, File reference, int n, boolean ok) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        StringBuilder actual = new StringBuilder();
+        for (File f : logs(reference)) {
+            expected.append(read(f));
+        }
+        for (File f : logs(dir)) {
+            actual.append(read(f));
+        }
+        int lines = 0;
+        int end = 0;
+        while (lines < n && end < expected.length()) {
+            end = expected.indexOf("\n", end) + 1;
+            lines++;
+        }
+        ok &= actual.toString().equals(expected.substring(0, end));
+        System.out.println((ok ? "PASS " : "FAIL ") + name + ": " + n + " lines as SampleLog writes them");
+        if (!ok) {
+            failures++;
+        }
+    }
+
+    // Offset after the last record of a journal that never filled, by record lengths.
+    private static long journalEnd(File file) throws IOException {
+        RandomAccessFile j = new RandomAccessFile(file, "r");
+        try {
+            long p = 64;
+            while (true) {
+                j.seek(p);
+                int n = j.readInt();
+                if (n <= 0) {
+                    return p;
+                }
+                p += 8 + n;
+            }
+        } finally {
+            j.close();
+        }
+    }
+
+    private static File lastLog(File dir) {
+        File[] files = logs(dir);
+        return files[files.length - 1];
+    }
+
+    private static File[] logs(File dir) {
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        int n = 0;
+        for (File f : files) {
+            if (f.getName().startsWith("log_state_change_")) {
+                files[n++] = f;
+            }
+        }
+        return Arrays.copyOf(files, n);
+    }
+
+    private static void cut(File file, long length) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.setLength(length);
+        f.close();
+    }
+
+    private static String read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString();
+    }
+
+    private File clean(File dir) {
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        return dir;
+    }
+
+    private void rate(String name, long start, int n) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.US, "%-34s %9.0f samples/s", name, n / seconds));
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Command line front end of {@link LogQuery}.
+ *
+ * Usage: LogQueryTool directory [-d address] [-from date] [-to date] [-bucket 1h] [-raw]
+ * [-q 50,95,99] [-threads n]. Dates are yyyy-MM-dd or "yyyy-MM-dd HH:mm" local time.
+ */
+public class LogQueryTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LogQueryTool directory [-d address] [-from date] [-to date] "
+                    + "[-bucket 1h] [-raw] [-q 50,95,99] [-threads n]");
+            System.exit(1);
+        }
+        LogQuery query = new LogQuery(new File(args[0]));
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String[] percentiles = {"50", "95", "99"};
+        boolean raw = false;
+        for (int i = 1; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("-raw")) {
+                raw = true;
+            } else if (i + 1 < args.length) {
+                String v = args[++i];
+                if (a.equals("-d")) {
+                    query.setDevice(v);
+                } else if (a.equals("-from")) {
+                    from = parseTime(v);
+                } else if (a.equals("-to")) {
+                    to = parseTime(v);
+                } else if (a.equals("-bucket")) {
+                    query.setBucket(parseDuration(v));
+                } else if (a.equals("-q")) {
+                    percentiles = v.split(",");
+                } else if (a.equals("-threads")) {
+                    query.setParallelism(Integer.parseInt(v));
+                }
+            }
+        }
+        query.setRange(from, to);
+        if (raw) {
+            query.setField(LogQuery.FIELD_RAW).setResolution(1);
+        }
+
+        List<LogQuery.Bucket> buckets = query.run();
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        StringBuilder header = new StringBuilder("start                   count        min       mean        max");
+        for (String p : percentiles) {
+            header.append(String.format(Locale.US, " %10s", "p" + p));
+        }
+        System.out.println(header);
+        for (LogQuery.Bucket b : buckets) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(df.format(new Date(b.start)));
+            sb.append(String.format(Locale.US, " %9d %10.2f %10.2f %10.2f", b.count, b.min, b.mean(), b.max));
+            for (String p : percentiles) {
+                sb.append(String.format(Locale.US, " %10.2f", b.quantile(Double.parseDouble(p) / 100)));
+            }
+            System.out.println(sb);
+        }
+        System.out.println(query.report());
+    }
+
+    private static long parseTime(String s) throws ParseException {
+        String pattern = s.length() > 10 ? "yyyy-MM-dd HH:mm" : "yyyy-MM-dd";
+        return new SimpleDateFormat(pattern, Locale.US).parse(s).getTime();
+    }
+
+    private static long parseDuration(String s) {
+        long unit;
+        switch (s.charAt(s.length() - 1)) {
+            case 'd':
+                unit = 24 * 60 * 60 * 1000;
+                break;
+            case 'h':
+                unit = 60 * 60 * 1000;
+                break;
+            case 'm':
+                unit = 60 * 1000;
+                break;
+            case 's':
+                unit = 1000;
+                break;
+            default:
+                return Long.parseLong(s);
+        }
+        return Long.parseLong(s.substring(0, s.length() - 1)) * unit;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Command line front end of {@link PacketReplay}.
+ *
+ * Usage: PacketReplayTool capture_file [speed|max] [log_directory]
+ */
+public class PacketReplayTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PacketReplayTool capture_file [speed|max] [log_directory]");
+            System.exit(1);
+        }
+        double speed = PacketReplay.MAX_SPEED;
+        if (args.length > 1 && !"max".equals(args[1])) {
+            speed = Double.parseDouble(args[1]);
+        }
+        final SampleLog log = args.length > 2 ? new SampleLog(new File(args[2])) : null;
+        final long[] counts = new long[3];
+
+        SensorPipeline pipeline = new SensorPipeline(new SensorPipeline.Sink() {
+            @Override
+            public void onPressure(String address, long timestamp, int raw, float mbar) {
+                counts[0]++;
+                if (log != null) {
+                    log.write(timestamp, address, raw, mbar);
+                }
+            }
+
+            @Override
+            public void onInvalidFrame(String address, long timestamp, UUID uuid) {
+                counts[1]++;
+            }
+
+            @Override
+            public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+                counts[2]++;
+            }
+        });
+
+        PacketReplay replay = new PacketReplay(pipeline, speed);
+        replay.replay(new File(args[0]));
+        System.out.println(String.format("records: %d, pressure: %d, invalid: %d, motion: %d",
+                replay.getRecordCount(), counts[0], counts[1], counts[2]));
+        System.out.println(String.format("elapsed: %dms, %.0f records/s",
+                replay.getElapsedMillis(), replay.getRecordsPerSecond()));
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.bletest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PressureSketchesTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private File directory;
+    // Whole hour of the morning, so a few hours on stay in the same day file.
+    private long start;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("sketches", "");
+        directory.delete();
+        directory.mkdir();
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 8);
+        start = cal.getTimeInMillis();
+        start -= start % PressureSketches.HOUR;
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    // One sample a second over [from, to); returns them as the sketches see them.
+    private static QuantileSketch feed(PressureSketches sketches, long from, long to, long seed) {
+        Random random = new Random(seed);
+        QuantileSketch all = new QuantileSketch();
+        for (long t = from; t < to; t += 1000) {
+            float mbar = (float) (1013 + random.nextGaussian());
+            sketches.onPressure(ADDRESS, t, 0, mbar);
+            all.add(mbar);
+        }
+        return all;
+    }
+
+    private File dayFile() {
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private List<PressureSketches.Record> readAll() throws IOException {
+        return PressureSketches.read(directory, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void splitHourMergesToTheUnsplitSketch() throws IOException {
+        PressureSketches sketches = new PressureSketches(directory);
+        QuantileSketch all = feed(sketches, start, start + PressureSketches.HOUR, 1);
+        sketches.close();
+
+        // Stored every FLUSH_INTERVAL, and what was left on close
+        List<PressureSketches.Record> records = readAll();
+        assertTrue(records.size() >= PressureSketches.HOUR / PressureSketches.FLUSH_INTERVAL);
+        assertEquals(records.size(), sketches.getWrittenCount());
+
+        List<PressureSketches.Record> hours = PressureSketches.rollUp(records, PressureSketches.HOUR, true);
+        assertEquals(1, hours.size());
+        PressureSketches.Record hour = hours.get(0);
+        assertEquals(ADDRESS, hour.address);
+        assertEquals(start, hour.start);
+        assertEquals(all.getCount(), hour.sketch.getCount());
+        assertEquals(all.getMin(), hour.sketch.getMin(), 0);
+        assertEquals(all.getMax(), hour.sketch.getMax(), 0);
+        for (double q : new double[] {0, 0.01, 0.5, 0.95, 0.99, 1}) {
+            assertEquals("q " + q, all.quantile(q), hour.sketch.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void recordsReadBackAsWritten() throws IOException {
+        PressureSketches sketches = new PressureSketches(directory);
+        // Short of a flush interval, so each hour is one record.
+        QuantileSketch first = feed(sketches, start, start + 5 * 60 * 1000, 2);
+        QuantileSketch second = feed(sketches, start + PressureSketches.HOUR,
+                start + PressureSketches.HOUR + 5 * 60 * 1000, 3);
+        sketches.close();
+
+        List<PressureSketches.Record> records = readAll();
+        assertEquals(2, records.size());
+        assertEquals(start, records.get(0).start);
+        assertEquals(PressureSketches.HOUR, records.get(0).length);
+        assertEquals(first.getCount(), records.get(0).sketch.getCount());
+        assertEquals(first.quantile(0.5), records.get(0).sketch.quantile(0.5), 0);
+        assertEquals(start + PressureSketches.HOUR, records.get(1).start);
+        assertEquals(second.getCount(), records.get(1).sketch.getCount());
+        assertEquals(second.quantile(0.5), records.get(1).sketch.quantile(0.5), 0);
+        assertEquals(0, PressureSketches.read(directory, "other", Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void tornFrameIsSkipped() throws IOException {
+        PressureSketches sketches = new PressureSketches(directory);
+        QuantileSketch first = feed(sketches, start, start + 5 * 60 * 1000, 4);
+        feed(sketches, start + PressureSketches.HOUR, start + PressureSketches.HOUR + 5 * 60 * 1000, 5);
+        sketches.close();
+
+        // The app died while writing the second record, then wrote on after it.
+        File file = dayFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+        sketches = new PressureSketches(directory);
+        QuantileSketch third = feed(sketches, start + 2 * PressureSketches.HOUR,
+                start + 2 * PressureSketches.HOUR + 5 * 60 * 1000, 6);
+        sketches.close();
+
+        List<PressureSketches.Record> records = readAll();
+        assertEquals(2, records.size());
+        assertEquals(start, records.get(0).start);
+        assertEquals(first.getCount(), records.get(0).sketch.getCount());
+        assertEquals(start + 2 * PressureSketches.HOUR, records.get(1).start);
+        assertEquals(third.getCount(), records.get(1).sketch.getCount());
+    }
+
+    @Test
+    public void corruptFrameIsSkipped() throws IOException {
+        PressureSketches sketches = new PressureSketches(directory);
+        feed(sketches, start, start + 5 * 60 * 1000, 7);
+        QuantileSketch second = feed(sketches, start + PressureSketches.HOUR,
+                start + PressureSketches.HOUR + 5 * 60 * 1000, 8);
+        sketches.close();
+
+        // One flipped bit in the first record's payload, past its 12 byte frame header
+        RandomAccessFile raf = new RandomAccessFile(dayFile(), "rw");
+        raf.seek(8 + 12 + 30);
+        int b = raf.read();
+        raf.seek(8 + 12 + 30);
+        raf.write(b ^ 1);
+        raf.close();
+
+        List<PressureSketches.Record> records = readAll();
+        assertEquals(1, records.size());
+        assertEquals(start + PressureSketches.HOUR, records.get(0).start);
+        assertEquals(second.getCount(), records.get(0).sketch.getCount());
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line front end of {@link PressureSketches}.
+ *
+ * Usage: PressureSketchesTool directory [-d address] [-from yyyy-MM-dd] [-to yyyy-MM-dd]
+ * [-bucket 1h|1d] [-all]
+ */
+public class PressureSketchesTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PressureSketchesTool directory [-d address] [-from yyyy-MM-dd] "
+                    + "[-to yyyy-MM-dd] [-bucket 1h|1d] [-all]");
+            System.exit(1);
+        }
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        String address = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        long length = PressureSketches.HOUR;
+        boolean perDevice = true;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-all")) {
+                perDevice = false;
+            } else if (i + 1 < args.length) {
+                String v = args[++i];
+                if (args[i - 1].equals("-d")) {
+                    address = v;
+                } else if (args[i - 1].equals("-from")) {
+                    from = day.parse(v).getTime();
+                } else if (args[i - 1].equals("-to")) {
+                    to = day.parse(v).getTime();
+                } else if (args[i - 1].equals("-bucket")) {
+                    length = v.endsWith("d") ? Long.parseLong(v.substring(0, v.length() - 1)) * PressureSketches.DAY
+                            : Long.parseLong(v.substring(0, v.length() - 1)) * PressureSketches.HOUR;
+                }
+            }
+        }
+
+        List<PressureSketches.Record> records = PressureSketches.read(new File(args[0]), address, from, to);
+        List<PressureSketches.Record> buckets = PressureSketches.rollUp(records, length, perDevice);
+        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm", Locale.US);
+        System.out.println("device             start               count        min        p50        p95        p99        max  bins");
+        for (PressureSketches.Record r : buckets) {
+            QuantileSketch s = r.sketch;
+            System.out.println(String.format(Locale.US, "%-18s %s %9d %10.2f %10.2f %10.2f %10.2f %10.2f %5d",
+                    r.address.length() > 0 ? r.address : "all", df.format(new Date(r.start)),
+                    s.getCount(), s.getMin(), s.quantile(0.5), s.quantile(0.95), s.quantile(0.99),
+                    s.getMax(), s.getBinCount()));
+        }
+        Map<String, Boolean> devices = new HashMap<String, Boolean>();
+        for (PressureSketches.Record r : records) {
+            devices.put(r.address, true);
+        }
+        System.out.println(records.size() + " stored sketches of " + devices.size() + " devices");
+    }
+}
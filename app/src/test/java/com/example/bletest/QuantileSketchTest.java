@@ -0,0 +1,134 @@
+package com.example.bletest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link QuantileSketch} against exact quantiles of the sorted samples; {@link SketchAccuracy}
+ * runs the same checks on larger inputs and prints the errors.
+ */
+public class QuantileSketchTest {
+    private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1};
+    private static final int SAMPLES = 50000;
+
+    private static double[] pressure(long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[SAMPLES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1013 + 5 * Math.sin(i * 2 * Math.PI / values.length) + random.nextGaussian() * 0.3;
+        }
+        return values;
+    }
+
+    private static double[] lognormal(long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[SAMPLES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.exp(random.nextGaussian() * 2);
+        }
+        return values;
+    }
+
+    private static double[] uniform(long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[SAMPLES];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextDouble() * 2000;
+        }
+        return values;
+    }
+
+    private static QuantileSketch sketch(double alpha, double[] values) {
+        QuantileSketch s = new QuantileSketch(alpha);
+        for (double v : values) {
+            s.add(v);
+        }
+        return s;
+    }
+
+    private static void assertWithinAlpha(double alpha, double[] values) {
+        QuantileSketch s = sketch(alpha, values);
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double q : QUANTILES) {
+            double exact = sorted[(int) (q * (sorted.length - 1))];
+            double error = Math.abs(s.quantile(q) - exact) / exact;
+            assertTrue("q " + q + ": relative error " + error, error <= alpha);
+        }
+        assertEquals(sorted[0], s.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], s.getMax(), 0);
+        assertEquals(values.length, s.getCount());
+    }
+
+    private static void assertSameAnswers(QuantileSketch expected, QuantileSketch actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getMin(), actual.getMin(), 0);
+        assertEquals(expected.getMax(), actual.getMax(), 0);
+        for (double q : QUANTILES) {
+            assertEquals("q " + q, expected.quantile(q), actual.quantile(q), 0);
+        }
+    }
+
+    @Test
+    public void quantilesWithinAlphaOfExact() {
+        assertWithinAlpha(QuantileSketch.DEFAULT_ALPHA, pressure(1));
+        assertWithinAlpha(0.01, lognormal(2));
+        // Within the default bin bound; binsStayWithinTheBound covers folding.
+        assertWithinAlpha(0.001, uniform(3));
+    }
+
+    @Test
+    public void mergedPartsAnswerLikeOneSketch() {
+        double[] values = pressure(4);
+        QuantileSketch merged = new QuantileSketch();
+        int part = values.length / 24 + 1;
+        for (int from = 0; from < values.length; from += part) {
+            merged.merge(sketch(QuantileSketch.DEFAULT_ALPHA,
+                    Arrays.copyOfRange(values, from, Math.min(values.length, from + part))));
+        }
+        assertSameAnswers(sketch(QuantileSketch.DEFAULT_ALPHA, values), merged);
+    }
+
+    @Test
+    public void mergeRefusesOtherAlpha() {
+        try {
+            new QuantileSketch().merge(new QuantileSketch(0.01));
+            fail("merged a sketch of other alpha");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void writeReadRoundTrip() throws IOException {
+        QuantileSketch s = sketch(QuantileSketch.DEFAULT_ALPHA, pressure(5));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        s.write(new DataOutputStream(bytes));
+        QuantileSketch r = QuantileSketch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertSameAnswers(s, r);
+        assertEquals(s.getMean(), r.getMean(), 0);
+        assertEquals(s.getBinCount(), r.getBinCount());
+        assertEquals(s.getAlpha(), r.getAlpha(), 0);
+    }
+
+    @Test
+    public void binsStayWithinTheBound() {
+        QuantileSketch s = new QuantileSketch(0.01);
+        s.setMaxBins(600);
+        for (double v : lognormal(6)) {
+            s.add(v);
+            assertTrue(s.getBinCount() <= 600);
+        }
+        assertEquals(SAMPLES, s.getCount());
+    }
+}
@@ -0,0 +1,32 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line front end of {@link Recalibration}.
+ *
+ * Usage: RecalibrationTool log_file out_file calibration_file|calibration_directory
+ *
+ * With a directory, every device gets its own calibration_*.properties file from it.
+ */
+public class RecalibrationTool {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: RecalibrationTool log_file out_file calibration_file|calibration_directory");
+            System.exit(1);
+        }
+        File calibration = new File(args[2]);
+        long n;
+        if (calibration.isDirectory()) {
+            n = Recalibration.recalibrate(new File(args[0]), new File(args[1]), new CalibrationStore(calibration));
+        } else {
+            // The store resolves files by address, so point it at the file's own name.
+            CalibrationStore store = new CalibrationStore(calibration.getAbsoluteFile().getParentFile());
+            String name = calibration.getName();
+            String address = name.substring("calibration_".length(), name.length() - ".properties".length());
+            n = Recalibration.recalibrate(new File(args[0]), new File(args[1]), store.get(address));
+        }
+        System.out.println("Recalibrated " + n + " samples");
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.bletest;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Switches the {@link SensorPipeline} config between two filter windows and sink sets while
+ * another thread feeds it pressure notifications of three pods, and checks that no sample is
+ * dropped, that each sample reaches the whole sink set of one config, and that the filtered
+ * values carry on across switches. Prints the cost per notification with and without
+ * switching and the switch latency. Run on a JVM:
+ * ReconfigBenchmark [notifications]
+ *
+ * Exits with 1 if a check fails.
+ */
+public class ReconfigBenchmark {
+    private static final String[] DEVICES = {"B0:B4:48:BD:10:83", "B0:B4:48:BD:10:84", "B0:B4:48:BD:10:85"};
+    private static final double MBAR = 1013.25;
+    // Filtered values before a device's first full window are not checked.
+    private static final int WARM_UP = SensorPipeline.MAX_FILTER_SIZE * 3;
+
+    private static class CountingSink implements SensorPipeline.Sink {
+        volatile long count = 0;
+        double maxError = 0;
+
+        @Override
+        public void onPressure(String address, long timestamp, int raw, float mbar) {
+            if (count++ >= WARM_UP) {
+                maxError = Math.max(maxError, Math.abs(mbar - MBAR));
+            }
+        }
+
+        @Override
+        public void onInvalidFrame(String address, long timestamp, java.util.UUID uuid) {
+        }
+
+        @Override
+        public void onMotion(String address, long timestamp, Point3D acc, Point3D gyro, Point3D mag) {
+        }
+    }
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws InterruptedException {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final byte[][] frames = frames(count);
+
+        // Baseline: the same notifications without switching.
+        SensorPipeline plain = new SensorPipeline();
+        CountingSink plainSink = new CountingSink();
+        plain.addSink(plainSink);
+        long start = System.nanoTime();
+        feed(plain, frames);
+        double plainNanos = (System.nanoTime() - start) / (double) count;
+
+        final SensorPipeline pipeline = new SensorPipeline();
+        final CountingSink all = new CountingSink();
+        final CountingSink a1 = new CountingSink();
+        final CountingSink a2 = new CountingSink();
+        final CountingSink b1 = new CountingSink();
+        final CountingSink b2 = new CountingSink();
+        pipeline.edit().addSink(a1).addSink(a2).apply();
+
+        final long[] feedNanos = new long[1];
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                feed(pipeline, frames);
+                feedNanos[0] = System.nanoTime() - start;
+            }
+        });
+        producer.start();
+        int switches = 0;
+        while (producer.isAlive()) {
+            boolean toB = switches % 2 == 0;
+            pipeline.edit()
+                    .setFilter(toB ? 20 : 12, toB ? 6 : 4)
+                    .clearSinks()
+                    .addSink(all)
+                    .addSink(toB ? b1 : a1)
+                    .addSink(toB ? b2 : a2)
+                    .apply();
+            switches++;
+            Thread.sleep(1);
+        }
+        producer.join();
+
+        System.out.println(String.format(Locale.US, "without switching: %.1f ns/notification", plainNanos));
+        System.out.println(String.format(Locale.US, "switching:         %.1f ns/notification, %d switches",
+                feedNanos[0] / (double) count, switches));
+        System.out.println("  " + pipeline.report());
+
+        check("every notification reaches the sinks",
+                a1.count + b1.count == count && plainSink.count == count);
+        check("each sample reaches a whole sink set", a1.count == a2.count && b1.count == b2.count);
+        check(String.format(Locale.US, "filtered values carry on across switches, max error %.3f mbar "
+                + "(%.3f without switching)", all.maxError, plainSink.maxError), all.maxError < 0.1);
+        check("switching back to a window is exact", exactResume(frames));
+
+        if (failures > 0) {
+            System.out.println(failures + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // A pipeline switching 12/4 -> 20/6 -> 12/4 gives the values of one that never switched.
+    private static boolean exactResume(byte[][] frames) {
+        final float[] expected = new float[frames.length];
+        final float[] actual = new float[frames.length];
+        final int[] index = new int[1];
+        SensorPipeline reference = new SensorPipeline();
+        reference.addSink(new CountingSink() {
+            @Override
+            public void onPressure(String address, long timestamp, int raw, float mbar) {
+                expected[index[0]] = mbar;
+            }
+        });
+        SensorPipeline switching = new SensorPipeline();
+        switching.addSink(new CountingSink() {
+            @Override
+            public void onPressure(String address, long timestamp, int raw, float mbar) {
+                actual[index[0]] = mbar;
+            }
+        });
+        int n = Math.min(frames.length, 200000);
+        boolean same = true;
+        for (int i = 0; i < n; i++) {
+            if (i % 1000 == 0) {
+                switching.edit().setFilter(20, 6).apply();
+            } else if (i % 1000 == 500) {
+                switching.edit().setFilter(12, 4).apply();
+            }
+            index[0] = i;
+            reference.process(DEVICES[i % DEVICES.length], SensorPipeline.DECODER_PRESSURE, frames[i], i);
+            switching.process(DEVICES[i % DEVICES.length], SensorPipeline.DECODER_PRESSURE, frames[i], i);
+            if (i % 1000 >= 500 && i >= WARM_UP) {
+                same &= actual[i] == expected[i];
+            }
+        }
+        return same;
+    }
+
+    private static void feed(SensorPipeline pipeline, byte[][] frames) {
+        for (int i = 0; i < frames.length; i++) {
+            pipeline.process(DEVICES[i % DEVICES.length], SensorPipeline.DECODER_PRESSURE, frames[i], i);
+        }
+    }
+
+    // Notifications with a raw value around MBAR and a few counts of noise; 8 filtered values
+    // / 4096 make mbar.
+    private static byte[][] frames(int count) {
+        Random random = new Random(1);
+        byte[][] frames = new byte[count][];
+        int base = (int) Math.round(MBAR * 4096 / 8);
+        for (int i = 0; i < count; i++) {
+            int raw = base + random.nextInt(21) - 10;
+            byte[] f = new byte[6];
+            f[2] = (byte) raw;
+            f[4] = (byte) (raw >> 8);
+            f[5] = (byte) (raw >> 16);
+            frames[i] = f;
+        }
+        return frames;
+    }
+
+    private static void check(String name, boolean ok) {
+        System.out.println((ok ? "PASS " : "FAIL ") + name);
+        if (!ok) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.bletest;
+
+import java.io.File;
+
+/**
+ * Command line front end of {@link Reprocessing}.
+ *
+ * Usage: ReprocessingTool log_directory [-from yyyy-MM-dd] [-to yyyy-MM-dd] [-window 12]
+ * [-skip 4] [-calibration directory] [-threads n]
+ */
+public class ReprocessingTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ReprocessingTool log_directory [-from yyyy-MM-dd] [-to yyyy-MM-dd] "
+                    + "[-window 12] [-skip 4] [-calibration directory] [-threads n]");
+            System.exit(1);
+        }
+        Reprocessing job = new Reprocessing(new File(args[0]));
+        String from = null;
+        String to = null;
+        int window = PressureFilter.DEFAULT_MAX_SIZE;
+        int skip = PressureFilter.DEFAULT_SKIP_NUM;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            String v = args[i + 1];
+            if (args[i].equals("-from")) {
+                from = v;
+            } else if (args[i].equals("-to")) {
+                to = v;
+            } else if (args[i].equals("-window")) {
+                window = Integer.parseInt(v);
+            } else if (args[i].equals("-skip")) {
+                skip = Integer.parseInt(v);
+            } else if (args[i].equals("-calibration")) {
+                job.setCalibrations(new CalibrationStore(new File(v)));
+            } else if (args[i].equals("-threads")) {
+                job.setThreads(Integer.parseInt(v));
+            }
+        }
+        job.setDays(from, to);
+        job.setFilter(window, skip);
+        File out = job.run();
+        System.out.println("Wrote " + out);
+        System.out.println(job.report());
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.bletest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Command line front end of {@link SessionMerger}.
+ *
+ * Usage: SessionMergerTool session_directory [lateness_ms]
+ *
+ * Writes merged.csv ("corrected millis, address, raw, mbar") into the session directory.
+ */
+public class SessionMergerTool {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: SessionMergerTool session_directory [lateness_ms]");
+            System.exit(1);
+        }
+        File directory = new File(args[0]);
+        long lateness = args.length > 1 ? Long.parseLong(args[1]) : SessionMerger.DEFAULT_LATENESS;
+        final Writer out = new BufferedWriter(new FileWriter(new File(directory, "merged.csv")));
+        final IOException[] error = new IOException[1];
+        SessionMerger merger = new SessionMerger(lateness);
+        long count;
+        try {
+            count = merger.merge(directory, new TimeAligner.Listener() {
+                @Override
+                public void onAligned(PressureSample s) {
+                    if (error[0] != null) {
+                        return;
+                    }
+                    try {
+                        out.write(s.timestamp + ", " + s.address + ", " + s.raw + ", " + s.mbar + "\n");
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+        } finally {
+            out.close();
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        System.out.println(String.format("merged: %d, late: %d", count, merger.getLateCount()));
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.bletest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks {@link QuantileSketch} against exact quantiles of the sorted samples, on pressure
+ * like and heavy tailed data: the relative error bound, merging parts against one sketch of
+ * all values, the serialized form and the bin bound. Run on a JVM:
+ * SketchAccuracy [samples] [seed]
+ *
+ * Prints every check and exits with 1 if one fails.
+ */
+public class SketchAccuracy {
+    private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1};
+    private static final int PARTS = 24;
+
+    private int failures = 0;
+
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        Random random = new Random(seed);
+
+        SketchAccuracy check = new SketchAccuracy();
+        double[] pressure = new double[n];
+        for (int i = 0; i < n; i++) {
+            // A pod on a slowly drifting 1013 mbar with sensor noise
+            pressure[i] = 1013 + 5 * Math.sin(i * 2 * Math.PI / n) + random.nextGaussian() * 0.3;
+        }
+        double[] lognormal = new double[n];
+        for (int i = 0; i < n; i++) {
+            lognormal[i] = Math.exp(random.nextGaussian() * 2);
+        }
+        double[] uniform = new double[n];
+        for (int i = 0; i < n; i++) {
+            uniform[i] = random.nextDouble() * 2000;
+        }
+        double[] steps = new double[n];
+        for (int i = 0; i < n; i++) {
+            // Few distinct values, a zero among them
+            steps[i] = random.nextInt(5) * 250;
+        }
+
+        check.accuracy("pressure", pressure, QuantileSketch.DEFAULT_ALPHA);
+        check.accuracy("lognormal", lognormal, 0.01);
+        check.accuracy("uniform", uniform, 0.001);
+        check.accuracy("steps", steps, 0.001);
+        check.merge("pressure", pressure);
+        check.merge("lognormal", lognormal);
+        check.serialization("pressure", pressure);
+        check.serialization("steps", steps);
+        check.memory(lognormal);
+
+        if (check.failures > 0) {
+            System.out.println(check.failures + " checks FAILED");
+            System.exit(1);
+        }
+        System.out.println("All checks passed");
+    }
+
+    // Every quantile within alpha of the exact one, relative to it.
+    private void accuracy(String name, double[] values, double alpha) {
+        QuantileSketch s = new QuantileSketch(alpha);
+        for (double v : values) {
+            s.add(v);
+        }
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double worst = 0;
+        for (double q : QUANTILES) {
+            double exact = sorted[(int) (q * (sorted.length - 1))];
+            double error = exact == 0 ? Math.abs(s.quantile(q)) : Math.abs(s.quantile(q) - exact) / exact;
+            worst = Math.max(worst, error);
+        }
+        report(String.format(Locale.US, "accuracy %-9s alpha %.0e: worst relative error %.2e, %d bins, %d samples",
+                name, alpha, worst, s.getBinCount(), values.length), worst <= alpha
+                && s.getMin() == sorted[0] && s.getMax() == sorted[sorted.length - 1]
+                && s.getCount() == values.length);
+    }
+
+    // Hourly parts merged give the same answers as one sketch over all values.
+    private void merge(String name, double[] values) {
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch merged = new QuantileSketch();
+        int part = values.length / PARTS + 1;
+        for (int p = 0; p * part < values.length; p++) {
+            QuantileSketch s = new QuantileSketch();
+            for (int i = p * part; i < Math.min(values.length, (p + 1) * part); i++) {
+                s.add(values[i]);
+                all.add(values[i]);
+            }
+            merged.merge(s);
+        }
+        boolean same = merged.getCount() == all.getCount() && merged.getMin() == all.getMin()
+                && merged.getMax() == all.getMax();
+        for (double q : QUANTILES) {
+            same &= merged.quantile(q) == all.quantile(q);
+        }
+        report("merge    " + name + ": " + PARTS + " parts against one sketch", same);
+
+        boolean refused = false;
+        try {
+            merged.merge(new QuantileSketch(0.01));
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+        report("merge    " + name + ": refuses a sketch of other alpha", refused);
+    }
+
+    // Written and read back, the sketch answers the same; and the form is compact.
+    private void serialization(String name, double[] values) throws IOException {
+        QuantileSketch s = new QuantileSketch();
+        for (double v : values) {
+            s.add(v);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        s.write(new DataOutputStream(bytes));
+        QuantileSketch r = QuantileSketch.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        boolean same = r.getCount() == s.getCount() && r.getMin() == s.getMin() && r.getMax() == s.getMax()
+                && r.getMean() == s.getMean() && r.getBinCount() == s.getBinCount();
+        for (double q : QUANTILES) {
+            same &= r.quantile(q) == s.quantile(q);
+        }
+        report("serial   " + name + ": " + bytes.size() + " bytes for " + s.getBinCount() + " bins", same);
+    }
+
+    // Bins stay within the bound; the quantiles above the folded bins keep their accuracy. 600
+    // bins of alpha 0.01 span a factor of e^12, the lognormal about e^16.
+    private void memory(double[] values) {
+        int maxBins = 600;
+        double alpha = 0.01;
+        QuantileSketch s = new QuantileSketch(alpha);
+        s.setMaxBins(maxBins);
+        int most = 0;
+        for (double v : values) {
+            s.add(v);
+            most = Math.max(most, s.getBinCount());
+        }
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        double worst = 0;
+        for (double q : new double[] {0.5, 0.9, 0.99, 1}) {
+            double exact = sorted[(int) (q * (sorted.length - 1))];
+            worst = Math.max(worst, Math.abs(s.quantile(q) - exact) / exact);
+        }
+        report(String.format(Locale.US, "memory   lognormal: at most %d of %d bins, upper error %.2e",
+                most, maxBins, worst), most <= maxBins && worst <= alpha && s.getCount() == values.length);
+
+        QuantileSketch merged = new QuantileSketch(alpha);
+        merged.setMaxBins(maxBins);
+        merged.merge(s);
+        QuantileSketch unbounded = new QuantileSketch(alpha);
+        for (double v : values) {
+            unbounded.add(v);
+        }
+        merged.merge(unbounded);
+        report("memory   merge into a bounded sketch: " + merged.getBinCount() + " bins",
+                merged.getBinCount() <= maxBins && merged.getCount() == 2L * values.length);
+    }
+
+    private void report(String line, boolean ok) {
+        System.out.println((ok ? "PASS " : "FAIL ") + line);
+        if (!ok) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.bletest;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Command line front end of {@link TraceDecoder}.
+ *
+ * Usage: TraceDecoderTool trace_file
+ */
+public class TraceDecoderTool {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceDecoderTool trace_file");
+            System.exit(1);
+        }
+        TraceDecoder decoder = new TraceDecoder();
+        long count = decoder.decode(new File(args[0]), System.out);
+        System.err.println(count + " events" + (decoder.isTruncated() ? ", last record cut short" : ""));
+    }
+}
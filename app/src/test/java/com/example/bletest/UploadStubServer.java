@@ -0,0 +1,156 @@
+package com.example.bletest;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Minimal collector for trying {@link UploadQueue} against a local server: writes every batch
+ * at its offset into output_directory/device/segment, so a complete upload reproduces the
+ * phone's files. A failure rate makes it reject batches at random to exercise retries. A
+ * development tool in the test sources, not part of the app.
+ *
+ * Usage: UploadStubServer port output_directory [failure_rate]
+ */
+public class UploadStubServer {
+    private final File directory;
+    private final double failureRate;
+    private final Random random = new Random();
+    private long accepted = 0;
+    private long rejected = 0;
+
+    public UploadStubServer(File directory, double failureRate) {
+        this.directory = directory;
+        this.failureRate = failureRate;
+    }
+
+    public void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                try {
+                    handle(socket);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    socket.close();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        String requestLine = readLine(in);
+        HashMap<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        String length = headers.get("content-length");
+        byte[] body = new byte[length != null ? Integer.parseInt(length) : 0];
+        in.readFully(body);
+
+        int status;
+        String segment = headers.get("x-segment");
+        String device = headers.get("x-device");
+        if (device == null) {
+            device = "unknown";
+        }
+        if (requestLine == null || !requestLine.startsWith("POST") || !isSegment(segment)
+                || !isDevice(device)) {
+            status = 400;
+        } else if (random.nextDouble() < failureRate) {
+            status = 503;
+            rejected++;
+        } else {
+            File file = new File(new File(directory, device), segment);
+            file.getParentFile().mkdirs();
+            InputStream data = new GZIPInputStream(new ByteArrayInputStream(body));
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                out.seek(Long.parseLong(headers.get("x-offset")));
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = data.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+            status = 200;
+            accepted++;
+        }
+        System.out.println(status + " " + segment + " @" + headers.get("x-offset")
+                + " (" + body.length + " bytes), accepted " + accepted + ", rejected " + rejected);
+
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + (status == 200 ? " OK" : " Error")
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    // A device id names one directory: letters, digits, '-' and '_' only.
+    static boolean isDevice(String device) {
+        if (device.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < device.length(); i++) {
+            char c = device.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A segment is a relative path below the device directory, e.g. session_x/AABBCCDDEEFF.csv.
+    static boolean isSegment(String segment) {
+        if (segment == null || segment.length() == 0 || segment.startsWith("/")
+                || segment.indexOf('\\') >= 0 || segment.indexOf(':') >= 0) {
+            return false;
+        }
+        for (String part : segment.split("/", -1)) {
+            if (part.length() == 0 || part.startsWith(".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0 && c != '\n') {
+            if (c != '\r') {
+                sb.append((char) c);
+            }
+        }
+        return c < 0 && sb.length() == 0 ? null : sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: UploadStubServer port output_directory [failure_rate]");
+            System.exit(1);
+        }
+        double failureRate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        new UploadStubServer(new File(args[1]), failureRate).serve(Integer.parseInt(args[0]));
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.bletest;
+
+/**
+ * Compares per-object {@link Point3D} processing with the {@link Vec3Buffer} kernels on the
+ * same work: scale each vector, then compute its length. Run on a JVM:
+ * Vec3Benchmark [vectors] [rounds]
+ */
+public class Vec3Benchmark {
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 16;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Point3D[] points = new Point3D[n];
+        Vec3Buffer buffer = new Vec3Buffer(n);
+        for (int i = 0; i < n; i++) {
+            points[i] = new Point3D(i, i * 0.5, -i);
+            buffer.add(i, i * 0.5, -i);
+        }
+        double[] norms = new double[n];
+
+        // Warm up both paths before timing.
+        double sink = 0;
+        for (int r = 0; r < rounds / 4 + 1; r++) {
+            sink += objects(points, norms);
+            sink += block(buffer, norms);
+        }
+
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            sink += objects(points, norms);
+        }
+        long objectNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            sink += block(buffer, norms);
+        }
+        long blockNanos = System.nanoTime() - start;
+
+        double total = (double) n * rounds;
+        System.out.println(String.format("Point3D objects: %.2f ns/vector", objectNanos / total));
+        System.out.println(String.format("Vec3Buffer:      %.2f ns/vector", blockNanos / total));
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    // Decoding allocates a new Point3D per vector, as the motion path used to.
+    private static double objects(Point3D[] points, double[] norms) {
+        for (int i = 0; i < points.length; i++) {
+            Point3D p = points[i];
+            Point3D v = new Point3D(p.x * 0.5, p.y * 0.5, p.z * 0.5);
+            norms[i] = Math.sqrt(v.x * v.x + v.y * v.y + v.z * v.z);
+            points[i] = new Point3D(v.x * 2, v.y * 2, v.z * 2);
+        }
+        return norms[points.length - 1];
+    }
+
+    private static double block(Vec3Buffer buffer, double[] norms) {
+        buffer.scale(0.5);
+        buffer.norm(norms);
+        buffer.scale(2);
+        return norms[buffer.size() - 1];
+    }
+}